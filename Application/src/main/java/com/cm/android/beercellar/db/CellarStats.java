@@ -0,0 +1,52 @@
+package com.cm.android.beercellar.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts and ratings over the whole cellar, read from the statistics table the database keeps
+ * up to date as notes are written, see {@link NotesDbAdapter#fetchStats()}.
+ */
+public class CellarStats {
+    /**
+     * Ratings are counted in half stars, from 0 to 5 stars
+     */
+    public static final int RATING_BUCKETS = 11;
+
+    /**
+     * The notes sharing a beer, a month or a rating, or all of them
+     */
+    public static class Group {
+        public String key;
+        public int notes;
+        public int rated;
+        public double ratingSum;
+
+        /**
+         * @return The average of the ratings given, or 0 if none were
+         */
+        public float getAverageRating() {
+            return rated == 0 ? 0 : (float) (ratingSum / rated);
+        }
+
+        @Override
+        public String toString() {
+            return key + "[notes=" + notes + ",rated=" + rated + ",average="
+                    + getAverageRating() + "]";
+        }
+    }
+
+    public Group total = new Group();
+    /**
+     * By beer, most noted first
+     */
+    public final List<Group> beers = new ArrayList<Group>();
+    /**
+     * By month created, as "yyyy-MM" in UTC, oldest first
+     */
+    public final List<Group> months = new ArrayList<Group>();
+    /**
+     * Notes rated at each half star, so index 7 counts the 3.5 star notes
+     */
+    public final int[] ratingHistogram = new int[RATING_BUCKETS];
+}
@@ -0,0 +1,114 @@
+package com.cm.android.beercellar.db;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * The most recently read {@link Note}s of one database, by rowId, in front of
+ * {@link NotesDbAdapter#fetchNote}. Every adapter on the database shares it through
+ * {@link NotesDatabase}, and their writes update or drop the notes they touch, so a note written
+ * through one adapter is never read stale through another.
+ * <p/>
+ * Notes are copied on the way in and out, since callers are free to change the ones they get.
+ */
+public class NoteCache {
+    private static final int DEFAULT_MAX_NOTES = 100;
+
+    private final NotesDatabase mDatabase;
+    private final LruCache<Long, Note> mNotes;
+    private int mHitCount;
+    private int mMissCount;
+
+    NoteCache(NotesDatabase database) {
+        this(database, DEFAULT_MAX_NOTES);
+    }
+
+    NoteCache(NotesDatabase database, int maxNotes) {
+        mDatabase = database;
+        mNotes = new LruCache<Long, Note>(maxNotes);
+    }
+
+    /**
+     * @return A copy of the cached note, or null if it is not cached
+     */
+    synchronized Note get(long rowId) {
+        final Note note = mNotes.get(rowId);
+        if (note == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return copyOf(note);
+    }
+
+    /**
+     * Caches a note as it now is in the database.
+     */
+    synchronized void put(Note note) {
+        mNotes.put(note.id, copyOf(note));
+    }
+
+    /**
+     * Caches a note read from the database, unless notes were written since the read started,
+     * in which case it may already be out of date.
+     *
+     * @param generation {@link NotesDatabase#getGeneration()} from before the read
+     */
+    synchronized void putIfUnchanged(Note note, int generation) {
+        if (mDatabase.getGeneration() == generation) {
+            put(note);
+        }
+    }
+
+    /**
+     * @return A copy of the cached note, or null, without counting as a read
+     */
+    synchronized Note peek(long rowId) {
+        final Note note = mNotes.get(rowId);
+        return note == null ? null : copyOf(note);
+    }
+
+    synchronized void remove(long rowId) {
+        mNotes.remove(rowId);
+    }
+
+    public synchronized void evictAll() {
+        mNotes.evictAll();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return The share of reads answered from the cache, 0 before any read
+     */
+    public synchronized float getHitRatio() {
+        final int reads = mHitCount + mMissCount;
+        return reads == 0 ? 0 : (float) mHitCount / reads;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NoteCache[size=" + mNotes.size() + ",hits=" + mHitCount + ",misses="
+                + mMissCount + ",hitRatio=" + String.format("%.2f", getHitRatio()) + "]";
+    }
+
+    private static Note copyOf(Note note) {
+        final Note copy = new Note();
+        copy.id = note.id;
+        copy.beer = note.beer;
+        copy.rating = note.rating;
+        copy.textExtract = note.textExtract;
+        copy.notes = note.notes;
+        copy.share = note.share;
+        copy.picture = note.picture;
+        copy.uri = note.uri;
+        copy.created = note.created;
+        copy.updated = note.updated;
+        return copy;
+    }
+}
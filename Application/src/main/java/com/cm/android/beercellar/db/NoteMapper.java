@@ -0,0 +1,75 @@
+package com.cm.android.beercellar.db;
+
+import android.database.Cursor;
+
+/**
+ * Reads {@link Note}s from the rows of a cursor. Column indexes are looked up once, when the
+ * mapper is made for a cursor, instead of by name for every row. Columns the cursor does not
+ * have are left at the note's defaults.
+ */
+class NoteMapper {
+    private final int mId;
+    private final int mBeer;
+    private final int mRating;
+    private final int mTextExtract;
+    private final int mNotes;
+    private final int mShare;
+    private final int mPicture;
+    private final int mUri;
+    private final int mCreated;
+    private final int mUpdated;
+
+    NoteMapper(Cursor cursor) {
+        mId = cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_ROWID);
+        mBeer = cursor.getColumnIndex(NotesDbAdapter.KEY_BEER);
+        mRating = cursor.getColumnIndex(NotesDbAdapter.KEY_RATING);
+        mTextExtract = cursor.getColumnIndex(NotesDbAdapter.KEY_TEXT_EXTRACT);
+        mNotes = cursor.getColumnIndex(NotesDbAdapter.KEY_NOTES);
+        mShare = cursor.getColumnIndex(NotesDbAdapter.KEY_SHARE);
+        mPicture = cursor.getColumnIndex(NotesDbAdapter.KEY_PICTURE);
+        mUri = cursor.getColumnIndex(NotesDbAdapter.KEY_URI);
+        mCreated = cursor.getColumnIndex(NotesDbAdapter.KEY_CREATED);
+        mUpdated = cursor.getColumnIndex(NotesDbAdapter.KEY_UPDATED);
+    }
+
+    /**
+     * Reads the cursor's current row.
+     *
+     * @param note a note to fill in, or null for a new one. Every mapped field is overwritten.
+     * @return the note
+     */
+    Note map(Cursor cursor, Note note) {
+        if (note == null) {
+            note = new Note();
+        }
+        note.id = cursor.getLong(mId);
+        if (mBeer >= 0) {
+            note.beer = cursor.getString(mBeer);
+        }
+        if (mRating >= 0) {
+            note.rating = cursor.isNull(mRating) ? null : String.valueOf(cursor.getFloat(mRating));
+        }
+        if (mTextExtract >= 0) {
+            note.textExtract = cursor.getString(mTextExtract);
+        }
+        if (mNotes >= 0) {
+            note.notes = cursor.getString(mNotes);
+        }
+        if (mShare >= 0) {
+            note.share = cursor.getString(mShare);
+        }
+        if (mPicture >= 0) {
+            note.picture = cursor.getString(mPicture);
+        }
+        if (mUri >= 0) {
+            note.uri = cursor.getString(mUri);
+        }
+        if (mCreated >= 0) {
+            note.created = cursor.getLong(mCreated);
+        }
+        if (mUpdated >= 0) {
+            note.updated = cursor.getLong(mUpdated);
+        }
+        return note;
+    }
+}
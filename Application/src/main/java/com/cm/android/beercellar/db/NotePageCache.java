@@ -0,0 +1,197 @@
+package com.cm.android.beercellar.db;
+
+import android.support.v4.util.LruCache;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the most recently used pages of {@link NoteSummary}s, keyed by sort order and page
+ * number, so that a list can bind note details as it scrolls without querying per row. Notes
+ * are also kept by rowId, for lists such as the photo grid that are in no sort order.
+ * <p/>
+ * Pages are loaded with {@link #getPage} off the main thread and read back on it with
+ * {@link #peekPage}, notes likewise with {@link #loadNotes} and {@link #peekNote}. The last
+ * note of every page loaded so far is remembered even after the page itself is evicted, so
+ * reloading a page is a single keyset query. Once notes are written the pages and notes are
+ * dropped, see {@link NotesDatabase#getGeneration()}, but the page ends are kept: a reloaded
+ * page that no longer ends where it did replaces its end and drops the ones after it.
+ */
+public class NotePageCache {
+    public static final int PAGE_SIZE = 100;
+    private static final int DEFAULT_MAX_PAGES = 16;
+    // Kept for a rowId that has no note, so that it is not queried for again
+    private static final NoteSummary NO_NOTE = new NoteSummary();
+
+    private final NotesDatabase mDatabase;
+    private final LruCache<String, List<NoteSummary>> mPages;
+    private final LruCache<Long, NoteSummary> mNotes;
+    // Per sort order, the last note of page i at index i
+    private final SparseArray<List<NoteSummary>> mPageEnds = new SparseArray<List<NoteSummary>>();
+    private int mGeneration;
+    private int mHitCount;
+    private int mMissCount;
+
+    public NotePageCache(NotesDatabase database) {
+        this(database, DEFAULT_MAX_PAGES);
+    }
+
+    /**
+     * @param maxPages The number of pages kept across all sort orders
+     */
+    public NotePageCache(NotesDatabase database, int maxPages) {
+        mDatabase = database;
+        mPages = new LruCache<String, List<NoteSummary>>(maxPages);
+        mNotes = new LruCache<Long, NoteSummary>(maxPages * PAGE_SIZE);
+        mGeneration = database.getGeneration();
+    }
+
+    /**
+     * Returns a page, querying for it and for any pages before it that were never loaded.
+     * Runs queries, so call it off the main thread.
+     *
+     * @param sortOrder one of the NotesDbAdapter.SORT_* values
+     * @param page      the page number, from 0
+     * @return the notes on the page, empty past the end of the list
+     */
+    public synchronized List<NoteSummary> getPage(int sortOrder, int page) {
+        checkGeneration();
+        List<NoteSummary> notes = mPages.get(key(sortOrder, page));
+        if (notes != null) {
+            mHitCount++;
+            return notes;
+        }
+        mMissCount++;
+
+        final List<NoteSummary> ends = getPageEnds(sortOrder);
+        final NotesDbAdapter adapter = mDatabase.getNotesDbAdapter();
+        // A page can only be found from the end of the one before it
+        for (int i = Math.min(page, ends.size()); i <= page; i++) {
+            if (i > 0 && ends.size() < i) {
+                // The list ended before this page
+                return Collections.emptyList();
+            }
+            final NoteSummary after = i == 0 ? null : ends.get(i - 1);
+            notes = Collections.unmodifiableList(
+                    adapter.fetchNoteSummaries(sortOrder, after, PAGE_SIZE));
+            mPages.put(key(sortOrder, i), notes);
+            putNotes(notes);
+            if (i < ends.size() && (notes.isEmpty()
+                    || !isSameEnd(ends.get(i), notes.get(notes.size() - 1)))) {
+                // Notes written since moved this page's end, the pages after it start from it
+                for (int j = i + 1; j <= ends.size(); j++) {
+                    mPages.remove(key(sortOrder, j));
+                }
+                ends.subList(i, ends.size()).clear();
+            }
+            if (i == ends.size() && !notes.isEmpty()) {
+                ends.add(notes.get(notes.size() - 1));
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * @return The page if it is cached, otherwise null. Safe to call on the main thread.
+     */
+    public synchronized List<NoteSummary> peekPage(int sortOrder, int page) {
+        checkGeneration();
+        return mPages.get(key(sortOrder, page));
+    }
+
+    /**
+     * Loads the notes of {@code rowIds} that are not cached, in a single query. Runs queries,
+     * so call it off the main thread.
+     */
+    public synchronized void loadNotes(Collection<Long> rowIds) {
+        checkGeneration();
+        final List<Long> missing = new ArrayList<Long>();
+        for (Long rowId : rowIds) {
+            if (mNotes.get(rowId) == null) {
+                missing.add(rowId);
+            }
+        }
+        if (missing.isEmpty()) {
+            mHitCount++;
+            return;
+        }
+        mMissCount++;
+        for (Long rowId : missing) {
+            mNotes.put(rowId, NO_NOTE);
+        }
+        putNotes(mDatabase.getNotesDbAdapter().fetchNoteSummaries(missing));
+    }
+
+    /**
+     * @return true if the note of {@code rowId} is cached, or known not to exist. Safe to call
+     * on the main thread.
+     */
+    public synchronized boolean isNoteCached(long rowId) {
+        checkGeneration();
+        return mNotes.get(rowId) != null;
+    }
+
+    /**
+     * @return The note if it is cached, otherwise null, as it is for a rowId without a note.
+     * Safe to call on the main thread.
+     */
+    public synchronized NoteSummary peekNote(long rowId) {
+        checkGeneration();
+        final NoteSummary note = mNotes.get(rowId);
+        return note == NO_NOTE ? null : note;
+    }
+
+    /**
+     * Drops everything, the page ends included.
+     */
+    public synchronized void invalidate() {
+        mPages.evictAll();
+        mNotes.evictAll();
+        mPageEnds.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private void checkGeneration() {
+        final int generation = mDatabase.getGeneration();
+        if (generation != mGeneration) {
+            mGeneration = generation;
+            mPages.evictAll();
+            mNotes.evictAll();
+        }
+    }
+
+    private void putNotes(List<NoteSummary> notes) {
+        for (NoteSummary note : notes) {
+            mNotes.put(note.id, note);
+        }
+    }
+
+    private List<NoteSummary> getPageEnds(int sortOrder) {
+        List<NoteSummary> ends = mPageEnds.get(sortOrder);
+        if (ends == null) {
+            ends = new ArrayList<NoteSummary>();
+            mPageEnds.put(sortOrder, ends);
+        }
+        return ends;
+    }
+
+    private static boolean isSameEnd(NoteSummary end, NoteSummary note) {
+        // Every sort order is by some of these, the end moved if any of them changed
+        return end.id == note.id && end.created == note.created && end.updated == note.updated
+                && (end.rating == null ? note.rating == null : end.rating.equals(note.rating));
+    }
+
+    private static String key(int sortOrder, int page) {
+        return sortOrder + ":" + page;
+    }
+}
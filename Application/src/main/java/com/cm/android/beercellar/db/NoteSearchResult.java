@@ -0,0 +1,12 @@
+package com.cm.android.beercellar.db;
+
+/**
+ * A note found by {@link NotesDbAdapter#searchNotes}.
+ */
+public class NoteSearchResult extends NoteSummary {
+    /**
+     * The text around the match, with the matched words in &lt;b&gt; tags
+     */
+    public String snippet;
+    public double rank;
+}
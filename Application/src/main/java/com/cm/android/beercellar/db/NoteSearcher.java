@@ -0,0 +1,103 @@
+package com.cm.android.beercellar.db;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link NotesDbAdapter#searchNotes} as the user types. Queries are debounced so a search
+ * starts only once typing pauses, run one at a time off the main thread, and results of a query
+ * that has since been replaced are dropped rather than delivered. Call from the main thread.
+ */
+public class NoteSearcher {
+    private static final String TAG = NoteSearcher.class.getName();
+
+    private static final long DEBOUNCE_MS = 250;
+    private static final int DEFAULT_LIMIT = 100;
+
+    /**
+     * Interface definition for a callback with the results of a search, called on the main
+     * thread for the latest query only.
+     */
+    public interface OnSearchResultsListener {
+        void onSearchResults(String query, List<NoteSearchResult> results);
+    }
+
+    private final NotesDatabase mDatabase;
+    private final OnSearchResultsListener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // Bumped for every query and cancel, a search only delivers if it is still the latest
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private String mPendingQuery;
+
+    private final Runnable mSubmit = new Runnable() {
+        @Override
+        public void run() {
+            submit(mPendingQuery);
+        }
+    };
+
+    public NoteSearcher(NotesDatabase database, OnSearchResultsListener listener) {
+        mDatabase = database;
+        mListener = listener;
+    }
+
+    /**
+     * Searches for {@code query} once no other query has followed it for a moment.
+     */
+    public void search(String query) {
+        mPendingQuery = query;
+        mMainHandler.removeCallbacks(mSubmit);
+        mMainHandler.postDelayed(mSubmit, DEBOUNCE_MS);
+    }
+
+    /**
+     * Drops the pending query and the results of any search still running.
+     */
+    public void cancel() {
+        mMainHandler.removeCallbacks(mSubmit);
+        mSequence.incrementAndGet();
+    }
+
+    public void close() {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    private void submit(final String query) {
+        final int sequence = mSequence.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (sequence != mSequence.get()) {
+                    // Typed on while this was queued
+                    return;
+                }
+                final long start = System.currentTimeMillis();
+                final List<NoteSearchResult> results;
+                try {
+                    results = mDatabase.getNotesDbAdapter().searchNotes(query, DEFAULT_LIMIT);
+                } catch (Exception e) {
+                    Log.e(TAG, "submit - " + e);
+                    return;
+                }
+                Log.i(TAG, "submit: " + results.size() + " results in "
+                        + (System.currentTimeMillis() - start) + "ms");
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (sequence == mSequence.get()) {
+                            mListener.onSearchResults(query, results);
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,13 @@
+package com.cm.android.beercellar.db;
+
+/**
+ * The columns of a note that lists show, see {@link NotesDbAdapter#fetchNoteSummaries}.
+ */
+public class NoteSummary {
+    public long id;
+    public String beer;
+    public String rating;
+    public String picture;
+    public long created;
+    public long updated;
+}
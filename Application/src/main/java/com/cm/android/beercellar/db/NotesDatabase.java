@@ -0,0 +1,154 @@
+package com.cm.android.beercellar.db;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the one connection pool to a notes database for the whole process. The database is
+ * opened on first use in write-ahead logging mode, so readers get their own connections and do
+ * not wait for writers, while writes are serialized on the primary connection.
+ * <p/>
+ * Activities and tasks take the shared {@link NotesDbAdapter} from {@link #getNotesDbAdapter()}
+ * and do not close it. The database stays open until {@link #close()}, which is only needed
+ * when the file itself is about to be replaced or deleted.
+ */
+public final class NotesDatabase {
+    private static final String TAG = NotesDatabase.class.getName();
+
+    private static final Map<String, NotesDatabase> sInstances =
+            new HashMap<String, NotesDatabase>();
+
+    /**
+     * Interface definition for a callback to be invoked when notes are written, on the thread
+     * that wrote them.
+     */
+    public interface OnNotesChangedListener {
+        /**
+         * @param rowIds The notes created, updated or deleted
+         */
+        void onNotesChanged(long[] rowIds);
+    }
+
+    private final NotesDbAdapter.DatabaseHelper mHelper;
+    private final NotesDbAdapter mAdapter;
+    private final NoteCache mNoteCache;
+    private final Outbox mOutbox;
+    private SQLiteDatabase mDb;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final List<OnNotesChangedListener> mListeners =
+            new CopyOnWriteArrayList<OnNotesChangedListener>();
+
+    /**
+     * @return The app's notes database
+     */
+    public static NotesDatabase getInstance(Context context) {
+        return getInstance(context, NotesDbAdapter.DATABASE_NAME);
+    }
+
+    /**
+     * @param name The name of the database file
+     */
+    public static NotesDatabase getInstance(Context context, String name) {
+        synchronized (sInstances) {
+            NotesDatabase instance = sInstances.get(name);
+            if (instance == null) {
+                instance = new NotesDatabase(context.getApplicationContext(), name);
+                sInstances.put(name, instance);
+            }
+            return instance;
+        }
+    }
+
+    private NotesDatabase(Context context, String name) {
+        mHelper = new NotesDbAdapter.DatabaseHelper(context, name);
+        mNoteCache = new NoteCache(this);
+        mOutbox = new Outbox(this);
+        mAdapter = new NotesDbAdapter(this);
+    }
+
+    /**
+     * Opens the database on first use, creating or upgrading it as needed. Call it off the main
+     * thread.
+     *
+     * @throws SQLException if the database could be neither opened or created
+     */
+    public synchronized SQLiteDatabase getDatabase() throws SQLException {
+        if (mDb == null || !mDb.isOpen()) {
+            final long start = System.currentTimeMillis();
+            mDb = mHelper.getWritableDatabase();
+            Log.i(TAG, "getDatabase: opened in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return mDb;
+    }
+
+    /**
+     * @return The adapter shared by every caller, opened. Its writes are synchronized, its
+     * reads are not.
+     * @throws SQLException if the database could be neither opened or created
+     */
+    public NotesDbAdapter getNotesDbAdapter() throws SQLException {
+        return mAdapter.open();
+    }
+
+    /**
+     * @return The notes read recently through any adapter on this database
+     */
+    public NoteCache getNoteCache() {
+        return mNoteCache;
+    }
+
+    /**
+     * @return The changes waiting to be sent to the server
+     */
+    public Outbox getOutbox() {
+        return mOutbox;
+    }
+
+    /**
+     * @return A number that changes whenever notes are written, for caches of query results
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    void onNotesChanged() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Tells the listeners which notes were written, once the note cache has caught up.
+     */
+    void notifyNotesChanged(long[] rowIds) {
+        for (OnNotesChangedListener listener : mListeners) {
+            listener.onNotesChanged(rowIds);
+        }
+    }
+
+    public void addOnNotesChangedListener(OnNotesChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeOnNotesChangedListener(OnNotesChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Closes the database and every connection to it. Adapters reopen it on their next
+     * {@link NotesDbAdapter#open()}.
+     */
+    public synchronized void close() {
+        mAdapter.close();
+        mHelper.close();
+        mDb = null;
+        // The file may be replaced before it is opened again
+        mNoteCache.evictAll();
+    }
+}
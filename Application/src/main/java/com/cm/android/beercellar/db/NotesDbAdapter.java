@@ -4,11 +4,28 @@ package com.cm.android.beercellar.db;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
+import com.cm.beer.activity.lite.BuildConfig;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 //import com.vvw.config.AppConfig;
 //import com.vvw.util.Util;
 
@@ -38,11 +55,50 @@ public class NotesDbAdapter {
 
 
     public static final String DATABASE_NAME = "beer_cellar_db.sqlite";
-    public static final int DATABASE_VERSION = 1; //10 FIELDS
-    public static final String DATABASE_TABLE = "wine_list_" + DATABASE_VERSION;
+    public static final int DATABASE_VERSION = 8; //10 FIELDS
+    // Named after the version that introduced it, versions 3 to 7 only added tables beside it
+    public static final String DATABASE_TABLE = "wine_list_2";
+    public static final String DATABASE_FTS_TABLE = DATABASE_TABLE + "_fts";
+    public static final String DATABASE_STATS_TABLE = DATABASE_TABLE + "_stats";
+    public static final String DATABASE_OUTBOX_TABLE = DATABASE_TABLE + "_outbox";
+    public static final String DATABASE_SYNC_TABLE = DATABASE_TABLE + "_sync";
+    // Version 1 kept everything, including rating and the timestamps, as text
+    private static final String DATABASE_TABLE_V1 = "wine_list_1";
+
+    /**
+     * Oldest first, the order photos were captured and the grid shows them in
+     */
+    public static final int SORT_CREATED = 0;
+    /**
+     * Most recently edited first
+     */
+    public static final int SORT_UPDATED = 1;
+    /**
+     * Highest rated first, then newest first, unrated notes last
+     */
+    public static final int SORT_RATING = 2;
+
+    private static final String SELECT_NOTES_SQL = "select " + KEY_ROWID + ", " + KEY_BEER
+            + ", " + KEY_RATING + ", " + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ", " + KEY_PICTURE
+            + ", " + KEY_SHARE + ", " + KEY_URI + ", " + KEY_CREATED + ", " + KEY_UPDATED
+            + " from " + DATABASE_TABLE;
+    private static final String FETCH_NOTE_SQL = SELECT_NOTES_SQL + " where " + KEY_ROWID
+            + " = ?";
+
+    private static final String[] SUMMARY_COLUMNS =
+            {KEY_ROWID, KEY_BEER, KEY_RATING, KEY_PICTURE, KEY_CREATED, KEY_UPDATED};
 
-    private DatabaseHelper mDbHelper;
+    // The "or" clause for each SQLiteDatabase.CONFLICT_* value
+    private static final String[] CONFLICT_VALUES =
+            {"", " or rollback", " or abort", " or fail", " or ignore", " or replace"};
+
+    private final NotesDatabase mDatabase;
     private SQLiteDatabase mDb;
+    // Compiled on first use against mDb, indexed by SQLiteDatabase.CONFLICT_* value
+    private final SQLiteStatement[] mInsertStatements = new SQLiteStatement[CONFLICT_VALUES.length];
+    private SQLiteStatement mUpdateStatement;
+    private SQLiteStatement mDeleteStatement;
+    private SQLiteStatement mMergeStatement;
 
 
     /**
@@ -52,22 +108,204 @@ public class NotesDbAdapter {
     private static final String DATABASE_CREATE = "create table if not exists "
             + DATABASE_TABLE + " (" + KEY_ROWID + "  integer primary key,"
             + KEY_BEER + " text default null,"
-            + KEY_RATING + " text default null,"
+            + KEY_RATING + " real default null,"
             + KEY_TEXT_EXTRACT + " text default null,"
             + KEY_NOTES + " text default null,"
             + KEY_PICTURE + " text default null,"
             + KEY_SHARE + " text default null,"
             + KEY_URI + " text default null,"
-            + KEY_CREATED + " text default null,"
-            + KEY_UPDATED + " text default null);";
+            + KEY_CREATED + " integer default null,"
+            + KEY_UPDATED + " integer default null);";
+
+    /**
+     * Indexes for the orders notes are listed in. The rowid is part of every index, so listing
+     * ids by date or rating is answered from the index alone.
+     */
+    private static final String[] DATABASE_INDEXES = {
+            "create index if not exists " + DATABASE_TABLE + "_" + KEY_CREATED + " on "
+                    + DATABASE_TABLE + " (" + KEY_CREATED + ");",
+            "create index if not exists " + DATABASE_TABLE + "_" + KEY_UPDATED + " on "
+                    + DATABASE_TABLE + " (" + KEY_UPDATED + ");",
+            "create index if not exists " + DATABASE_TABLE + "_" + KEY_RATING + " on "
+                    + DATABASE_TABLE + " (" + KEY_RATING + ", " + KEY_CREATED + ");",
+            "create index if not exists " + DATABASE_TABLE + "_" + KEY_BEER + " on "
+                    + DATABASE_TABLE + " (" + KEY_BEER + ");"};
+
+    /**
+     * The words of each note that search looks at, kept in step with the notes table by the
+     * triggers below. The docid is the note's rowId. Prefix indexes make "bel*" as cheap as a
+     * whole word, where the platform SQLite supports them.
+     */
+    private static final String DATABASE_FTS_CREATE = "create virtual table if not exists "
+            + DATABASE_FTS_TABLE + " using fts4(" + KEY_BEER + ", " + KEY_TEXT_EXTRACT + ", "
+            + KEY_NOTES + "%s);";
+    private static final String DATABASE_FTS_PREFIX = ", prefix=\"2,3\"";
+
+    /**
+     * Triggers keeping the search table in step. The insert trigger clears any stale row first,
+     * as "insert or replace" does not fire the delete trigger for the row it replaces.
+     */
+    private static final String[] DATABASE_FTS_TRIGGERS = {
+            "create trigger if not exists " + DATABASE_FTS_TABLE + "_insert after insert on "
+                    + DATABASE_TABLE + " begin"
+                    + " delete from " + DATABASE_FTS_TABLE + " where docid = new." + KEY_ROWID
+                    + "; insert into " + DATABASE_FTS_TABLE + " (docid, " + KEY_BEER + ", "
+                    + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ") values (new." + KEY_ROWID
+                    + ", new." + KEY_BEER + ", new." + KEY_TEXT_EXTRACT + ", new." + KEY_NOTES
+                    + "); end;",
+            "create trigger if not exists " + DATABASE_FTS_TABLE + "_update after update of "
+                    + KEY_BEER + ", " + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + " on "
+                    + DATABASE_TABLE + " begin"
+                    + " update " + DATABASE_FTS_TABLE + " set " + KEY_BEER + " = new." + KEY_BEER
+                    + ", " + KEY_TEXT_EXTRACT + " = new." + KEY_TEXT_EXTRACT + ", " + KEY_NOTES
+                    + " = new." + KEY_NOTES + " where docid = new." + KEY_ROWID + "; end;",
+            "create trigger if not exists " + DATABASE_FTS_TABLE + "_delete after delete on "
+                    + DATABASE_TABLE + " begin"
+                    + " delete from " + DATABASE_FTS_TABLE + " where docid = old." + KEY_ROWID
+                    + "; end;"};
+
+    // The kinds of row in the statistics table
+    private static final int STATS_TOTAL = 0;
+    private static final int STATS_BEER = 1;
+    private static final int STATS_RATING = 2;
+    private static final int STATS_MONTH = 3;
 
+    /**
+     * Running counts of the notes, one row per kind and key: one row for all notes, one per beer,
+     * one per half star rating and one per month created. Beers differing only in case are
+     * counted together.
+     */
+    private static final String DATABASE_STATS_CREATE = "create table if not exists "
+            + DATABASE_STATS_TABLE + " (kind integer not null,"
+            + " key text not null collate nocase,"
+            + " note_count integer not null default 0,"
+            + " rated_count integer not null default 0,"
+            + " rating_sum real not null default 0,"
+            + " primary key (kind, key));";
+
+    /**
+     * The key of a note for each kind of statistics row, indexed by kind, with %1$s standing for
+     * the note's row. Null where the note has no such key, such as a month without a created time.
+     */
+    private static final String[] STATS_KEYS = {
+            "''",
+            "trim(coalesce(%1$s." + KEY_BEER + ", ''))",
+            "cast(cast(round(%1$s." + KEY_RATING + " * 2) as integer) as text)",
+            "strftime('%%Y-%%m', %1$s." + KEY_CREATED + " / 1000, 'unixepoch')"};
+
+    /**
+     * Triggers keeping the statistics in step, so they are written in the same transaction as
+     * the notes. A replaced note is subtracted by the delete trigger, which "insert or replace"
+     * fires as recursive triggers are turned on, see {@link DatabaseHelper#onOpen}.
+     */
+    private static final String[] DATABASE_STATS_TRIGGERS = {
+            "create trigger if not exists " + DATABASE_STATS_TABLE + "_insert after insert on "
+                    + DATABASE_TABLE + " begin" + statsChange("new", "+") + " end;",
+            "create trigger if not exists " + DATABASE_STATS_TABLE + "_update after update of "
+                    + KEY_BEER + ", " + KEY_RATING + ", " + KEY_CREATED + " on " + DATABASE_TABLE
+                    + " begin" + statsChange("old", "-") + statsChange("new", "+") + " end;",
+            "create trigger if not exists " + DATABASE_STATS_TABLE + "_delete after delete on "
+                    + DATABASE_TABLE + " begin" + statsChange("old", "-") + " end;"};
+
+    /**
+     * Changes waiting to be sent to the server, see {@link Outbox}. A note has at most one
+     * pending change to its fields and one pending image upload, so a later change replaces the
+     * one before. An image upload keeps the session and offset it got to, to resume from.
+     */
+    private static final String DATABASE_OUTBOX_CREATE = "create table if not exists "
+            + DATABASE_OUTBOX_TABLE + " (" + KEY_ROWID + " integer primary key,"
+            + " note_id integer not null,"
+            + " slot integer not null,"
+            + " op integer not null,"
+            + " path text,"
+            + " enqueued integer not null,"
+            + " attempts integer not null default 0,"
+            + " next_attempt integer not null default 0,"
+            + " upload_session text,"
+            + " upload_offset integer not null default 0,"
+            + " unique (note_id, slot) on conflict replace);";
 
-    private final Context mCtx;
+    /**
+     * Where each account's pull of the server's changes got to, see {@link SyncWatermark}
+     */
+    private static final String DATABASE_SYNC_CREATE = "create table if not exists "
+            + DATABASE_SYNC_TABLE + " (account text primary key,"
+            + " updated integer not null,"
+            + " row_id integer not null);";
+
+    // How much a match in each search column counts towards a result's rank
+    private static final double[] SEARCH_WEIGHTS = {4.0, 1.0, 2.0};
 
-    private static class DatabaseHelper extends SQLiteOpenHelper {
+    /**
+     * Copies version 1 rows into the typed table. Ratings are converted the way SQLite casts
+     * text, and blank, zero or malformed ones, which read as 0, become null: the app saves an
+     * unrated note with "0.0".
+     */
+    private static final String DATABASE_MIGRATE_V1 = "insert into " + DATABASE_TABLE
+            + " select " + KEY_ROWID + ", " + KEY_BEER + ","
+            + " case when cast(trim(" + KEY_RATING + ") as real) > 0"
+            + " then cast(trim(" + KEY_RATING + ") as real) end, "
+            + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ", " + KEY_PICTURE + ", " + KEY_SHARE + ", "
+            + KEY_URI + ", cast(" + KEY_CREATED + " as integer), cast(" + KEY_UPDATED
+            + " as integer) from " + DATABASE_TABLE_V1 + ";";
 
-        DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+    /**
+     * @return The statements adding the note in {@code row} to, or subtracting it from, every
+     * statistics row it counts in
+     */
+    private static String statsChange(String row, String sign) {
+        final StringBuilder sql = new StringBuilder();
+        for (int kind = 0; kind < STATS_KEYS.length; kind++) {
+            final String key = String.format(STATS_KEYS[kind], row);
+            final String where = " where kind = " + kind + " and key = " + key;
+            if (sign.equals("+")) {
+                // Not "insert or ignore", as an "insert or replace" of the note would override it
+                sql.append(" insert into ").append(DATABASE_STATS_TABLE)
+                        .append(" (kind, key) select ").append(kind).append(", ").append(key)
+                        .append(" where ").append(key).append(" is not null and not exists")
+                        .append(" (select 1 from ").append(DATABASE_STATS_TABLE).append(where)
+                        .append(");");
+            }
+            sql.append(" update ").append(DATABASE_STATS_TABLE)
+                    .append(" set note_count = note_count ").append(sign).append(" 1,")
+                    .append(" rated_count = rated_count ").append(sign).append(" (").append(row)
+                    .append(".").append(KEY_RATING).append(" is not null),")
+                    .append(" rating_sum = rating_sum ").append(sign).append(" coalesce(")
+                    .append(row).append(".").append(KEY_RATING).append(", 0)").append(where)
+                    .append(";");
+            if (sign.equals("-") && kind != STATS_TOTAL) {
+                sql.append(" delete from ").append(DATABASE_STATS_TABLE).append(where)
+                        .append(" and note_count = 0;");
+            }
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @return The statistics as counted from scratch, in the columns of the statistics table
+     */
+    private static String statsScanSql() {
+        final StringBuilder sql = new StringBuilder();
+        for (int kind = 0; kind < STATS_KEYS.length; kind++) {
+            final String key = String.format(STATS_KEYS[kind], DATABASE_TABLE);
+            sql.append(kind == 0 ? "" : " union all ").append("select ").append(kind)
+                    .append(", ").append(key).append(" collate nocase, count(*), count(")
+                    .append(KEY_RATING).append("), total(").append(KEY_RATING).append(") from ")
+                    .append(DATABASE_TABLE);
+            // Without a group by, the total row is there even with no notes
+            if (kind != STATS_TOTAL) {
+                sql.append(" where ").append(key).append(" is not null group by ").append(key)
+                        .append(" collate nocase");
+            }
+        }
+        return sql.toString();
+    }
+
+    static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
 
             Log.i(TAG, "DatabaseHelper");
 
@@ -77,26 +315,157 @@ public class NotesDbAdapter {
         public void onCreate(SQLiteDatabase db) {
             Log.i(TAG, "DatabaseHelper::onCreate");
             db.execSQL(DATABASE_CREATE);
+            for (String index : DATABASE_INDEXES) {
+                db.execSQL(index);
+            }
+            createSearchTable(db);
+            createStatsTable(db);
+            db.execSQL(DATABASE_OUTBOX_CREATE);
+            db.execSQL(DATABASE_SYNC_CREATE);
             Log.i(TAG, "DatabaseHelper::onCreate: Database " + DATABASE_TABLE
                     + " created");
             Log.i(TAG, "DatabaseHelper::onCreate: Seed Data Inserted");
         }
 
 
+        /**
+         * Write-ahead logging lets the pager read on its own connections while a sync writes,
+         * instead of waiting for the write to commit. Recursive triggers are turned on first,
+         * while the primary connection, which does every write, is the only one.
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            db.execSQL("PRAGMA recursive_triggers = ON;");
+            if (!db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
+        }
+
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             Log.i(TAG, "DatabaseHelper::onUpgrade");
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion);
-            db.execSQL(DATABASE_CREATE);
-            Log.i(TAG, "DatabaseHelper::onUpgrade: Database " + DATABASE_TABLE
-                    + " created");
-            if (oldVersion == 1) {
-                //Util.onUpgradeToV7FromV6(db);
+            if (oldVersion < 2) {
+                upgradeToV2(db);
+            }
+            if (oldVersion < 3) {
+                upgradeToV3(db);
+            }
+            if (oldVersion < 4) {
+                upgradeToV4(db);
+            }
+            if (oldVersion < 5) {
+                // Changes made before there was an outbox were sent, or lost, at the time
+                db.execSQL(DATABASE_OUTBOX_CREATE);
+            } else if (oldVersion < 6) {
+                db.execSQL("alter table " + DATABASE_OUTBOX_TABLE
+                        + " add column upload_session text;");
+                db.execSQL("alter table " + DATABASE_OUTBOX_TABLE
+                        + " add column upload_offset integer not null default 0;");
+            }
+            if (oldVersion < 7) {
+                // Nothing was pulled before, the first pull takes every note
+                db.execSQL(DATABASE_SYNC_CREATE);
+            }
+            if (oldVersion < 8) {
+                // Unrated notes were stored with a 0 rating, which counted them as rated. The
+                // statistics triggers take them out of the rated counts.
+                db.execSQL("update " + DATABASE_TABLE + " set " + KEY_RATING + " = null where "
+                        + KEY_RATING + " <= 0;");
             }
             Log.i(TAG, "DatabaseHelper::onUpgrade: Data imported");
         }
 
+        /**
+         * Moves the notes into the typed table in a single transaction, so an interrupted upgrade
+         * leaves version 1 untouched and is simply run again on the next open.
+         */
+        private void upgradeToV2(SQLiteDatabase db) {
+            final long start = System.currentTimeMillis();
+            db.beginTransaction();
+            try {
+                db.execSQL(DATABASE_CREATE);
+                db.execSQL("create table if not exists " + DATABASE_TABLE_V1 + " ("
+                        + KEY_ROWID + " integer primary key, " + KEY_BEER + ", " + KEY_RATING
+                        + ", " + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ", " + KEY_PICTURE + ", "
+                        + KEY_SHARE + ", " + KEY_URI + ", " + KEY_CREATED + ", " + KEY_UPDATED
+                        + ");");
+                db.execSQL(DATABASE_MIGRATE_V1);
+                db.execSQL("drop table " + DATABASE_TABLE_V1 + ";");
+                // Built after the copy, which is faster than maintaining them row by row
+                for (String index : DATABASE_INDEXES) {
+                    db.execSQL(index);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            Log.i(TAG, "DatabaseHelper::upgradeToV2: " + DATABASE_TABLE + " created in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        /**
+         * Adds the search table and fills it from the existing notes, in a single transaction.
+         */
+        private void upgradeToV3(SQLiteDatabase db) {
+            final long start = System.currentTimeMillis();
+            db.beginTransaction();
+            try {
+                createSearchTable(db);
+                db.execSQL("delete from " + DATABASE_FTS_TABLE + ";");
+                db.execSQL("insert into " + DATABASE_FTS_TABLE + " (docid, " + KEY_BEER + ", "
+                        + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ") select " + KEY_ROWID + ", "
+                        + KEY_BEER + ", " + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + " from "
+                        + DATABASE_TABLE + ";");
+                // Merge the segments written by the bulk insert
+                db.execSQL("insert into " + DATABASE_FTS_TABLE + " (" + DATABASE_FTS_TABLE
+                        + ") values ('optimize');");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            Log.i(TAG, "DatabaseHelper::upgradeToV3: " + DATABASE_FTS_TABLE + " created in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        /**
+         * Adds the statistics table and counts the existing notes into it, in a single
+         * transaction.
+         */
+        private void upgradeToV4(SQLiteDatabase db) {
+            final long start = System.currentTimeMillis();
+            db.beginTransaction();
+            try {
+                createStatsTable(db);
+                rebuildStats(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            Log.i(TAG, "DatabaseHelper::upgradeToV4: " + DATABASE_STATS_TABLE + " created in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        private void createStatsTable(SQLiteDatabase db) {
+            db.execSQL(DATABASE_STATS_CREATE);
+            db.execSQL("insert or ignore into " + DATABASE_STATS_TABLE + " (kind, key) values ("
+                    + STATS_TOTAL + ", '');");
+            for (String trigger : DATABASE_STATS_TRIGGERS) {
+                db.execSQL(trigger);
+            }
+        }
+
+        private void createSearchTable(SQLiteDatabase db) {
+            db.execSQL(String.format(DATABASE_FTS_CREATE,
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                            ? DATABASE_FTS_PREFIX : ""));
+            for (String trigger : DATABASE_FTS_TRIGGERS) {
+                db.execSQL(trigger);
+            }
+        }
+
     }
 
     /**
@@ -106,25 +475,45 @@ public class NotesDbAdapter {
      * @param ctx the Context within which to work
      */
     public NotesDbAdapter(Context ctx) {
+        this(NotesDatabase.getInstance(ctx));
+    }
+
+    /**
+     * Constructor for a database file other than the app's own, such as a copy being restored
+     * or a benchmark fixture
+     *
+     * @param ctx  the Context within which to work
+     * @param name the name of the database file
+     */
+    public NotesDbAdapter(Context ctx, String name) {
+        this(NotesDatabase.getInstance(ctx, name));
+    }
+
+    NotesDbAdapter(NotesDatabase database) {
         Log.i(TAG, "NotesDbAdapter");
-        this.mCtx = ctx;
+        this.mDatabase = database;
     }
 
     /**
      * Open the notes database. If it cannot be opened, try to create a new
      * instance of the database. If it cannot be created, throw an exception to
-     * signal the failure
+     * signal the failure. The connection is the process-wide one held by
+     * {@link NotesDatabase}, so opening is cheap once any adapter has opened it.
      *
      * @return this (self reference, allowing this to be chained in an
      * initialization call)
      * @throws SQLException if the database could be neither opened or created
      */
-    public NotesDbAdapter open() throws SQLException {
+    public synchronized NotesDbAdapter open() throws SQLException {
 
         Log.i(TAG, "open");
 
-        mDbHelper = new DatabaseHelper(mCtx);
-        mDb = mDbHelper.getWritableDatabase();
+        final SQLiteDatabase db = mDatabase.getDatabase();
+        if (db != mDb) {
+            // Reopened after NotesDatabase.close(), the statements belong to the old connection
+            closeStatements();
+            mDb = db;
+        }
         return this;
     }
 
@@ -136,13 +525,16 @@ public class NotesDbAdapter {
         return this.mDb;
     }
 
-    public void close() {
+    /**
+     * Releases this adapter's compiled statements. The shared database stays open for the
+     * other adapters, see {@link NotesDatabase#close()}.
+     */
+    public synchronized void close() {
 
         Log.i(TAG, "close");
 
-        if (mDbHelper != null) {
-            mDbHelper.close();
-        }
+        closeStatements();
+        mDb = null;
     }
 
     /**
@@ -153,23 +545,262 @@ public class NotesDbAdapter {
      * @return rowId or -1 if failed
      */
     public long createNote(Note note) {
+        return createNote(note, null, null);
+    }
+
+    /**
+     * Create a new note as {@link #createNote(Note)} does, and queue it in the outbox within
+     * the same transaction.
+     *
+     * @param outbox    the outbox to queue the note in, or null not to queue it
+     * @param imagePath the note's image, queued to be uploaded ahead of the note, or null
+     * @return rowId or -1 if failed
+     */
+    public synchronized long createNote(Note note, Outbox outbox, String imagePath) {
 
         Log.i(TAG, "createNote");
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_ROWID, note.id);
-        initialValues.put(KEY_BEER, note.beer);
-        initialValues.put(KEY_RATING, note.rating.trim());
-        initialValues.put(KEY_TEXT_EXTRACT, note.textExtract.trim());
-        initialValues.put(KEY_NOTES, note.notes.trim());
-        initialValues.put(KEY_PICTURE, note.picture.trim());
-        initialValues.put(KEY_SHARE, note.share.trim());
-        initialValues.put(KEY_URI, note.uri.trim());
-        initialValues.put(KEY_CREATED,
-                String.valueOf(System.currentTimeMillis()));
-        initialValues.put(KEY_UPDATED,
-                String.valueOf(System.currentTimeMillis()));
+        final SQLiteStatement insert = getInsertStatement(SQLiteDatabase.CONFLICT_NONE);
+        final long now = System.currentTimeMillis();
+        bindInsert(insert, note, now);
+        final long rowId;
+        mDb.beginTransactionNonExclusive();
+        try {
+            rowId = insert.executeInsert();
+            if (outbox != null) {
+                // The image goes first, then the note with the image's uri
+                if (imagePath != null) {
+                    outbox.uploadImage(rowId, imagePath);
+                }
+                outbox.putNote(rowId);
+            }
+            mDb.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(TAG, "createNote - " + e);
+            return -1;
+        } finally {
+            mDb.endTransaction();
+        }
+        mDatabase.onNotesChanged();
+        mDatabase.getNoteCache().put(storedNote(note, now));
+        mDatabase.notifyNotesChanged(new long[]{rowId});
+        return rowId;
+    }
+
+    /**
+     * Create the given notes in a single transaction.
+     *
+     * @param notes             the notes to create
+     * @param conflictAlgorithm one of the SQLiteDatabase.CONFLICT_* values, deciding what
+     *                          happens to a note whose rowId already exists. With
+     *                          CONFLICT_ABORT, CONFLICT_FAIL or CONFLICT_ROLLBACK nothing is
+     *                          written and the SQLException is thrown
+     * @return the number of notes created or replaced
+     */
+    public synchronized int createNotes(Collection<Note> notes, int conflictAlgorithm) {
+
+        Log.i(TAG, "createNotes:count=" + notes.size());
+        final SQLiteStatement insert = getInsertStatement(conflictAlgorithm);
+        final long now = System.currentTimeMillis();
+        int count = 0;
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (Note note : notes) {
+                bindInsert(insert, note, now);
+                if (insert.executeInsert() != -1) {
+                    count++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            onNotesWritten(notes);
+        }
+        return count;
+    }
+
+    /**
+     * Write the given notes as they are, created and updated times included, in a single
+     * transaction, replacing any note with the same rowId. For restoring notes written before.
+     *
+     * @return the number of notes written
+     */
+    public synchronized int restoreNotes(Collection<Note> notes) {
+
+        Log.i(TAG, "restoreNotes:count=" + notes.size());
+        final SQLiteStatement insert = getInsertStatement(SQLiteDatabase.CONFLICT_REPLACE);
+        int count = 0;
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (Note note : notes) {
+                bindInsert(insert, note, 0);
+                insert.bindLong(9, note.created);
+                insert.bindLong(10, note.updated);
+                insert.executeInsert();
+                count++;
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            onNotesWritten(notes);
+        }
+        return count;
+    }
+
+    /**
+     * Write the given notes from the server as they are, created and updated times included,
+     * in a single transaction. The last writer wins: a note is replaced only if it was updated
+     * before the server's copy, so edits made here and not yet sent are kept, and sent later.
+     * A note whose deletion is still in the outbox is not brought back, whatever its time.
+     * The account's watermark moves to {@code watermark} in the same transaction, so a pull
+     * that is interrupted carries on after the last page written.
+     *
+     * @return the number of notes written
+     */
+    public synchronized int mergeNotes(Collection<Note> notes, String account,
+                                       SyncWatermark watermark) {
 
-        return mDb.insert(DATABASE_TABLE, null, initialValues);
+        Log.i(TAG, "mergeNotes:count=" + notes.size());
+        if (mMergeStatement == null) {
+            mMergeStatement = mDb.compileStatement("insert or replace into " + DATABASE_TABLE
+                    + " (" + KEY_ROWID + ", " + KEY_BEER + ", " + KEY_RATING + ", "
+                    + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ", " + KEY_PICTURE + ", " + KEY_SHARE
+                    + ", " + KEY_URI + ", " + KEY_CREATED + ", " + KEY_UPDATED + ")"
+                    + " select ?, ?, ?, ?, ?, ?, ?, ?, ?, ? where not exists (select 1 from "
+                    + DATABASE_TABLE + " where " + KEY_ROWID + " = ?1 and " + KEY_UPDATED
+                    + " >= ?10) and not exists (select 1 from " + DATABASE_OUTBOX_TABLE
+                    + " where note_id = ?1 and op = " + Outbox.OP_DELETE + ")");
+        }
+        final SQLiteStatement merge = mMergeStatement;
+        int count = 0;
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (Note note : notes) {
+                bindInsert(merge, note, 0);
+                merge.bindLong(9, note.created);
+                merge.bindLong(10, note.updated);
+                if (merge.executeInsert() != -1) {
+                    count++;
+                }
+            }
+            final ContentValues values = new ContentValues(3);
+            values.put("account", account);
+            values.put("updated", watermark.updated);
+            values.put("row_id", watermark.rowId);
+            mDb.insertWithOnConflict(DATABASE_SYNC_TABLE, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            onNotesWritten(notes);
+        }
+        return count;
+    }
+
+    /**
+     * @return Where the account's last pull got to, zero if it never pulled
+     */
+    public SyncWatermark fetchWatermark(String account) {
+        final SyncWatermark watermark = new SyncWatermark();
+        final Cursor cursor = getDatabase().query(DATABASE_SYNC_TABLE,
+                new String[]{"updated", "row_id"}, "account = ?", new String[]{account}, null,
+                null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                watermark.updated = cursor.getLong(0);
+                watermark.rowId = cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        return watermark;
+    }
+
+    /**
+     * Bumps the generation, drops the notes from the cache and tells the listeners, after a bulk
+     * write. Which of the notes changed depends on conflicts, so they are read afresh.
+     */
+    private void onNotesWritten(Collection<Note> notes) {
+        mDatabase.onNotesChanged();
+        final long[] rowIds = new long[notes.size()];
+        int i = 0;
+        for (Note note : notes) {
+            mDatabase.getNoteCache().remove(note.id);
+            rowIds[i++] = note.id;
+        }
+        mDatabase.notifyNotesChanged(rowIds);
+    }
+
+    /**
+     * Update the given notes in a single transaction, the way {@link #updateNote} updates one.
+     * Notes that do not exist are skipped.
+     *
+     * @return the number of notes updated
+     */
+    public synchronized int updateNotes(Collection<Note> notes) {
+        return updateNotes(notes, null);
+    }
+
+    /**
+     * Update the given notes as {@link #updateNotes(Collection)} does, and queue each one that
+     * was updated in the outbox within the same transaction, so a note is never changed
+     * without being queued to be sent.
+     *
+     * @param outbox the outbox to queue the notes in, or null not to queue them
+     * @return the number of notes updated
+     */
+    public synchronized int updateNotes(Collection<Note> notes, Outbox outbox) {
+
+        Log.i(TAG, "updateNotes:count=" + notes.size());
+        final SQLiteStatement update = getUpdateStatement();
+        final long now = System.currentTimeMillis();
+        int count = 0;
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (Note note : notes) {
+                bindUpdate(update, note, now);
+                final int updated = update.executeUpdateDelete();
+                if (updated > 0 && outbox != null) {
+                    outbox.putNote(note.id);
+                }
+                count += updated;
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            onNotesWritten(notes);
+        }
+        return count;
+    }
+
+    /**
+     * Update the notes that exist and create the rest, in a single transaction. Existing notes
+     * keep their created time and any field the given note leaves empty.
+     *
+     * @return the number of notes updated or created
+     */
+    public synchronized int upsertNotes(Collection<Note> notes) {
+
+        Log.i(TAG, "upsertNotes:count=" + notes.size());
+        final SQLiteStatement update = getUpdateStatement();
+        final SQLiteStatement insert = getInsertStatement(SQLiteDatabase.CONFLICT_NONE);
+        final long now = System.currentTimeMillis();
+        int count = 0;
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (Note note : notes) {
+                bindUpdate(update, note, now);
+                if (update.executeUpdateDelete() == 0) {
+                    bindInsert(insert, note, now);
+                    insert.executeInsert();
+                }
+                count++;
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            onNotesWritten(notes);
+        }
+        return count;
     }
 
     /**
@@ -179,12 +810,130 @@ public class NotesDbAdapter {
      * @return true if deleted, false otherwise
      */
     public boolean deleteNote(long rowId) {
+        return deleteNote(rowId, null);
+    }
+
+    /**
+     * Delete the note as {@link #deleteNote(long)} does, and queue its deletion in the outbox
+     * within the same transaction.
+     *
+     * @param outbox the outbox to queue the deletion in, or null not to queue it
+     * @return true if deleted, false otherwise
+     */
+    public boolean deleteNote(long rowId, Outbox outbox) {
 
         Log.i(TAG, "deleteNote");
 
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+        final boolean deleted;
+        synchronized (this) {
+            if (mDeleteStatement == null) {
+                mDeleteStatement = mDb.compileStatement("delete from " + DATABASE_TABLE
+                        + " where " + KEY_ROWID + " = ?");
+            }
+            mDb.beginTransactionNonExclusive();
+            try {
+                mDeleteStatement.bindLong(1, rowId);
+                deleted = mDeleteStatement.executeUpdateDelete() > 0;
+                if (outbox != null) {
+                    // Queued even if it was not here, the server may still have it
+                    outbox.deleteNote(rowId);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+        mDatabase.onNotesChanged();
+        mDatabase.getNoteCache().remove(rowId);
+        if (deleted) {
+            mDatabase.notifyNotesChanged(new long[]{rowId});
+        }
+        return deleted;
+    }
+
+
+    /**
+     * Return the cellar's statistics. They are kept up to date as notes are written, so this
+     * reads one row per beer and month however many notes there are.
+     */
+    public CellarStats fetchStats() {
+        final CellarStats stats = new CellarStats();
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery("select kind, key, note_count, rated_count, rating_sum from "
+                    + DATABASE_STATS_TABLE + " order by kind, case kind when " + STATS_BEER
+                    + " then -note_count else 0 end, key", null);
+            while (cursor.moveToNext()) {
+                final CellarStats.Group group = new CellarStats.Group();
+                group.key = cursor.getString(1);
+                group.notes = cursor.getInt(2);
+                group.rated = cursor.getInt(3);
+                group.ratingSum = cursor.getDouble(4);
+                switch (cursor.getInt(0)) {
+                    case STATS_TOTAL:
+                        stats.total = group;
+                        break;
+                    case STATS_BEER:
+                        stats.beers.add(group);
+                        break;
+                    case STATS_RATING:
+                        final int bucket = Integer.parseInt(group.key);
+                        if (bucket >= 0 && bucket < CellarStats.RATING_BUCKETS) {
+                            stats.ratingHistogram[bucket] = group.notes;
+                        }
+                        break;
+                    case STATS_MONTH:
+                        stats.months.add(group);
+                        break;
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Counts the statistics from scratch, with a full scan of the notes, and compares them with
+     * the ones kept up to date.
+     *
+     * @return true if they are the same
+     */
+    public boolean verifyStats() {
+        final String stats = "select kind, key, note_count, rated_count, rating_sum from "
+                + DATABASE_STATS_TABLE;
+        final String scan = "select * from (" + statsScanSql() + ")";
+        final long mismatches = DatabaseUtils.longForQuery(mDb, "select (select count(*) from ("
+                + stats + " except " + scan + ")) + (select count(*) from (" + scan + " except "
+                + stats + "))", null);
+        if (mismatches > 0) {
+            Log.w(TAG, "verifyStats: " + mismatches + " rows differ");
+        }
+        return mismatches == 0;
+    }
+
+    /**
+     * Counts the statistics from scratch, with a full scan of the notes, in a single transaction.
+     */
+    public synchronized void rebuildStats() {
+        final long start = System.currentTimeMillis();
+        mDb.beginTransactionNonExclusive();
+        try {
+            rebuildStats(mDb);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        Log.i(TAG, "rebuildStats: " + (System.currentTimeMillis() - start) + "ms");
     }
 
+    private static void rebuildStats(SQLiteDatabase db) {
+        db.execSQL("delete from " + DATABASE_STATS_TABLE + ";");
+        db.execSQL("insert into " + DATABASE_STATS_TABLE + " (kind, key, note_count, rated_count,"
+                + " rating_sum) " + statsScanSql() + ";");
+    }
 
     /**
      * Return a Cursor positioned at the note that matches the given rowId
@@ -195,22 +944,24 @@ public class NotesDbAdapter {
      */
     public Note fetchNote(long rowId) throws SQLException {
 
-        Log.i(TAG, "fetchNote:id=" + rowId);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "fetchNote:id=" + rowId);
+        }
+        final NoteCache cache = mDatabase.getNoteCache();
+        Note note = cache.get(rowId);
+        if (note != null) {
+            return note;
+        }
+        final int generation = mDatabase.getGeneration();
         Cursor cursor = null;
-        Note note = null;
         try {
-            cursor =
-
-                    mDb.query(false, DATABASE_TABLE, new String[]
-                                    {KEY_ROWID, KEY_BEER, KEY_RATING, KEY_TEXT_EXTRACT, KEY_NOTES, KEY_PICTURE, KEY_SHARE, KEY_URI, KEY_CREATED, KEY_UPDATED},
-                            KEY_ROWID + "=" + rowId, null, null, null, null, null);
-            if (cursor != null) {
-                cursor.moveToFirst();
-            }
-            while (!cursor.isAfterLast()) {
-                note = cursorToNote(cursor);
-                cursor.moveToNext();
+            // The same SQL for every rowId, so the connection reuses its prepared statement
+            cursor = mDb.rawQuery(FETCH_NOTE_SQL, new String[]{String.valueOf(rowId)});
+            if (!cursor.moveToFirst()) {
+                return null;
             }
+            note = new NoteMapper(cursor).map(cursor, null);
+            cache.putIfUnchanged(note, generation);
             return note;
         } finally {
             if (cursor != null)
@@ -220,6 +971,47 @@ public class NotesDbAdapter {
 
     }
 
+    /**
+     * Interface definition for a callback on each note read by {@link #forEachNote}.
+     */
+    public interface OnNoteListener {
+        /**
+         * @return true to read the next note, false to stop
+         */
+        boolean onNote(Note note);
+    }
+
+    /**
+     * Read every note in rowId order, without holding them all in memory.
+     *
+     * @param reuseNote true to fill in the same Note instance for every row, when the listener
+     *                  does not keep the notes it is given
+     * @param listener  called with each note
+     * @return the number of notes read
+     */
+    public int forEachNote(boolean reuseNote, OnNoteListener listener) {
+
+        Log.i(TAG, "forEachNote");
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery(SELECT_NOTES_SQL + " order by " + KEY_ROWID, null);
+            final NoteMapper mapper = new NoteMapper(cursor);
+            Note note = null;
+            int count = 0;
+            while (cursor.moveToNext()) {
+                note = mapper.map(cursor, reuseNote ? note : null);
+                count++;
+                if (!listener.onNote(note)) {
+                    break;
+                }
+            }
+            return count;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
 
     /**
      * Update the note using the details provided. The note to be updated is
@@ -229,66 +1021,454 @@ public class NotesDbAdapter {
      * @return true if the note was successfully updated, false otherwise
      */
     public boolean updateNote(Note note) {
+        return updateNote(note, null);
+    }
+
+    /**
+     * Update the note as {@link #updateNote(Note)} does, and queue it in the outbox within the
+     * same transaction if it was updated.
+     *
+     * @param outbox the outbox to queue the note in, or null not to queue it
+     * @return true if the note was successfully updated, false otherwise
+     */
+    public synchronized boolean updateNote(Note note, Outbox outbox) {
 
         Log.i(TAG, "updateNote");
 
-        ContentValues args = new ContentValues();
+        final SQLiteStatement update = getUpdateStatement();
+        final long now = System.currentTimeMillis();
+        bindUpdate(update, note, now);
+        final boolean updated;
+        mDb.beginTransactionNonExclusive();
+        try {
+            updated = update.executeUpdateDelete() > 0;
+            if (updated && outbox != null) {
+                outbox.putNote(note.id);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        mDatabase.onNotesChanged();
+        final Note cached = mDatabase.getNoteCache().peek(note.id);
+        if (cached != null) {
+            applyUpdate(cached, note, now);
+            mDatabase.getNoteCache().put(cached);
+        }
+        if (updated) {
+            mDatabase.notifyNotesChanged(new long[]{note.id});
+        }
+        return updated;
+    }
+
+    /**
+     * Return one page of notes in the given order, with only the columns a list needs. Pages
+     * are found by the last note of the previous page rather than by offset, so every page is
+     * an index range scan however deep into the list it is.
+     *
+     * @param sortOrder one of {@link #SORT_CREATED}, {@link #SORT_UPDATED}, {@link #SORT_RATING}
+     * @param after     the last note of the previous page, or null for the first page
+     * @param limit     the page size
+     * @return the notes, fewer than limit on the last page
+     */
+    public List<NoteSummary> fetchNoteSummaries(int sortOrder, NoteSummary after, int limit) {
 
+        final String selection;
+        final String[] selectionArgs;
+        final String orderBy;
+        switch (sortOrder) {
+            case SORT_CREATED:
+                orderBy = KEY_CREATED + " asc, " + KEY_ROWID + " asc";
+                selection = after == null ? null : KEY_CREATED + " > ? or (" + KEY_CREATED
+                        + " = ? and " + KEY_ROWID + " > ?)";
+                selectionArgs = after == null ? null : new String[]{
+                        String.valueOf(after.created), String.valueOf(after.created),
+                        String.valueOf(after.id)};
+                break;
+            case SORT_UPDATED:
+                orderBy = KEY_UPDATED + " desc, " + KEY_ROWID + " desc";
+                selection = after == null ? null : KEY_UPDATED + " < ? or (" + KEY_UPDATED
+                        + " = ? and " + KEY_ROWID + " < ?)";
+                selectionArgs = after == null ? null : new String[]{
+                        String.valueOf(after.updated), String.valueOf(after.updated),
+                        String.valueOf(after.id)};
+                break;
+            case SORT_RATING:
+                // Unrated notes sort last, the way a descending index scan returns nulls
+                orderBy = KEY_RATING + " desc, " + KEY_CREATED + " desc, " + KEY_ROWID + " desc";
+                final String tieBreak = KEY_CREATED + " < ? or (" + KEY_CREATED + " = ? and "
+                        + KEY_ROWID + " < ?)";
+                if (after == null) {
+                    selection = null;
+                    selectionArgs = null;
+                } else if (after.rating == null) {
+                    selection = KEY_RATING + " is null and (" + tieBreak + ")";
+                    selectionArgs = new String[]{String.valueOf(after.created),
+                            String.valueOf(after.created), String.valueOf(after.id)};
+                } else {
+                    selection = KEY_RATING + " < ? or " + KEY_RATING + " is null or ("
+                            + KEY_RATING + " = ? and (" + tieBreak + "))";
+                    selectionArgs = new String[]{after.rating, after.rating,
+                            String.valueOf(after.created), String.valueOf(after.created),
+                            String.valueOf(after.id)};
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sort order " + sortOrder);
+        }
+
+        return querySummaries(selection, selectionArgs, orderBy, limit);
+    }
+
+    /**
+     * Return the notes with the given rowIds, with only the columns a list needs, in one
+     * query. For a list that is not in one of the sort orders, such as the photo grid.
+     *
+     * @param rowIds the notes to return, there is no note in the result for a rowId not found
+     * @return the notes, in no particular order
+     */
+    public List<NoteSummary> fetchNoteSummaries(Collection<Long> rowIds) {
+        if (rowIds.isEmpty()) {
+            return new ArrayList<NoteSummary>();
+        }
+        final StringBuilder in = new StringBuilder();
+        for (Long rowId : rowIds) {
+            in.append(in.length() == 0 ? "" : ",").append(rowId);
+        }
+        return querySummaries(KEY_ROWID + " in (" + in + ")", null, null, rowIds.size());
+    }
+
+    private List<NoteSummary> querySummaries(String selection, String[] selectionArgs,
+                                             String orderBy, int limit) {
+        final List<NoteSummary> notes = new ArrayList<NoteSummary>(limit);
+        Cursor cursor = null;
+        try {
+            cursor = mDb.query(DATABASE_TABLE, SUMMARY_COLUMNS, selection, selectionArgs,
+                    null, null, orderBy, String.valueOf(limit));
+            while (cursor.moveToNext()) {
+                // Columns are in SUMMARY_COLUMNS order
+                final NoteSummary note = new NoteSummary();
+                note.id = cursor.getLong(0);
+                note.beer = cursor.getString(1);
+                note.rating = cursor.isNull(2) ? null : String.valueOf(cursor.getFloat(2));
+                note.picture = cursor.getString(3);
+                note.created = cursor.getLong(4);
+                note.updated = cursor.getLong(5);
+                notes.add(note);
+            }
+            return notes;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    /**
+     * Search the beer names, label text and notes. Every word matches as a prefix, so the
+     * results narrow as a word is typed. Results are ranked by how often the words appear in
+     * the note compared to all notes, a match in the beer name counting most.
+     *
+     * @param query the words typed, in any form, characters search cannot use are ignored
+     * @param limit the number of results to return
+     * @return the best results first, each with a snippet of the text around the match with
+     * the matched words in &lt;b&gt; tags. Empty if the query has no words.
+     */
+    public List<NoteSearchResult> searchNotes(String query, int limit) {
+
+        final String match = toMatchQuery(query);
+        final List<NoteSearchResult> results = new ArrayList<NoteSearchResult>();
+        if (match == null) {
+            return results;
+        }
+
+        // Rank every match from its matchinfo alone, which is cheap, then build snippets and
+        // read the notes of the ones returned
+        final Map<Long, Double> ranks = new HashMap<Long, Double>();
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery("select docid, matchinfo(" + DATABASE_FTS_TABLE + ", 'pcx')"
+                    + " from " + DATABASE_FTS_TABLE + " where " + DATABASE_FTS_TABLE
+                    + " match ?", new String[]{match});
+            while (cursor.moveToNext()) {
+                ranks.put(cursor.getLong(0), rank(cursor.getBlob(1)));
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        if (ranks.isEmpty()) {
+            return results;
+        }
+
+        final List<Long> ids = new ArrayList<Long>(ranks.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long lhs, Long rhs) {
+                final int byRank = Double.compare(ranks.get(rhs), ranks.get(lhs));
+                return byRank != 0 ? byRank : rhs.compareTo(lhs);
+            }
+        });
+
+        final int count = Math.min(limit, ids.size());
+        final StringBuilder in = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            in.append(i == 0 ? "" : ",").append(ids.get(i));
+        }
+        final Map<Long, NoteSearchResult> found = new HashMap<Long, NoteSearchResult>();
+        try {
+            cursor = mDb.rawQuery("select n." + KEY_ROWID + ", n." + KEY_BEER + ", n."
+                    + KEY_RATING + ", n." + KEY_PICTURE + ", n." + KEY_CREATED + ", n."
+                    + KEY_UPDATED + ", snippet(" + DATABASE_FTS_TABLE + ", '<b>', '</b>',"
+                    + " '...', -1, 12) from " + DATABASE_FTS_TABLE + " join " + DATABASE_TABLE
+                    + " n on n." + KEY_ROWID + " = " + DATABASE_FTS_TABLE + ".docid where "
+                    + DATABASE_FTS_TABLE + " match ? and " + DATABASE_FTS_TABLE + ".docid in ("
+                    + in + ")", new String[]{match});
+            while (cursor.moveToNext()) {
+                final NoteSearchResult result = new NoteSearchResult();
+                result.id = cursor.getLong(0);
+                result.beer = cursor.getString(1);
+                result.rating = cursor.isNull(2) ? null : String.valueOf(cursor.getFloat(2));
+                result.picture = cursor.getString(3);
+                result.created = cursor.getLong(4);
+                result.updated = cursor.getLong(5);
+                result.snippet = cursor.getString(6);
+                result.rank = ranks.get(result.id);
+                found.put(result.id, result);
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        for (int i = 0; i < count; i++) {
+            final NoteSearchResult result = found.get(ids.get(i));
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Turns typed text into an FTS query that matches notes containing every word, each as a
+     * prefix.
+     *
+     * @return the query, or null if the text has no words
+     */
+    public static String toMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        final StringBuilder match = new StringBuilder();
+        // Only letters and digits, so quotes, operators and column filters can't reach FTS
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() == 0) {
+                continue;
+            }
+            final String lower = word.toLowerCase(Locale.US);
+            if (lower.equals("and") || lower.equals("or") || lower.equals("not")
+                    || lower.equals("near")) {
+                continue;
+            }
+            match.append(match.length() == 0 ? "" : " ").append(lower).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Scores a match from its matchinfo 'pcx' blob: for each phrase and column, the hits in this
+     * note over the hits in all notes, weighted by column.
+     */
+    private static double rank(byte[] matchinfo) {
+        final IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+        final int phrases = info.get(0);
+        final int columns = info.get(1);
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                final int offset = 2 + 3 * (column + phrase * columns);
+                final int hits = info.get(offset);
+                final int allHits = info.get(offset + 1);
+                if (hits > 0) {
+                    score += SEARCH_WEIGHTS[column] * hits / allHits;
+                }
+            }
+        }
+        return score;
+    }
+
+    private SQLiteStatement getInsertStatement(int conflictAlgorithm) {
+        SQLiteStatement insert = mInsertStatements[conflictAlgorithm];
+        if (insert == null) {
+            insert = mDb.compileStatement("insert" + CONFLICT_VALUES[conflictAlgorithm]
+                    + " into " + DATABASE_TABLE + " (" + KEY_ROWID + ", " + KEY_BEER + ", "
+                    + KEY_RATING + ", " + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ", "
+                    + KEY_PICTURE + ", " + KEY_SHARE + ", " + KEY_URI + ", " + KEY_CREATED + ", "
+                    + KEY_UPDATED + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            mInsertStatements[conflictAlgorithm] = insert;
+        }
+        return insert;
+    }
+
+    /**
+     * Fields bound to null keep their current value, so the statement serves every
+     * combination of fields a note may leave empty.
+     */
+    private SQLiteStatement getUpdateStatement() {
+        if (mUpdateStatement == null) {
+            mUpdateStatement = mDb.compileStatement("update " + DATABASE_TABLE + " set "
+                    + KEY_BEER + " = coalesce(?, " + KEY_BEER + "), "
+                    + KEY_RATING + " = coalesce(?, " + KEY_RATING + "), "
+                    + KEY_TEXT_EXTRACT + " = coalesce(?, " + KEY_TEXT_EXTRACT + "), "
+                    + KEY_NOTES + " = coalesce(?, " + KEY_NOTES + "), "
+                    + KEY_PICTURE + " = coalesce(?, " + KEY_PICTURE + "), "
+                    + KEY_SHARE + " = coalesce(?, " + KEY_SHARE + "), "
+                    + KEY_URI + " = coalesce(?, " + KEY_URI + "), "
+                    + KEY_UPDATED + " = ? where " + KEY_ROWID + " = ?");
+        }
+        return mUpdateStatement;
+    }
+
+    private static void bindInsert(SQLiteStatement insert, Note note, long now) {
+        insert.bindLong(1, note.id);
+        bind(insert, 2, note.beer);
+        bind(insert, 3, parseRating(note.rating));
+        bind(insert, 4, trim(note.textExtract));
+        bind(insert, 5, trim(note.notes));
+        bind(insert, 6, trim(note.picture));
+        bind(insert, 7, trim(note.share));
+        bind(insert, 8, trim(note.uri));
+        insert.bindLong(9, now);
+        insert.bindLong(10, now);
+    }
+
+    /**
+     * @return The note as {@link #bindInsert} stores it
+     */
+    private static Note storedNote(Note note, long now) {
+        final Note stored = new Note();
+        stored.id = note.id;
+        stored.beer = note.beer;
+        final Float rating = parseRating(note.rating);
+        stored.rating = rating == null ? null : String.valueOf(rating);
+        stored.textExtract = trim(note.textExtract);
+        stored.notes = trim(note.notes);
+        stored.picture = trim(note.picture);
+        stored.share = trim(note.share);
+        stored.uri = trim(note.uri);
+        stored.created = now;
+        stored.updated = now;
+        return stored;
+    }
+
+    /**
+     * Changes {@code stored} the way {@link #bindUpdate} changes the row.
+     */
+    private static void applyUpdate(Note stored, Note note, long now) {
+        if (nonEmpty(note.beer) != null) {
+            stored.beer = nonEmpty(note.beer);
+        }
         if ((note.rating != null) && ((!note.rating.equals("0.0")))) {
-            args.put(KEY_RATING, note.rating.trim());
+            final Float rating = parseRating(note.rating);
+            if (rating != null) {
+                stored.rating = String.valueOf(rating);
+            }
         }
-        if ((note.beer != null) && ((!note.beer.equals("")))) {
-            args.put(KEY_BEER, note.beer.trim());
+        if (nonEmpty(note.textExtract) != null) {
+            stored.textExtract = nonEmpty(note.textExtract);
         }
-        if ((note.textExtract != null) && ((!note.textExtract.equals("")))) {
-            args.put(KEY_TEXT_EXTRACT, note.textExtract.trim());
+        if (nonEmpty(note.notes) != null) {
+            stored.notes = nonEmpty(note.notes);
         }
-        if ((note.notes != null) && ((!note.notes.equals("")))) {
-            args.put(KEY_NOTES, note.notes.trim());
+        if (nonEmpty(note.picture) != null) {
+            stored.picture = nonEmpty(note.picture);
         }
-        if ((note.picture != null) && ((!note.picture.equals("")))) {
-            args.put(KEY_PICTURE, note.picture.trim());
+        if (nonEmpty(note.share) != null) {
+            stored.share = nonEmpty(note.share);
         }
-        if ((note.share != null) && ((!note.share.equals("")))) {
-            args.put(KEY_SHARE, note.share.trim());
+        if (nonEmpty(note.uri) != null) {
+            stored.uri = nonEmpty(note.uri);
         }
+        stored.updated = now;
+    }
+
+    private static void bindUpdate(SQLiteStatement update, Note note, long now) {
+        bind(update, 1, nonEmpty(note.beer));
+        bind(update, 2, (note.rating != null) && ((!note.rating.equals("0.0")))
+                ? parseRating(note.rating) : null);
+        bind(update, 3, nonEmpty(note.textExtract));
+        bind(update, 4, nonEmpty(note.notes));
+        bind(update, 5, nonEmpty(note.picture));
+        bind(update, 6, nonEmpty(note.share));
+        bind(update, 7, nonEmpty(note.uri));
+        update.bindLong(8, now);
+        update.bindLong(9, note.id);
+    }
 
-        if ((note.uri != null) && ((!note.uri.equals("")))) {
-            args.put(KEY_URI, note.uri.trim());
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
         }
+    }
 
-        args.put(KEY_UPDATED, String.valueOf(System.currentTimeMillis()));
-        return mDb
-                .update(DATABASE_TABLE, args, KEY_ROWID + "=" + note.id, null) > 0;
+    private static void bind(SQLiteStatement statement, int index, Float value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
     }
 
+    private static String trim(String value) {
+        return value == null ? null : value.trim();
+    }
 
-    private Note cursorToNote(Cursor cursor) {
+    /**
+     * @return The trimmed value, or null if it is missing or empty
+     */
+    private static String nonEmpty(String value) {
+        return (value != null) && ((!value.equals(""))) ? value.trim() : null;
+    }
 
-        Note note = new Note();
-        note.id = cursor.getLong(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_ROWID));
-        note.beer = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_BEER));
-        note.rating = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_RATING));
-        note.textExtract = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_TEXT_EXTRACT));
-        note.notes = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_NOTES));
-        note.share = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_SHARE));
-        note.picture = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_PICTURE));
-        note.uri = cursor.getString(cursor
-                .getColumnIndex(NotesDbAdapter.KEY_URI));
-        note.created = cursor.getLong(cursor
-                .getColumnIndex(NotesDbAdapter.KEY_CREATED));
-        note.updated = cursor.getLong(cursor
-                .getColumnIndex(NotesDbAdapter.KEY_UPDATED));
+    private void closeStatements() {
+        for (int i = 0; i < mInsertStatements.length; i++) {
+            if (mInsertStatements[i] != null) {
+                mInsertStatements[i].close();
+                mInsertStatements[i] = null;
+            }
+        }
+        if (mUpdateStatement != null) {
+            mUpdateStatement.close();
+            mUpdateStatement = null;
+        }
+        if (mDeleteStatement != null) {
+            mDeleteStatement.close();
+            mDeleteStatement = null;
+        }
+        if (mMergeStatement != null) {
+            mMergeStatement.close();
+            mMergeStatement = null;
+        }
+    }
 
-        return note;
 
+    /**
+     * @return The rating as stored, null if it is missing or not a number, or not above 0 as
+     * the app sends "0.0" for a note that was not rated
+     */
+    private static Float parseRating(String rating) {
+        if (rating == null) {
+            return null;
+        }
+        try {
+            final float value = Float.parseFloat(rating.trim());
+            return value > 0 ? value : null;
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "parseRating - " + e);
+            return null;
+        }
     }
 
 }
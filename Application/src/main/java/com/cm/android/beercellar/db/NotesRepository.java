@@ -0,0 +1,188 @@
+package com.cm.android.beercellar.db;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads and writes notes for the UI without touching the disk on the main thread. Every task
+ * runs on one database thread, in the order submitted, so a read submitted after a write sees
+ * it. Results are delivered on the main thread, as are changes to notes, so screens can redraw
+ * only the notes that changed, whoever wrote them.
+ */
+public final class NotesRepository {
+    private static final String TAG = NotesRepository.class.getName();
+
+    private static NotesRepository sInstance;
+
+    /**
+     * Interface definition for a callback with the result of a task, called on the main thread.
+     */
+    public interface OnResultListener<T> {
+        /**
+         * @param result What the task returned, or null if it failed
+         */
+        void onResult(T result);
+    }
+
+    /**
+     * Work to run on the database thread.
+     */
+    public interface Task<T> {
+        T run(NotesDbAdapter adapter) throws Exception;
+    }
+
+    private final NotesDatabase mDatabase;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "NotesRepository");
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+    private final List<NotesDatabase.OnNotesChangedListener> mListeners =
+            new CopyOnWriteArrayList<NotesDatabase.OnNotesChangedListener>();
+
+    private final NotesDatabase.OnNotesChangedListener mDatabaseListener =
+            new NotesDatabase.OnNotesChangedListener() {
+                @Override
+                public void onNotesChanged(final long[] rowIds) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (NotesDatabase.OnNotesChangedListener listener : mListeners) {
+                                listener.onNotesChanged(rowIds);
+                            }
+                        }
+                    });
+                }
+            };
+
+    /**
+     * @return The repository of the app's notes database
+     */
+    public static synchronized NotesRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NotesRepository(NotesDatabase.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a repository over {@code database}, which listens for its changes until
+     * {@link #close()}
+     */
+    public NotesRepository(NotesDatabase database) {
+        mDatabase = database;
+        mDatabase.addOnNotesChangedListener(mDatabaseListener);
+    }
+
+    /**
+     * Stops listening to the database and lets tasks already submitted finish.
+     */
+    public void close() {
+        mDatabase.removeOnNotesChangedListener(mDatabaseListener);
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Runs {@code task} on the database thread.
+     *
+     * @param listener Called with the result, may be null
+     */
+    public <T> void execute(final Task<T> task, final OnResultListener<? super T> listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T result = null;
+                try {
+                    result = task.run(mDatabase.getNotesDbAdapter());
+                } catch (Exception e) {
+                    Log.e(TAG, "execute - " + e);
+                }
+                if (listener != null) {
+                    final T delivered = result;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onResult(delivered);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the database ahead of the first task, so the first screen does not wait for it.
+     */
+    public void warmUp() {
+        execute(new Task<Void>() {
+            @Override
+            public Void run(NotesDbAdapter adapter) {
+                return null;
+            }
+        }, null);
+    }
+
+    public void fetchNote(final long rowId, OnResultListener<? super Note> listener) {
+        execute(new Task<Note>() {
+            @Override
+            public Note run(NotesDbAdapter adapter) {
+                return adapter.fetchNote(rowId);
+            }
+        }, listener);
+    }
+
+    /**
+     * @param listener Called with the rowId, or -1 if the note was not created
+     */
+    public void createNote(final Note note, OnResultListener<? super Long> listener) {
+        execute(new Task<Long>() {
+            @Override
+            public Long run(NotesDbAdapter adapter) {
+                return adapter.createNote(note);
+            }
+        }, listener);
+    }
+
+    public void updateNote(final Note note, OnResultListener<? super Boolean> listener) {
+        execute(new Task<Boolean>() {
+            @Override
+            public Boolean run(NotesDbAdapter adapter) {
+                return adapter.updateNote(note);
+            }
+        }, listener);
+    }
+
+    public void deleteNote(final long rowId, OnResultListener<? super Boolean> listener) {
+        execute(new Task<Boolean>() {
+            @Override
+            public Boolean run(NotesDbAdapter adapter) {
+                return adapter.deleteNote(rowId);
+            }
+        }, listener);
+    }
+
+    /**
+     * Registers a callback for notes written through any adapter on the database, called on the
+     * main thread.
+     */
+    public void addOnNotesChangedListener(NotesDatabase.OnNotesChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeOnNotesChangedListener(NotesDatabase.OnNotesChangedListener listener) {
+        mListeners.remove(listener);
+    }
+}
@@ -0,0 +1,232 @@
+package com.cm.android.beercellar.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.cm.android.beercellar.util.RetryScheduler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The changes to notes waiting to be sent to the server, kept in the notes database so they
+ * survive the process. Repeated changes to a note coalesce: it has at most one pending change
+ * to its fields, the latest, and one pending image upload. A change made while an earlier one
+ * is being sent is queued afresh, so it is sent too.
+ * <p/>
+ * Entries are due once their next attempt time has passed, in the order they were queued, see
+ * {@link com.cm.android.beercellar.provider.OutboxSync}.
+ */
+public class Outbox {
+    /**
+     * Send the note as it is now, whether it was created or updated
+     */
+    public static final int OP_PUT = 0;
+    public static final int OP_DELETE = 1;
+    public static final int OP_IMAGE = 2;
+
+    // Which pending change an operation replaces
+    private static final int SLOT_NOTE = 0;
+    private static final int SLOT_IMAGE = 1;
+
+    private static final String TABLE = NotesDbAdapter.DATABASE_OUTBOX_TABLE;
+    private static final String[] COLUMNS = {NotesDbAdapter.KEY_ROWID, "note_id", "op", "path",
+            "enqueued", "attempts", "upload_session", "upload_offset"};
+
+    /**
+     * A pending change
+     */
+    public static class Entry {
+        public long id;
+        public long rowId;
+        public int op;
+        /**
+         * The image to upload, for {@link #OP_IMAGE}
+         */
+        public String path;
+        public long enqueued;
+        /**
+         * Sends that failed so far
+         */
+        public int attempts;
+        /**
+         * The session of an image upload under way, or null
+         */
+        public String uploadSession;
+        /**
+         * The bytes of the image the server has
+         */
+        public long uploadOffset;
+    }
+
+    private final NotesDatabase mDatabase;
+
+    Outbox(NotesDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Queues the note to be sent as it is when it is sent.
+     */
+    public void putNote(long rowId) {
+        enqueue(rowId, SLOT_NOTE, OP_PUT, null);
+    }
+
+    /**
+     * Queues the note's deletion, in place of any change or image upload still pending for it.
+     */
+    public void deleteNote(long rowId) {
+        final SQLiteDatabase db = mDatabase.getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            db.delete(TABLE, "note_id = ? and slot = ?",
+                    new String[]{String.valueOf(rowId), String.valueOf(SLOT_IMAGE)});
+            enqueue(rowId, SLOT_NOTE, OP_DELETE, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Queues the upload of the note's image. Once uploaded, the note is updated with its uri and
+     * queued to be sent.
+     */
+    public void uploadImage(long rowId, String path) {
+        enqueue(rowId, SLOT_IMAGE, OP_IMAGE, path);
+    }
+
+    private void enqueue(long rowId, int slot, int op, String path) {
+        final ContentValues values = new ContentValues(5);
+        values.put("note_id", rowId);
+        values.put("slot", slot);
+        values.put("op", op);
+        values.put("path", path);
+        values.put("enqueued", System.currentTimeMillis());
+        // The table replaces the pending entry for the same note and slot
+        mDatabase.getDatabase().insertOrThrow(TABLE, null, values);
+    }
+
+    /**
+     * @param now   The current time
+     * @param limit The most entries to return
+     * @return The entries due at {@code now}, oldest first
+     */
+    public List<Entry> fetchDue(long now, int limit) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        final Cursor cursor = mDatabase.getDatabase().query(TABLE, COLUMNS, "next_attempt <= ?",
+                new String[]{String.valueOf(now)}, null, null, NotesDbAdapter.KEY_ROWID,
+                String.valueOf(limit));
+        try {
+            while (cursor.moveToNext()) {
+                final Entry entry = new Entry();
+                entry.id = cursor.getLong(0);
+                entry.rowId = cursor.getLong(1);
+                entry.op = cursor.getInt(2);
+                entry.path = cursor.getString(3);
+                entry.enqueued = cursor.getLong(4);
+                entry.attempts = cursor.getInt(5);
+                entry.uploadSession = cursor.getString(6);
+                entry.uploadOffset = cursor.getLong(7);
+                entries.add(entry);
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * @return The rowIds of the notes whose deletion has yet to be sent
+     */
+    public Set<Long> getPendingDeletes() {
+        final Set<Long> rowIds = new HashSet<Long>();
+        final Cursor cursor = mDatabase.getDatabase().query(TABLE, new String[]{"note_id"},
+                "op = " + OP_DELETE, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                rowIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rowIds;
+    }
+
+    /**
+     * @return When the next entry is due, or -1 if the outbox is empty
+     */
+    public long getNextAttemptTime() {
+        final Cursor cursor = mDatabase.getDatabase().rawQuery("select min(next_attempt) from "
+                + TABLE, null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The number of pending entries
+     */
+    public long size() {
+        return DatabaseUtils.queryNumEntries(mDatabase.getDatabase(), TABLE);
+    }
+
+    /**
+     * Removes entries that were sent, or can never be. An entry replaced since it was fetched
+     * stays queued.
+     */
+    public void remove(List<Entry> entries) {
+        final SQLiteDatabase db = mDatabase.getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            for (Entry entry : entries) {
+                db.delete(TABLE, NotesDbAdapter.KEY_ROWID + " = " + entry.id, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Keeps how far the entry's image upload got, unless the entry was replaced since, as the
+     * new image needs a session of its own.
+     */
+    public void saveUploadProgress(Entry entry) {
+        final ContentValues values = new ContentValues(2);
+        values.put("upload_session", entry.uploadSession);
+        values.put("upload_offset", entry.uploadOffset);
+        mDatabase.getDatabase().update(TABLE, values,
+                NotesDbAdapter.KEY_ROWID + " = " + entry.id, null);
+    }
+
+    /**
+     * Counts a failed attempt against each entry and puts off its next one, doubling the delay
+     * with every failure.
+     *
+     * @param backoffMs  The delay after the first failure
+     * @param maxDelayMs The longest delay
+     */
+    public void retryLater(List<Entry> entries, long now, long backoffMs, long maxDelayMs) {
+        final SQLiteDatabase db = mDatabase.getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            for (Entry entry : entries) {
+                final long delay = RetryScheduler.getRetryDelay(backoffMs, entry.attempts + 1,
+                        maxDelayMs);
+                db.execSQL("update " + TABLE + " set attempts = attempts + 1, next_attempt = ?"
+                        + " where " + NotesDbAdapter.KEY_ROWID + " = ?",
+                        new Object[]{now + delay, entry.id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.cm.android.beercellar.db;
+
+/**
+ * How far a pull of the server's changes got: the last note taken, in the order the server
+ * hands changes out, by update time and then rowId. The next pull asks for the changes after
+ * it, so notes updated within the same millisecond are neither skipped nor taken twice.
+ */
+public class SyncWatermark {
+    /**
+     * The server's timeUpdatedMs of the last note taken, 0 before the first pull
+     */
+    public long updated;
+    public long rowId;
+}
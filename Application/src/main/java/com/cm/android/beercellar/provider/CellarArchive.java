@@ -0,0 +1,534 @@
+package com.cm.android.beercellar.provider;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+import com.cm.android.beercellar.util.DiskLruCache;
+import com.cm.android.beercellar.util.StreamCopier;
+import com.cm.android.beercellar.util.Utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backs up the whole cellar, notes and photos, to a single archive file and restores it. Both
+ * directions stream: notes are read and written a batch at a time, and photos are copied with
+ * channel transfers between the files, so memory use does not grow with the size of the cellar.
+ * <p/>
+ * The archive starts with a header:
+ * <pre>
+ *     int MAGIC, int VERSION
+ * </pre>
+ * followed by records, each starting with a type byte:
+ * <pre>
+ *     TYPE_NOTE   int length, then that many bytes of note fields
+ *     TYPE_FILE   byte directory, string name, long lastModified, long length, then the bytes
+ *     TYPE_END    int notes, int files
+ * </pre>
+ * Strings are an int length of UTF-8 bytes, -1 for null. An archive without its end record was
+ * cut short and is not restored past the last complete record.
+ * <p/>
+ * A restore keeps a checkpoint next to the archive after every batch of notes and every few
+ * megabytes of photos, so one that is interrupted carries on from there when run again. Both
+ * directions do disk work throughout, so run them off the main thread.
+ */
+public final class CellarArchive {
+    private static final String TAG = CellarArchive.class.getName();
+
+    private static final int MAGIC = 0x42434152; // "BCAR"
+    private static final int VERSION = 1;
+
+    private static final int TYPE_END = 0;
+    private static final int TYPE_NOTE = 1;
+    private static final int TYPE_FILE = 2;
+
+    private static final int DIR_IMAGES = 0;
+    private static final int DIR_THUMBNAILS = 1;
+
+    private static final int HEADER_LENGTH = 8;
+    private static final int BATCH_SIZE = 500;
+    private static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+    // Guards against allocating for a corrupt length
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String RESTORE_DIR = ".restore";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Interface definition for a callback with the progress of an export or restore, called on
+     * the thread doing it.
+     */
+    public interface OnProgressListener {
+        /**
+         * @param bytes     Archive bytes written or read so far
+         * @param elapsedMs Time since this run started
+         */
+        void onProgress(long bytes, int notes, int files, long elapsedMs);
+    }
+
+    private final NotesDatabase mDatabase;
+    private final File[] mDirs;
+    private final ImageIndex mImageIndex;
+
+    public CellarArchive(Context context) {
+        this(NotesDatabase.getInstance(context), Utils.getExternalImageStorageDir(context),
+                Utils.getExternalThumbnailStorageDir(context), ImageIndex.getInstance(context));
+    }
+
+    /**
+     * Constructor for a database and photo directories other than the app's own
+     *
+     * @param imageIndex Rebuilt after a restore, may be null
+     */
+    public CellarArchive(NotesDatabase database, File imageDir, File thumbnailDir,
+                         ImageIndex imageIndex) {
+        mDatabase = database;
+        mDirs = new File[]{imageDir, thumbnailDir};
+        mImageIndex = imageIndex;
+    }
+
+    /**
+     * Writes every note and photo to {@code archive}. It is written beside it first and renamed
+     * once complete, so an interrupted export never leaves a partial archive under that name.
+     *
+     * @param listener may be null
+     */
+    public void export(File archive, final OnProgressListener listener) throws IOException {
+        final long start = System.currentTimeMillis();
+        final File part = new File(archive.getPath() + PART_SUFFIX);
+        final FileOutputStream file = new FileOutputStream(part);
+        boolean complete = false;
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(file, StreamCopier.BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // One buffer for every note, as they are written one at a time
+            final ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+            final DataOutputStream fields = new DataOutputStream(record);
+            final IOException[] error = new IOException[1];
+            final int notes = mDatabase.getNotesDbAdapter().forEachNote(true,
+                    new NotesDbAdapter.OnNoteListener() {
+                        private int mCount;
+
+                        @Override
+                        public boolean onNote(Note note) {
+                            try {
+                                record.reset();
+                                writeNote(fields, note);
+                                out.writeByte(TYPE_NOTE);
+                                out.writeInt(record.size());
+                                record.writeTo(out);
+                                if (++mCount % BATCH_SIZE == 0 && listener != null) {
+                                    listener.onProgress(out.size(), mCount, 0,
+                                            System.currentTimeMillis() - start);
+                                }
+                                return true;
+                            } catch (IOException e) {
+                                error[0] = e;
+                                return false;
+                            }
+                        }
+                    });
+            if (error[0] != null) {
+                throw error[0];
+            }
+
+            int files = 0;
+            for (int dir = 0; dir < mDirs.length; dir++) {
+                final File[] list = mDirs[dir].listFiles();
+                if (list == null) {
+                    continue;
+                }
+                for (File source : list) {
+                    if (!source.isFile()) {
+                        continue;
+                    }
+                    exportFile(out, file.getChannel(), dir, source);
+                    files++;
+                    report(listener, file.getChannel().position(), notes, files, start);
+                }
+            }
+
+            out.writeByte(TYPE_END);
+            out.writeInt(notes);
+            out.writeInt(files);
+            out.flush();
+            file.getFD().sync();
+            complete = true;
+            logThroughput("export", file.getChannel().position(), notes, files, start);
+        } finally {
+            DiskLruCache.closeQuietly(file);
+            if (!complete) {
+                part.delete();
+            }
+        }
+        if (!part.renameTo(archive)) {
+            part.delete();
+            throw new IOException("export - could not rename " + part + " to " + archive);
+        }
+    }
+
+    /**
+     * Writes the record of one photo, copying its bytes straight from its file to the archive.
+     */
+    private static void exportFile(DataOutputStream out, FileChannel target, int dir, File source)
+            throws IOException {
+        final FileInputStream in = new FileInputStream(source);
+        try {
+            final FileChannel channel = in.getChannel();
+            final long length = channel.size();
+            out.writeByte(TYPE_FILE);
+            out.writeByte(dir);
+            writeString(out, source.getName());
+            out.writeLong(source.lastModified());
+            out.writeLong(length);
+            // The buffered header has to reach the file before the bytes that follow it
+            out.flush();
+            long position = 0;
+            while (position < length) {
+                final long transferred = channel.transferTo(position, length - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("exportFile - " + source + " shrank while exporting");
+                }
+                position += transferred;
+            }
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Restores every note and photo in {@code archive}, replacing notes and photos with the same
+     * rowId or name and leaving the others alone. Carries on from the last checkpoint if an
+     * earlier restore of the same archive was interrupted.
+     *
+     * @param listener may be null
+     */
+    public void restore(File archive, OnProgressListener listener) throws IOException {
+        final long start = System.currentTimeMillis();
+        final File checkpoint = new File(archive.getPath() + CHECKPOINT_SUFFIX);
+        final File restoreDir = new File(mDirs[DIR_IMAGES].getParentFile(), RESTORE_DIR);
+        restoreDir.mkdirs();
+        final NotesDbAdapter adapter = mDatabase.getNotesDbAdapter();
+        final FileInputStream file = new FileInputStream(archive);
+        try {
+            final ArchiveReader in = new ArchiveReader(file.getChannel());
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("restore - " + archive + " is not a cellar archive");
+            }
+            final long[] resume = readCheckpoint(checkpoint, archive);
+            int notes = (int) resume[1];
+            int files = (int) resume[2];
+            if (resume[0] > 0) {
+                Log.i(TAG, "restore: resuming at " + resume[0] + " with " + notes + " notes and "
+                        + files + " files restored");
+                in.seek(resume[0]);
+            }
+
+            final List<Note> batch = new ArrayList<Note>(BATCH_SIZE);
+            long sinceCheckpoint = 0;
+            while (true) {
+                final int type = in.readByte();
+                if (type == TYPE_NOTE) {
+                    batch.add(readNote(in));
+                    if (batch.size() == BATCH_SIZE) {
+                        notes += flush(adapter, batch);
+                        writeCheckpoint(checkpoint, archive, in.position(), notes, files);
+                        report(listener, in.position(), notes, files, start);
+                    }
+                } else if (type == TYPE_FILE) {
+                    // Keeps the checkpoint behind only complete batches and files
+                    notes += flush(adapter, batch);
+                    sinceCheckpoint += restoreFile(in, restoreDir);
+                    files++;
+                    if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+                        writeCheckpoint(checkpoint, archive, in.position(), notes, files);
+                        sinceCheckpoint = 0;
+                    }
+                    report(listener, in.position(), notes, files, start);
+                } else if (type == TYPE_END) {
+                    notes += flush(adapter, batch);
+                    final int archivedNotes = in.readInt();
+                    final int archivedFiles = in.readInt();
+                    if (archivedNotes != notes || archivedFiles != files) {
+                        Log.w(TAG, "restore: archive has " + archivedNotes + " notes and "
+                                + archivedFiles + " files, restored " + notes + " and " + files);
+                    }
+                    report(listener, in.position(), notes, files, start);
+                    logThroughput("restore", in.position(), notes, files, start);
+                    break;
+                } else {
+                    throw new IOException("restore - unknown record type " + type + " at "
+                            + (in.position() - 1));
+                }
+            }
+        } finally {
+            DiskLruCache.closeQuietly(file);
+        }
+        checkpoint.delete();
+        restoreDir.delete();
+        if (mImageIndex != null) {
+            mImageIndex.rebuild();
+        }
+    }
+
+    private static int flush(NotesDbAdapter adapter, List<Note> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        final int count = adapter.restoreNotes(batch);
+        batch.clear();
+        return count;
+    }
+
+    /**
+     * Copies one photo out of the archive into place. It is written to {@code restoreDir} and
+     * then renamed, so a photo cut short never shows in the grid.
+     *
+     * @return the number of bytes copied
+     */
+    private long restoreFile(ArchiveReader in, File restoreDir) throws IOException {
+        final int dir = in.readByte();
+        final String name = in.readString();
+        final long lastModified = in.readLong();
+        final long length = in.readLong();
+        if (dir < 0 || dir >= mDirs.length || name == null || name.length() == 0
+                || name.indexOf('/') >= 0 || name.equals(".") || name.equals("..")) {
+            throw new IOException("restoreFile - bad file record " + dir + "/" + name);
+        }
+        final File part = new File(restoreDir, name);
+        final FileOutputStream out = new FileOutputStream(part);
+        try {
+            in.transferTo(out.getChannel(), length);
+        } finally {
+            DiskLruCache.closeQuietly(out);
+        }
+        // The index lists photos in the order of these times
+        part.setLastModified(lastModified);
+        final File target = new File(mDirs[dir], name);
+        if (!part.renameTo(target)) {
+            part.delete();
+            throw new IOException("restoreFile - could not move " + name + " into place");
+        }
+        return length;
+    }
+
+    /**
+     * @return The offset to carry on from, 0 to start over, and the notes and files restored
+     * before it
+     */
+    private static long[] readCheckpoint(File checkpoint, File archive) {
+        final long[] resume = new long[3];
+        if (!checkpoint.exists()) {
+            return resume;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(checkpoint));
+            // Only for the same archive, not another one written to the same name since
+            if (in.readLong() == archive.length() && in.readLong() == archive.lastModified()) {
+                final long offset = in.readLong();
+                if (offset >= HEADER_LENGTH && offset <= archive.length()) {
+                    resume[0] = offset;
+                    resume[1] = in.readInt();
+                    resume[2] = in.readInt();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "readCheckpoint - " + e);
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+        return resume;
+    }
+
+    private static void writeCheckpoint(File checkpoint, File archive, long offset, int notes,
+                                        int files) throws IOException {
+        final File part = new File(checkpoint.getPath() + PART_SUFFIX);
+        final FileOutputStream file = new FileOutputStream(part);
+        try {
+            final DataOutputStream out = new DataOutputStream(file);
+            out.writeLong(archive.length());
+            out.writeLong(archive.lastModified());
+            out.writeLong(offset);
+            out.writeInt(notes);
+            out.writeInt(files);
+            out.flush();
+        } finally {
+            DiskLruCache.closeQuietly(file);
+        }
+        if (!part.renameTo(checkpoint)) {
+            throw new IOException("writeCheckpoint - could not rename " + part);
+        }
+    }
+
+    private static void report(OnProgressListener listener, long bytes, int notes, int files,
+                               long start) {
+        if (listener != null) {
+            listener.onProgress(bytes, notes, files, System.currentTimeMillis() - start);
+        }
+    }
+
+    private static void logThroughput(String name, long bytes, int notes, int files, long start) {
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        Log.i(TAG, name + ": " + notes + " notes and " + files + " files, " + bytes
+                + " bytes in " + elapsed + "ms, " + (bytes * 1000 / elapsed / 1024) + " KB/s");
+    }
+
+    private static void writeNote(DataOutputStream out, Note note) throws IOException {
+        out.writeLong(note.id);
+        writeString(out, note.beer);
+        writeString(out, note.rating);
+        writeString(out, note.textExtract);
+        writeString(out, note.notes);
+        writeString(out, note.share);
+        writeString(out, note.picture);
+        writeString(out, note.uri);
+        out.writeLong(note.created);
+        out.writeLong(note.updated);
+    }
+
+    private static Note readNote(ArchiveReader in) throws IOException {
+        final int length = in.readInt();
+        final long end = in.position() + length;
+        final Note note = new Note();
+        note.id = in.readLong();
+        note.beer = in.readString();
+        note.rating = in.readString();
+        note.textExtract = in.readString();
+        note.notes = in.readString();
+        note.share = in.readString();
+        note.picture = in.readString();
+        note.uri = in.readString();
+        note.created = in.readLong();
+        note.updated = in.readLong();
+        if (in.position() != end) {
+            throw new IOException("readNote - note " + note.id + " is not " + length + " bytes");
+        }
+        return note;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads an archive through a fixed buffer, and copies the bytes of photos from the archive's
+     * channel straight to the target file's. It knows its position in the archive, which a
+     * buffered stream over the channel would hide.
+     */
+    private static final class ArchiveReader {
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(StreamCopier.BUFFER_SIZE);
+
+        ArchiveReader(FileChannel channel) {
+            mChannel = channel;
+            mBuffer.limit(0);
+        }
+
+        long position() throws IOException {
+            return mChannel.position() - mBuffer.remaining();
+        }
+
+        void seek(long position) throws IOException {
+            mChannel.position(position);
+            mBuffer.limit(0);
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return mBuffer.get();
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            return mBuffer.getInt();
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            return mBuffer.getLong();
+        }
+
+        String readString() throws IOException {
+            final int length = readInt();
+            if (length == -1) {
+                return null;
+            }
+            if (length < 0 || length > MAX_RECORD_LENGTH) {
+                throw new IOException("readString - bad length " + length);
+            }
+            final byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                require(1);
+                final int count = Math.min(mBuffer.remaining(), length - offset);
+                mBuffer.get(bytes, offset, count);
+                offset += count;
+            }
+            return new String(bytes, UTF_8);
+        }
+
+        /**
+         * Copies the next {@code length} bytes of the archive to {@code target}, what is already
+         * buffered first and the rest channel to channel.
+         */
+        void transferTo(FileChannel target, long length) throws IOException {
+            final int buffered = (int) Math.min(mBuffer.remaining(), length);
+            final ByteBuffer head = mBuffer.duplicate();
+            head.limit(head.position() + buffered);
+            while (head.hasRemaining()) {
+                target.write(head);
+            }
+            mBuffer.position(mBuffer.position() + buffered);
+
+            long position = mChannel.position();
+            final long end = position + length - buffered;
+            while (position < end) {
+                final long transferred = mChannel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    throw new EOFException("transferTo - archive is cut short");
+                }
+                position += transferred;
+            }
+            mChannel.position(end);
+        }
+
+        private void require(int count) throws IOException {
+            if (mBuffer.remaining() >= count) {
+                return;
+            }
+            mBuffer.compact();
+            while (mBuffer.position() < count) {
+                if (mChannel.read(mBuffer) == -1) {
+                    throw new EOFException("require - archive is cut short");
+                }
+            }
+            mBuffer.flip();
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.cm.android.beercellar.provider;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+import com.cm.android.beercellar.db.SyncWatermark;
+import com.cm.android.beercellar.util.Configuration;
+import com.cm.android.beercellar.util.HttpClient;
+import com.cm.android.beercellar.util.ImagePyramid;
+import com.cm.android.beercellar.util.RetryScheduler;
+import com.cm.android.beercellar.util.StatusCodeException;
+import com.cm.android.beercellar.util.StreamCopier;
+import com.cm.android.beercellar.util.Utils;
+import com.cm.beer.activity.lite.BuildConfig;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pulls the notes changed on the server since the last pull, so a reinstall or a second device
+ * gets the cellar back. Changes come a page of {@link #PAGE_SIZE} at a time, in the order of
+ * their update time and rowId, from
+ * <pre>
+ *     GET contents/changes?since=timeUpdatedMs&amp;afterRowId=rowId&amp;limit=n
+ * </pre>
+ * answered with {"notes": [...]} as {@link OutboxSync#toJson} writes them, fewer than n on the
+ * last page.
+ * <p/>
+ * Each page is merged in one transaction, the last writer winning, together with the
+ * account's {@link SyncWatermark}, so an interrupted pull carries on after the last page it
+ * wrote. Photos missing from the images directory are downloaded before their page is merged,
+ * a few at a time. Only a page's photos that could not be found on the server are skipped, any
+ * other failure ends the pull until it is requested again.
+ */
+public final class DeltaSync {
+    private static final String TAG = DeltaSync.class.getName();
+
+    /**
+     * The most notes pulled in one request
+     */
+    public static final int PAGE_SIZE = 500;
+
+    private static final String CHANGES_PATH = "/changes";
+    private static final String PART_SUFFIX = ".part";
+
+    private static DeltaSync sInstance;
+
+    /**
+     * Interface definition for a callback to be invoked once a pulled photo is in the images
+     * directory and its note is written, on the sync thread.
+     */
+    public interface OnImageDownloadedListener {
+        void onImageDownloaded(String imageFileName);
+    }
+
+    private final NotesDatabase mDatabase;
+    private final HttpClient mClient;
+    private final HttpRequestFactory mRequestFactory;
+    private final String mContentsUrl;
+    private final String mAccount;
+    private final File mImageDir;
+    private final int mPageSize;
+    private final OnImageDownloadedListener mListener;
+    private final ExecutorService mDownloads =
+            Executors.newFixedThreadPool(HttpClient.MAX_CONNECTIONS_PER_HOST);
+    private final AtomicInteger mPages = new AtomicInteger();
+    private final AtomicInteger mNotesPulled = new AtomicInteger();
+    private final AtomicInteger mNotesWritten = new AtomicInteger();
+    private final AtomicInteger mImages = new AtomicInteger();
+    private final AtomicLong mImageBytes = new AtomicLong();
+
+    private final RetryScheduler mScheduler = new RetryScheduler("DeltaSync", new Runnable() {
+        @Override
+        public void run() {
+            syncNow();
+        }
+    });
+
+    /**
+     * @return The pull of the server's notes into the app's notes database
+     */
+    public static synchronized DeltaSync getInstance(Context context) {
+        if (sInstance == null) {
+            final Context app = context.getApplicationContext();
+            // The app keeps the notes of a single account, the one the server knows it by
+            sInstance = new DeltaSync(NotesDatabase.getInstance(app), HttpClient.getInstance(),
+                    Configuration.CONTENTS_URL, Configuration.CONTENTS_URL,
+                    Utils.getExternalImageStorageDir(app), PAGE_SIZE,
+                    new OnImageDownloadedListener() {
+                        @Override
+                        public void onImageDownloaded(String imageFileName) {
+                            ImagePyramid.getInstance(app).generate(imageFileName, null);
+                            ImageIndex.getInstance(app).add(imageFileName);
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a pull of the changes {@code contentsUrl} has for {@code account} into
+     * {@code database}. Its sync and download threads run until {@link #close()}.
+     *
+     * @param account  Whose watermark to keep
+     * @param imageDir Where photos go
+     * @param pageSize The most notes pulled in one request
+     * @param listener may be null
+     */
+    public DeltaSync(NotesDatabase database, HttpClient client, String contentsUrl,
+                     String account, File imageDir, int pageSize,
+                     OnImageDownloadedListener listener) {
+        mDatabase = database;
+        mClient = client;
+        mRequestFactory = client.getRequestFactory();
+        mContentsUrl = contentsUrl;
+        mAccount = account;
+        mImageDir = imageDir;
+        mPageSize = pageSize;
+        mListener = listener;
+    }
+
+    /**
+     * Pulls soon, on the sync thread, unless a pull is waiting to start already. Call it when
+     * the app starts.
+     */
+    public void requestSync() {
+        mScheduler.schedule(System.currentTimeMillis());
+    }
+
+    /**
+     * Stops the sync threads, letting a pull already running finish its page.
+     */
+    public void close() {
+        mScheduler.shutdown();
+        mDownloads.shutdown();
+    }
+
+    /**
+     * Pulls the changes since the last pull, on the calling thread.
+     *
+     * @return The number of notes written, less than pulled where the notes here were newer
+     */
+    public int syncNow() {
+        final long start = System.currentTimeMillis();
+        final NotesDbAdapter adapter = mDatabase.getNotesDbAdapter();
+        SyncWatermark watermark = adapter.fetchWatermark(mAccount);
+        int written = 0;
+        try {
+            while (true) {
+                final List<Note> page = fetchPage(watermark);
+                if (page.isEmpty()) {
+                    break;
+                }
+                mPages.incrementAndGet();
+                mNotesPulled.addAndGet(page.size());
+                final Note last = page.get(page.size() - 1);
+                // Deleted here and not sent yet, the merge skips them too so their photos are
+                // not downloaded again
+                final Set<Long> deleted = mDatabase.getOutbox().getPendingDeletes();
+                final List<Note> kept = new ArrayList<Note>(page.size());
+                for (Note note : page) {
+                    if (!deleted.contains(note.id)) {
+                        kept.add(note);
+                    }
+                }
+                final List<String> images = downloadMissingImages(kept);
+
+                final SyncWatermark next = new SyncWatermark();
+                next.updated = last.updated;
+                next.rowId = last.id;
+                final int merged = adapter.mergeNotes(kept, mAccount, next);
+                written += merged;
+                mNotesWritten.addAndGet(merged);
+                watermark = next;
+                if (mListener != null) {
+                    for (String image : images) {
+                        mListener.onImageDownloaded(image);
+                    }
+                }
+                if (page.size() < mPageSize) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // The watermark holds the last page written, the next request carries on from it
+            Log.w(TAG, "syncNow: pull interrupted - " + e);
+        } catch (StatusCodeException e) {
+            Log.e(TAG, "syncNow - status " + e.getStatusCode() + ": " + e.getEncodedResponse());
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "syncNow: wrote " + written + " in "
+                    + (System.currentTimeMillis() - start) + "ms, " + this);
+        }
+        return written;
+    }
+
+    /**
+     * @return The notes changed after {@code watermark}, in the order the server hands them out
+     */
+    private List<Note> fetchPage(SyncWatermark watermark) throws IOException,
+            StatusCodeException {
+        final GenericUrl url = new GenericUrl(mContentsUrl + CHANGES_PATH);
+        url.set("since", watermark.updated);
+        url.set("afterRowId", watermark.rowId);
+        url.set("limit", mPageSize);
+        final HttpRequest request = mRequestFactory.buildGetRequest(url);
+        final String body = mClient.executeForString(request);
+        try {
+            final JSONArray notes = new JSONObject(body).getJSONArray("notes");
+            final List<Note> page = new ArrayList<Note>(notes.length());
+            for (int i = 0; i < notes.length(); i++) {
+                page.add(OutboxSync.fromJson(notes.getJSONObject(i)));
+            }
+            return page;
+        } catch (JSONException e) {
+            throw new StatusCodeException(400, e.toString());
+        }
+    }
+
+    /**
+     * Downloads the photos of the page's notes that are not in the images directory.
+     *
+     * @return The file names downloaded
+     * @throws IOException if any download failed, once they all finished
+     */
+    private List<String> downloadMissingImages(List<Note> page) throws IOException {
+        final List<Callable<String>> downloads = new ArrayList<Callable<String>>();
+        for (final Note note : page) {
+            if (note.uri.length() == 0 || new File(mImageDir, note.picture).isFile()) {
+                continue;
+            }
+            if (!note.uri.startsWith("http")) {
+                Log.w(TAG, "downloadMissingImages: cannot download " + note.uri);
+                continue;
+            }
+            downloads.add(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return download(note.uri, new File(mImageDir, note.picture))
+                            ? note.picture : null;
+                }
+            });
+        }
+        final List<String> images = new ArrayList<String>(downloads.size());
+        if (downloads.isEmpty()) {
+            return images;
+        }
+        final List<Future<String>> results;
+        try {
+            results = mDownloads.invokeAll(downloads);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("downloadMissingImages - interrupted");
+        }
+        IOException failure = null;
+        for (Future<String> result : results) {
+            try {
+                final String image = result.get();
+                if (image != null) {
+                    images.add(image);
+                }
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause().toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("downloadMissingImages - interrupted");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return images;
+    }
+
+    /**
+     * Downloads the photo beside {@code file} and renames it into place once complete.
+     *
+     * @return false if the server has no such photo
+     */
+    private boolean download(String url, File file) throws IOException {
+        final File part = new File(file.getPath() + PART_SUFFIX);
+        final HttpRequest request = mRequestFactory.buildGetRequest(new GenericUrl(url));
+        request.setThrowExceptionOnExecuteError(false);
+        final int status = mClient.execute(request, new HttpClient.ResponseHandler<Integer>() {
+            @Override
+            public Integer handle(HttpResponse response) throws IOException {
+                if (response.isSuccessStatusCode()) {
+                    final OutputStream out = new BufferedOutputStream(
+                            new FileOutputStream(part), StreamCopier.BUFFER_SIZE);
+                    try {
+                        final InputStream content = response.getContent();
+                        if (content != null) {
+                            StreamCopier.copy(content, out);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                }
+                return response.getStatusCode();
+            }
+        });
+        if (status == 404 || status == 410) {
+            Log.w(TAG, "download: " + url + " is gone, status " + status);
+            return false;
+        } else if (status / 100 != 2) {
+            throw new IOException("download - status " + status + " for " + url);
+        }
+        if (!part.renameTo(file)) {
+            part.delete();
+            throw new IOException("download - could not rename " + part);
+        }
+        mImages.incrementAndGet();
+        mImageBytes.addAndGet(file.length());
+        return true;
+    }
+
+    public int getPageCount() {
+        return mPages.get();
+    }
+
+    public int getNotesPulled() {
+        return mNotesPulled.get();
+    }
+
+    /**
+     * @return The notes written, the pulled ones not older than the notes here
+     */
+    public int getNotesWritten() {
+        return mNotesWritten.get();
+    }
+
+    public int getImageCount() {
+        return mImages.get();
+    }
+
+    public long getImageBytes() {
+        return mImageBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DeltaSync[pages=" + mPages + ",pulled=" + mNotesPulled + ",written="
+                + mNotesWritten + ",images=" + mImages + ",imageBytes=" + mImageBytes + "]";
+    }
+}
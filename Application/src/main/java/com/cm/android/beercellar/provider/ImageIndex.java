@@ -0,0 +1,417 @@
+package com.cm.android.beercellar.provider;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.cm.android.beercellar.util.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The ordered list of photos, kept in a small index file next to them so that listing them does
+ * not scan the image directories. Readers get an immutable {@link Snapshot} with O(1) access by
+ * position; capture, delete and restore update the index and notify
+ * {@link OnImageIndexChangedListener}s on the main thread with what changed.
+ * <p/>
+ * The index is rebuilt from the originals directory when the file is missing, unreadable or
+ * older than the directory, which covers existing installs and files changed behind our back.
+ * Reading or rebuilding it is file IO, so it is loaded on a thread of its own: until then the
+ * snapshot is empty, and {@link OnImageIndexChangedListener#onImagesReloaded} is called once it
+ * is loaded.
+ */
+public final class ImageIndex {
+    private static final String TAG = ImageIndex.class.getName();
+
+    private static final String INDEX_FILE = ".image_index";
+    private static final int MAGIC = 0x42434958; // "BCIX"
+    private static final int VERSION = 1;
+
+    /**
+     * An immutable view of the index at one point in time.
+     */
+    public static final class Snapshot {
+        private final List<String> mNames;
+        private final List<String> mImageUrls;
+        private final List<String> mThumbnailUrls;
+
+        private Snapshot(List<String> names, File imageDir, File thumbnailDir) {
+            final int size = names.size();
+            final String[] imageUrls = new String[size];
+            final String[] thumbnailUrls = new String[size];
+            final String imagePrefix = imageDir.getAbsolutePath() + File.separator;
+            final String thumbnailPrefix = thumbnailDir.getAbsolutePath() + File.separator;
+            for (int i = 0; i < size; i++) {
+                imageUrls[i] = imagePrefix + names.get(i);
+                thumbnailUrls[i] = thumbnailPrefix + names.get(i);
+            }
+            mNames = Collections.unmodifiableList(names);
+            mImageUrls = Collections.unmodifiableList(Arrays.asList(imageUrls));
+            mThumbnailUrls = Collections.unmodifiableList(Arrays.asList(thumbnailUrls));
+        }
+
+        public int size() {
+            return mNames.size();
+        }
+
+        /**
+         * @return The file name of the photo at {@code position}
+         */
+        public String getName(int position) {
+            return mNames.get(position);
+        }
+
+        public String getImageUrl(int position) {
+            return mImageUrls.get(position);
+        }
+
+        public String getThumbnailUrl(int position) {
+            return mThumbnailUrls.get(position);
+        }
+
+        public List<String> getImageUrls() {
+            return mImageUrls;
+        }
+
+        public List<String> getThumbnailUrls() {
+            return mThumbnailUrls;
+        }
+
+        /**
+         * @return The position of the photo with the given file name, or -1
+         */
+        public int indexOf(String name) {
+            return mNames.indexOf(name);
+        }
+    }
+
+    /**
+     * Interface definition for callbacks when the index changes. Called on the main thread with
+     * the snapshot that includes the change.
+     */
+    public interface OnImageIndexChangedListener {
+
+        void onImageInserted(Snapshot snapshot, int position);
+
+        void onImageRemoved(Snapshot snapshot, int position);
+
+        /**
+         * Called when the whole index was loaded or rebuilt, for example after a restore.
+         */
+        void onImagesReloaded(Snapshot snapshot);
+    }
+
+    private static ImageIndex sInstance;
+
+    private final File mImageDir;
+    private final File mThumbnailDir;
+    private final File mIndexFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<OnImageIndexChangedListener> mListeners =
+            new CopyOnWriteArrayList<OnImageIndexChangedListener>();
+    // Loads the index, then writes it. Writes scheduled while loading run after it.
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+
+    private volatile Snapshot mSnapshot;
+    // Guarded by this. Until loaded, mSnapshot holds only the photos added since
+    private boolean mLoaded;
+    private final Set<String> mRemovedWhileLoading = new HashSet<String>();
+
+    public static synchronized ImageIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageIndex(Utils.getExternalImageStorageDir(context),
+                    Utils.getExternalThumbnailStorageDir(context));
+        }
+        return sInstance;
+    }
+
+    private ImageIndex(File imageDir, File thumbnailDir) {
+        mImageDir = imageDir;
+        mThumbnailDir = thumbnailDir;
+        mIndexFile = new File(imageDir.getParentFile(), INDEX_FILE);
+        mSnapshot = new Snapshot(new ArrayList<String>(), mImageDir, mThumbnailDir);
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return The current contents of the index, empty until it is loaded
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return true once the index was read or rebuilt, see
+     * {@link OnImageIndexChangedListener#onImagesReloaded}
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Appends a newly captured photo, unless it is already indexed.
+     *
+     * @param name The file name of the photo in the originals directory
+     */
+    public void add(String name) {
+        final Snapshot snapshot;
+        final int position;
+        synchronized (this) {
+            if (mSnapshot.indexOf(name) >= 0) {
+                return;
+            }
+            final List<String> names = new ArrayList<String>(mSnapshot.mNames);
+            position = names.size();
+            names.add(name);
+            snapshot = mSnapshot = new Snapshot(names, mImageDir, mThumbnailDir);
+        }
+        scheduleWrite();
+        notifyInserted(snapshot, position);
+    }
+
+    /**
+     * Removes a deleted photo.
+     *
+     * @param name The file name of the photo in the originals directory
+     */
+    public void remove(String name) {
+        final Snapshot snapshot;
+        final int position;
+        synchronized (this) {
+            if (!mLoaded) {
+                mRemovedWhileLoading.add(name);
+            }
+            position = mSnapshot.indexOf(name);
+            if (position < 0) {
+                return;
+            }
+            final List<String> names = new ArrayList<String>(mSnapshot.mNames);
+            names.remove(position);
+            snapshot = mSnapshot = new Snapshot(names, mImageDir, mThumbnailDir);
+        }
+        scheduleWrite();
+        notifyRemoved(snapshot, position);
+    }
+
+    /**
+     * Rebuilds the index from the originals directory, after photos were restored or otherwise
+     * changed in bulk. Scans the directory, so call it off the main thread.
+     */
+    public void rebuild() {
+        final Snapshot snapshot;
+        synchronized (this) {
+            snapshot = mSnapshot = new Snapshot(scan(), mImageDir, mThumbnailDir);
+            mLoaded = true;
+        }
+        scheduleWrite();
+        notifyReloaded(snapshot);
+    }
+
+    public void addOnImageIndexChangedListener(OnImageIndexChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeOnImageIndexChangedListener(OnImageIndexChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyInserted(final Snapshot snapshot, final int position) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnImageIndexChangedListener listener : mListeners) {
+                    listener.onImageInserted(snapshot, position);
+                }
+            }
+        });
+    }
+
+    private void notifyRemoved(final Snapshot snapshot, final int position) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnImageIndexChangedListener listener : mListeners) {
+                    listener.onImageRemoved(snapshot, position);
+                }
+            }
+        });
+    }
+
+    private void notifyReloaded(final Snapshot snapshot) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnImageIndexChangedListener listener : mListeners) {
+                    listener.onImagesReloaded(snapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the index, or rebuilds it if the file is not up to date, and merges in the changes
+     * made while it did.
+     */
+    private void load() {
+        List<String> names = null;
+        if (mIndexFile.lastModified() >= mImageDir.lastModified()) {
+            names = read();
+        }
+        final boolean scanned = names == null;
+        if (scanned) {
+            names = scan();
+        }
+        final Snapshot snapshot;
+        synchronized (this) {
+            if (mLoaded) {
+                // rebuild() got there first
+                return;
+            }
+            names.removeAll(mRemovedWhileLoading);
+            for (String name : mSnapshot.mNames) {
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+            }
+            snapshot = mSnapshot = new Snapshot(names, mImageDir, mThumbnailDir);
+            mLoaded = true;
+            mRemovedWhileLoading.clear();
+        }
+        if (scanned) {
+            scheduleWrite();
+        }
+        notifyReloaded(snapshot);
+    }
+
+    /**
+     * Lists the originals oldest first, the order they were captured in.
+     */
+    private List<String> scan() {
+        final File[] files = mImageDir.listFiles();
+        final List<String> names = new ArrayList<String>();
+        if (files == null) {
+            return names;
+        }
+        final List<File> sorted = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isFile()) {
+                sorted.add(file);
+            }
+        }
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                if (l != r) {
+                    return l < r ? -1 : 1;
+                }
+                return lhs.getName().compareTo(rhs.getName());
+            }
+        });
+        for (File file : sorted) {
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Writes the latest snapshot on the writer thread. Changes made before the write starts are
+     * written together.
+     */
+    private void scheduleWrite() {
+        if (!mWriteScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                mWriteScheduled.set(false);
+                write(mSnapshot.mNames);
+            }
+        });
+    }
+
+    private List<String> read() {
+        if (!mIndexFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile),
+                    Utils.IO_BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            final int count = in.readInt();
+            final List<String> names = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                names.add(in.readUTF());
+            }
+            return names;
+        } catch (IOException e) {
+            Log.e(TAG, "read - " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    private void write(List<String> names) {
+        final File tmp = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),
+                    Utils.IO_BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mIndexFile)) {
+                Log.e(TAG, "write - could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "write - " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+            }
+            tmp.delete();
+        }
+    }
+}
@@ -2,8 +2,6 @@ package com.cm.android.beercellar.provider;
 
 import android.content.Context;
 
-import com.cm.android.beercellar.util.Utils;
-
 import java.util.List;
 
 /**
@@ -12,15 +10,23 @@ import java.util.List;
 public class Images {
 
 
+    /**
+     * Served from the {@link ImageIndex}, hold on to the {@link ImageIndex.Snapshot} instead
+     * when reading several positions.
+     */
     public static List<String> getImageUrls(Context context){
 
-        return Utils.listFileAbsolutePaths(Utils.getExternalImageStorageDir(context).getAbsolutePath());
+        return ImageIndex.getInstance(context).getSnapshot().getImageUrls();
 
     }
 
+    /**
+     * Served from the {@link ImageIndex}, hold on to the {@link ImageIndex.Snapshot} instead
+     * when reading several positions.
+     */
     public static List<String> getThumbnailUrls(Context context){
 
-        return Utils.listFileAbsolutePaths(Utils.getExternalThumbnailStorageDir(context).getAbsolutePath());
+        return ImageIndex.getInstance(context).getSnapshot().getThumbnailUrls();
 
     }
 }
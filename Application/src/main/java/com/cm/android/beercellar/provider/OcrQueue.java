@@ -0,0 +1,438 @@
+package com.cm.android.beercellar.provider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.Outbox;
+import com.cm.android.beercellar.util.Configuration;
+import com.cm.android.beercellar.util.HttpClient;
+import com.cm.android.beercellar.util.ImagePyramid;
+import com.cm.android.beercellar.util.RetryScheduler;
+import com.cm.android.beercellar.util.Utils;
+import com.cm.beer.activity.lite.BuildConfig;
+import com.cm.beer.activity.lite.R;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.vision.v1.Vision;
+import com.google.api.services.vision.v1.VisionRequestInitializer;
+import com.google.api.services.vision.v1.model.AnnotateImageRequest;
+import com.google.api.services.vision.v1.model.AnnotateImageResponse;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
+import com.google.api.services.vision.v1.model.EntityAnnotation;
+import com.google.api.services.vision.v1.model.Feature;
+import com.google.api.services.vision.v1.model.Image;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the text off captured labels with Cloud Vision, a batch at a time. Captures are
+ * collected for {@link #COLLECT_DELAY_MS}, or until there are {@link #BATCH_SIZE}, and sent in
+ * one request through a client built once. Each photo is downscaled to fit
+ * {@link #TEXT_LONG_EDGE} by {@link #TEXT_SHORT_EDGE}, the size Vision asks for to read text,
+ * so a request carries a fraction of the camera's pixels.
+ * <p/>
+ * The text of a batch is written to its notes in one transaction, which also queues the notes
+ * in the {@link Outbox}. Photos waiting to be read are remembered in the shared preferences,
+ * and {@link #resumePending()} reads them after the process was killed. When Vision cannot be
+ * reached, or answers that it is busy, the photos stay pending and the queue backs off,
+ * waiting twice as long after each failed batch. Photos Vision refuses to read are dropped.
+ */
+public final class OcrQueue {
+    private static final String TAG = OcrQueue.class.getName();
+
+    /**
+     * The most photos in one request, Vision's limit
+     */
+    public static final int BATCH_SIZE = 16;
+    /**
+     * How long captures are collected before a batch smaller than {@link #BATCH_SIZE} is sent
+     */
+    public static final long COLLECT_DELAY_MS = 2000;
+    public static final int TEXT_LONG_EDGE = 1024;
+    public static final int TEXT_SHORT_EDGE = 768;
+
+    private static final int JPEG_QUALITY = 80;
+    private static final String PREF_PENDING = "OCR_PENDING";
+
+    private static OcrQueue sInstance;
+
+    /**
+     * Interface definition for a callback to be invoked once the text of a batch is written,
+     * on the OCR thread.
+     */
+    public interface OnTextExtractedListener {
+        void onTextExtracted(List<Long> rowIds);
+    }
+
+    private final NotesDatabase mDatabase;
+    private final HttpClient mClient;
+    private final Vision mVision;
+    private final SharedPreferences mPreferences;
+    private final int mBatchSize;
+    private final long mDelayMs;
+    private final long mBackoffMs;
+    private final OnTextExtractedListener mListener;
+    // Held while a batch is read, so a photo is never sent twice at once
+    private final Object mProcessLock = new Object();
+    // Batches failed in a row, guarded by mProcessLock
+    private int mFailedBatches;
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mImages = new AtomicInteger();
+    private final AtomicInteger mFailures = new AtomicInteger();
+    private final AtomicLong mImageBytes = new AtomicLong();
+
+    private final RetryScheduler mScheduler = new RetryScheduler("OcrQueue", new Runnable() {
+        @Override
+        public void run() {
+            processNow();
+        }
+    });
+
+    /**
+     * @return The queue of the app's captures
+     */
+    public static synchronized OcrQueue getInstance(Context context) {
+        if (sInstance == null) {
+            final Context app = context.getApplicationContext();
+            final HttpClient client = HttpClient.getInstance();
+            sInstance = new OcrQueue(NotesDatabase.getInstance(app), client,
+                    newVision(client.getTransport(), client.getRequestInitializer(),
+                            app.getString(R.string.cloud_vision_api_key),
+                            app.getString(R.string.app_name)),
+                    app.getSharedPreferences(Utils.SHARED_PREF_NAME, Context.MODE_PRIVATE),
+                    BATCH_SIZE, COLLECT_DELAY_MS, Configuration.HTTP_BACKOFF_MS,
+                    new OnTextExtractedListener() {
+                        @Override
+                        public void onTextExtracted(List<Long> rowIds) {
+                            OutboxSync.getInstance(app).requestSync();
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return A Vision client on the given transport, to build once and reuse
+     */
+    public static Vision newVision(HttpTransport transport, HttpRequestInitializer initializer,
+                                   String apiKey, String applicationName) {
+        return new Vision.Builder(transport, GsonFactory.getDefaultInstance(), initializer)
+                .setVisionRequestInitializer(new VisionRequestInitializer(apiKey))
+                .setApplicationName(applicationName)
+                .build();
+    }
+
+    /**
+     * Creates a queue reading labels through {@code vision} into the notes of
+     * {@code database}, keeping the photos it has yet to read in {@code preferences}. The app
+     * shares the one from {@link #getInstance}; {@link #close()} any other once done with it.
+     *
+     * @param batchSize The most photos in one request
+     * @param delayMs   How long captures are collected before a smaller batch is sent
+     * @param backoffMs The wait before a failed batch is tried again
+     * @param listener  may be null
+     */
+    public OcrQueue(NotesDatabase database, HttpClient client, Vision vision,
+                    SharedPreferences preferences, int batchSize, long delayMs, long backoffMs,
+                    OnTextExtractedListener listener) {
+        mDatabase = database;
+        mClient = client;
+        mVision = vision;
+        mPreferences = preferences;
+        mBatchSize = batchSize;
+        mDelayMs = delayMs;
+        mBackoffMs = backoffMs;
+        mListener = listener;
+    }
+
+    /**
+     * Queues a captured photo to have its text read into its note, which must exist. Photos
+     * are named after their note, see {@link Utils#extractRowIdFromFileName}.
+     *
+     * @param imagePath The path of the original photo
+     */
+    public void add(String imagePath) {
+        final int pending;
+        synchronized (this) {
+            final Set<String> paths = new HashSet<String>(getPending());
+            paths.add(imagePath);
+            mPreferences.edit().putStringSet(PREF_PENDING, paths).commit();
+            pending = paths.size();
+        }
+        mScheduler.schedule(System.currentTimeMillis() + (pending >= mBatchSize ? 0 : mDelayMs));
+    }
+
+    /**
+     * Reads the photos left waiting, for example because the process was killed. Call once the
+     * app starts.
+     */
+    public void resumePending() {
+        if (!getPending().isEmpty()) {
+            mScheduler.schedule(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Stops the OCR thread, letting a batch already sent finish. The photos not read yet stay
+     * pending.
+     */
+    public void close() {
+        mScheduler.shutdown();
+    }
+
+    private synchronized Set<String> getPending() {
+        return mPreferences.getStringSet(PREF_PENDING, Collections.<String>emptySet());
+    }
+
+    private synchronized void removePending(List<String> imagePaths) {
+        final Set<String> paths = new HashSet<String>(getPending());
+        paths.removeAll(imagePaths);
+        mPreferences.edit().putStringSet(PREF_PENDING, paths).commit();
+    }
+
+    /**
+     * Reads the pending photos a batch at a time, on the calling thread, until none are left or
+     * a batch fails.
+     *
+     * @return The number of notes given text
+     */
+    public int processNow() {
+        synchronized (mProcessLock) {
+            return processPending();
+        }
+    }
+
+    private int processPending() {
+        final long start = System.currentTimeMillis();
+        int extracted = 0;
+        while (true) {
+            final List<String> batch = new ArrayList<String>(mBatchSize);
+            for (String path : new TreeSet<String>(getPending())) {
+                if (batch.size() == mBatchSize) {
+                    break;
+                }
+                batch.add(path);
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            try {
+                extracted += processBatch(batch);
+                mFailedBatches = 0;
+            } catch (IOException e) {
+                mFailures.incrementAndGet();
+                final long delay = RetryScheduler.getRetryDelay(mBackoffMs, ++mFailedBatches,
+                        OutboxSync.MAX_DELAY_MS);
+                Log.w(TAG, "processNow: trying again in " + delay + "ms - " + e);
+                mScheduler.schedule(System.currentTimeMillis() + delay);
+                break;
+            }
+        }
+        if (BuildConfig.DEBUG && extracted > 0) {
+            Log.d(TAG, "processNow: read " + extracted + " in "
+                    + (System.currentTimeMillis() - start) + "ms, " + this);
+        }
+        return extracted;
+    }
+
+    /**
+     * Sends the photos in one request and writes their text.
+     *
+     * @return The number of notes given text
+     * @throws IOException if the batch should be tried again
+     */
+    private int processBatch(List<String> paths) throws IOException {
+        final List<Long> rowIds = new ArrayList<Long>(paths.size());
+        final List<AnnotateImageRequest> requests =
+                new ArrayList<AnnotateImageRequest>(paths.size());
+        for (String path : paths) {
+            final Long rowId = Utils.extractRowIdFromFileName(path);
+            final byte[] jpeg = rowId == null ? null : downscale(path);
+            if (jpeg == null) {
+                Log.w(TAG, "processBatch: cannot read " + path + ", dropping it");
+                continue;
+            }
+            mImageBytes.addAndGet(jpeg.length);
+            final AnnotateImageRequest request = new AnnotateImageRequest();
+            final Image image = new Image();
+            image.encodeContent(jpeg);
+            request.setImage(image);
+            final Feature detection = new Feature();
+            detection.setType("TEXT_DETECTION");
+            detection.setMaxResults(1);
+            final List<Feature> features = new ArrayList<Feature>(1);
+            features.add(detection);
+            request.setFeatures(features);
+            requests.add(request);
+            rowIds.add(rowId);
+        }
+        if (requests.isEmpty()) {
+            removePending(paths);
+            return 0;
+        }
+
+        final BatchAnnotateImagesResponse response;
+        try {
+            response = annotate(requests);
+        } catch (HttpResponseException e) {
+            final int status = e.getStatusCode();
+            if (RetryScheduler.isRetryable(status)) {
+                throw new IOException("processBatch - status " + status);
+            }
+            Log.e(TAG, "processBatch - dropping " + paths.size() + " photos, status " + status
+                    + ": " + e.getContent());
+            removePending(paths);
+            return 0;
+        }
+
+        final List<Note> notes = new ArrayList<Note>(rowIds.size());
+        final List<AnnotateImageResponse> responses = response.getResponses();
+        for (int i = 0; responses != null && i < responses.size() && i < rowIds.size(); i++) {
+            final AnnotateImageResponse result = responses.get(i);
+            if (result.getError() != null) {
+                Log.w(TAG, "processBatch: no text for " + rowIds.get(i) + " - "
+                        + result.getError().getMessage());
+                continue;
+            }
+            final List<EntityAnnotation> annotations = result.getTextAnnotations();
+            if (annotations == null || annotations.isEmpty()) {
+                continue;
+            }
+            final Note note = new Note();
+            note.id = rowIds.get(i);
+            // The first annotation is the whole text, the rest are its words
+            note.textExtract = annotations.get(0).getDescription();
+            notes.add(note);
+        }
+        write(notes);
+        removePending(paths);
+        mImages.addAndGet(requests.size());
+
+        if (mListener != null && !notes.isEmpty()) {
+            final List<Long> written = new ArrayList<Long>(notes.size());
+            for (Note note : notes) {
+                written.add(note.id);
+            }
+            mListener.onTextExtracted(written);
+        }
+        return notes.size();
+    }
+
+    private BatchAnnotateImagesResponse annotate(List<AnnotateImageRequest> requests)
+            throws IOException {
+        final BatchAnnotateImagesRequest batch = new BatchAnnotateImagesRequest();
+        batch.setRequests(requests);
+        final Vision.Images.Annotate annotate = mVision.images().annotate(batch);
+        // Due to a bug: requests to Vision API containing large images fail when GZipped.
+        annotate.setDisableGZipContent(true);
+        final HttpRequest request = annotate.buildHttpRequest();
+        mRequests.incrementAndGet();
+        return mClient.execute(request,
+                new HttpClient.ResponseHandler<BatchAnnotateImagesResponse>() {
+                    @Override
+                    public BatchAnnotateImagesResponse handle(HttpResponse response)
+                            throws IOException {
+                        if (!response.isSuccessStatusCode()) {
+                            throw new HttpResponseException(response);
+                        }
+                        return response.parseAs(BatchAnnotateImagesResponse.class);
+                    }
+                });
+    }
+
+    /**
+     * Writes the text of the notes and queues them to be sent, in one transaction.
+     */
+    private void write(List<Note> notes) {
+        if (notes.isEmpty()) {
+            return;
+        }
+        // The adapter opens the transaction under its own lock, see NotesDbAdapter
+        mDatabase.getNotesDbAdapter().updateNotes(notes, mDatabase.getOutbox());
+    }
+
+    /**
+     * Decodes the photo, from its detail level if it has one, to fit {@link #TEXT_LONG_EDGE} by
+     * {@link #TEXT_SHORT_EDGE} either way round, never scaling up.
+     *
+     * @return The photo as a JPEG, or null if it could not be decoded
+     */
+    public static byte[] downscale(String imagePath) {
+        final File detail = ImagePyramid.getLevelFile(imagePath, ImagePyramid.LEVEL_DETAIL);
+        final String source = detail.exists() ? detail.getAbsolutePath() : imagePath;
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        final float scale = Math.min(1, Math.min(
+                (float) TEXT_LONG_EDGE / Math.max(options.outWidth, options.outHeight),
+                (float) TEXT_SHORT_EDGE / Math.min(options.outWidth, options.outHeight)));
+        final int width = Math.round(options.outWidth * scale);
+        final int height = Math.round(options.outHeight * scale);
+        options.inSampleSize = ImagePyramid.calculateSampleSize(options.outWidth,
+                options.outHeight, Math.max(width, height));
+        options.inJustDecodeBounds = false;
+        final Bitmap sampled = BitmapFactory.decodeFile(source, options);
+        if (sampled == null) {
+            return null;
+        }
+        Bitmap scaled = sampled;
+        if (sampled.getWidth() > width || sampled.getHeight() > height) {
+            scaled = Bitmap.createScaledBitmap(sampled, width, height, true);
+            if (scaled != sampled) {
+                sampled.recycle();
+            }
+        }
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream(64 * 1024);
+        scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg);
+        scaled.recycle();
+        return jpeg.toByteArray();
+    }
+
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    public int getImageCount() {
+        return mImages.get();
+    }
+
+    /**
+     * @return The bytes of the downscaled photos sent
+     */
+    public long getImageBytes() {
+        return mImageBytes.get();
+    }
+
+    public int getFailureCount() {
+        return mFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "OcrQueue[requests=" + mRequests + ",images=" + mImages + ",imageBytes="
+                + mImageBytes + ",failures=" + mFailures + "]";
+    }
+}
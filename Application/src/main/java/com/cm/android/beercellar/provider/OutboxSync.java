@@ -0,0 +1,405 @@
+package com.cm.android.beercellar.provider;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+import com.cm.android.beercellar.db.Outbox;
+import com.cm.android.beercellar.util.ChunkedUploader;
+import com.cm.android.beercellar.util.Configuration;
+import com.cm.android.beercellar.util.HttpClient;
+import com.cm.android.beercellar.util.ImagePyramid;
+import com.cm.android.beercellar.util.RetryScheduler;
+import com.cm.android.beercellar.util.StatusCodeException;
+import com.cm.android.beercellar.util.Utils;
+import com.cm.beer.activity.lite.BuildConfig;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the {@link Outbox} to the server on a thread of its own. Image uploads go first, as
+ * they give their notes a uri, then deletions, then the notes in batches of
+ * {@link #BATCH_SIZE} per request.
+ * <p/>
+ * A request that fails with an I/O error, or a status {@link RetryScheduler#isRetryable}
+ * accepts, is retried up to the given number of attempts, waiting twice as long each time. If
+ * it still fails its entries are put off, again doubling the delay with every failure, and the
+ * pass ends, as the server or the network is down. Entries the server rejects outright are
+ * dropped.
+ */
+public final class OutboxSync {
+    private static final String TAG = OutboxSync.class.getName();
+
+    /**
+     * The most notes sent in one request
+     */
+    public static final int BATCH_SIZE = 50;
+    /**
+     * The longest an entry is put off for after failing
+     */
+    public static final long MAX_DELAY_MS = TimeUnit.HOURS.toMillis(1);
+    /**
+     * How many times an image upload waits for its thumbnail to be generated before it is
+     * dropped
+     */
+    private static final int MAX_THUMBNAIL_WAITS = 8;
+
+    private static final String BATCH_PATH = "/batch";
+
+    private static OutboxSync sInstance;
+
+    private final NotesDatabase mDatabase;
+    private final Outbox mOutbox;
+    private final HttpClient mClient;
+    private final HttpRequestFactory mRequestFactory;
+    private final ChunkedUploader mUploader;
+    private final String mContentsUrl;
+    private final String mDropboxUrl;
+    private final int mMaxAttempts;
+    private final long mBackoffMs;
+    private final Random mRandom = new Random();
+    private final RetryScheduler mScheduler = new RetryScheduler("OutboxSync", new Runnable() {
+        @Override
+        public void run() {
+            syncNow();
+            // Wakes up for the entries that were put off
+            final long next = mOutbox.getNextAttemptTime();
+            if (next != -1) {
+                mScheduler.schedule(next);
+            }
+        }
+    });
+
+    /**
+     * @return The sync of the app's notes database with the server
+     */
+    public static synchronized OutboxSync getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OutboxSync(NotesDatabase.getInstance(context),
+                    HttpClient.getInstance(), Configuration.CONTENTS_URL,
+                    Configuration.DROPBOX_URL, Configuration.HTTP_MAX_ATTEMPTS,
+                    Configuration.HTTP_BACKOFF_MS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a sync sending the outbox of {@code database} to {@code contentsUrl}, for example
+     * a stub of the server. Its thread runs until {@link #close()}, unlike the app's own from
+     * {@link #getInstance}.
+     *
+     * @param maxAttempts The most times a request is sent in one pass
+     * @param backoffMs   The wait before the first retry, see {@link Outbox#retryLater}
+     */
+    public OutboxSync(NotesDatabase database, HttpClient client, String contentsUrl,
+                      String dropboxUrl, int maxAttempts, long backoffMs) {
+        mDatabase = database;
+        mOutbox = database.getOutbox();
+        mClient = client;
+        mRequestFactory = client.getRequestFactory();
+        mUploader = new ChunkedUploader(client, ChunkedUploader.CHUNK_SIZE);
+        mContentsUrl = contentsUrl;
+        mDropboxUrl = dropboxUrl;
+        mMaxAttempts = maxAttempts;
+        mBackoffMs = backoffMs;
+    }
+
+    /**
+     * Sends the outbox soon, on the sync thread. Call it after queueing changes, and when the
+     * app starts to send what an earlier run left behind.
+     */
+    public void requestSync() {
+        mScheduler.schedule(System.currentTimeMillis());
+    }
+
+    /**
+     * Stops the sync thread, letting a pass already running finish. The outbox keeps what was
+     * not sent.
+     */
+    public void close() {
+        mScheduler.shutdown();
+    }
+
+    /**
+     * Sends the entries that are due, on the calling thread.
+     *
+     * @return The number of entries sent
+     */
+    public int syncNow() {
+        final long start = System.currentTimeMillis();
+        int sent = 0;
+        while (true) {
+            final List<Outbox.Entry> due = mOutbox.fetchDue(System.currentTimeMillis(),
+                    BATCH_SIZE * 4);
+            if (due.isEmpty()) {
+                break;
+            }
+            final List<Outbox.Entry> images = new ArrayList<Outbox.Entry>();
+            final List<Outbox.Entry> deletes = new ArrayList<Outbox.Entry>();
+            final List<Outbox.Entry> puts = new ArrayList<Outbox.Entry>();
+            for (Outbox.Entry entry : due) {
+                (entry.op == Outbox.OP_IMAGE ? images
+                        : entry.op == Outbox.OP_DELETE ? deletes : puts).add(entry);
+            }
+            try {
+                if (!images.isEmpty()) {
+                    for (Outbox.Entry entry : images) {
+                        sent += send(entry);
+                    }
+                    // Fetched again, as the uploads queued their notes afresh
+                    continue;
+                }
+                for (Outbox.Entry entry : deletes) {
+                    sent += send(entry);
+                }
+                for (int i = 0; i < puts.size(); i += BATCH_SIZE) {
+                    sent += sendNotes(puts.subList(i, Math.min(puts.size(), i + BATCH_SIZE)));
+                }
+            } catch (IOException e) {
+                // The server or the network is down, the entries wait for their next attempt
+                Log.w(TAG, "syncNow: ending the pass - " + e);
+                break;
+            }
+        }
+        if (BuildConfig.DEBUG && sent > 0) {
+            Log.d(TAG, "syncNow: sent " + sent + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        return sent;
+    }
+
+    /**
+     * Sends an image upload or a deletion.
+     *
+     * @return 1 if it was sent, 0 if it was dropped
+     * @throws IOException if it could not be sent, after it was put off
+     */
+    private int send(final Outbox.Entry entry) throws IOException {
+        final List<Outbox.Entry> entries = new ArrayList<Outbox.Entry>(1);
+        entries.add(entry);
+        if (entry.op == Outbox.OP_IMAGE && !new File(entry.path).isFile()) {
+            if (entry.attempts < MAX_THUMBNAIL_WAITS && ImagePyramid.getLevelFile(entry.path,
+                    ImagePyramid.LEVEL_FULL).isFile()) {
+                // A capture is queued before its thumbnail is written, see ImagePyramid
+                Log.i(TAG, "send: " + entry.path + " is not generated yet, putting it off");
+                mOutbox.retryLater(entries, System.currentTimeMillis(), mBackoffMs, MAX_DELAY_MS);
+                return 0;
+            }
+            Log.w(TAG, "send: " + entry.path + " is gone, not uploading it");
+            mOutbox.remove(entries);
+            return 0;
+        }
+        return execute(entries, new Call() {
+            @Override
+            public void call() throws IOException, StatusCodeException {
+                if (entry.op == Outbox.OP_IMAGE) {
+                    uploadImage(entry);
+                } else {
+                    delete(entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the notes in one request. Notes deleted since they were queued are left out, their
+     * deletion is queued after them.
+     *
+     * @return The number of entries sent
+     * @throws IOException if they could not be sent, after they were put off
+     */
+    private int sendNotes(List<Outbox.Entry> entries) throws IOException {
+        final NotesDbAdapter adapter = mDatabase.getNotesDbAdapter();
+        final JSONArray notes = new JSONArray();
+        for (Outbox.Entry entry : entries) {
+            final Note note = adapter.fetchNote(entry.rowId);
+            if (note != null) {
+                try {
+                    notes.put(toJson(note));
+                } catch (JSONException e) {
+                    Log.e(TAG, "sendNotes - " + e);
+                }
+            }
+        }
+        if (notes.length() == 0) {
+            mOutbox.remove(entries);
+            return 0;
+        }
+        final byte[] body = notes.toString().getBytes("UTF-8");
+        return execute(entries, new Call() {
+            @Override
+            public void call() throws IOException, StatusCodeException {
+                request(mRequestFactory.buildPutRequest(new GenericUrl(mContentsUrl + BATCH_PATH),
+                        new ByteArrayContent("application/json", body)));
+            }
+        });
+    }
+
+    private void delete(Outbox.Entry entry) throws IOException, StatusCodeException {
+        request(mRequestFactory.buildDeleteRequest(new GenericUrl(mContentsUrl + "/"
+                + entry.rowId + "/" + entry.enqueued + "/"
+                + TimeZone.getDefault().getRawOffset())));
+    }
+
+    /**
+     * Uploads the image, or the rest of it, through an upload session at a url the server hands
+     * out, then gives the note the uri it was stored at and queues the note to be sent. The
+     * session and offset are kept with the entry after every chunk, so a retry, or the next run
+     * of the app, resumes the upload.
+     */
+    private void uploadImage(final Outbox.Entry entry) throws IOException, StatusCodeException {
+        final ChunkedUploader.Progress progress = new ChunkedUploader.Progress();
+        progress.session = entry.uploadSession;
+        progress.offset = entry.uploadOffset;
+        final String uri;
+        try {
+            String url = null;
+            if (progress.session == null) {
+                final GenericUrl dropbox = new GenericUrl(new JSONObject(request(
+                        mRequestFactory.buildGetRequest(new GenericUrl(mDropboxUrl))))
+                        .getString("url"));
+                dropbox.set("rowId", entry.rowId);
+                url = dropbox.build();
+            }
+            uri = new JSONObject(mUploader.upload(url, new File(entry.path), "image/jpeg",
+                    progress, new ChunkedUploader.OnProgressListener() {
+                        @Override
+                        public void onProgress(ChunkedUploader.Progress progress) {
+                            entry.uploadSession = progress.session;
+                            entry.uploadOffset = progress.offset;
+                            mOutbox.saveUploadProgress(entry);
+                        }
+                    })).getString("uri");
+        } catch (JSONException e) {
+            throw new StatusCodeException(400, e.toString());
+        }
+
+        final Note note = new Note();
+        note.id = entry.rowId;
+        note.uri = uri;
+        if (mDatabase.getNotesDbAdapter().updateNote(note)) {
+            mOutbox.putNote(entry.rowId);
+        }
+    }
+
+    /**
+     * @return The image uploads' byte and chunk counts, retries and throughput
+     */
+    public ChunkedUploader getUploader() {
+        return mUploader;
+    }
+
+    /**
+     * @return The body of a successful response
+     * @throws StatusCodeException with the status of any other
+     */
+    private String request(HttpRequest request) throws IOException, StatusCodeException {
+        // Retries are counted here
+        request.setNumberOfRetries(0);
+        return mClient.executeForString(request);
+    }
+
+    private interface Call {
+        void call() throws IOException, StatusCodeException;
+    }
+
+    /**
+     * Makes the call for the entries, retrying it while it fails in a way that may pass.
+     *
+     * @return The number of entries sent
+     * @throws IOException if the call kept failing, after the entries were put off
+     */
+    private int execute(List<Outbox.Entry> entries, Call call) throws IOException {
+        long backoff = mBackoffMs + mRandom.nextInt((int) Math.max(1, mBackoffMs));
+        for (int attempt = 1; ; attempt++) {
+            Exception failure;
+            try {
+                call.call();
+                mOutbox.remove(entries);
+                return entries.size();
+            } catch (IOException e) {
+                failure = e;
+            } catch (StatusCodeException e) {
+                if (!RetryScheduler.isRetryable(e.getStatusCode())) {
+                    Log.e(TAG, "execute - dropping " + entries.size() + " entries, status "
+                            + e.getStatusCode() + ": " + e.getEncodedResponse());
+                    mOutbox.remove(entries);
+                    return 0;
+                }
+                failure = e;
+            }
+            Log.w(TAG, "execute: attempt " + attempt + " failed - " + describe(failure));
+            if (attempt >= mMaxAttempts) {
+                mOutbox.retryLater(entries, System.currentTimeMillis(), mBackoffMs, MAX_DELAY_MS);
+                throw failure instanceof IOException ? (IOException) failure
+                        : new IOException(describe(failure));
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mOutbox.retryLater(entries, System.currentTimeMillis(), mBackoffMs, MAX_DELAY_MS);
+                throw new IOException("execute - interrupted");
+            }
+            backoff *= 2;
+        }
+    }
+
+    private static String describe(Exception e) {
+        return e instanceof StatusCodeException
+                ? "status " + ((StatusCodeException) e).getStatusCode() : e.toString();
+    }
+
+    /**
+     * @return The note the way the server takes it
+     */
+    public static JSONObject toJson(Note note) throws JSONException {
+        final int offset = TimeZone.getDefault().getRawOffset();
+        final JSONObject json = new JSONObject();
+        json.put("rowId", note.id);
+        json.put("beer", note.beer);
+        json.put("rating", note.rating);
+        json.put("textExtract", note.textExtract);
+        json.put("notes", note.notes);
+        json.put("uri", note.uri);
+        json.put("timeCreatedMs", note.created);
+        json.put("timeCreatedTimeZoneOffsetMs", offset);
+        json.put("timeUpdatedMs", note.updated);
+        json.put("timeUpdatedTimeZoneOffsetMs", offset);
+        return json;
+    }
+
+    /**
+     * @return The note from the way the server hands it out, see {@link #toJson}. A note with a
+     * uri has its photo under the name the app gives photos.
+     */
+    public static Note fromJson(JSONObject json) throws JSONException {
+        final Note note = new Note();
+        note.id = json.getLong("rowId");
+        note.beer = json.optString("beer", "");
+        note.rating = json.optString("rating", "0.0");
+        note.textExtract = json.optString("textExtract", "");
+        note.notes = json.optString("notes", "");
+        note.uri = json.optString("uri", "");
+        note.picture = note.uri.length() > 0 ? note.id + Utils.PICTURES_EXTENSION : "";
+        note.created = json.getLong("timeCreatedMs");
+        note.updated = json.getLong("timeUpdatedMs");
+        return note;
+    }
+}
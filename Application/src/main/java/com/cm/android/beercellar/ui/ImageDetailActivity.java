@@ -32,8 +32,8 @@ import android.view.WindowManager.LayoutParams;
 
 //import com.cm.android.displayingbitmaps.BuildConfig;
 //import com.cm.android.displayingbitmaps.R;
-import com.cm.android.beercellar.db.NotesDbAdapter;
-import com.cm.android.beercellar.provider.Images;
+import com.cm.android.beercellar.db.NotesRepository;
+import com.cm.android.beercellar.provider.ImageIndex;
 import com.cm.android.beercellar.util.ImageCache;
 import com.cm.android.beercellar.util.ImageFetcher;
 import com.cm.android.beercellar.util.Utils;
@@ -47,7 +47,27 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
     private ImagePagerAdapter mAdapter;
     private ImageFetcher mImageFetcher;
     private ViewPager mPager;
-    private NotesDbAdapter mDbHelper;
+    private NotesRepository mNotesRepository;
+    private ImageIndex mImageIndex;
+    // Only listens while the index is loading, the pager keeps the snapshot it was given
+    private final ImageIndex.OnImageIndexChangedListener mIndexListener =
+            new ImageIndex.OnImageIndexChangedListener() {
+                @Override
+                public void onImageInserted(ImageIndex.Snapshot snapshot, int position) {
+                }
+
+                @Override
+                public void onImageRemoved(ImageIndex.Snapshot snapshot, int position) {
+                }
+
+                @Override
+                public void onImagesReloaded(ImageIndex.Snapshot snapshot) {
+                    mImageIndex.removeOnImageIndexChangedListener(this);
+                    if (mAdapter == null) {
+                        showImages(snapshot);
+                    }
+                }
+            };
 
 
     @TargetApi(VERSION_CODES.HONEYCOMB)
@@ -82,14 +102,18 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
         mImageFetcher.addImageCache(getSupportFragmentManager(), cacheParams);
         mImageFetcher.setImageFadeIn(false);
 
-        //database
-        mDbHelper = new NotesDbAdapter(this);
-        mDbHelper.open();
+        //database, opened on its own thread while the pages are laid out
+        mNotesRepository = NotesRepository.getInstance(this);
+        mNotesRepository.warmUp();
 
-        // Set up ViewPager and backing adapter
-        mAdapter = new ImagePagerAdapter(getSupportFragmentManager(), Images.getImageUrls(ImageDetailActivity.this).size());
+        // Set up ViewPager, its adapter waits for the photos if they are still being listed
         mPager = (ViewPager) findViewById(R.id.pager);
-        mPager.setAdapter(mAdapter);
+        mImageIndex = ImageIndex.getInstance(this);
+        if (mImageIndex.isLoaded()) {
+            showImages(mImageIndex.getSnapshot());
+        } else {
+            mImageIndex.addOnImageIndexChangedListener(mIndexListener);
+        }
         mPager.setPageMargin((int) getResources().getDimension(R.dimen.horizontal_page_margin));
         mPager.setOffscreenPageLimit(2);
 
@@ -122,6 +146,11 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
 //            mPager.setSystemUiVisibility(View.SYSTEM_UI_FLAG_LOW_PROFILE);
 //            actionBar.hide();
         }
+    }
+
+    private void showImages(ImageIndex.Snapshot snapshot) {
+        mAdapter = new ImagePagerAdapter(getSupportFragmentManager(), snapshot);
+        mPager.setAdapter(mAdapter);
 
         // Set the current item based on the extra passed in to this activity
         final int extraCurrentItem = getIntent().getIntExtra(EXTRA_IMAGE, -1);
@@ -146,10 +175,8 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mImageIndex.removeOnImageIndexChangedListener(mIndexListener);
         mImageFetcher.closeCache();
-        //database
-        if (mDbHelper != null)
-            mDbHelper.close();
     }
 
 
@@ -160,10 +187,10 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
         return mImageFetcher;
     }
     /**
-     * Called by the ViewPager child fragments to load images via the one ImageFetcher
+     * Called by the ViewPager child fragments to load and save notes off the main thread
      */
-    public NotesDbAdapter getDbHelper() {
-        return mDbHelper;
+    public NotesRepository getNotesRepository() {
+        return mNotesRepository;
     }
 
     /**
@@ -172,22 +199,23 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
      * memory at once but create/destroy them on the fly.
      */
     private class ImagePagerAdapter extends FragmentStatePagerAdapter {
-        private final int mSize;
+        // Pages and their photos stay lined up even if the index changes while paging
+        private final ImageIndex.Snapshot mSnapshot;
 
-        public ImagePagerAdapter(FragmentManager fm, int size) {
+        public ImagePagerAdapter(FragmentManager fm, ImageIndex.Snapshot snapshot) {
             super(fm);
-            mSize = size;
+            mSnapshot = snapshot;
         }
 
         @Override
         public int getCount() {
-            return mSize;
+            return mSnapshot.size();
         }
 
         @Override
         public Fragment getItem(int position) {
-            return ImageDetailFragment.newInstance(Images.getImageUrls(ImageDetailActivity.this).get(position),
-                        Images.getThumbnailUrls(ImageDetailActivity.this).get(position));
+            return ImageDetailFragment.newInstance(mSnapshot.getImageUrl(position),
+                        mSnapshot.getThumbnailUrl(position));
 
         }
     }
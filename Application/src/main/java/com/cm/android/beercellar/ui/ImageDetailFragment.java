@@ -39,11 +39,15 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
 import com.cm.android.beercellar.db.NotesDbAdapter;
+import com.cm.android.beercellar.db.NotesRepository;
+import com.cm.android.beercellar.db.Outbox;
+import com.cm.android.beercellar.provider.ImageIndex;
 import com.cm.android.beercellar.provider.Images;
-import com.cm.android.beercellar.util.AsyncTask;
-import com.cm.android.beercellar.util.Configuration;
+import com.cm.android.beercellar.provider.OutboxSync;
 import com.cm.android.beercellar.util.ImageFetcher;
+import com.cm.android.beercellar.util.ImagePyramid;
 import com.cm.android.beercellar.util.ImageWorker;
 import com.cm.android.beercellar.util.Utils;
 import com.cm.beer.activity.lite.AnalyticsTrackers;
@@ -53,8 +57,7 @@ import com.google.android.gms.analytics.HitBuilders;
 import com.google.android.gms.analytics.Tracker;
 //import com.google.api.client.extensions.android.http.AndroidHttp;
 //import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-//import com.google.api.client.http.HttpTransport;
-//import com.google.api.client.json.JsonFactory;
+////import com.google.api.client.json.JsonFactory;
 //import com.google.api.client.json.gson.GsonFactory;
 //import com.google.api.services.vision.v1.Vision;
 //import com.google.api.services.vision.v1.VisionRequestInitializer;
@@ -63,27 +66,13 @@ import com.google.android.gms.analytics.Tracker;
 //import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
 //import com.google.api.services.vision.v1.model.Feature;
 //import com.google.api.services.vision.v1.model.Image;
-import com.google.api.client.http.ByteArrayContent;
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestFactory;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.util.ExponentialBackOff;
 import com.cm.beer.activity.lite.R;
 
-import org.json.JSONObject;
-
 import java.io.File;
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TimeZone;
 
 /**
  * This fragment will populate the children of the ViewPager from {@link ImageDetailActivity}.
@@ -112,7 +101,23 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
     private Long mRowId;
     private boolean mIsNew;
 
-    private NotesDbAdapter mDbHelper;
+    private NotesRepository mNotesRepository;
+    // Shows what others write to this note, such as the label text once it is read
+    private final NotesDatabase.OnNotesChangedListener mNotesChangedListener =
+            new NotesDatabase.OnNotesChangedListener() {
+                @Override
+                public void onNotesChanged(long[] rowIds) {
+                    if (mRowId == null) {
+                        return;
+                    }
+                    for (long rowId : rowIds) {
+                        if (rowId == mRowId) {
+                            load();
+                            return;
+                        }
+                    }
+                }
+            };
     private Vibrator mVibrator;
     private TextView mDateCreated;
     private TextView mDateUpdated;
@@ -249,7 +254,8 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
             mImageFetcher.loadImage(mImageUrl, mImageView, this);
 
             //database opened and managed by over arching activity
-            mDbHelper = ((ImageDetailActivity) getActivity()).getDbHelper();
+            mNotesRepository = ((ImageDetailActivity) getActivity()).getNotesRepository();
+            mNotesRepository.addOnNotesChangedListener(mNotesChangedListener);
         }
 
 
@@ -258,6 +264,9 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mNotesRepository != null) {
+            mNotesRepository.removeOnNotesChangedListener(mNotesChangedListener);
+        }
         if (mImageView != null) {
             // Cancel any pending image work
             ImageWorker.cancelWork(mImageView);
@@ -294,33 +303,49 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
                     public void onClick(DialogInterface dialog, int id) {
                         // Yes-code
                         mProgressBar.setVisibility(View.VISIBLE);
-                        //String[] params = {mImageUrl, mThumbnailUrl};
-                        //new DeleteImageAsyncTask().execute(params);
-
-                        try {
-                            //delete files under Pictures
-                            File imageFile = new File(mImageUrl);
-                            File thumbnailFile = new File(mThumbnailUrl);
-                            //delete thumbnail first for better ux
-                            if (thumbnailFile.delete() && imageFile.delete()) {
-                                List<Object> data = new ArrayList<Object>();
-                                //delete thumbnail first
-                                data.add(mThumbnailUrl);
-                                data.add(mImageUrl);
-                                //delete files in the cache
-                                mImageFetcher.deleteImages(data, ImageDetailFragment.this);
-                                //database
-                                mDbHelper.deleteNote(mRowId);
 
-                            } else {
-                                Log.e(ImageDetailFragment.class.getName(), "Unable to delete files");
-                                Toast.makeText(getActivity(), "Unable to delete",
-                                        Toast.LENGTH_SHORT).show();
+                        // Files and the note are deleted on the database thread
+                        final ImageIndex imageIndex = ImageIndex.getInstance(getActivity());
+                        final Outbox outbox = NotesDatabase.getInstance(getActivity()).getOutbox();
+                        final OutboxSync sync = OutboxSync.getInstance(getActivity());
+                        mNotesRepository.execute(new NotesRepository.Task<Boolean>() {
+                            @Override
+                            public Boolean run(NotesDbAdapter adapter) {
+                                //delete files under Pictures
+                                File imageFile = new File(mImageUrl);
+                                File thumbnailFile = new File(mThumbnailUrl);
+                                //delete thumbnail first for better ux
+                                if (!(thumbnailFile.delete() && imageFile.delete())) {
+                                    return false;
+                                }
+                                ImagePyramid.getLevelFile(mImageUrl, ImagePyramid.LEVEL_DETAIL).delete();
+                                imageIndex.remove(imageFile.getName());
+                                //database
+                                adapter.deleteNote(mRowId, outbox);
+                                sync.requestSync();
+                                return true;
                             }
-
-                        } catch (Exception e) {
-                            Log.e(ImageDetailFragment.class.getName(), e.getMessage());
-                        }
+                        }, new NotesRepository.OnResultListener<Boolean>() {
+                            @Override
+                            public void onResult(Boolean deleted) {
+                                if (getActivity() == null) {
+                                    return;
+                                }
+                                if (deleted != null && deleted) {
+                                    List<Object> data = new ArrayList<Object>();
+                                    //delete thumbnail first
+                                    data.add(mThumbnailUrl);
+                                    data.add(mImageUrl);
+                                    //delete files in the cache
+                                    mImageFetcher.deleteImages(data, ImageDetailFragment.this);
+                                } else {
+                                    Log.e(ImageDetailFragment.class.getName(), "Unable to delete files");
+                                    mProgressBar.setVisibility(View.GONE);
+                                    Toast.makeText(getActivity(), "Unable to delete",
+                                            Toast.LENGTH_SHORT).show();
+                                }
+                            }
+                        });
 
                         //getActivity().finish();
                     }
@@ -346,33 +371,46 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
     //TODO: Load called multiple times, once for each grid item
     private void load() {
         Log.i(sTag, "load");
-        try {
-            if (mRowId != null) {
-                Note note = mDbHelper.fetchNote(mRowId);
-                if (note != null) {
+        if (mRowId == null || mNotesRepository == null) {
+            return;
+        }
+        mNotesRepository.fetchNote(mRowId, new NotesRepository.OnResultListener<Note>() {
+            @Override
+            public void onResult(Note note) {
+                if (note == null || getActivity() == null) {
+                    return;
+                }
+                try {
                     String ratingStr = note.rating;
-                    mRatingBar.setRating(Float.valueOf(ratingStr));
-                    mBeer.setText(note.beer);
-                    mTextExtract.setText(note.textExtract);
-                    mNotes.setText(note.notes);
+                    mRatingBar.setRating(ratingStr == null ? 0 : Float.valueOf(ratingStr));
+                    // Leave alone what the user is typing
+                    setTextUnlessEditing(mBeer, note.beer);
+                    setTextUnlessEditing(mTextExtract, note.textExtract);
+                    setTextUnlessEditing(mNotes, note.notes);
                     String dateAdded = "Added on "
                             + mDateFormat.format(note.created);
                     mDateCreated.setText(dateAdded);
                     String dataUpdated = "Last updated on "
                             + mDateFormat.format(note.updated);
                     mDateUpdated.setText(dataUpdated);
+                } catch (Throwable e) {
+                    Log.e(sTag, "error: "
+                            + ((e.getMessage() != null) ? e.getMessage().replace(" ",
+                            "_") : ""), e);
                 }
             }
-        } catch (Throwable e) {
-            Log.e(sTag, "error: "
-                    + ((e.getMessage() != null) ? e.getMessage().replace(" ",
-                    "_") : ""), e);
+        });
+    }
+
+    private static void setTextUnlessEditing(EditText editText, String text) {
+        if (!editText.hasFocus()) {
+            editText.setText(text);
         }
     }
 
     private void save() {
         try {
-            Note note = new Note();
+            final Note note = new Note();
             note.id = mRowId;
             note.beer = mBeer.getText().toString();
             note.rating = String.valueOf(mRatingBar.getRating());
@@ -382,70 +420,22 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
             note.share = "Y";
             note.picture = mRowId + Utils.PICTURES_EXTENSION;
             //note.share = mShare.isChecked() ? "Y" : "N";
-            if (mIsNew) {
-                mDbHelper.createNote(note);
-                mIsNew = false;
-            } else {
-                mDbHelper.updateNote(note);
-            }
-
-            // Do the real work in an async task, because we need to use the network anyway
-            new android.os.AsyncTask<Object, Void, Void>() {
+            // Queued with the write, and sent even if the activity is gone by then
+            final boolean isNew = mIsNew;
+            final Outbox outbox = NotesDatabase.getInstance(getActivity()).getOutbox();
+            final OutboxSync sync = OutboxSync.getInstance(getActivity());
+            mNotesRepository.execute(new NotesRepository.Task<Boolean>() {
                 @Override
-                protected Void doInBackground(Object... params) {
-                    NotesDbAdapter dbHelper = null;
-                    long rowId = (Long) params[0];
-                    try {
-                        HttpTransport httpTransport = new NetHttpTransport();
-                        HttpRequestFactory requestFactory = httpTransport.createRequestFactory(new MyInitializer());
-
-                        JSONObject jsonObject = new JSONObject();
-
-                        dbHelper = new NotesDbAdapter(getActivity());
-                        dbHelper.open();
-                        Note note = dbHelper.fetchNote(rowId);
-                        jsonObject.put("rowId", note.id);
-                        jsonObject.put("beer", note.beer);
-                        jsonObject.put("rating", note.rating);
-                        jsonObject.put("textExtract", note.textExtract);
-                        jsonObject.put("notes", note.notes);
-                        jsonObject.put("uri", note.uri);
-                        jsonObject.put("timeCreatedMs", note.created);
-                        jsonObject.put("timeCreatedTimeZoneOffsetMs", TimeZone.getDefault()
-                                .getRawOffset());
-                        jsonObject.put("timeUpdatedMs", note.updated);
-                        jsonObject.put("timeUpdatedTimeZoneOffsetMs", TimeZone.getDefault()
-                                .getRawOffset());
-
-
-                        HttpResponse httpPostResponse = null;
-
-                        try {
-                            httpPostResponse = requestFactory.buildPutRequest(
-                                    new GenericUrl(Configuration.CONTENTS_URL),
-                                    new ByteArrayContent("application/json", jsonObject.toString().getBytes())).execute();
-
-                            Log.i(sTag, "HTTP STATUS:: " + httpPostResponse.getStatusCode());
-
-
-                        } finally {
-                            httpPostResponse.disconnect();
-                        }
-
-                    } catch (Throwable e) {
-                        Log.e(sTag, "error: "
-                                + ((e.getMessage() != null) ? e.getMessage().replace(" ",
-                                "_") : ""), e);
-                    } finally {
-                        if (dbHelper != null)
-                            dbHelper.close();
-
+                public Boolean run(NotesDbAdapter adapter) {
+                    final boolean written = isNew ? adapter.createNote(note, outbox, null) != -1
+                            : adapter.updateNote(note, outbox);
+                    if (written) {
+                        sync.requestSync();
                     }
-                    return null;
+                    return written;
                 }
-
-            }.execute(mRowId);
-
+            }, null);
+            mIsNew = false;
         } catch (Throwable e) {
             Log.e(sTag, "error: "
                     + ((e.getMessage() != null) ? e.getMessage().replace(" ",
@@ -454,115 +444,11 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
 
     }
 
-    private static class MyInitializer implements HttpRequestInitializer, HttpUnsuccessfulResponseHandler {
-
-        @Override
-        public boolean handleResponse(
-                HttpRequest request, HttpResponse response, boolean retrySupported) throws IOException {
-            Log.d("MyInitializer", response.getStatusCode() + " " + response.getStatusMessage());
-            if (response.getStatusCode() == 503) {
-                //retry
-                return true;
-            }
-            return false;
-        }
-
-        @Override
-        public void initialize(HttpRequest request) throws IOException {
-            ExponentialBackOff backoff = new ExponentialBackOff.Builder()
-                    .setInitialIntervalMillis(1000)
-                    .setMaxElapsedTimeMillis(900000)
-                    .setMaxIntervalMillis(10000)
-                    .setMultiplier(1.5)
-                    .setRandomizationFactor(0.5)
-                    .build();
-            request.setUnsuccessfulResponseHandler(new HttpBackOffUnsuccessfulResponseHandler(backoff));
-        }
-    }
-
-
     @Override
     public void onImageDeleted(boolean success) {
         //getActivity().getSupportFragmentManager().popBackStack();
         mProgressBar.setVisibility(View.GONE);
-        // Do the real work in an async task, because we need to use the network anyway
-        new android.os.AsyncTask<Object, Void, Void>() {
-            @Override
-            protected Void doInBackground(Object... params) {
-                long rowId = (Long) params[0];
-                try {
-                    HttpTransport httpTransport = new NetHttpTransport();
-                    HttpRequestFactory requestFactory = httpTransport.createRequestFactory(new MyInitializer());
-                    GenericUrl genericUrl = new GenericUrl(Configuration.CONTENTS_URL + "/" + rowId + "/" + System.currentTimeMillis() + "/" + TimeZone.getDefault()
-                            .getRawOffset());
-
-                    HttpResponse httpPostResponse = null;
-
-                    try {
-                        httpPostResponse = requestFactory.buildDeleteRequest(
-                                genericUrl).execute();
-
-                        Log.i(sTag, "HTTP STATUS:: " + httpPostResponse.getStatusCode());
-
-
-                    } finally {
-                        httpPostResponse.disconnect();
-                    }
-
-                } catch (Throwable e) {
-                    Log.e(sTag, "error: "
-                            + ((e.getMessage() != null) ? e.getMessage().replace(" ",
-                            "_") : ""), e);
-                }
-                return null;
-            }
-
-        }.execute(mRowId);
-
+        // The note's deletion is already queued for the server
         getActivity().finish();
     }
-
-
-    /**
-     * @author anshu
-     */
-    private class DeleteImageAsyncTask extends AsyncTask<String, Void, Void> {
-
-        @Override
-        protected Void doInBackground(String... strings) {
-            String mImageUrl = strings[0];
-            String mImageThumbnailUrl = strings[1];
-
-            try {
-                //delete files under Pictures
-                File imageFile = new File(mImageUrl);
-                File thumbnailFile = new File(mImageUrl);
-                //delete thumbnail first for better ux
-                if (thumbnailFile.delete() && imageFile.delete()) {
-                    List<Object> data = new ArrayList<Object>();
-                    //delete thumbnail first
-                    data.add(mImageThumbnailUrl);
-                    data.add(mImageUrl);
-                    //delete files in the cache
-                    mImageFetcher.deleteImages(data, ImageDetailFragment.this);
-                } else {
-                    Log.e(ImageDetailFragment.class.getName(), "Unable to delete files");
-                    Toast.makeText(getActivity(), "Unable to delete",
-                            Toast.LENGTH_SHORT).show();
-                }
-
-            } catch (Exception e) {
-                Log.e(ImageDetailFragment.class.getName(), e.getMessage());
-            }
-
-
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void result) {
-        }
-    }
-
-
 }
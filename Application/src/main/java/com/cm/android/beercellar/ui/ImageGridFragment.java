@@ -32,6 +32,7 @@ import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Vibrator;
 import android.provider.MediaStore;
+import android.text.Html;
 import android.support.v4.app.Fragment;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
@@ -48,17 +49,28 @@ import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.RatingBar;
+import android.widget.SearchView;
 import android.widget.Toast;
 
 import android.util.Log;
 
 import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotePageCache;
+import com.cm.android.beercellar.db.NoteSearchResult;
+import com.cm.android.beercellar.db.NoteSearcher;
+import com.cm.android.beercellar.db.NoteSummary;
+import com.cm.android.beercellar.db.NotesDatabase;
 import com.cm.android.beercellar.db.NotesDbAdapter;
+import com.cm.android.beercellar.db.NotesRepository;
 import com.cm.android.beercellar.provider.AuthProvider;
+import com.cm.android.beercellar.provider.DeltaSync;
+import com.cm.android.beercellar.provider.ImageIndex;
 import com.cm.android.beercellar.provider.Images;
-import com.cm.android.beercellar.util.Configuration;
+import com.cm.android.beercellar.provider.OcrQueue;
+import com.cm.android.beercellar.provider.OutboxSync;
 import com.cm.android.beercellar.util.ImageCache;
 import com.cm.android.beercellar.util.ImageFetcher;
+import com.cm.android.beercellar.util.ImagePyramid;
 import com.cm.android.beercellar.util.ImageWorker;
 import com.cm.android.beercellar.util.Utils;
 import com.cm.beer.activity.lite.AnalyticsTrackers;
@@ -66,48 +78,18 @@ import com.google.android.gms.ads.AdRequest;
 import com.google.android.gms.ads.AdView;
 import com.google.android.gms.analytics.HitBuilders;
 import com.google.android.gms.analytics.Tracker;
-import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.ByteArrayContent;
-import com.google.api.client.http.FileContent;
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
-import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpMediaType;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestFactory;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
-import com.google.api.client.http.MultipartContent;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
-import com.google.api.client.util.ExponentialBackOff;
-
-import com.google.api.client.util.Maps;
-import com.google.api.services.vision.v1.Vision;
-import com.google.api.services.vision.v1.VisionRequestInitializer;
-import com.google.api.services.vision.v1.model.AnnotateImageRequest;
-import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
-import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
-import com.google.api.services.vision.v1.model.EntityAnnotation;
-import com.google.api.services.vision.v1.model.Feature;
-import com.google.api.services.vision.v1.model.Image;
+
 import com.cm.beer.activity.lite.BuildConfig;
 import com.cm.beer.activity.lite.R;
 
-import org.json.JSONObject;
-
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.TimeZone;
+import java.util.Set;
 
 import me.philio.pinentry.PinEntryView;
 
@@ -127,16 +109,47 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     private int mImageThumbSpacing;
     private ImageAdapter mAdapter;
     private ImageFetcher mImageFetcher;
+    private int mLastFirstVisibleItem = -1;
+    private ImageIndex mImageIndex;
+    private NoteSearcher mNoteSearcher;
+    private final ImageIndex.OnImageIndexChangedListener mIndexListener =
+            new ImageIndex.OnImageIndexChangedListener() {
+                @Override
+                public void onImageInserted(ImageIndex.Snapshot snapshot, int position) {
+                    mAdapter.setSnapshot(snapshot);
+                }
+
+                @Override
+                public void onImageRemoved(ImageIndex.Snapshot snapshot, int position) {
+                    mAdapter.setSnapshot(snapshot);
+                }
+
+                @Override
+                public void onImagesReloaded(ImageIndex.Snapshot snapshot) {
+                    mAdapter.setSnapshot(snapshot);
+                }
+            };
     //private Uri mImageUri;
     private PinEntryView mPinEntryView;
 
     private Tracker mTracker;
     private AdView mAdView;
 
-    private static String CLOUD_VISION_API_KEY;
-    private static String APPLICATION_NAME;
     private Vibrator mVibrator;
     private GridView mGridView;
+    private NotesRepository mNotesRepository;
+    // Redraws the ratings of only the photos on screen whose notes were written
+    private final NotesDatabase.OnNotesChangedListener mNotesChangedListener =
+            new NotesDatabase.OnNotesChangedListener() {
+                @Override
+                public void onNotesChanged(long[] rowIds) {
+                    final Set<Long> changed = new HashSet<Long>(rowIds.length);
+                    for (long rowId : rowIds) {
+                        changed.add(rowId);
+                    }
+                    mAdapter.rebindNotes(changed);
+                }
+            };
     private Bundle mExtras;
 
     private ConnectivityManager mConnectivityManager;
@@ -157,6 +170,27 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         mImageThumbSpacing = getResources().getDimensionPixelSize(R.dimen.image_thumbnail_spacing);
 
         mAdapter = new ImageAdapter(getActivity());
+        mImageIndex = ImageIndex.getInstance(getActivity());
+        mAdapter.setSnapshot(mImageIndex.getSnapshot());
+        mImageIndex.addOnImageIndexChangedListener(mIndexListener);
+        mNotesRepository = NotesRepository.getInstance(getActivity());
+        mNotesRepository.addOnNotesChangedListener(mNotesChangedListener);
+        // Sends what an earlier run could not
+        OutboxSync.getInstance(getActivity()).requestSync();
+        // Takes what changed on the server since, from another device or before a reinstall
+        DeltaSync.getInstance(getActivity()).requestSync();
+        // Reads the labels an earlier run did not get to
+        OcrQueue.getInstance(getActivity()).resumePending();
+        mNoteSearcher = new NoteSearcher(NotesDatabase.getInstance(getActivity()),
+                new NoteSearcher.OnSearchResultsListener() {
+                    @Override
+                    public void onSearchResults(String query, List<NoteSearchResult> results) {
+                        mAdapter.setSearchResults(results);
+                    }
+                });
+
+        // Finish thumbnails of photos taken just before the process was last killed
+        ImagePyramid.getInstance(getActivity()).resumePending();
 
         ImageCache.ImageCacheParams cacheParams =
                 new ImageCache.ImageCacheParams(getActivity(), IMAGE_CACHE_DIR);
@@ -165,6 +199,8 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
 
         // The ImageFetcher takes care of loading images into our ImageView children asynchronously
         mImageFetcher = new ImageFetcher(getActivity(), mImageThumbSize);
+        // Thumbnails are opaque, so use half the memory per pixel
+        mImageFetcher.setBitmapConfig(Bitmap.Config.RGB_565);
         mImageFetcher.setLoadingImage(R.drawable.empty_photo);
         mImageFetcher.addImageCache(getActivity().getSupportFragmentManager(), cacheParams);
 
@@ -217,9 +253,9 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                         note.share = "Y";
                         note.picture = rowId + Utils.PICTURES_EXTENSION;
 
-                        dbHelper = new NotesDbAdapter(getActivity());
-                        dbHelper.open();
+                        dbHelper = NotesDatabase.getInstance(getActivity()).getNotesDbAdapter();
                         dbHelper.createNote(note);
+                        mImageIndex.add(note.picture);
 
                         //finally
                         getActivity().getSharedPreferences(Utils.SHARED_PREF_NAME, Context.MODE_PRIVATE).edit().putString("SEED_DATA_SET", "Y").commit();
@@ -233,8 +269,6 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                             out2.flush();
                             out2.close();
                             bm2.recycle();
-                            if (dbHelper != null)
-                                dbHelper.close();
                         } catch (Exception e) {//do nothing}
                         }
                     }
@@ -242,10 +276,6 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                 return null;
             }
 
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                mAdapter.notifyDataSetChanged();
-            }
         }.execute();
 
 
@@ -276,6 +306,20 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             @Override
             public void onScroll(AbsListView absListView, int firstVisibleItem,
                                  int visibleItemCount, int totalItemCount) {
+                // Called for every frame while scrolling, only look ahead when a new item
+                // comes into view
+                final int numColumns = mAdapter.getNumColumns();
+                if (numColumns == 0 || firstVisibleItem == mLastFirstVisibleItem
+                        || getActivity() == null) {
+                    return;
+                }
+                mLastFirstVisibleItem = firstVisibleItem;
+
+                // The first row of the adapter is the action bar spacer
+                final int first = Math.max(0, firstVisibleItem - numColumns);
+                final int end = Math.max(0, firstVisibleItem + visibleItemCount - numColumns);
+                mImageFetcher.onScroll(mAdapter.getThumbnailUrls(), first,
+                        end - first, numColumns);
             }
         });
 
@@ -329,10 +373,6 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         //Admob
         mAdView = (AdView) v.findViewById(R.id.adView);
 
-        //constants
-        CLOUD_VISION_API_KEY = getActivity().getResources().getString(R.string.cloud_vision_api_key);
-        APPLICATION_NAME = getActivity().getResources().getString(R.string.app_name);
-
 
         return v;
     }
@@ -405,376 +445,59 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             case REQUEST_TAKE_PHOTO:
                 if (resultCode == Activity.RESULT_OK) {
                     String imageFileName = getActivity().getSharedPreferences(Utils.SHARED_PREF_NAME, Context.MODE_PRIVATE).getString("IMAGE_NAME", null);
-                    String imageAbsolutePath = Utils.getExternalImageStorageDir(getActivity()).getAbsolutePath() + File.separator + imageFileName;
-                    String thumbnailAbsolutePath = Utils.getExternalThumbnailStorageDir(getActivity()).getAbsolutePath() + File.separator + imageFileName;
-                    Bitmap thumbnailBitmap = Utils.createThumbnail(getActivity(), imageAbsolutePath, thumbnailAbsolutePath, Utils.THUMBNAIL_SIZE, Utils.THUMBNAIL_SIZE);
-                    mAdapter.notifyDataSetChanged();
-
-                    //Call Google Vision API
-                    uploadImage(thumbnailAbsolutePath, thumbnailBitmap);
+                    final String imageAbsolutePath = Utils.getExternalImageStorageDir(getActivity()).getAbsolutePath() + File.separator + imageFileName;
+                    final String thumbnailAbsolutePath = Utils.getExternalThumbnailStorageDir(getActivity()).getAbsolutePath() + File.separator + imageFileName;
+                    // Shows up in the grid right away, loaded from the original until the
+                    // thumbnail is ready
+                    mImageIndex.add(imageFileName);
+                    // The thumbnail and preview are generated in the background, and picked
+                    // up again if the process dies before they are done
+                    ImagePyramid.getInstance(getActivity()).generate(imageFileName, null);
+                    // Saved right away rather than once the thumbnail is ready, as this
+                    // fragment may be gone by then
+                    saveCapture(getActivity().getApplicationContext(), thumbnailAbsolutePath,
+                            imageAbsolutePath);
                 }
         }
     }
 
-    public void uploadImage(String imageAbsolutePath, Bitmap bitmap) {
-        try {
-
-            callCloudVision(imageAbsolutePath, bitmap);
-
-
-        } catch (Throwable e) {
-            Log.d(TAG, "Image picking failed because " + e.getMessage());
-            Toast.makeText(getActivity(), "Image picking failed because " + e.getMessage(), Toast.LENGTH_LONG).show();
-        }
-    }
-
-    private void callCloudVision(final String imageAbsolutePath, final Bitmap bitmap) throws IOException {
-        // Switch text to loading
-        // mImageDetails.setText(R.string.loading_message);
-
-        // Do the real work in an async task, because we need to use the network anyway
-        new AsyncTask<Object, Void, String>() {
+    /**
+     * Creates the note of a captured photo and queues the upload of its thumbnail, which
+     * {@link OutboxSync} holds back until {@link ImagePyramid} has written it, then queues the
+     * photo to have its label read into the note, see {@link OcrQueue}. Uses only the
+     * application context, so it completes whatever becomes of this fragment.
+     */
+    private static void saveCapture(Context context, final String thumbnailAbsolutePath,
+                                    final String imageAbsolutePath) {
+        final NotesDatabase database = NotesDatabase.getInstance(context);
+        final OutboxSync sync = OutboxSync.getInstance(context);
+        final OcrQueue ocrQueue = OcrQueue.getInstance(context);
+        // Saving and uploading use the database and the network, so not on the main thread
+        new AsyncTask<Object, Void, Void>() {
             @Override
-            protected String doInBackground(Object... params) {
-                try {
-                    HttpTransport httpTransport = new NetHttpTransport();
-                    JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
-
-                    Vision.Builder builder = new Vision.Builder(httpTransport, jsonFactory, null);
-                    builder.setVisionRequestInitializer(new
-                            VisionRequestInitializer(CLOUD_VISION_API_KEY));
-                    Vision vision = builder.build();
-                    builder.setApplicationName(APPLICATION_NAME);
-
-                    BatchAnnotateImagesRequest batchAnnotateImagesRequest =
-                            new BatchAnnotateImagesRequest();
-                    batchAnnotateImagesRequest.setRequests(new ArrayList<AnnotateImageRequest>() {{
-                        AnnotateImageRequest annotateImageRequest = new AnnotateImageRequest();
-
-                        // Add the image
-                        Image base64EncodedImage = new Image();
-                        // Convert the bitmap to a JPEG
-                        // Just in case it's a format that Android understands but Cloud Vision
-                        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                        bitmap.compress(Bitmap.CompressFormat.JPEG, 50, byteArrayOutputStream);
-                        byte[] imageBytes = byteArrayOutputStream.toByteArray();
-
-                        // Base64 encode the JPEG
-                        base64EncodedImage.encodeContent(imageBytes);
-                        annotateImageRequest.setImage(base64EncodedImage);
-
-                        // add the features we want
-                        annotateImageRequest.setFeatures(new ArrayList<Feature>() {{
-                            Feature detection = new Feature();
-                            detection.setType("TEXT_DETECTION");
-                            detection.setMaxResults(1);
-                            add(detection);
-                        }});
-
-                        // Add the list of one thing to the request
-                        add(annotateImageRequest);
-                    }});
-
-                    Vision.Images.Annotate annotateRequest =
-                            vision.images().annotate(batchAnnotateImagesRequest);
-                    // Due to a bug: requests to Vision API containing large images fail when GZipped.
-                    annotateRequest.setDisableGZipContent(true);
-                    Log.d(TAG, "created Cloud Vision request object, sending request");
-
-                    BatchAnnotateImagesResponse response = annotateRequest.execute();
-                    return convertResponseToString(response);
-
-                } catch (GoogleJsonResponseException e) {
-                    Log.d(TAG, "failed to make API request because " + e.getContent());
-                } catch (Throwable e) {
-                    Log.d(TAG, "failed to make API request because of " +
-                            e.getMessage());
-                }
-                return "Cloud Vision API request failed. Check logs for details.";
-            }
-
-            /**
-             * @param response
-             * @return
-             */
-            private String convertResponseToString(BatchAnnotateImagesResponse response) {
-                String message = "";
-
-                List<EntityAnnotation> labels = response.getResponses().get(0).getTextAnnotations();
-                if (labels != null) {
-                    for (EntityAnnotation label : labels) {
-                        message += String.format("%s", label.getDescription());
-                    }
-                }
-
-                return message;
-            }
-
-            protected void onPostExecute(String result) {
-                //mImageDetails.setText(result);
-                Log.i(TAG, "RESULT " +
-                        result);
-                NotesDbAdapter dbHelper = null;
+            protected Void doInBackground(Object... params) {
                 try {
-                    dbHelper = new NotesDbAdapter(getActivity());
-                    dbHelper.open();
                     Note newNote = new Note();
-                    newNote.id = Utils.extractRowIdFromFileName(imageAbsolutePath);
-                    newNote.textExtract = result;
-                    dbHelper.createNote(newNote);
-
-                    //TODO: upload to cloud
-
-                    try {
-                        HttpTransport httpTransport = new NetHttpTransport();
-                        HttpRequestFactory requestFactory = httpTransport.createRequestFactory(new MyInitializer());
-                        GenericUrl genericUrl = new GenericUrl(Configuration.DROPBOX_URL);
-
-                        //Get the upload URL from server
-                        HttpRequest httpGetRequest = requestFactory.buildGetRequest(genericUrl);
-                        HttpResponse httpGetResponse = httpGetRequest.execute();
-                        Log.i(TAG, "HTTP STATUS:: " + httpGetResponse.getStatusCode());
-
-                        if (httpGetResponse.getStatusCode() == 200) {
-                            //MyUrl myUrl = null;
-                            JSONObject getJson = null;
-
-                            try {
-                                // process the HTTP response object
-                                String response = httpGetResponse.parseAsString();
-                                Log.i(TAG, "URL:: " + response);
-                                getJson = new JSONObject(response);
-                            } finally {
-                                httpGetResponse.disconnect();
-                            }
-
-                            //upload the image
-                            {
-                                Map<String, String> parameters = Maps.newHashMap();
-                                parameters.put("rowId", String.valueOf(newNote.id));
-
-                                // Add parameters
-                                MultipartContent content = new MultipartContent().setMediaType(
-                                        new HttpMediaType("multipart/form-data")
-                                                .setParameter("boundary", "__END_OF_PART__"));
-
-                                for (String name : parameters.keySet()) {
-                                    MultipartContent.Part part = new MultipartContent.Part(
-                                            new ByteArrayContent(null, parameters.get(name).getBytes()));
-                                    part.setHeaders(new HttpHeaders().set(
-                                            "Content-Disposition", String.format("form-data; name=\"%s\"", name)));
-                                    content.addPart(part);
-                                }
-
-                                // Add file
-                                FileContent fileContent = new FileContent(
-                                        "image/jpeg", new File(imageAbsolutePath));
-                                MultipartContent.Part part = new MultipartContent.Part(fileContent);
-                                part.setHeaders(new HttpHeaders().set(
-                                        "Content-Disposition",
-                                        String.format("form-data; name=\"file\"; filename=\"%s\"", imageAbsolutePath)));
-                                content.addPart(part);
-
-                                HttpResponse httpPostResponse = null;
-
-                                try {
-                                    httpPostResponse = requestFactory.buildPostRequest(
-                                            new GenericUrl(getJson.getString("url")), content).execute();
-
-                                    Log.i(TAG, "HTTP STATUS:: " + httpPostResponse.getStatusCode());
-                                    // process the HTTP response object
-                                    String response = httpPostResponse.parseAsString();
-                                    Log.i(TAG, "URI:: " + response);
-                                    JSONObject postJson = new JSONObject(response);
-
-                                    //update the uri in the database
-                                    Note updatedNote = new Note();
-                                    updatedNote.id = newNote.id;
-                                    updatedNote.uri = postJson.getString("uri");
-                                    dbHelper.updateNote(updatedNote);
-
-
-                                } finally {
-                                    httpPostResponse.disconnect();
-                                }
-                            }
-                            //upload the Note Json to the server. It now has the URI to the image,and textextract
-                            {
-                                JSONObject jsonObject = new JSONObject();
-
-                                Note note = dbHelper.fetchNote(newNote.id);
-                                jsonObject.put("rowId", note.id);
-                                jsonObject.put("beer", note.beer);
-                                jsonObject.put("rating", note.rating);
-                                jsonObject.put("textExtract", note.textExtract);
-                                jsonObject.put("notes", note.notes);
-                                jsonObject.put("uri", note.uri);
-                                jsonObject.put("timeCreatedMs", note.created);
-                                jsonObject.put("timeCreatedTimeZoneOffsetMs", TimeZone.getDefault()
-                                        .getRawOffset());
-                                jsonObject.put("timeUpdatedMs", note.updated);
-                                jsonObject.put("timeUpdatedTimeZoneOffsetMs", TimeZone.getDefault()
-                                        .getRawOffset());
-
-
-                                HttpResponse httpPostResponse = null;
-
-                                try {
-                                    httpPostResponse = requestFactory.buildPostRequest(
-                                            new GenericUrl(Configuration.CONTENTS_URL),
-                                            new ByteArrayContent("application/json", jsonObject.toString().getBytes())).execute();
-
-                                    Log.i(TAG, "HTTP STATUS:: " + httpPostResponse.getStatusCode());
-
-
-                                } finally {
-                                    httpPostResponse.disconnect();
-                                }
-                            }
-
-                        }
-
-
-                    } catch (Throwable e) {
-                        Log.e(TAG, e.getMessage(), e);
-                    }
-
-
-//                    long BACKOFF = Configuration.HTTP_BACKOFF_MS
-//                            + new Random().nextInt(Configuration.HTTP_BACKOFF_MS);
-//                    int MAX_ATTEMPTS = Configuration.HTTP_MAX_ATTEMPTS;
-//                    int CONNECTION_TIMEOUT = Configuration.HTTP_CONNECTION_TIMEOUT;
-//                    int SOCKET_TIMEOUT = Configuration.HTTP_SOCKET_TIMEOUT;
-//                    int[] validResponseCodes = {200};
-//
-//                    for (int j = 1; j <= MAX_ATTEMPTS; j++) {
-//                        Log.d(TAG, "Attempt #" + j + " to upload content");
-//                        try {
-//                            Log.d(TAG, "Entering");
-//                            // wait for network connectivity; will download the content list
-//                            // over cellular network
-//                            int lStatusCode = Utils.retryIfNetworkDisconnected(mConnectivityManager);
-//                            if (lStatusCode == StatusCode.NETWORK_DISCONNECTED)
-//                                break;
-//
-//                            HashMap<String, String> params = new HashMap<String, String>();
-//                            params.put("id", String.valueOf(note.id));
-//
-//                            String responseJson = HttpUtils.doHttpGet(Configuration.DROPBOX_URL, CONNECTION_TIMEOUT, SOCKET_TIMEOUT, validResponseCodes);
-//
-//                            JSONObject jsonObject = new JSONObject(responseJson);
-//                            String url = jsonObject.getString("url");
-//                            Log.d(TAG, "URL: " + url);
-//                            String uri = HttpUtils.doMultiPartHttpPost(url,
-//                                    imageAbsolutePath,
-//                                    CONNECTION_TIMEOUT,
-//                                    SOCKET_TIMEOUT, validResponseCodes);
-//                            Log.d(TAG, "URI: " + uri);
-//                            JSONObject jsonObject1 = new JSONObject();
-//                            jsonObject1.put("id", note.id);
-//                            jsonObject1.put("uri", uri);
-
-//                            HttpUtils.doHttpPost(Configuration.CONTENTS_URL, jsonObject1, "application/json", CONNECTION_TIMEOUT, SOCKET_TIMEOUT, validResponseCodes);
-
-                    // success
-//                            j = MAX_ATTEMPTS;
-//                        } catch (ClientProtocolException e) {
-//                            Log.e(TAG, e.getMessage(), e);
-//                        } catch (IOException e) {
-//                            Log.e(TAG, "IOException on attempt " + j, e);
-//                            if (j == MAX_ATTEMPTS) {
-//                                break;
-//                            }
-//                            try {
-//                                Log.d(TAG, "Sleeping for " + BACKOFF
-//                                        + " ms before retry");
-//                                Thread.sleep(BACKOFF);
-//                            } catch (InterruptedException e1) {
-//                                // Activity finished
-//                                // before we
-//                                // complete - exit.
-//                                Log.d(TAG, "Thread interrupted: abort remaining retries!");
-//                                Thread.currentThread().interrupt();
-//                            }
-//                            // increase backoff
-//                            // exponentially
-//                            BACKOFF *= 2;
-//
-//                        } catch (StatusCodeException e) {
-//                            Log.e(TAG, e.getMessage(), e);
-//                            if (e.getStatusCode() == 503) {
-//                                Log.e(TAG, "Failed to upload on attempt " + j, e);
-//                                if (j == MAX_ATTEMPTS) {
-//                                    break;
-//                                }
-//                                try {
-//                                    Log.d(TAG, "Sleeping for " + BACKOFF
-//                                            + " ms before retry");
-//                                    Thread.sleep(BACKOFF);
-//                                } catch (InterruptedException e1) {
-//                                    // Activity finished before we complete - exit.
-//                                    Log.d(TAG, "Thread interrupted: abort remaining retries!");
-//                                    Thread.currentThread().interrupt();
-//                                }
-//                                // increase backoff exponentially
-//                                BACKOFF *= 2;
-//                            } else {
-//                                break;
-//                            }
-//                        } finally {
-//                            Log.d(TAG, "Exiting");
-//
-//                        }
-//                    }
-
-
+                    newNote.id = Utils.extractRowIdFromFileName(thumbnailAbsolutePath);
+                    database.getNotesDbAdapter().createNote(newNote, database.getOutbox(),
+                            thumbnailAbsolutePath);
+                    sync.requestSync();
+                    ocrQueue.add(imageAbsolutePath);
                 } catch (Throwable e) {
                     android.util.Log.e(TAG, "error: "
                             + ((e.getMessage() != null) ? e.getMessage().replace(" ",
                             "_") : ""), e);
-                } finally {
-                    if (dbHelper != null)
-                        dbHelper.close();
                 }
-
-
+                return null;
             }
-
-
         }.execute();
     }
 
-    private static class MyInitializer implements HttpRequestInitializer, HttpUnsuccessfulResponseHandler {
-
-        @Override
-        public boolean handleResponse(
-                HttpRequest request, HttpResponse response, boolean retrySupported) throws IOException {
-            Log.d(TAG, response.getStatusCode() + " " + response.getStatusMessage());
-            if (response.getStatusCode() == 503) {
-                //retry
-                return true;
-            }
-            return false;
-        }
-
-        @Override
-        public void initialize(HttpRequest request) throws IOException {
-            ExponentialBackOff backoff = new ExponentialBackOff.Builder()
-                    .setInitialIntervalMillis(1000)
-                    .setMaxElapsedTimeMillis(900000)
-                    .setMaxIntervalMillis(10000)
-                    .setMultiplier(1.5)
-                    .setRandomizationFactor(0.5)
-                    .build();
-            request.setUnsuccessfulResponseHandler(new HttpBackOffUnsuccessfulResponseHandler(backoff));
-        }
-    }
-
     @Override
     public void onResume() {
         super.onResume();
         mImageFetcher.setExitTasksEarly(false);
-        mAdapter.notifyDataSetChanged();
+        mAdapter.setSnapshot(mImageIndex.getSnapshot());
     }
 
     @Override
@@ -788,6 +511,9 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mImageIndex.removeOnImageIndexChangedListener(mIndexListener);
+        mNotesRepository.removeOnNotesChangedListener(mNotesChangedListener);
+        mNoteSearcher.close();
         mImageFetcher.closeCache();
     }
 
@@ -811,6 +537,39 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.main_menu, menu);
+
+        final MenuItem searchItem = menu.findItem(R.id.search_menu);
+        final SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return onQueryTextChange(query);
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                if (NotesDbAdapter.toMatchQuery(newText) == null) {
+                    mNoteSearcher.cancel();
+                    mAdapter.setSearchResults(null);
+                } else {
+                    mNoteSearcher.search(newText);
+                }
+                return true;
+            }
+        });
+        searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                mNoteSearcher.cancel();
+                mAdapter.setSearchResults(null);
+                return true;
+            }
+        });
     }
 
     @Override
@@ -860,6 +619,14 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         private int mNumColumns = 0;
         private int mActionBarHeight = 0;
         private GridView.LayoutParams mImageViewLayoutParams;
+        // What the grid shows, positions stay valid until the next setSnapshot()
+        private ImageIndex.Snapshot mSnapshot;
+        private final NotePageCache mNotePages =
+                new NotePageCache(NotesDatabase.getInstance(getActivity()));
+        private final Set<Integer> mLoadingNotePages = new HashSet<Integer>();
+        // While searching, the notes found and their thumbnails, otherwise null
+        private List<NoteSearchResult> mSearchResults;
+        private List<String> mSearchThumbnailUrls;
 
         public ImageAdapter(Context context) {
             super();
@@ -885,7 +652,8 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             // Size + number of columns for top empty row
             //return Images.imageThumbUrls.length + mNumColumns;
             //return Images.getThumbnailUrls(getActivity()).size() + mNumColumns;
-            return Images.getThumbnailUrls(getActivity()).size() + mNumColumns;
+            return (mSearchResults != null ? mSearchResults.size() : mSnapshot.size())
+                    + mNumColumns;
         }
 
         @Override
@@ -895,12 +663,20 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
 //            return position < mNumColumns ?
 //                    null : Images.getThumbnailUrls(getActivity()).get(position - mNumColumns);
             return position < mNumColumns ?
-                    null : Images.getThumbnailUrls(getActivity()).get(position - mNumColumns);
+                    null : getThumbnailUrl(position - mNumColumns);
         }
 
         @Override
         public long getItemId(int position) {
-            return position < mNumColumns ? 0 : position - mNumColumns;
+            if (position < mNumColumns) {
+                return 0;
+            }
+            if (mSearchResults != null) {
+                // The detail pager pages through every photo, so open it at this one
+                return Math.max(0, mSnapshot.indexOf(
+                        mSearchResults.get(position - mNumColumns).picture));
+            }
+            return position - mNumColumns;
         }
 
         @Override
@@ -964,7 +740,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             // Finally load the image asynchronously into the ImageView, this also takes care of
             // setting a placeholder image while the background thread runs
             //mImageFetcher.loadImage(Images.imageThumbUrls[position - mNumColumns], imageView);
-            mImageFetcher.loadImage(Images.getThumbnailUrls(getActivity()).get(position - mNumColumns), imageView, new ImageWorker.OnImageLoadedListener() {
+            mImageFetcher.loadImage(getThumbnailUrl(position - mNumColumns), imageView, new ImageWorker.OnImageLoadedListener() {
                 @Override
                 public void onImageLoaded(boolean success) {
                     if (ratingBar != null)
@@ -972,6 +748,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                 }
             });
             //mImageFetcher.loadImage(Images.getThumbnailUrls(getActivity()).get(position - mNumColumns), imageView);
+            bindNote(position - mNumColumns, imageView, ratingBar);
 
  /*           new AsyncTask<Object, Void, Void>() {
                 @Override
@@ -1029,6 +806,151 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             mNumColumns = numColumns;
         }
 
+        /**
+         * Shows the beer and rating of the photo at {@code index} from the notes cached by
+         * rowId. If its note is not loaded yet, the notes of the page of photos it falls in are
+         * loaded in the background and the grid redrawn, rather than querying for this photo
+         * alone.
+         */
+        private void bindNote(int index, ImageView imageView, RatingBar ratingBar) {
+            if (mSearchResults != null) {
+                bindNote(mSearchResults.get(index), imageView, ratingBar);
+                return;
+            }
+            final Long rowId = Utils.extractRowIdFromFileName(mSnapshot.getName(index));
+            if (rowId == null) {
+                bindNote((NoteSummary) null, imageView, ratingBar);
+                return;
+            }
+            if (!mNotePages.isNoteCached(rowId)) {
+                loadNotes(index / NotePageCache.PAGE_SIZE);
+            }
+            bindNote(mNotePages.peekNote(rowId), imageView, ratingBar);
+        }
+
+        private void bindNote(NoteSummary note, ImageView imageView, RatingBar ratingBar) {
+            if (note == null) {
+                imageView.setContentDescription(null);
+                if (ratingBar != null) {
+                    ratingBar.setRating(0);
+                }
+                return;
+            }
+            imageView.setContentDescription(note instanceof NoteSearchResult
+                    ? Html.fromHtml(((NoteSearchResult) note).snippet) : note.beer);
+            if (ratingBar != null) {
+                ratingBar.setRating(note.rating == null ? 0 : Float.valueOf(note.rating));
+            }
+        }
+
+        /**
+         * Loads the notes of the photos {@code page * NotePageCache.PAGE_SIZE} on in the grid.
+         */
+        private void loadNotes(final int page) {
+            if (!mLoadingNotePages.add(page)) {
+                return;
+            }
+            final List<Long> rowIds = new ArrayList<Long>(NotePageCache.PAGE_SIZE);
+            final int end = Math.min(mSnapshot.size(), (page + 1) * NotePageCache.PAGE_SIZE);
+            for (int i = page * NotePageCache.PAGE_SIZE; i < end; i++) {
+                final Long rowId = Utils.extractRowIdFromFileName(mSnapshot.getName(i));
+                if (rowId != null) {
+                    rowIds.add(rowId);
+                }
+            }
+            mNotesRepository.execute(new NotesRepository.Task<Void>() {
+                @Override
+                public Void run(NotesDbAdapter adapter) {
+                    mNotePages.loadNotes(rowIds);
+                    return null;
+                }
+            }, new NotesRepository.OnResultListener<Void>() {
+                @Override
+                public void onResult(Void result) {
+                    mLoadingNotePages.remove(page);
+                    if (getActivity() != null) {
+                        rebindNotes(null);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Binds the notes of the photos on screen again, without reloading their thumbnails.
+         *
+         * @param rowIds the notes to bind, or null for all of them
+         */
+        public void rebindNotes(Set<Long> rowIds) {
+            if (mGridView == null || mSnapshot == null) {
+                return;
+            }
+            final int first = mGridView.getFirstVisiblePosition();
+            for (int i = 0; i < mGridView.getChildCount(); i++) {
+                final int index = first + i - mNumColumns;
+                if (index < 0 || index >= getCount() - mNumColumns) {
+                    continue;
+                }
+                if (rowIds != null) {
+                    final Long rowId = mSearchResults != null ? (Long) mSearchResults.get(index).id
+                            : Utils.extractRowIdFromFileName(mSnapshot.getName(index));
+                    if (rowId == null || !rowIds.contains(rowId)) {
+                        continue;
+                    }
+                }
+                final View child = mGridView.getChildAt(i);
+                bindNote(index, (ImageView) child.findViewById(R.id.grid_image),
+                        (RatingBar) child.findViewById(R.id.grid_image_rating));
+            }
+        }
+
+        /**
+         * Shows {@code snapshot}, redrawing only if it differs from what is shown.
+         */
+        public void setSnapshot(ImageIndex.Snapshot snapshot) {
+            if (snapshot != mSnapshot) {
+                mSnapshot = snapshot;
+                notifyDataSetChanged();
+            }
+        }
+
+        public ImageIndex.Snapshot getSnapshot() {
+            return mSnapshot;
+        }
+
+        /**
+         * Shows only the photos of the notes found, best match first, or every photo again if
+         * {@code results} is null.
+         */
+        public void setSearchResults(List<NoteSearchResult> results) {
+            if (results == null && mSearchResults == null) {
+                return;
+            }
+            mSearchResults = results;
+            mSearchThumbnailUrls = null;
+            if (results != null) {
+                final String thumbnailDir = Utils.getExternalThumbnailStorageDir(mContext)
+                        .getAbsolutePath() + File.separator;
+                mSearchThumbnailUrls = new ArrayList<String>(results.size());
+                for (NoteSearchResult result : results) {
+                    mSearchThumbnailUrls.add(thumbnailDir + result.picture);
+                }
+            }
+            notifyDataSetChanged();
+        }
+
+        /**
+         * @return The thumbnails shown, in grid order
+         */
+        public List<String> getThumbnailUrls() {
+            return mSearchThumbnailUrls != null ? mSearchThumbnailUrls
+                    : mSnapshot.getThumbnailUrls();
+        }
+
+        private String getThumbnailUrl(int index) {
+            return mSearchThumbnailUrls != null ? mSearchThumbnailUrls.get(index)
+                    : mSnapshot.getThumbnailUrl(index);
+        }
+
         public int getNumColumns() {
             return mNumColumns;
         }
@@ -0,0 +1,166 @@
+package com.cm.android.beercellar.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Compact append-only journal format for {@link ConcurrentDiskLruCache}.
+ *
+ * <p>The file starts with a header:
+ * <pre>
+ *     'D' 'L' 'R' 'U'           magic
+ *     VERSION                   one byte
+ *     varint appVersion
+ *     varint valueCount
+ * </pre>
+ * followed by records, each of which is an op code, a fixed {@link #KEY_LENGTH} byte key (the
+ * hex MD5 digest produced by {@link ImageCache#hashKeyForDisk(String)}) and, for CLEAN records
+ * only, one varint length per value. Op codes and lengths are unsigned LEB128 varints.
+ *
+ * <p>Replay maps the file read-only and walks it without any per-line string parsing. A record
+ * cut short by a crash ends the replay; {@link #replay} returns the offset of the last complete
+ * record so the caller can truncate the tail before appending.
+ */
+final class BinaryJournal {
+    static final int KEY_LENGTH = 32;
+    static final int VERSION = 1;
+
+    static final int OP_CLEAN = 1;
+    static final int OP_DIRTY = 2;
+    static final int OP_REMOVE = 3;
+    static final int OP_READ = 4;
+
+    private static final byte[] MAGIC = {'D', 'L', 'R', 'U'};
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Receives the records of a journal in file order. The {@code lengths} array is reused
+     * between calls and only meaningful for {@link #OP_CLEAN}.
+     */
+    interface Listener {
+        void onRecord(int op, String key, long[] lengths) throws IOException;
+    }
+
+    private BinaryJournal() {
+    }
+
+    static boolean isValidKey(String key) {
+        if (key.length() != KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            final char c = key.charAt(i);
+            if (c <= ' ' || c > '~') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void writeHeader(OutputStream out, int appVersion, int valueCount) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, appVersion);
+        writeVarint(out, valueCount);
+    }
+
+    static void writeRecord(OutputStream out, int op, String key, long[] lengths)
+            throws IOException {
+        if (!isValidKey(key)) {
+            throw new IOException("key can't be stored in a binary journal: " + key);
+        }
+        writeVarint(out, op);
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            out.write(key.charAt(i));
+        }
+        if (op == OP_CLEAN) {
+            for (long length : lengths) {
+                writeVarint(out, length);
+            }
+        }
+    }
+
+    /**
+     * Replays {@code file} into {@code listener}.
+     *
+     * @return the length of the journal up to and including the last complete record
+     * @throws IOException if the header doesn't match or a record is malformed
+     */
+    static long replay(File file, int appVersion, int valueCount, Listener listener)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                for (byte b : MAGIC) {
+                    if (buffer.get() != b) {
+                        throw new IOException("unexpected journal magic");
+                    }
+                }
+                final int version = buffer.get();
+                final long fileAppVersion = readVarint(buffer);
+                final long fileValueCount = readVarint(buffer);
+                if (version != VERSION || fileAppVersion != appVersion
+                        || fileValueCount != valueCount) {
+                    throw new IOException("unexpected journal header: [" + version + ", "
+                            + fileAppVersion + ", " + fileValueCount + "]");
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("truncated journal header");
+            }
+
+            final byte[] keyBytes = new byte[KEY_LENGTH];
+            final long[] lengths = new long[valueCount];
+            while (buffer.hasRemaining()) {
+                final int recordStart = buffer.position();
+                final int op;
+                try {
+                    op = (int) readVarint(buffer);
+                    buffer.get(keyBytes);
+                    if (op == OP_CLEAN) {
+                        for (int i = 0; i < valueCount; i++) {
+                            lengths[i] = readVarint(buffer);
+                        }
+                    }
+                } catch (BufferUnderflowException tornRecord) {
+                    return recordStart;
+                }
+                if (op < OP_CLEAN || op > OP_READ) {
+                    throw new IOException("unexpected journal op " + op + " at " + recordStart);
+                }
+                listener.onRecord(op, new String(keyBytes, US_ASCII), lengths);
+            }
+            return buffer.position();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(MappedByteBuffer buffer) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+}
@@ -0,0 +1,281 @@
+package com.cm.android.beercellar.util;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build.VERSION_CODES;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * A bounded pool of strongly referenced, mutable bitmaps that can be handed to
+ * {@link BitmapFactory.Options#inBitmap}. Bitmaps are bucketed so that finding a candidate is a
+ * hash lookup instead of a scan:
+ * <ul>
+ *     <li>From KitKat onward a bitmap can be reused for any decode that fits in its allocation,
+ *         so buckets are keyed by config and a size class. Size classes are a quarter of an
+ *         octave wide, and lookups probe the smallest class that is guaranteed to fit plus
+ *         {@link #MAX_SIZE_CLASS_PROBES} - 1 above it, so little memory is wasted.
+ *     <li>Before KitKat the dimensions must match exactly, so buckets are keyed by config,
+ *         width and height.
+ * </ul>
+ * When the pool goes over its byte budget the least recently added bitmaps are dropped.
+ */
+public final class BitmapPool {
+    private static final int MAX_SIZE_CLASS_PROBES = 3;
+
+    private final long mMaxBytes;
+    private final boolean mExactSize;
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBuckets = new HashMap<Long, ArrayDeque<Bitmap>>();
+    // Insertion order, for evicting the oldest bitmaps first
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<Bitmap>();
+    private long mCurrentBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxBytes The most bytes of bitmap memory to keep pooled
+     */
+    public BitmapPool(long maxBytes) {
+        this(maxBytes, !Utils.hasKitKat());
+    }
+
+    /**
+     * @param maxBytes The most bytes of bitmap memory to keep pooled
+     * @param exactSize True if reuse requires the exact same dimensions (before KitKat)
+     */
+    public BitmapPool(long maxBytes, boolean exactSize) {
+        mMaxBytes = maxBytes;
+        mExactSize = exactSize;
+    }
+
+    /**
+     * Adds a bitmap that is no longer needed. Immutable, recycled and oversized bitmaps are
+     * ignored.
+     *
+     * @return true if the bitmap was pooled
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null || mOrder.contains(bitmap)) {
+            return false;
+        }
+        final int byteCount = getByteCount(bitmap);
+        if (byteCount > mMaxBytes) {
+            return false;
+        }
+
+        final Long key = keyFor(bitmap);
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.push(bitmap);
+        mOrder.add(bitmap);
+        mCurrentBytes += byteCount;
+        mPutCount++;
+
+        trimToSize(mMaxBytes);
+        return true;
+    }
+
+    /**
+     * Removes and returns a bitmap that can be used as {@code inBitmap} for a decode with the
+     * given options, or null if there is none.
+     *
+     * @param options BitmapFactory.Options with out* and inSampleSize populated
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        final Config config =
+                options.inPreferredConfig != null ? options.inPreferredConfig : Config.ARGB_8888;
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        Bitmap bitmap = null;
+
+        if (mExactSize) {
+            if (sampleSize == 1) {
+                bitmap = poll(exactKey(config, options.outWidth, options.outHeight));
+            }
+        } else {
+            final long width = options.outWidth / sampleSize;
+            final long height = options.outHeight / sampleSize;
+            final long required = width * height * getBytesPerPixel(config);
+            if (required > 0 && required <= Integer.MAX_VALUE) {
+                int sizeClass = sizeClass((int) required);
+                if (sizeClassLowerBound(sizeClass) < required) {
+                    sizeClass++;
+                }
+                for (int i = 0; i < MAX_SIZE_CLASS_PROBES && bitmap == null; i++) {
+                    bitmap = poll(sizedKey(config, sizeClass + i));
+                }
+            }
+        }
+
+        if (bitmap != null) {
+            mOrder.remove(bitmap);
+            mCurrentBytes -= getByteCount(bitmap);
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Releases pooled bitmaps in response to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (this) {
+                trimToSize(mMaxBytes / 2);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return The number of bytes of bitmap memory currently pooled
+     */
+    public synchronized long size() {
+        return mCurrentBytes;
+    }
+
+    public long maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int lookups = mHitCount + mMissCount;
+        final int hitPercent = lookups != 0 ? (100 * mHitCount / lookups) : 0;
+        return String.format("BitmapPool[size=%d/%d,puts=%d,hits=%d,misses=%d,evictions=%d,"
+                        + "hitRate=%d%%]", mCurrentBytes, mMaxBytes, mPutCount, mHitCount,
+                mMissCount, mEvictionCount, hitPercent);
+    }
+
+    private void trimToSize(long maxBytes) {
+        final Iterator<Bitmap> oldest = mOrder.iterator();
+        while (mCurrentBytes > maxBytes && oldest.hasNext()) {
+            final Bitmap bitmap = oldest.next();
+            oldest.remove();
+            final Long key = keyFor(bitmap);
+            final ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(key);
+                }
+            }
+            // Not recycled, a view may still be drawing it
+            mCurrentBytes -= getByteCount(bitmap);
+            mEvictionCount++;
+        }
+    }
+
+    private Bitmap poll(Long key) {
+        final ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+        Bitmap bitmap;
+        while ((bitmap = bucket.poll()) != null) {
+            if (!bitmap.isRecycled()) {
+                break;
+            }
+            // Recycled behind our back, forget it
+            mOrder.remove(bitmap);
+            mCurrentBytes -= getByteCount(bitmap);
+        }
+        if (bucket.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        return bitmap;
+    }
+
+    private Long keyFor(Bitmap bitmap) {
+        if (mExactSize) {
+            return exactKey(bitmap.getConfig(), bitmap.getWidth(), bitmap.getHeight());
+        }
+        return sizedKey(bitmap.getConfig(), sizeClass(getByteCount(bitmap)));
+    }
+
+    private static Long exactKey(Config config, int width, int height) {
+        return ((long) config.ordinal() << 48) | ((long) (width & 0xFFFFFF) << 24)
+                | (height & 0xFFFFFF);
+    }
+
+    private static Long sizedKey(Config config, int sizeClass) {
+        return ((long) config.ordinal() << 32) | sizeClass;
+    }
+
+    /**
+     * Maps a byte count to its size class: four classes per power of two, so every bitmap in
+     * a class is within 19% of the class lower bound.
+     */
+    static int sizeClass(int bytes) {
+        final int value = Math.max(bytes, 4);
+        final int highBit = 31 - Integer.numberOfLeadingZeros(value);
+        return (highBit << 2) | ((value >>> (highBit - 2)) & 3);
+    }
+
+    /**
+     * @return The smallest byte count that falls in {@code sizeClass}
+     */
+    static long sizeClassLowerBound(int sizeClass) {
+        final int highBit = sizeClass >> 2;
+        return (long) (4 | (sizeClass & 3)) << (highBit - 2);
+    }
+
+    @TargetApi(VERSION_CODES.KITKAT)
+    private static int getByteCount(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Return the byte usage per pixel of a bitmap based on its configuration.
+     * @param config The bitmap configuration.
+     * @return The byte usage per pixel.
+     */
+    static int getBytesPerPixel(Config config) {
+        if (config == Config.ARGB_8888) {
+            return 4;
+        } else if (config == Config.RGB_565) {
+            return 2;
+        } else if (config == Config.ARGB_4444) {
+            return 2;
+        } else if (config == Config.ALPHA_8) {
+            return 1;
+        }
+        return 1;
+    }
+}
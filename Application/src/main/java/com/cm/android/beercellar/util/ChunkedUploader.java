@@ -0,0 +1,284 @@
+package com.cm.android.beercellar.util;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a file in chunks through a session the server keeps, so an upload that fails part way
+ * resumes where the server got to instead of starting over. The session and offset are handed
+ * to an {@link OnProgressListener} after every chunk for the caller to keep, and passed back in
+ * to resume, even in another process.
+ * <p/>
+ * The protocol is that of resumable uploads to cloud storage:
+ * <ul>
+ * <li>A POST to the upload url with X-Upload-Content-Type and X-Upload-Content-Length starts a
+ * session, whose url comes back in the Location header.</li>
+ * <li>Each chunk is a PUT to the session with a Content-Range. The server answers 308 with the
+ * Range it has so far, or 200 or 201 with the stored file's JSON once it has all of it.</li>
+ * <li>A PUT with "Content-Range: bytes *&#47;length" and no body asks for that Range. A 404 or
+ * 410 means the session expired, and a new one is started.</li>
+ * </ul>
+ * Each call makes at most one attempt at each request, retrying is up to the caller.
+ */
+public class ChunkedUploader {
+    /**
+     * Chunks are multiples of 256 KB, as the servers expect
+     */
+    public static final int CHUNK_SIZE = 4 * 256 * 1024;
+
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+    /**
+     * Chunks in a row the server may answer 308 to without taking any of them, before the
+     * upload is given up on rather than sending the same bytes forever
+     */
+    private static final int MAX_STALLED_CHUNKS = 3;
+
+    /**
+     * Where an upload got to, to resume it from
+     */
+    public static class Progress {
+        /**
+         * The session url, or null before the upload starts
+         */
+        public String session;
+        /**
+         * The bytes the server has
+         */
+        public long offset;
+    }
+
+    /**
+     * Interface definition for a callback to be invoked as the server takes chunks, on the
+     * uploading thread.
+     */
+    public interface OnProgressListener {
+        void onProgress(Progress progress);
+    }
+
+    private final HttpClient mClient;
+    private final int mChunkSize;
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mBytesStored = new AtomicLong();
+    private final AtomicLong mUploadNanos = new AtomicLong();
+    private final AtomicInteger mChunks = new AtomicInteger();
+    private final AtomicInteger mSessions = new AtomicInteger();
+    private final AtomicInteger mResumes = new AtomicInteger();
+    private final AtomicInteger mFailures = new AtomicInteger();
+
+    /**
+     * @param chunkSize The most bytes sent in one request
+     */
+    public ChunkedUploader(HttpClient client, int chunkSize) {
+        mClient = client;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Uploads the file, or the rest of it.
+     *
+     * @param url      Where to start a session, if {@code progress} has none. Null to only
+     *                 resume, the session is cleared from {@code progress} if it expired.
+     * @param file     The file to upload
+     * @param type     Its content type
+     * @param progress Where an earlier call got to, updated as chunks are taken
+     * @param listener Told of every chunk taken, may be null
+     * @return The server's response once it has the whole file
+     * @throws IOException         if the connection failed, or the server stopped taking
+     *                             chunks, {@code progress} says how far it got
+     * @throws StatusCodeException if the server refused the upload
+     */
+    public String upload(String url, File file, String type, Progress progress,
+                         OnProgressListener listener) throws IOException, StatusCodeException {
+        final long start = System.nanoTime();
+        final long length = file.length();
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            Result result = null;
+            if (progress.session != null) {
+                mResumes.incrementAndGet();
+                result = send(progress.session, "bytes */" + length, new EmptyContent());
+                if (result.status == 404 || result.status == 410) {
+                    progress.session = null;
+                    progress.offset = 0;
+                    result = null;
+                    if (url == null) {
+                        if (listener != null) {
+                            listener.onProgress(progress);
+                        }
+                        throw new IOException("upload - session expired");
+                    }
+                }
+            }
+            if (progress.session == null) {
+                progress.session = startSession(url, type, length);
+                progress.offset = 0;
+                result = null;
+                if (listener != null) {
+                    listener.onProgress(progress);
+                }
+            }
+
+            final byte[] chunk = new byte[(int) Math.min(mChunkSize, Math.max(1, length))];
+            // Whether result answers a chunk, rather than the request for the Range to resume
+            boolean sent = false;
+            int stalled = 0;
+            while (true) {
+                if (result != null) {
+                    if (result.status == STATUS_RESUME_INCOMPLETE) {
+                        final long stored = parseRange(result.range);
+                        if (!sent || stored > progress.offset) {
+                            stalled = 0;
+                        } else if (++stalled >= MAX_STALLED_CHUNKS) {
+                            throw new IOException("upload - no progress past " + stored
+                                    + " after " + stalled + " chunks");
+                        }
+                        mBytesStored.addAndGet(stored - progress.offset);
+                        progress.offset = stored;
+                        if (listener != null) {
+                            listener.onProgress(progress);
+                        }
+                    } else if (result.status / 100 == 2) {
+                        mBytesStored.addAndGet(length - progress.offset);
+                        progress.offset = length;
+                        return result.body;
+                    } else {
+                        mFailures.incrementAndGet();
+                        throw new StatusCodeException(result.status, result.body);
+                    }
+                }
+                final int size = (int) Math.min(chunk.length, length - progress.offset);
+                in.seek(progress.offset);
+                in.readFully(chunk, 0, size);
+                final String range = size == 0 ? "bytes */" + length
+                        : "bytes " + progress.offset + "-" + (progress.offset + size - 1) + "/"
+                        + length;
+                mChunks.incrementAndGet();
+                mBytesSent.addAndGet(size);
+                result = send(progress.session, range, new ByteArrayContent(type, chunk, 0, size));
+                sent = true;
+            }
+        } catch (IOException e) {
+            mFailures.incrementAndGet();
+            throw e;
+        } finally {
+            in.close();
+            mUploadNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private String startSession(String url, String type, long length)
+            throws IOException, StatusCodeException {
+        final HttpRequest request = mClient.getRequestFactory().buildPostRequest(
+                new GenericUrl(url), new EmptyContent());
+        request.getHeaders().set("X-Upload-Content-Type", type);
+        request.getHeaders().set("X-Upload-Content-Length", String.valueOf(length));
+        final Result result = execute(request);
+        if (result.status / 100 != 2 || result.location == null) {
+            mFailures.incrementAndGet();
+            throw new StatusCodeException(result.status, result.body);
+        }
+        mSessions.incrementAndGet();
+        return result.location;
+    }
+
+    private Result send(String session, String range, HttpContent content) throws IOException {
+        final HttpRequest request = mClient.getRequestFactory().buildPutRequest(
+                new GenericUrl(session), content);
+        request.getHeaders().setContentRange(range);
+        return execute(request);
+    }
+
+    private static class Result {
+        int status;
+        String range;
+        String location;
+        String body;
+    }
+
+    private Result execute(HttpRequest request) throws IOException {
+        request.setThrowExceptionOnExecuteError(false);
+        request.setFollowRedirects(false);
+        request.setNumberOfRetries(0);
+        return mClient.execute(request, new HttpClient.ResponseHandler<Result>() {
+            @Override
+            public Result handle(HttpResponse response) throws IOException {
+                final Result result = new Result();
+                result.status = response.getStatusCode();
+                result.range = response.getHeaders().getRange();
+                result.location = response.getHeaders().getLocation();
+                result.body = response.parseAsString();
+                return result;
+            }
+        });
+    }
+
+    /**
+     * @return The bytes the server has, from a Range header such as "bytes=0-1023"
+     */
+    private static long parseRange(String range) throws IOException {
+        if (range == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(range.substring(range.indexOf('-') + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+            throw new IOException("parseRange - " + range);
+        }
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * @return The bytes the server confirmed it has, less than sent when chunks were lost
+     */
+    public long getBytesStored() {
+        return mBytesStored.get();
+    }
+
+    public int getChunkCount() {
+        return mChunks.get();
+    }
+
+    public int getSessionCount() {
+        return mSessions.get();
+    }
+
+    /**
+     * @return The uploads that carried on from a session started earlier
+     */
+    public int getResumeCount() {
+        return mResumes.get();
+    }
+
+    public int getFailureCount() {
+        return mFailures.get();
+    }
+
+    /**
+     * @return The bytes stored per second spent uploading
+     */
+    public double getThroughput() {
+        final long nanos = mUploadNanos.get();
+        return nanos == 0 ? 0 : mBytesStored.get() * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkedUploader[sent=" + mBytesSent + ",stored=" + mBytesStored + ",chunks="
+                + mChunks + ",sessions=" + mSessions + ",resumes=" + mResumes + ",failures="
+                + mFailures + String.format(",throughput=%.1fKB/s", getThroughput() / 1024)
+                + "]";
+    }
+}
@@ -0,0 +1,1017 @@
+package com.cm.android.beercellar.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A variant of {@link DiskLruCache} that can be shared by many threads without serializing them.
+ * It reads and writes the same journal format, so an existing cache directory opens unchanged.
+ *
+ * <p>The differences from {@link DiskLruCache} are:
+ * <ul>
+ *     <li>There is no cache-wide monitor. Each key maps to one of a fixed set of lock stripes,
+ *         so {@link #get}, {@link #edit}, {@link Editor#commit} and {@link #remove} only contend
+ *         with operations on keys that share a stripe.
+ *     <li>Journal lines are queued and written by the cache's background thread, so callers
+ *         never block on journal I/O. Because a DIRTY line may not reach the disk before its
+ *         temporary file is created, stray {@code .tmp} files are deleted when the cache is
+ *         opened.
+ *     <li>LRU order is tracked with an access clock on each entry rather than an access-ordered
+ *         map, and eviction sorts by that clock on the background thread.
+ *     <li>The journal can optionally be kept in the compact {@link BinaryJournal} format, which
+ *         opens much faster when there are many entries. A text journal left by an earlier
+ *         version is migrated the first time the cache is opened in binary mode.
+ * </ul>
+ */
+public final class ConcurrentDiskLruCache implements Closeable {
+    static final String JOURNAL_FILE = DiskLruCache.JOURNAL_FILE;
+    static final String JOURNAL_FILE_TMP = DiskLruCache.JOURNAL_FILE_TMP;
+    static final String MAGIC = DiskLruCache.MAGIC;
+    static final String VERSION_1 = DiskLruCache.VERSION_1;
+    static final String BINARY_JOURNAL_FILE = "journal.bin";
+    static final String BINARY_JOURNAL_FILE_TMP = "journal.bin.tmp";
+    static final long ANY_SEQUENCE_NUMBER = -1;
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int LOCK_STRIPES = 32;
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final int appVersion;
+    private final long maxSize;
+    private final int valueCount;
+    private final boolean binaryJournal;
+    private final AtomicLong size = new AtomicLong();
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong accessClock = new AtomicLong();
+    private final AtomicInteger redundantOpCount = new AtomicInteger();
+    private final AtomicLong nextSequenceNumber = new AtomicLong();
+    private final JournalAppender journal = new JournalAppender();
+    private volatile boolean closed;
+
+    /** This cache uses a single background thread to write the journal and evict entries. */
+    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final AtomicBoolean cleanupScheduled = new AtomicBoolean();
+    private final Runnable cleanupRunnable = new Runnable() {
+        @Override public void run() {
+            cleanupScheduled.set(false);
+            if (closed) {
+                return;
+            }
+            try {
+                trimToSize();
+                if (journalRebuildRequired()) {
+                    journal.rebuild();
+                    redundantOpCount.set(0);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    };
+
+    private ConcurrentDiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            boolean binaryJournal) {
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.journalFile = new File(directory, binaryJournal ? BINARY_JOURNAL_FILE : JOURNAL_FILE);
+        this.journalFileTmp =
+                new File(directory, binaryJournal ? BINARY_JOURNAL_FILE_TMP : JOURNAL_FILE_TMP);
+        this.valueCount = valueCount;
+        this.maxSize = maxSize;
+        this.binaryJournal = binaryJournal;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Opens the cache in {@code directory} with a text journal, creating a cache if none exists
+     * there.
+     *
+     * @see #open(java.io.File, int, int, long, boolean)
+     */
+    public static ConcurrentDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param binaryJournal true to keep the journal in the {@link BinaryJournal} format. Keys
+     *     must then be exactly {@link BinaryJournal#KEY_LENGTH} printable ASCII characters,
+     *     such as those from {@link ImageCache#hashKeyForDisk(String)}.
+     * @throws java.io.IOException if reading or writing the cache directory fails
+     */
+    public static ConcurrentDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize, boolean binaryJournal) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("valueCount <= 0");
+        }
+
+        // prefer to pick up where we left off
+        final File textJournalFile = new File(directory, JOURNAL_FILE);
+        ConcurrentDiskLruCache cache = new ConcurrentDiskLruCache(
+                directory, appVersion, valueCount, maxSize, binaryJournal);
+        if (cache.journalFile.exists()) {
+            try {
+                cache.readJournal();
+                cache.processJournal();
+                cache.journal.open();
+                if (binaryJournal) {
+                    // left behind if we died right after a migration
+                    deleteIfExists(textJournalFile);
+                }
+                return cache;
+            } catch (IOException journalIsCorrupt) {
+                cache.delete();
+            }
+        } else if (binaryJournal && textJournalFile.exists()) {
+            // first open since switching formats, replay the text journal once and rewrite it
+            try {
+                cache.readTextJournal(textJournalFile);
+                cache.processJournal();
+                cache.journal.rebuild();
+                deleteIfExists(textJournalFile);
+                return cache;
+            } catch (IOException journalIsCorrupt) {
+                cache.delete();
+            }
+        }
+
+        // create a new empty cache
+        directory.mkdirs();
+        cache = new ConcurrentDiskLruCache(directory, appVersion, valueCount, maxSize,
+                binaryJournal);
+        cache.journal.rebuild();
+        return cache;
+    }
+
+    private void readJournal() throws IOException {
+        if (binaryJournal) {
+            readBinaryJournal();
+        } else {
+            readTextJournal(journalFile);
+        }
+    }
+
+    private void readBinaryJournal() throws IOException {
+        final long validLength = BinaryJournal.replay(journalFile, appVersion, valueCount,
+                new BinaryJournal.Listener() {
+                    @Override
+                    public void onRecord(int op, String key, long[] lengths) {
+                        applyJournalOp(op, key, lengths);
+                    }
+                });
+        if (validLength < journalFile.length()) {
+            // drop a record that was torn by a crash so new records don't follow garbage
+            final RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private void readTextJournal(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE);
+        try {
+            String magic = DiskLruCache.readAsciiLine(in);
+            String version = DiskLruCache.readAsciiLine(in);
+            String appVersionString = DiskLruCache.readAsciiLine(in);
+            String valueCountString = DiskLruCache.readAsciiLine(in);
+            String blank = DiskLruCache.readAsciiLine(in);
+            if (!MAGIC.equals(magic)
+                    || !VERSION_1.equals(version)
+                    || !Integer.toString(appVersion).equals(appVersionString)
+                    || !Integer.toString(valueCount).equals(valueCountString)
+                    || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: ["
+                        + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+            }
+
+            while (true) {
+                try {
+                    readJournalLine(DiskLruCache.readAsciiLine(in));
+                } catch (EOFException endOfJournal) {
+                    break;
+                }
+            }
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+
+        final int op;
+        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+            op = BinaryJournal.OP_CLEAN;
+        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            op = BinaryJournal.OP_DIRTY;
+        } else if (parts[0].equals(REMOVE) && parts.length == 2) {
+            op = BinaryJournal.OP_REMOVE;
+        } else if (parts[0].equals(READ) && parts.length == 2) {
+            op = BinaryJournal.OP_READ;
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+
+        long[] lengths = null;
+        if (op == BinaryJournal.OP_CLEAN) {
+            lengths = new long[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    lengths[i] = Long.parseLong(parts[2 + i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+        }
+        applyJournalOp(op, parts[1], lengths);
+    }
+
+    /**
+     * Applies one replayed journal record. Only called while opening, before the cache is
+     * shared with other threads.
+     */
+    private void applyJournalOp(int op, String key, long[] lengths) {
+        if (op == BinaryJournal.OP_REMOVE) {
+            entries.remove(key);
+            return;
+        }
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+        // Journal order is access order
+        entry.lastAccess = accessClock.incrementAndGet();
+
+        if (op == BinaryJournal.OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+        } else if (op == BinaryJournal.OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        }
+    }
+
+    /**
+     * Computes the initial size and collects garbage as a part of opening the
+     * cache. Dirty entries are assumed to be inconsistent and will be deleted, as
+     * are temporary files whose DIRTY line never made it to the journal.
+     */
+    private void processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        long total = 0;
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            if (entry.currentEditor == null) {
+                for (int t = 0; t < valueCount; t++) {
+                    total += entry.lengths[t];
+                }
+            } else {
+                entry.currentEditor = null;
+                for (int t = 0; t < valueCount; t++) {
+                    deleteIfExists(entry.getCleanFile(t));
+                    deleteIfExists(entry.getDirtyFile(t));
+                }
+                entries.remove(entry.key);
+            }
+        }
+        size.set(total);
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TMP_SUFFIX)) {
+                    deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static void deleteIfExists(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("failed to delete " + file);
+        }
+    }
+
+    private Object lockFor(String key) {
+        return locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist is not currently readable. If a value is returned, it is moved to
+     * the head of the LRU queue.
+     */
+    public Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        final InputStream[] ins = new InputStream[valueCount];
+        final long sequenceNumber;
+        synchronized (lockFor(key)) {
+            if (!entry.readable || entries.get(key) != entry) {
+                return null;
+            }
+
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             */
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                // a file must have been deleted manually!
+                for (InputStream in : ins) {
+                    DiskLruCache.closeQuietly(in);
+                }
+                return null;
+            }
+
+            sequenceNumber = entry.sequenceNumber;
+            entry.lastAccess = accessClock.incrementAndGet();
+            journal.append(BinaryJournal.OP_READ, key, null);
+        }
+
+        redundantOpCount.incrementAndGet();
+        if (journalRebuildRequired()) {
+            scheduleCleanup();
+        }
+
+        return new Snapshot(key, sequenceNumber, ins);
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress.
+     */
+    public Editor edit(String key) throws IOException {
+        return edit(key, ANY_SEQUENCE_NUMBER);
+    }
+
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        synchronized (lockFor(key)) {
+            Entry entry = entries.get(key);
+            if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                    && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                return null; // snapshot is stale
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                entry.lastAccess = accessClock.incrementAndGet();
+                entries.put(key, entry);
+            } else if (entry.currentEditor != null) {
+                return null; // another edit is in progress
+            }
+
+            Editor editor = new Editor(entry);
+            entry.currentEditor = editor;
+            journal.append(BinaryJournal.OP_DIRTY, key, null);
+            return editor;
+        }
+    }
+
+    /**
+     * Returns the directory where this cache stores its data.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data.
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of bytes currently being used to store the values in
+     * this cache. This may be greater than the max size if a background
+     * deletion is pending.
+     */
+    public long size() {
+        return size.get();
+    }
+
+    private void completeEdit(Editor editor, boolean success) throws IOException {
+        final Entry entry = editor.entry;
+        synchronized (lockFor(entry.key)) {
+            if (entry.currentEditor != editor) {
+                throw new IllegalStateException();
+            }
+
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !entry.readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (!entry.getDirtyFile(i).exists()) {
+                        editor.abort();
+                        throw new IllegalStateException("edit didn't create file " + i);
+                    }
+                }
+            }
+
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size.addAndGet(newLength - oldLength);
+                    }
+                } else {
+                    deleteIfExists(dirty);
+                }
+            }
+
+            entry.currentEditor = null;
+            if (entry.readable | success) {
+                entry.readable = true;
+                journal.append(BinaryJournal.OP_CLEAN, entry.key, entry.lengths.clone());
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+                    // A write is a use too, or an entry rewritten since it was created is
+                    // evicted as if it had not been touched since
+                    entry.lastAccess = accessClock.incrementAndGet();
+                }
+            } else {
+                entries.remove(entry.key);
+                journal.append(BinaryJournal.OP_REMOVE, entry.key, null);
+            }
+        }
+
+        redundantOpCount.incrementAndGet();
+        if (size.get() > maxSize || journalRebuildRequired()) {
+            scheduleCleanup();
+        }
+    }
+
+    /**
+     * We only rebuild the journal when it will halve the size of the journal
+     * and eliminate at least 2000 ops.
+     */
+    private boolean journalRebuildRequired() {
+        final int redundant = redundantOpCount.get();
+        return redundant >= REDUNDANT_OP_COMPACT_THRESHOLD && redundant >= entries.size();
+    }
+
+    private void scheduleCleanup() {
+        if (cleanupScheduled.compareAndSet(false, true)) {
+            executorService.execute(cleanupRunnable);
+        }
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed. Entries
+     * actively being edited cannot be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean remove(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        synchronized (lockFor(key)) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.currentEditor != null) {
+                return false;
+            }
+
+            for (int i = 0; i < valueCount; i++) {
+                deleteIfExists(entry.getCleanFile(i));
+                size.addAndGet(-entry.lengths[i]);
+                entry.lengths[i] = 0;
+            }
+
+            entries.remove(key);
+            journal.append(BinaryJournal.OP_REMOVE, key, null);
+        }
+
+        redundantOpCount.incrementAndGet();
+        if (journalRebuildRequired()) {
+            scheduleCleanup();
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if this cache has been closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    /**
+     * Force buffered operations to the filesystem.
+     */
+    public void flush() throws IOException {
+        checkNotClosed();
+        trimToSize();
+        journal.flush();
+    }
+
+    /**
+     * Closes this cache. Stored values will remain on the filesystem.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return; // already closed
+        }
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            Editor editor = entry.currentEditor;
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IllegalStateException alreadyCompleted) {
+                }
+            }
+        }
+        trimToSize();
+        closed = true;
+        journal.close();
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is within its size limit. Entries
+     * that are being edited are skipped.
+     */
+    private void trimToSize() throws IOException {
+        if (size.get() <= maxSize) {
+            return;
+        }
+        for (Entry entry : entriesInAccessOrder()) {
+            if (size.get() <= maxSize) {
+                break;
+            }
+            remove(entry.key);
+        }
+    }
+
+    /**
+     * Returns a copy of the entries, least recently used first. Access clock values are
+     * unique, so they can be used as keys directly.
+     */
+    private Iterable<Entry> entriesInAccessOrder() {
+        final TreeMap<Long, Entry> ordered = new TreeMap<Long, Entry>();
+        for (Entry entry : entries.values()) {
+            ordered.put(entry.lastAccess, entry);
+        }
+        return ordered.values();
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values. This will delete
+     * all files in the cache directory including files that weren't created by
+     * the cache.
+     */
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(directory);
+    }
+
+    private void validateKey(String key) {
+        if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
+            throw new IllegalArgumentException(
+                    "keys must not contain spaces or newlines: \"" + key + "\"");
+        }
+        if (binaryJournal && !BinaryJournal.isValidKey(key)) {
+            throw new IllegalArgumentException("keys must be " + BinaryJournal.KEY_LENGTH
+                    + " printable ASCII characters: \"" + key + "\"");
+        }
+    }
+
+    private static String inputStreamToString(InputStream in) throws IOException {
+        return DiskLruCache.readFully(new InputStreamReader(in, UTF_8));
+    }
+
+    /**
+     * A journal operation waiting to be written.
+     */
+    private static final class JournalRecord {
+        final int op;
+        final String key;
+        final long[] lengths;
+
+        JournalRecord(int op, String key, long[] lengths) {
+            this.op = op;
+            this.key = key;
+            this.lengths = lengths;
+        }
+    }
+
+    /**
+     * Queues journal records and writes them on the cache's background thread. Callers only pay
+     * for a queue insert; {@link #flush()} and {@link #close()} drain synchronously.
+     */
+    private final class JournalAppender {
+        private final ConcurrentLinkedQueue<JournalRecord> pending =
+                new ConcurrentLinkedQueue<JournalRecord>();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final Object writerLock = new Object();
+        private OutputStream writer; // guarded by writerLock
+
+        private final Runnable drainRunnable = new Runnable() {
+            @Override public void run() {
+                drainScheduled.set(false);
+                try {
+                    flush();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+
+        void open() throws IOException {
+            synchronized (writerLock) {
+                writer = new BufferedOutputStream(
+                        new FileOutputStream(journalFile, true), IO_BUFFER_SIZE);
+            }
+        }
+
+        void append(int op, String key, long[] lengths) {
+            pending.offer(new JournalRecord(op, key, lengths));
+            if (drainScheduled.compareAndSet(false, true)) {
+                executorService.execute(drainRunnable);
+            }
+        }
+
+        void flush() throws IOException {
+            synchronized (writerLock) {
+                if (writer == null) {
+                    return;
+                }
+                JournalRecord record;
+                while ((record = pending.poll()) != null) {
+                    writeRecord(writer, record.op, record.key, record.lengths);
+                }
+                writer.flush();
+            }
+        }
+
+        void close() throws IOException {
+            synchronized (writerLock) {
+                if (writer == null) {
+                    return;
+                }
+                flush();
+                writer.close();
+                writer = null;
+            }
+        }
+
+        /**
+         * Creates a new journal that omits redundant information. This replaces the
+         * current journal if it exists. Records queued while the snapshot is taken are
+         * appended to the new journal afterwards, which is safe because replaying a
+         * record for a state that is already recorded does not change the outcome.
+         */
+        void rebuild() throws IOException {
+            synchronized (writerLock) {
+                if (writer != null) {
+                    flush();
+                    writer.close();
+                    writer = null;
+                }
+
+                OutputStream tmp = new BufferedOutputStream(
+                        new FileOutputStream(journalFileTmp), IO_BUFFER_SIZE);
+                try {
+                    writeHeader(tmp);
+                    for (Entry entry : entriesInAccessOrder()) {
+                        synchronized (lockFor(entry.key)) {
+                            if (entry.currentEditor != null) {
+                                writeRecord(tmp, BinaryJournal.OP_DIRTY, entry.key, null);
+                            } else if (entry.readable) {
+                                writeRecord(tmp, BinaryJournal.OP_CLEAN, entry.key, entry.lengths);
+                            }
+                        }
+                    }
+                } finally {
+                    tmp.close();
+                }
+
+                journalFileTmp.renameTo(journalFile);
+                open();
+            }
+        }
+
+        private void writeHeader(OutputStream out) throws IOException {
+            if (binaryJournal) {
+                BinaryJournal.writeHeader(out, appVersion, valueCount);
+            } else {
+                out.write((MAGIC + "\n" + VERSION_1 + "\n" + appVersion + "\n" + valueCount
+                        + "\n\n").getBytes(UTF_8));
+            }
+        }
+
+        private void writeRecord(OutputStream out, int op, String key, long[] lengths)
+                throws IOException {
+            if (binaryJournal) {
+                BinaryJournal.writeRecord(out, op, key, lengths);
+                return;
+            }
+            final StringBuilder line = new StringBuilder(key.length() + 32);
+            switch (op) {
+                case BinaryJournal.OP_CLEAN:
+                    line.append(CLEAN).append(' ').append(key);
+                    for (long length : lengths) {
+                        line.append(' ').append(length);
+                    }
+                    break;
+                case BinaryJournal.OP_DIRTY:
+                    line.append(DIRTY).append(' ').append(key);
+                    break;
+                case BinaryJournal.OP_REMOVE:
+                    line.append(REMOVE).append(' ').append(key);
+                    break;
+                default:
+                    line.append(READ).append(' ').append(key);
+                    break;
+            }
+            line.append('\n');
+            out.write(line.toString().getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * A snapshot of the values for an entry.
+     */
+    public final class Snapshot implements Closeable {
+        private final String key;
+        private final long sequenceNumber;
+        private final InputStream[] ins;
+
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+            this.key = key;
+            this.sequenceNumber = sequenceNumber;
+            this.ins = ins;
+        }
+
+        /**
+         * Returns an editor for this snapshot's entry, or null if either the
+         * entry has changed since this snapshot was created or if another edit
+         * is in progress.
+         */
+        public Editor edit() throws IOException {
+            return ConcurrentDiskLruCache.this.edit(key, sequenceNumber);
+        }
+
+        /**
+         * Returns the unbuffered stream with the value for {@code index}.
+         */
+        public InputStream getInputStream(int index) {
+            return ins[index];
+        }
+
+        /**
+         * Returns the string value for {@code index}.
+         */
+        public String getString(int index) throws IOException {
+            return inputStreamToString(getInputStream(index));
+        }
+
+        @Override public void close() {
+            for (InputStream in : ins) {
+                DiskLruCache.closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * Edits the values for an entry.
+     */
+    public final class Editor {
+        private final Entry entry;
+        private volatile boolean hasErrors;
+
+        private Editor(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Returns an unbuffered input stream to read the last committed value,
+         * or null if no value has been committed.
+         */
+        public InputStream newInputStream(int index) throws IOException {
+            synchronized (lockFor(entry.key)) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                if (!entry.readable) {
+                    return null;
+                }
+                return new FileInputStream(entry.getCleanFile(index));
+            }
+        }
+
+        /**
+         * Returns the last committed value as a string, or null if no value
+         * has been committed.
+         */
+        public String getString(int index) throws IOException {
+            InputStream in = newInputStream(index);
+            return in != null ? inputStreamToString(in) : null;
+        }
+
+        /**
+         * Returns a new unbuffered output stream to write the value at
+         * {@code index}. If the underlying output stream encounters errors
+         * when writing to the filesystem, this edit will be aborted when
+         * {@link #commit} is called. The returned output stream does not throw
+         * IOExceptions.
+         */
+        public OutputStream newOutputStream(int index) throws IOException {
+            synchronized (lockFor(entry.key)) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+            }
+        }
+
+        /**
+         * Sets the value at {@code index} to {@code value}.
+         */
+        public void set(int index, String value) throws IOException {
+            Writer writer = null;
+            try {
+                writer = new OutputStreamWriter(newOutputStream(index), UTF_8);
+                writer.write(value);
+            } finally {
+                DiskLruCache.closeQuietly(writer);
+            }
+        }
+
+        /**
+         * Commits this edit so it is visible to readers.  This releases the
+         * edit lock so another edit may be started on the same key.
+         */
+        public void commit() throws IOException {
+            if (hasErrors) {
+                completeEdit(this, false);
+                remove(entry.key); // the previous entry is stale
+            } else {
+                completeEdit(this, true);
+            }
+        }
+
+        /**
+         * Aborts this edit. This releases the edit lock so another edit may be
+         * started on the same key.
+         */
+        public void abort() throws IOException {
+            completeEdit(this, false);
+        }
+
+        private class FaultHidingOutputStream extends FilterOutputStream
+                implements StreamCopier.FileBacked {
+            private FaultHidingOutputStream(FileOutputStream out) {
+                super(out);
+            }
+
+            @Override public FileChannel getChannel() {
+                return ((FileOutputStream) out).getChannel();
+            }
+
+            @Override public void write(int oneByte) {
+                try {
+                    out.write(oneByte);
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void write(byte[] buffer, int offset, int length) {
+                try {
+                    out.write(buffer, offset, length);
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void close() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void flush() {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of a single key. Everything except {@link #lastAccess} is guarded by the
+     * key's lock stripe.
+     */
+    private final class Entry {
+        private final String key;
+
+        /** Lengths of this entry's files. */
+        private final long[] lengths;
+
+        /** True if this entry has ever been published */
+        private boolean readable;
+
+        /** The ongoing edit or null if this entry is not being edited. */
+        private Editor currentEditor;
+
+        /** The sequence number of the most recently committed edit to this entry. */
+        private long sequenceNumber;
+
+        /** Value of the access clock when this entry was last read or written. */
+        private volatile long lastAccess;
+
+        private Entry(String key) {
+            this.key = key;
+            this.lengths = new long[valueCount];
+        }
+
+        public File getCleanFile(int i) {
+            return new File(directory, key + "." + i);
+        }
+
+        public File getDirtyFile(int i) {
+            return new File(directory, key + "." + i + TMP_SUFFIX);
+        }
+    }
+}
@@ -35,6 +35,7 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -854,11 +855,21 @@ public final class DiskLruCache implements Closeable {
             completeEdit(this, false);
         }
 
-        private class FaultHidingOutputStream extends FilterOutputStream {
-            private FaultHidingOutputStream(OutputStream out) {
+        private class FaultHidingOutputStream extends FilterOutputStream
+                implements StreamCopier.FileBacked {
+            private FaultHidingOutputStream(FileOutputStream out) {
                 super(out);
             }
 
+            /**
+             * Exposes the underlying file channel so {@link StreamCopier} can transfer a local
+             * file straight into the entry. Failures surface as IOExceptions to the copier,
+             * whose caller is expected to abort the edit.
+             */
+            @Override public FileChannel getChannel() {
+                return ((FileOutputStream) out).getChannel();
+            }
+
             @Override public void write(int oneByte) {
                 try {
                     out.write(oneByte);
@@ -0,0 +1,281 @@
+package com.cm.android.beercellar.util;
+
+import com.cm.android.common.logger.Log;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The one HTTP client of the app, for sync, uploads, label reading and image downloads.
+ * Requests share a transport, so connections to a host are kept alive and reused instead of
+ * paying for a new TCP and TLS handshake each time. Every request gets the timeouts from
+ * {@link Configuration} and accepts gzip responses.
+ * <p/>
+ * Requests made through {@link #execute} are limited to {@link #MAX_CONNECTIONS_PER_HOST} at a
+ * time per host, the number of idle connections kept per host, so a burst of uploads does not
+ * open connections that are thrown away after. They are counted, see {@link #toString()}.
+ */
+public final class HttpClient {
+    private static final String TAG = HttpClient.class.getName();
+
+    public static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    private static HttpClient sInstance;
+
+    /**
+     * Reads a response. The response is closed after, keeping its connection for the next
+     * request if the body was read to the end.
+     */
+    public interface ResponseHandler<T> {
+        T handle(HttpResponse response) throws IOException;
+    }
+
+    private final HttpTransport mTransport;
+    private final int mMaxConnectionsPerHost;
+    private final Map<String, Semaphore> mHostPermits = new HashMap<String, Semaphore>();
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mFailures = new AtomicInteger();
+    private final AtomicInteger mSecureRequests = new AtomicInteger();
+    private final AtomicInteger mTlsConnections = new AtomicInteger();
+    private final AtomicInteger mWaits = new AtomicInteger();
+
+    private final HttpRequestInitializer mInitializer = new HttpRequestInitializer() {
+        @Override
+        public void initialize(HttpRequest request) {
+            request.setConnectTimeout(Configuration.HTTP_CONNECTION_TIMEOUT);
+            request.setReadTimeout(Configuration.HTTP_SOCKET_TIMEOUT);
+            request.getHeaders().setAcceptEncoding("gzip");
+        }
+    };
+    private final HttpRequestFactory mRequestFactory;
+
+    /**
+     * @return The client shared by the whole app
+     */
+    public static synchronized HttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new HttpClient(MAX_CONNECTIONS_PER_HOST);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructor for tests, the app shares {@link #getInstance()}. The pool of idle connections
+     * belongs to the platform, so its size is set for the whole process.
+     */
+    public HttpClient(int maxConnectionsPerHost) {
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxConnectionsPerHost));
+        mTransport = new NetHttpTransport.Builder()
+                .setSslSocketFactory(new CountingSocketFactory(
+                        HttpsURLConnection.getDefaultSSLSocketFactory()))
+                .build();
+        mRequestFactory = mTransport.createRequestFactory(mInitializer);
+    }
+
+    /**
+     * @return The transport, for clients such as Vision that build their own requests
+     */
+    public HttpTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * @return The timeouts and headers every request gets
+     */
+    public HttpRequestInitializer getRequestInitializer() {
+        return mInitializer;
+    }
+
+    public HttpRequestFactory getRequestFactory() {
+        return mRequestFactory;
+    }
+
+    /**
+     * Sends the request once its host has a free connection, and reads the response.
+     *
+     * @return What {@code handler} returned
+     * @throws IOException if the request failed, or the handler did
+     */
+    public <T> T execute(HttpRequest request, ResponseHandler<T> handler) throws IOException {
+        final Semaphore permits = getPermits(request);
+        if (!permits.tryAcquire()) {
+            mWaits.incrementAndGet();
+            permits.acquireUninterruptibly();
+        }
+        mRequests.incrementAndGet();
+        if ("https".equals(request.getUrl().getScheme())) {
+            mSecureRequests.incrementAndGet();
+        }
+        HttpResponse response = null;
+        boolean read = false;
+        try {
+            response = request.execute();
+            final T result = handler.handle(response);
+            // Reads what the handler left, so the connection can be reused
+            response.ignore();
+            read = true;
+            return result;
+        } catch (IOException e) {
+            mFailures.incrementAndGet();
+            throw e;
+        } finally {
+            if (response != null && !read) {
+                // The connection is in an unknown state, so it is not reused
+                try {
+                    response.disconnect();
+                } catch (IOException e) {
+                    Log.e(TAG, "execute - " + e);
+                }
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * Sends the request, see {@link #execute}, expecting a successful response.
+     *
+     * @return The body of the response
+     * @throws StatusCodeException with the status and body of an unsuccessful response
+     */
+    public String executeForString(HttpRequest request) throws IOException, StatusCodeException {
+        request.setThrowExceptionOnExecuteError(false);
+        final HttpResponse[] status = new HttpResponse[1];
+        final String body = execute(request, new ResponseHandler<String>() {
+            @Override
+            public String handle(HttpResponse response) throws IOException {
+                status[0] = response;
+                return response.parseAsString();
+            }
+        });
+        if (!status[0].isSuccessStatusCode()) {
+            throw new StatusCodeException(status[0].getStatusCode(), body);
+        }
+        return body;
+    }
+
+    private Semaphore getPermits(HttpRequest request) {
+        final String host = request.getUrl().getHost() + ":" + request.getUrl().getPort();
+        synchronized (mHostPermits) {
+            Semaphore permits = mHostPermits.get(host);
+            if (permits == null) {
+                permits = new Semaphore(mMaxConnectionsPerHost, true);
+                mHostPermits.put(host, permits);
+            }
+            return permits;
+        }
+    }
+
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    public int getFailureCount() {
+        return mFailures.get();
+    }
+
+    /**
+     * @return The TLS connections opened, each a full handshake
+     */
+    public int getTlsConnectionCount() {
+        return mTlsConnections.get();
+    }
+
+    /**
+     * @return The requests that waited for their host to have a free connection
+     */
+    public int getWaitCount() {
+        return mWaits.get();
+    }
+
+    /**
+     * @return The share of https requests sent on a connection that was already open
+     */
+    public float getTlsReuseRate() {
+        final int requests = mSecureRequests.get();
+        return requests == 0 ? 0 : Math.max(0, 1 - mTlsConnections.get() / (float) requests);
+    }
+
+    @Override
+    public String toString() {
+        return "HttpClient[requests=" + mRequests + ",failures=" + mFailures + ",https="
+                + mSecureRequests + ",tlsConnections=" + mTlsConnections + ",tlsReuse="
+                + String.format("%.2f", getTlsReuseRate()) + ",waits=" + mWaits + "]";
+    }
+
+    /**
+     * Counts the TLS connections the platform opens, which are the requests that could not
+     * reuse one.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            mTlsConnections.incrementAndGet();
+            return mDelegate.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            mTlsConnections.incrementAndGet();
+            return mDelegate.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            mTlsConnections.incrementAndGet();
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            mTlsConnections.incrementAndGet();
+            return mDelegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            mTlsConnections.incrementAndGet();
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            mTlsConnections.incrementAndGet();
+            return mDelegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
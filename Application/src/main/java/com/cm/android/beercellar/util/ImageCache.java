@@ -17,10 +17,12 @@
 package com.cm.android.beercellar.util;
 
 import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build.VERSION_CODES;
@@ -40,13 +42,11 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class handles disk and memory caching of bitmaps in conjunction with the
@@ -75,14 +75,23 @@ public class ImageCache {
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
+    // Share of the memory cache budget given to the inBitmap reuse pool
+    private static final float DEFAULT_BITMAP_POOL_FRACTION = 0.25f;
+    // Keys are MD5 digests, so the compact binary journal can be used
+    private static final boolean DEFAULT_DISK_CACHE_BINARY_JOURNAL = true;
 
-    private DiskLruCache mDiskLruCache;
+    private volatile ConcurrentDiskLruCache mDiskLruCache;
     private LruCache<String, BitmapDrawable> mMemoryCache;
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
     private boolean mDiskCacheStarting = true;
 
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    private BitmapPool mReusableBitmaps;
+
+    // Size variants stored in the disk cache this session. Disk keys are hashed, so these are
+    // what clearCache(String) can remove for an image.
+    private final Set<String> mDiskCacheVariants =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Create a new ImageCache object using the specified parameters. This should not be
@@ -137,21 +146,22 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
 
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can be
-            // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-            // of SoftReferences which will actually not be very effective due to the garbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach
-            // would be to use a strongly references bitmaps, however this would require some
-            // balancing of memory usage between this set and the bitmap LruCache. It would also
-            // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-            // the size would need to be precise, from KitKat onward the size would just need to
-            // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
+            // If we're running on Honeycomb or newer, create a pool of reusable bitmaps that can
+            // be populated into the inBitmap field of BitmapFactory.Options. The pool holds
+            // strong references, so its budget is taken out of the memory cache's share to keep
+            // the total bitmap memory at memCacheSize.
+            int lruCacheSize = mCacheParams.memCacheSize;
             if (Utils.hasHoneycomb()) {
-                mReusableBitmaps =
-                        Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+                final int poolSize = Math.round(
+                        mCacheParams.memCacheSize * mCacheParams.bitmapPoolFraction);
+                lruCacheSize -= poolSize;
+                mReusableBitmaps = new BitmapPool(poolSize * 1024L);
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Bitmap pool created (size = " + poolSize + ")");
+                }
             }
 
-            mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
+            mMemoryCache = new LruCache<String, BitmapDrawable>(Math.max(1, lruCacheSize)) {
 
                 /**
                  * Notify the removed entry that is no longer being cached
@@ -166,10 +176,10 @@ public class ImageCache {
                     } else {
                         // The removed entry is a standard BitmapDrawable
 
-                        if (Utils.hasHoneycomb()) {
+                        if (mReusableBitmaps != null) {
                             // We're running on Honeycomb or later, so add the bitmap
-                            // to a SoftReference set for possible use with inBitmap later
-                            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
+                            // to the reuse pool for possible use with inBitmap later
+                            mReusableBitmaps.put(oldValue.getBitmap());
                         }
                     }
                 }
@@ -212,8 +222,9 @@ public class ImageCache {
                     }
                     if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                            mDiskLruCache = ConcurrentDiskLruCache.open(
+                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize,
+                                    mCacheParams.diskCacheBinaryJournal);
                             if (BuildConfig.DEBUG) {
                                 Log.d(TAG, "Disk cache initialized");
                             }
@@ -250,36 +261,37 @@ public class ImageCache {
             mMemoryCache.put(data, value);
         }
 
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
-                try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+        // Add to disk cache. Writers only contend with other writers of the same key, so no
+        // cache-wide lock is taken here.
+        final ConcurrentDiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache != null) {
+            rememberVariant(data);
+            final String key = hashKeyForDisk(data);
+            OutputStream out = null;
+            try {
+                ConcurrentDiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot == null) {
+                    final ConcurrentDiskLruCache.Editor editor = diskLruCache.edit(key);
+                    if (editor != null) {
+                        out = editor.newOutputStream(DISK_CACHE_INDEX);
+                        value.getBitmap().compress(
+                                mCacheParams.compressFormat, mCacheParams.compressQuality, out);
+                        editor.commit();
+                        out.close();
                     }
-                } catch (final IOException e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } catch (Exception e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {}
+                } else {
+                    snapshot.getInputStream(DISK_CACHE_INDEX).close();
                 }
+            } catch (final IOException e) {
+                Log.e(TAG, "addBitmapToCache - " + e);
+            } catch (Exception e) {
+                Log.e(TAG, "addBitmapToCache - " + e);
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {}
             }
         }
         //END_INCLUDE(add_bitmap_to_cache)
@@ -308,90 +320,119 @@ public class ImageCache {
     }
 
     /**
-     * Get from disk cache.
+     * Get from disk cache, at the size it was stored.
      *
      * @param data Unique identifier for which item to get
      * @return The bitmap if found in cache, null otherwise
      */
     public Bitmap getBitmapFromDiskCache(String data) {
+        return getBitmapFromDiskCache(data, null);
+    }
+
+    /**
+     * Get from disk cache, sampled down to the requested size.
+     *
+     * @param data Unique identifier for which item to get
+     * @param size The bounds and config to decode to, or null to decode at the stored size
+     * @return The bitmap if found in cache, null otherwise
+     */
+    public Bitmap getBitmapFromDiskCache(String data, ImageSize size) {
         //BEGIN_INCLUDE(get_bitmap_from_disk_cache)
         final String key = hashKeyForDisk(data);
         Bitmap bitmap = null;
 
+        final ConcurrentDiskLruCache diskLruCache = waitForDiskCache();
+        if (diskLruCache != null) {
+            InputStream inputStream = null;
+            try {
+                final ConcurrentDiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
+                    }
+                    inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    if (inputStream != null) {
+                        FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+
+                        // Entries are normally stored at the requested size already, this
+                        // only samples down entries written for a larger one
+                        bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(fd, size, this);
+                        rememberVariant(data);
+                    }
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } catch (final IllegalStateException e) {
+                // The cache was closed underneath us
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } finally {
+                try {
+                    if (inputStream != null) {
+                        inputStream.close();
+                    }
+                } catch (IOException e) {}
+            }
+        }
+        return bitmap;
+        //END_INCLUDE(get_bitmap_from_disk_cache)
+    }
+
+    private void rememberVariant(String data) {
+        final String variant = ImageSize.variantOf(data);
+        if (variant != null) {
+            mDiskCacheVariants.add(variant);
+        }
+    }
+
+    /**
+     * Blocks until the disk cache has been initialized and returns it. The lock is only held
+     * while waiting, so lookups of different keys never wait on each other.
+     *
+     * @return The disk cache, or null if it is disabled or could not be opened
+     */
+    private ConcurrentDiskLruCache waitForDiskCache() {
         synchronized (mDiskCacheLock) {
             while (mDiskCacheStarting) {
                 try {
                     mDiskCacheLock.wait();
                 } catch (InterruptedException e) {}
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "Disk cache hit");
-                        }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-
-                            // Decode bitmap, but we don't want to sample so give
-                            // MAX_VALUE as the target dimensions
-                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
-                        }
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {}
-                }
-            }
-            return bitmap;
+            return mDiskLruCache;
         }
-        //END_INCLUDE(get_bitmap_from_disk_cache)
     }
 
     /**
-     * @param options - BitmapFactory.Options with out* options populated
+     * @param options - BitmapFactory.Options with out* options and inSampleSize populated
      * @return Bitmap that case be used for inBitmap
      */
     protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
         //BEGIN_INCLUDE(get_bitmap_from_reusable_set)
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
+        if (mReusableBitmaps == null) {
+            return null;
+        }
+        return mReusableBitmaps.get(options);
+        //END_INCLUDE(get_bitmap_from_reusable_set)
+    }
 
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
+    /**
+     * @return The inBitmap reuse pool, for its hit and miss counts, or null before Honeycomb
+     */
+    public BitmapPool getReusableBitmapPool() {
+        return mReusableBitmaps;
+    }
 
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
+    /**
+     * Releases reusable bitmaps when the system asks the app to trim memory.
+     *
+     * @param level The level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(int level) {
+        if (mReusableBitmaps != null) {
+            mReusableBitmaps.onTrimMemory(level);
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "onTrimMemory(" + level + ") - " + mReusableBitmaps);
             }
         }
-
-        return bitmap;
-        //END_INCLUDE(get_bitmap_from_reusable_set)
     }
 
     /**
@@ -424,30 +465,42 @@ public class ImageCache {
     }
 
     /**
-     * Clears both the memory and disk cache associated with this ImageCache object. Note that
-     * this includes disk access so this should not be executed on the main/UI thread.
+     * Clears every size variant of one image from both the memory and disk cache associated
+     * with this ImageCache object. Only disk variants stored or read since the cache was
+     * created can be found; older ones are never asked for again once the image is gone and
+     * age out of the cache. Note that this includes disk access so this should not be executed
+     * on the main/UI thread.
      *
      * @author anshu
      */
     public void clearCache(String imageUrl) {
         if (mMemoryCache != null) {
+            for (String key : mMemoryCache.snapshot().keySet()) {
+                if (imageUrl.equals(ImageSize.dataOf(key))) {
+                    mMemoryCache.remove(key);
+                }
+            }
             mMemoryCache.remove(imageUrl);
             if (BuildConfig.DEBUG) {
                 Log.d(TAG, "Memory cache cleared for " + imageUrl);
             }
         }
 
-        synchronized (mDiskCacheLock) {
-            mDiskCacheStarting = true;
-            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
-                try {
-                    mDiskLruCache.remove(imageUrl);
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "Disk cache cleared for " + imageUrl);
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "clearCache - " + e);
+        final ConcurrentDiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache != null && !diskLruCache.isClosed()) {
+            try {
+                // Entries are stored under the hashed key, see addBitmapToCache()
+                diskLruCache.remove(hashKeyForDisk(imageUrl));
+                for (String variant : mDiskCacheVariants) {
+                    diskLruCache.remove(hashKeyForDisk(ImageSize.cacheKey(imageUrl, variant)));
+                }
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Disk cache cleared for " + imageUrl);
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "clearCache - " + e);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "clearCache - " + e);
             }
         }
     }
@@ -505,6 +558,8 @@ public class ImageCache {
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+        public boolean diskCacheBinaryJournal = DEFAULT_DISK_CACHE_BINARY_JOURNAL;
+        public float bitmapPoolFraction = DEFAULT_BITMAP_POOL_FRACTION;
 
         /**
          * Create a set of image cache parameters that can be provided to
@@ -541,50 +596,6 @@ public class ImageCache {
         }
     }
 
-    /**
-     * @param candidate - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     *      <code>targetOptions</code>
-     */
-    @TargetApi(VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        //BEGIN_INCLUDE(can_use_for_inbitmap)
-        if (!Utils.hasKitKat()) {
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller than the reusable bitmap candidate allocation byte count.
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-        //END_INCLUDE(can_use_for_inbitmap)
-    }
-
-    /**
-     * Return the byte usage per pixel of a bitmap based on its configuration.
-     * @param config The bitmap configuration.
-     * @return The byte usage per pixel.
-     */
-    private static int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
-            return 4;
-        } else if (config == Config.RGB_565) {
-            return 2;
-        } else if (config == Config.ARGB_4444) {
-            return 2;
-        } else if (config == Config.ALPHA_8) {
-            return 1;
-        }
-        return 1;
-    }
-
     /**
      * Get a usable cache directory (external if available, internal otherwise).
      *
@@ -733,12 +744,50 @@ public class ImageCache {
      */
     public static class RetainFragment extends Fragment {
         private Object mObject;
+        private Context mApplicationContext;
+
+        // Forwards memory pressure to a retained ImageCache
+        private final ComponentCallbacks2 mTrimMemoryCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (mObject instanceof ImageCache) {
+                    ((ImageCache) mObject).onTrimMemory(level);
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                onTrimMemory(TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        };
 
         /**
          * Empty constructor as per the Fragment documentation
          */
         public RetainFragment() {}
 
+        @Override
+        public void onAttach(Activity activity) {
+            super.onAttach(activity);
+            if (mApplicationContext == null) {
+                mApplicationContext = activity.getApplicationContext();
+                mApplicationContext.registerComponentCallbacks(mTrimMemoryCallbacks);
+            }
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            if (mApplicationContext != null) {
+                mApplicationContext.unregisterComponentCallbacks(mTrimMemoryCallbacks);
+                mApplicationContext = null;
+            }
+        }
+
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
@@ -20,22 +20,21 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.Build;
 import android.widget.Toast;
 
 import com.cm.android.common.logger.Log;
 import com.cm.beer.activity.lite.BuildConfig;
 import com.cm.beer.activity.lite.R;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 
 /**
  * A simple subclass of {@link ImageResizer} that fetches and resizes images fetched from a URL.
@@ -44,15 +43,21 @@ public class ImageFetcher extends ImageResizer {
     private static final String TAG = "ImageFetcher";
     private static final int HTTP_CACHE_SIZE = 100 * 1024 * 1024; // 100MB
     private static final String HTTP_CACHE_DIR = "http";
-    private static final int IO_BUFFER_SIZE = 8 * 1024;
 
-    private DiskLruCache mHttpDiskCache;
+    private static final int DISK_CACHE_INDEX = 0;
+
+    // Every ImageFetcher uses the same HTTP cache directory, so they share one cache instance
+    // (reference counted by the fetchers that have initialized it) and one set of in-flight
+    // fetches. Otherwise the grid and the pager would each download the same image.
+    private static final Object sHttpDiskCacheLock = new Object();
+    private static volatile ConcurrentDiskLruCache sHttpDiskCache;
+    private static int sHttpDiskCacheUsers;
+    private static final SingleFlight<Boolean> sHttpFetches = new SingleFlight<Boolean>();
+
     private File mHttpCacheDir;
     private boolean mHttpDiskCacheStarting = true;
+    private boolean mHttpDiskCacheAcquired;
     private final Object mHttpDiskCacheLock = new Object();
-    private static final int DISK_CACHE_INDEX = 0;
-
-    private int mCreateThumbnailSize;
 
     /**
      * Initialize providing a target image width and height for the processing images.
@@ -80,7 +85,6 @@ public class ImageFetcher extends ImageResizer {
     private void init(Context context) {
         checkConnection(context);
         mHttpCacheDir = ImageCache.getDiskCacheDir(context, HTTP_CACHE_DIR);
-        mCreateThumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.create_image_thumbnail_size);
     }
 
     @Override
@@ -94,37 +98,57 @@ public class ImageFetcher extends ImageResizer {
             mHttpCacheDir.mkdirs();
         }
         synchronized (mHttpDiskCacheLock) {
-            if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
-                try {
-                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE);
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "HTTP cache initialized");
+            if (!mHttpDiskCacheAcquired) {
+                synchronized (sHttpDiskCacheLock) {
+                    sHttpDiskCacheUsers++;
+                    if (sHttpDiskCache == null || sHttpDiskCache.isClosed()) {
+                        openHttpDiskCache(mHttpCacheDir);
                     }
-                } catch (IOException e) {
-                    mHttpDiskCache = null;
                 }
+                mHttpDiskCacheAcquired = true;
             }
             mHttpDiskCacheStarting = false;
             mHttpDiskCacheLock.notifyAll();
         }
     }
 
+    /**
+     * Opens the shared HTTP cache. Must be called with sHttpDiskCacheLock held.
+     */
+    private static void openHttpDiskCache(File httpCacheDir) {
+        sHttpDiskCache = null;
+        if (ImageCache.getUsableSpace(httpCacheDir) > HTTP_CACHE_SIZE) {
+            try {
+                sHttpDiskCache = ConcurrentDiskLruCache.open(
+                        httpCacheDir, 1, 1, HTTP_CACHE_SIZE, true);
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "HTTP cache initialized");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "initHttpDiskCache - " + e);
+            }
+        }
+    }
+
     @Override
     protected void clearCacheInternal() {
         super.clearCacheInternal();
         synchronized (mHttpDiskCacheLock) {
-            if (mHttpDiskCache != null && !mHttpDiskCache.isClosed()) {
-                try {
-                    mHttpDiskCache.delete();
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "HTTP cache cleared");
+            if (!mHttpDiskCacheAcquired) {
+                return;
+            }
+            synchronized (sHttpDiskCacheLock) {
+                if (sHttpDiskCache != null && !sHttpDiskCache.isClosed()) {
+                    try {
+                        sHttpDiskCache.delete();
+                        if (BuildConfig.DEBUG) {
+                            Log.d(TAG, "HTTP cache cleared");
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "clearCacheInternal - " + e);
                     }
-                } catch (IOException e) {
-                    Log.e(TAG, "clearCacheInternal - " + e);
+                    openHttpDiskCache(mHttpCacheDir);
                 }
-                mHttpDiskCache = null;
-                mHttpDiskCacheStarting = true;
-                initHttpDiskCache();
             }
         }
     }
@@ -132,16 +156,17 @@ public class ImageFetcher extends ImageResizer {
     @Override
     protected void flushCacheInternal() {
         super.flushCacheInternal();
-        synchronized (mHttpDiskCacheLock) {
-            if (mHttpDiskCache != null) {
-                try {
-                    mHttpDiskCache.flush();
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "HTTP cache flushed");
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "flush - " + e);
+        final ConcurrentDiskLruCache httpDiskCache = getHttpDiskCache();
+        if (httpDiskCache != null) {
+            try {
+                httpDiskCache.flush();
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "HTTP cache flushed");
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "flush - " + e);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "flush - " + e);
             }
         }
     }
@@ -150,22 +175,62 @@ public class ImageFetcher extends ImageResizer {
     protected void closeCacheInternal() {
         super.closeCacheInternal();
         synchronized (mHttpDiskCacheLock) {
-            if (mHttpDiskCache != null) {
-                try {
-                    if (!mHttpDiskCache.isClosed()) {
-                        mHttpDiskCache.close();
-                        mHttpDiskCache = null;
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "HTTP cache closed");
+            if (!mHttpDiskCacheAcquired) {
+                return;
+            }
+            mHttpDiskCacheAcquired = false;
+            synchronized (sHttpDiskCacheLock) {
+                if (--sHttpDiskCacheUsers == 0 && sHttpDiskCache != null) {
+                    try {
+                        if (!sHttpDiskCache.isClosed()) {
+                            sHttpDiskCache.close();
+                            if (BuildConfig.DEBUG) {
+                                Log.d(TAG, "HTTP cache closed");
+                            }
                         }
+                    } catch (IOException e) {
+                        Log.e(TAG, "closeCacheInternal - " + e);
                     }
-                } catch (IOException e) {
-                    Log.e(TAG, "closeCacheInternal - " + e);
+                    sHttpDiskCache = null;
                 }
             }
         }
     }
 
+    /**
+     * @return The shared HTTP cache if this fetcher has initialized it and not yet closed it
+     */
+    private ConcurrentDiskLruCache getHttpDiskCache() {
+        synchronized (mHttpDiskCacheLock) {
+            return mHttpDiskCacheAcquired ? sHttpDiskCache : null;
+        }
+    }
+
+    /**
+     * Blocks until the HTTP disk cache has been opened and returns it. The lock is only held
+     * while waiting, so reads and downloads themselves run concurrently.
+     *
+     * @return The HTTP disk cache, or null if it could not be opened
+     */
+    private ConcurrentDiskLruCache waitForHttpDiskCache() {
+        synchronized (mHttpDiskCacheLock) {
+            while (mHttpDiskCacheStarting) {
+                try {
+                    mHttpDiskCacheLock.wait();
+                } catch (InterruptedException e) {}
+            }
+            return mHttpDiskCacheAcquired ? sHttpDiskCache : null;
+        }
+    }
+
+    /**
+     * @return How many fetches were served by another request's download or local copy of
+     *     the same image, across all fetchers
+     */
+    public static long getCoalescedFetchCount() {
+        return sHttpFetches.getCoalescedCount();
+    }
+
     /**
     * Simple network connection check.
     *
@@ -186,79 +251,59 @@ public class ImageFetcher extends ImageResizer {
      * thread.
      *
      * @param data The data to load the bitmap, in this case, a regular http URL
+     * @param size The bounds and config to decode to, or null for full size
      * @return The downloaded and resized bitmap
      */
-    private Bitmap processBitmap(String data) {
+    private Bitmap processBitmap(String data, ImageSize size) {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "processBitmap - " + data);
         }
 
-        final String key = ImageCache.hashKeyForDisk(data);
+        // Local photos are read from the smallest pre-generated derivative that still covers
+        // the request
+        final String source = data.startsWith("http://") || data.startsWith("https://")
+                ? data : ImagePyramid.selectSource(data, size);
+        final String key = ImageCache.hashKeyForDisk(source);
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
-        DiskLruCache.Snapshot snapshot;
-        synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
-                try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {}
-            }
-
-            if (mHttpDiskCache != null) {
-                try {
-                    snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if (editor != null) {
-                            //@author anshu
-                            boolean result = false;
-                            if(data.startsWith("http://") || data.startsWith("https://")){
-                               result =  downloadUrlToStream(data,
-                                        editor.newOutputStream(DISK_CACHE_INDEX));
-                            } else {
-                                //load locally
-                                result = loadLocally(data,
-                                        editor.newOutputStream(DISK_CACHE_INDEX));
-                            }
-
-                            if (result) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
+        ConcurrentDiskLruCache.Snapshot snapshot;
+        final ConcurrentDiskLruCache httpDiskCache = waitForHttpDiskCache();
+        if (httpDiskCache != null) {
+            try {
+                snapshot = httpDiskCache.get(key);
+                if (snapshot == null) {
+                    // Concurrent requests for the same image share one download, and a
+                    // download never holds up reads or downloads of other images
+                    sHttpFetches.execute(key, new SingleFlight.Loader<Boolean>() {
+                        @Override
+                        public Boolean load() {
+                            return fetchToHttpCache(httpDiskCache, key, source);
                         }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
-                    if (snapshot != null) {
-                        fileInputStream =
-                                (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {}
-                    }
+                    });
+                    snapshot = httpDiskCache.get(key);
+                }
+                if (snapshot != null) {
+                    fileInputStream =
+                            (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+                    fileDescriptor = fileInputStream.getFD();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "processBitmap - " + e);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "processBitmap - " + e);
+            } finally {
+                if (fileDescriptor == null && fileInputStream != null) {
+                    try {
+                        fileInputStream.close();
+                    } catch (IOException e) {}
                 }
             }
         }
 
         Bitmap bitmap = null;
         if (fileDescriptor != null) {
-            //TODO: Change imagewidth to a higher number, and decouple it from screen dp which is set in ImageGridFragment
-//            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth,
-//                    mImageHeight, getImageCache());
-            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mCreateThumbnailSize,
-                    mCreateThumbnailSize, getImageCache());
+            // The HTTP cache holds the original, sample it down to what the view draws
+            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, size, getImageCache());
         }
         if (fileInputStream != null) {
             try {
@@ -268,47 +313,92 @@ public class ImageFetcher extends ImageResizer {
         return bitmap;
     }
 
+    /**
+     * Downloads or copies {@code data} into the HTTP cache under {@code key}, unless another
+     * request put it there while this one was waiting.
+     *
+     * @return true if the entry is in the cache
+     */
+    private boolean fetchToHttpCache(ConcurrentDiskLruCache httpDiskCache, String key,
+            String data) {
+        try {
+            final ConcurrentDiskLruCache.Snapshot snapshot = httpDiskCache.get(key);
+            if (snapshot != null) {
+                snapshot.close();
+                return true;
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "processBitmap, not found in http cache, downloading...");
+            }
+            ConcurrentDiskLruCache.Editor editor = httpDiskCache.edit(key);
+            if (editor == null) {
+                return false;
+            }
+            //@author anshu
+            boolean result = false;
+            if(data.startsWith("http://") || data.startsWith("https://")){
+               result =  downloadUrlToStream(data,
+                        editor.newOutputStream(DISK_CACHE_INDEX));
+            } else {
+                //load locally
+                result = loadLocally(data,
+                        editor.newOutputStream(DISK_CACHE_INDEX));
+            }
+
+            if (result) {
+                editor.commit();
+            } else {
+                editor.abort();
+            }
+            return result;
+        } catch (IOException e) {
+            Log.e(TAG, "fetchToHttpCache - " + e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "fetchToHttpCache - " + e);
+        }
+        return false;
+    }
+
     @Override
-    protected Bitmap processBitmap(Object data) {
-        return processBitmap(String.valueOf(data));
+    protected Bitmap processBitmap(Object data, ImageSize size) {
+        return processBitmap(String.valueOf(data), size);
     }
 
     /**
-     * Download a bitmap from a URL and write the content to an output stream.
+     * Download a bitmap from a URL and write the content to an output stream, through the app's
+     * {@link HttpClient} so downloads from the same host reuse a connection.
      *
      * @param urlString The URL to fetch
      * @return true if successful, false otherwise
      */
-    public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
-        disableConnectionReuseIfNecessary();
-        HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
-
+    public boolean downloadUrlToStream(String urlString, final OutputStream outputStream) {
+        final HttpClient client = HttpClient.getInstance();
         try {
-            final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
-            return true;
+            final HttpRequest request = client.getRequestFactory().buildGetRequest(
+                    new GenericUrl(urlString));
+            request.setThrowExceptionOnExecuteError(false);
+            return client.execute(request, new HttpClient.ResponseHandler<Boolean>() {
+                @Override
+                public Boolean handle(HttpResponse response) throws IOException {
+                    if (!response.isSuccessStatusCode()) {
+                        Log.e(TAG, "Error in downloadBitmap - status " + response.getStatusCode());
+                        return false;
+                    }
+                    final InputStream content = response.getContent();
+                    if (content != null) {
+                        StreamCopier.copy(content, outputStream);
+                    }
+                    return true;
+                }
+            });
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
+        } catch (final IllegalArgumentException e) {
+            // Not a url
+            Log.e(TAG, "Error in downloadBitmap - " + e);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
             try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
+                outputStream.close();
             } catch (final IOException e) {}
         }
         return false;
@@ -322,44 +412,17 @@ public class ImageFetcher extends ImageResizer {
      * @author anshu
      */
     public boolean loadLocally(String urlString, OutputStream outputStream) {
-
-        File image = new File(urlString);
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
-
         try {
-            //final URL url = new URL(urlString);
-            in = new BufferedInputStream(new FileInputStream(image), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
+            // When the output is a disk cache entry this is a zero-copy channel transfer
+            StreamCopier.copy(new File(urlString), outputStream);
             return true;
         } catch (final IOException e) {
-            Log.e(TAG, "Error in downloadBitmap - " + e);
+            Log.e(TAG, "Error in loadLocally - " + e);
         } finally {
             try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
+                outputStream.close();
             } catch (final IOException e) {}
         }
         return false;
     }
-
-    /**
-     * Workaround for bug pre-Froyo, see here for more info:
-     * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
-     */
-    public static void disableConnectionReuseIfNecessary() {
-        // HTTP connection reuse which was buggy pre-froyo
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
-            System.setProperty("http.keepAlive", "false");
-        }
-    }
 }
@@ -0,0 +1,273 @@
+package com.cm.android.beercellar.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs image loading work in order of importance:
+ * <ul>
+ *     <li>{@link #PRIORITY_VISIBLE} loads for views on screen run first, newest first, so the
+ *         rows that just scrolled into view are served before the ones that already left;
+ *     <li>{@link #PRIORITY_PREFETCH} loads only run when no visible load is waiting;
+ *     <li>{@link #PRIORITY_MAINTENANCE} cache setup, flushing and closing run one at a time on a
+ *         thread of their own. Loads block until the caches are open, so this work must never
+ *         queue behind them.
+ * </ul>
+ * Nothing is discarded when the queue grows. Work wrapped in a {@link Future}, such as an
+ * {@link AsyncTask}, is dropped instead of run once it has been cancelled, and {@link #purge()}
+ * removes it from the queue early.
+ */
+public final class ImageLoadExecutor {
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_MAINTENANCE = 2;
+    private static final int PRIORITY_COUNT = 3;
+
+    private static final int MAX_LOAD_THREADS = 4;
+    private static final int KEEP_ALIVE_SECONDS = 1;
+
+    private static class InstanceHolder {
+        static final ImageLoadExecutor INSTANCE = new ImageLoadExecutor(defaultThreadCount());
+    }
+
+    private final ThreadPoolExecutor mLoadExecutor;
+    private final ThreadPoolExecutor mMaintenanceExecutor;
+    private final Executor[] mExecutors = new Executor[PRIORITY_COUNT];
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final AtomicLong[] mStartedCount = new AtomicLong[PRIORITY_COUNT];
+    private final AtomicLong[] mWaitNanos = new AtomicLong[PRIORITY_COUNT];
+    private final AtomicLong[] mMaxWaitNanos = new AtomicLong[PRIORITY_COUNT];
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicInteger mPeakQueueDepth = new AtomicInteger();
+
+    /**
+     * @return The executor shared by every {@link ImageWorker}
+     */
+    public static ImageLoadExecutor getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * @param loadThreads The number of threads running visible and prefetch loads
+     */
+    public ImageLoadExecutor(int loadThreads) {
+        mLoadExecutor = new ThreadPoolExecutor(loadThreads, loadThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new NamedThreadFactory("ImageLoader"));
+        mLoadExecutor.allowCoreThreadTimeOut(true);
+        mMaintenanceExecutor = new ThreadPoolExecutor(1, 1,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("ImageCacheMaintenance"));
+        mMaintenanceExecutor.allowCoreThreadTimeOut(true);
+
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            final int priority = i;
+            mExecutors[i] = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    ImageLoadExecutor.this.execute(command, priority);
+                }
+            };
+            mStartedCount[i] = new AtomicLong();
+            mWaitNanos[i] = new AtomicLong();
+            mMaxWaitNanos[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * One load thread per core, leaving one for the UI, between 2 and {@link #MAX_LOAD_THREADS}.
+     */
+    static int defaultThreadCount() {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(2, Math.min(MAX_LOAD_THREADS, cores - 1));
+    }
+
+    /**
+     * @return An executor that runs everything at {@code priority}, for
+     *     {@link AsyncTask#executeOnExecutor}
+     */
+    public Executor forPriority(int priority) {
+        return mExecutors[priority];
+    }
+
+    public void execute(Runnable command, int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("priority=" + priority);
+        }
+        final Task task = new Task(command, priority, mSequence.getAndIncrement());
+        if (priority == PRIORITY_MAINTENANCE) {
+            mMaintenanceExecutor.execute(task);
+            return;
+        }
+        mLoadExecutor.execute(task);
+
+        final int depth = mLoadExecutor.getQueue().size();
+        int peak;
+        while (depth > (peak = mPeakQueueDepth.get())
+                && !mPeakQueueDepth.compareAndSet(peak, depth)) {
+            // Raced with another thread, retry
+        }
+    }
+
+    /**
+     * Removes {@code command} from the queue if it has not started yet.
+     *
+     * @return true if it was removed
+     */
+    public boolean remove(Runnable command) {
+        for (Runnable queued : mLoadExecutor.getQueue()) {
+            if (((Task) queued).mCommand == command) {
+                return mLoadExecutor.remove(queued);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every cancelled task from the queue.
+     *
+     * @return The number of tasks removed
+     */
+    public int purge() {
+        int removed = 0;
+        for (Runnable queued : mLoadExecutor.getQueue()) {
+            if (((Task) queued).isCancelled() && mLoadExecutor.remove(queued)) {
+                removed++;
+            }
+        }
+        mDroppedCount.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * @return The number of loads waiting for a thread
+     */
+    public int getQueueDepth() {
+        return mLoadExecutor.getQueue().size();
+    }
+
+    /**
+     * @return The most loads that have been waiting for a thread at once
+     */
+    public int getPeakQueueDepth() {
+        return mPeakQueueDepth.get();
+    }
+
+    /**
+     * @return The number of cancelled tasks that were dropped without running
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return How long tasks of {@code priority} have waited for a thread on average
+     */
+    public long getAverageWaitMillis(int priority) {
+        final long started = mStartedCount[priority].get();
+        return started != 0
+                ? TimeUnit.NANOSECONDS.toMillis(mWaitNanos[priority].get() / started) : 0;
+    }
+
+    /**
+     * @return The longest a task of {@code priority} has waited for a thread
+     */
+    public long getMaxWaitMillis(int priority) {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos[priority].get());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("ImageLoadExecutor[threads=")
+                .append(mLoadExecutor.getMaximumPoolSize())
+                .append(",queued=").append(getQueueDepth())
+                .append(",peakQueued=").append(getPeakQueueDepth())
+                .append(",dropped=").append(getDroppedCount());
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            builder.append(",p").append(i)
+                    .append("{started=").append(mStartedCount[i].get())
+                    .append(",avgWaitMs=").append(getAverageWaitMillis(i))
+                    .append(",maxWaitMs=").append(getMaxWaitMillis(i))
+                    .append('}');
+        }
+        return builder.append(']').toString();
+    }
+
+    private void recordWait(int priority, long waitNanos) {
+        mStartedCount[priority].incrementAndGet();
+        mWaitNanos[priority].addAndGet(waitNanos);
+        final AtomicLong max = mMaxWaitNanos[priority];
+        long current;
+        while (waitNanos > (current = max.get()) && !max.compareAndSet(current, waitNanos)) {
+            // Raced with another thread, retry
+        }
+    }
+
+    /**
+     * A queued command with its priority. Visible work is ordered newest first, everything
+     * else oldest first.
+     */
+    private final class Task implements Runnable, Comparable<Task> {
+        final Runnable mCommand;
+        final int mPriority;
+        final long mSequence;
+        final long mEnqueuedNanos = System.nanoTime();
+
+        Task(Runnable command, int priority, long sequence) {
+            mCommand = command;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        boolean isCancelled() {
+            return mCommand instanceof Future && ((Future<?>) mCommand).isCancelled();
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                mDroppedCount.incrementAndGet();
+                return;
+            }
+            recordWait(mPriority, System.nanoTime() - mEnqueuedNanos);
+            mCommand.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            if (mSequence == other.mSequence) {
+                return 0;
+            }
+            final boolean older = mSequence < other.mSequence;
+            if (mPriority == PRIORITY_VISIBLE) {
+                return older ? 1 : -1;
+            }
+            return older ? -1 : 1;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, mName + " #" + mCount.getAndIncrement());
+        }
+    }
+}
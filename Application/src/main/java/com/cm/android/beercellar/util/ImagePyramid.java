@@ -0,0 +1,425 @@
+package com.cm.android.beercellar.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.cm.android.common.logger.Log;
+import com.cm.beer.activity.lite.BuildConfig;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates smaller derivatives of captured photos in the background, so that loads decode only
+ * roughly the pixels they draw instead of the full camera image. Each photo gets:
+ * <ul>
+ *     <li>{@link #LEVEL_GRID} a square, center cropped thumbnail in the thumbnail directory;
+ *     <li>{@link #LEVEL_DETAIL} a copy no larger than {@link #DETAIL_SIZE} on its longest edge,
+ *         in a directory next to the originals;
+ *     <li>{@link #LEVEL_FULL} the original, untouched.
+ * </ul>
+ * Levels are written to a temporary file and renamed, so a level either exists complete or not
+ * at all. Photos waiting for their levels are remembered in the shared preferences, and
+ * {@link #resumePending()} finishes them after the process was killed.
+ */
+public final class ImagePyramid {
+    private static final String TAG = "ImagePyramid";
+
+    public static final int LEVEL_GRID = 0;
+    public static final int LEVEL_DETAIL = 1;
+    public static final int LEVEL_FULL = 2;
+
+    /** Edge of the square grid thumbnails, enough for three columns on a 1440px wide screen */
+    public static final int GRID_SIZE = 480;
+    /** Longest edge of the detail previews, enough for the pager at half the screen height */
+    public static final int DETAIL_SIZE = 1280;
+
+    private static final int GRID_QUALITY = 80;
+    private static final int DETAIL_QUALITY = 85;
+
+    private static final String GRID_DIR = "thumbs";
+    private static final String DETAIL_DIR = "detail";
+    private static final String FULL_DIR = "images";
+    // Levels are written here and renamed into place, so directory listings never see a
+    // partial file
+    private static final String TMP_DIR = ".pyramid-tmp";
+
+    private static final String PREF_PENDING = "PYRAMID_PENDING";
+
+    /**
+     * Interface definition for callback once the derivatives of a photo have been written.
+     */
+    public interface OnPyramidGeneratedListener {
+
+        /**
+         * Called on the main thread.
+         *
+         * @param imageFileName The file name of the photo
+         * @param grid          The grid thumbnail, or null if it could not be generated
+         */
+        void onPyramidGenerated(String imageFileName, Bitmap grid);
+    }
+
+    private static ImagePyramid sInstance;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ImagePyramid");
+                }
+            });
+    // File names queued or being generated in this process
+    private final Set<String> mQueued = new HashSet<String>();
+
+    private final AtomicLong mGeneratedCount = new AtomicLong();
+    private final AtomicLong mGenerationMillis = new AtomicLong();
+    private final AtomicLong mMaxGenerationMillis = new AtomicLong();
+
+    public static synchronized ImagePyramid getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImagePyramid(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ImagePyramid(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Queues generation of the derivatives of a photo in the originals directory. The photo is
+     * remembered until every level has been written.
+     *
+     * @param imageFileName The file name of the photo
+     * @param listener      Called on the main thread once done, may be null
+     */
+    public void generate(String imageFileName, OnPyramidGeneratedListener listener) {
+        synchronized (this) {
+            final Set<String> pending = new HashSet<String>(getPending());
+            if (pending.add(imageFileName)) {
+                getPreferences().edit().putStringSet(PREF_PENDING, pending).commit();
+            }
+        }
+        enqueue(imageFileName, listener);
+    }
+
+    /**
+     * Queues every photo whose derivatives were not finished, for example because the process
+     * was killed. Call once the app starts.
+     */
+    public void resumePending() {
+        final Set<String> pending;
+        synchronized (this) {
+            pending = new HashSet<String>(getPending());
+        }
+        for (String imageFileName : pending) {
+            enqueue(imageFileName, null);
+        }
+    }
+
+    /**
+     * Returns the smallest derivative of {@code path} that covers {@code size}. Grid
+     * thumbnails are cropped, so they are only used for requests for a grid thumbnail. Paths
+     * that are not part of a pyramid are kept, and levels that do not exist, the grid thumbnail
+     * asked for included, fall back to the next larger level and finally to {@code path}
+     * itself.
+     *
+     * @param path The path of a photo or one of its derivatives
+     * @param size The bounds the image will be decoded to, or null for full size
+     * @return The path to decode
+     */
+    public static String selectSource(String path, ImageSize size) {
+        final File file = new File(path);
+        final File parent = file.getParentFile();
+        if (parent == null || parent.getParentFile() == null) {
+            return path;
+        }
+        final int level = levelOf(parent.getName());
+        if (level == LEVEL_DETAIL || level < 0) {
+            return path;
+        }
+
+        final int longest = size != null ? Math.max(size.width, size.height) : Integer.MAX_VALUE;
+        if (level == LEVEL_GRID && longest <= GRID_SIZE && file.exists()) {
+            return path;
+        }
+        if (longest <= DETAIL_SIZE) {
+            final File detail = getLevelFile(parent.getParentFile(), file.getName(), LEVEL_DETAIL);
+            if (detail.exists()) {
+                return detail.getAbsolutePath();
+            }
+        }
+        if (level == LEVEL_GRID) {
+            final File full = getLevelFile(parent.getParentFile(), file.getName(), LEVEL_FULL);
+            if (full.exists()) {
+                return full.getAbsolutePath();
+            }
+        }
+        return path;
+    }
+
+    /**
+     * @param path The path of a photo or one of its derivatives
+     * @return The file of the given level of the same photo
+     */
+    public static File getLevelFile(String path, int level) {
+        final File file = new File(path);
+        return getLevelFile(file.getParentFile().getParentFile(), file.getName(), level);
+    }
+
+    private static File getLevelFile(File baseDir, String imageFileName, int level) {
+        final String dir = level == LEVEL_GRID ? GRID_DIR : level == LEVEL_DETAIL ? DETAIL_DIR
+                : FULL_DIR;
+        return new File(new File(baseDir, dir), imageFileName);
+    }
+
+    private static int levelOf(String dirName) {
+        if (GRID_DIR.equals(dirName)) {
+            return LEVEL_GRID;
+        } else if (DETAIL_DIR.equals(dirName)) {
+            return LEVEL_DETAIL;
+        } else if (FULL_DIR.equals(dirName)) {
+            return LEVEL_FULL;
+        }
+        return -1;
+    }
+
+    /**
+     * @return How many photos have had their derivatives generated in this process
+     */
+    public long getGeneratedCount() {
+        return mGeneratedCount.get();
+    }
+
+    /**
+     * @return The average time spent generating the derivatives of one photo
+     */
+    public long getAverageGenerationMillis() {
+        final long count = mGeneratedCount.get();
+        return count != 0 ? mGenerationMillis.get() / count : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ImagePyramid[generated=" + mGeneratedCount.get() + ",avgMs="
+                + getAverageGenerationMillis() + ",maxMs=" + mMaxGenerationMillis.get() + "]";
+    }
+
+    private void enqueue(final String imageFileName, final OnPyramidGeneratedListener listener) {
+        synchronized (mQueued) {
+            if (!mQueued.add(imageFileName) && listener == null) {
+                return;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                Bitmap grid = null;
+                try {
+                    grid = generateLevels(imageFileName);
+                } finally {
+                    synchronized (mQueued) {
+                        mQueued.remove(imageFileName);
+                    }
+                }
+                if (listener != null) {
+                    final Bitmap result = grid;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onPyramidGenerated(imageFileName, result);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the missing levels of one photo, on the pyramid thread.
+     *
+     * @return The grid thumbnail, or null if it could not be generated
+     */
+    private Bitmap generateLevels(String imageFileName) {
+        final File original = new File(Utils.getExternalImageStorageDir(mContext), imageFileName);
+        final File baseDir = original.getParentFile().getParentFile();
+        final File gridFile = getLevelFile(baseDir, imageFileName, LEVEL_GRID);
+        final File detailFile = getLevelFile(baseDir, imageFileName, LEVEL_DETAIL);
+        if (!original.exists()) {
+            // Deleted before we got to it
+            Log.e(TAG, "generateLevels - missing " + original);
+            removePending(imageFileName);
+            return null;
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        Bitmap detail = null;
+        Bitmap grid = null;
+        long decodeMillis = 0;
+        long detailMillis = 0;
+        long gridMillis = 0;
+        boolean generated = false;
+        try {
+            // One sampled decode feeds both levels. Reuse a finished detail level if the
+            // process died after writing it.
+            final String source = detailFile.exists()
+                    ? detailFile.getAbsolutePath() : original.getAbsolutePath();
+            detail = decodeToLongestEdge(source, DETAIL_SIZE);
+            decodeMillis = SystemClock.elapsedRealtime() - start;
+            if (detail == null) {
+                Log.e(TAG, "generateLevels - could not decode " + source);
+                removePending(imageFileName);
+                return null;
+            }
+
+            if (!detailFile.exists()) {
+                writeJpeg(detail, detailFile, DETAIL_QUALITY);
+            }
+            detailMillis = SystemClock.elapsedRealtime() - start - decodeMillis;
+
+            grid = ThumbnailUtils.extractThumbnail(detail, GRID_SIZE, GRID_SIZE);
+            if (!gridFile.exists()) {
+                writeJpeg(grid, gridFile, GRID_QUALITY);
+            }
+            gridMillis = SystemClock.elapsedRealtime() - start - decodeMillis - detailMillis;
+
+            removePending(imageFileName);
+            generated = true;
+        } catch (IOException e) {
+            // Left pending, resumePending() tries again
+            Log.e(TAG, "generateLevels - " + e);
+        } finally {
+            if (detail != null && detail != grid) {
+                detail.recycle();
+            }
+        }
+
+        if (!generated) {
+            return grid;
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        mGeneratedCount.incrementAndGet();
+        mGenerationMillis.addAndGet(elapsed);
+        long max;
+        while (elapsed > (max = mMaxGenerationMillis.get())
+                && !mMaxGenerationMillis.compareAndSet(max, elapsed)) {
+            // Raced with another thread, retry
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "generateLevels - " + imageFileName + " in " + elapsed + "ms (decode "
+                    + decodeMillis + "ms, detail " + detailMillis + "ms, grid " + gridMillis
+                    + "ms), " + this);
+        }
+        return grid;
+    }
+
+    /**
+     * @return The largest power of two to sample a {@code width} by {@code height} image by
+     * that keeps its longest edge at least {@code maxEdge}, so it is only ever scaled down
+     * after
+     */
+    public static int calculateSampleSize(int width, int height, int maxEdge) {
+        final int longest = Math.max(width, height);
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= maxEdge) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decodes {@code path} sampled down, then scales it so its longest edge is at most
+     * {@code maxEdge}.
+     */
+    private static Bitmap decodeToLongestEdge(String path, int maxEdge) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize =
+                calculateSampleSize(options.outWidth, options.outHeight, maxEdge);
+        options.inJustDecodeBounds = false;
+        final Bitmap sampled = BitmapFactory.decodeFile(path, options);
+        if (sampled == null) {
+            return null;
+        }
+
+        final int longest = Math.max(sampled.getWidth(), sampled.getHeight());
+        if (longest <= maxEdge) {
+            return sampled;
+        }
+        final float scale = (float) maxEdge / longest;
+        final Bitmap scaled = Bitmap.createScaledBitmap(sampled,
+                Math.round(sampled.getWidth() * scale), Math.round(sampled.getHeight() * scale),
+                true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+
+    private static void writeJpeg(Bitmap bitmap, File file, int quality) throws IOException {
+        final File dir = file.getParentFile();
+        final File tmpDir = new File(dir.getParentFile(), TMP_DIR);
+        if ((!dir.exists() && !dir.mkdirs()) || (!tmpDir.exists() && !tmpDir.mkdirs())) {
+            throw new IOException("Could not create " + dir);
+        }
+        final File tmp = new File(tmpDir, dir.getName() + "-" + file.getName());
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp), Utils.IO_BUFFER_SIZE);
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                throw new IOException("Could not encode " + file);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+            }
+            tmp.delete();
+        }
+    }
+
+    private synchronized void removePending(String imageFileName) {
+        final Set<String> pending = new HashSet<String>(getPending());
+        if (pending.remove(imageFileName)) {
+            getPreferences().edit().putStringSet(PREF_PENDING, pending).commit();
+        }
+    }
+
+    private Set<String> getPending() {
+        return getPreferences().getStringSet(PREF_PENDING, new HashSet<String>());
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(Utils.SHARED_PREF_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -37,6 +37,8 @@ public class ImageResizer extends ImageWorker {
     private static final String TAG = "ImageResizer";
     protected int mImageWidth;
     protected int mImageHeight;
+    private Bitmap.Config mBitmapConfig;
+    private ImageSize mImageSize;
 
     /**
      * Initialize providing a single target image size (used for both width and height);
@@ -70,6 +72,7 @@ public class ImageResizer extends ImageWorker {
     public void setImageSize(int width, int height) {
         mImageWidth = width;
         mImageHeight = height;
+        mImageSize = new ImageSize(width, height, mBitmapConfig);
     }
 
     /**
@@ -81,6 +84,22 @@ public class ImageResizer extends ImageWorker {
         setImageSize(size, size);
     }
 
+    /**
+     * Set the config images are decoded to, for example {@link Bitmap.Config#RGB_565} to halve
+     * the memory used by opaque thumbnails. Null uses the decoder's default.
+     *
+     * @param config
+     */
+    public void setBitmapConfig(Bitmap.Config config) {
+        mBitmapConfig = config;
+        mImageSize = new ImageSize(mImageWidth, mImageHeight, config);
+    }
+
+    @Override
+    protected ImageSize getImageSize() {
+        return mImageSize;
+    }
+
     /**
      * The main processing method. This happens in a background task. In this case we are just
      * sampling down the bitmap and returning it from a resource.
@@ -88,17 +107,16 @@ public class ImageResizer extends ImageWorker {
      * @param resId
      * @return
      */
-    private Bitmap processBitmap(int resId) {
+    private Bitmap processBitmap(int resId, ImageSize size) {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "processBitmap - " + resId);
         }
-        return decodeSampledBitmapFromResource(mResources, resId, mImageWidth,
-                mImageHeight, getImageCache());
+        return decodeSampledBitmapFromResource(mResources, resId, size, getImageCache());
     }
 
     @Override
-    protected Bitmap processBitmap(Object data) {
-        return processBitmap(Integer.parseInt(String.valueOf(data)));
+    protected Bitmap processBitmap(Object data, ImageSize size) {
+        return processBitmap(Integer.parseInt(String.valueOf(data)), size);
     }
 
     /**
@@ -114,6 +132,22 @@ public class ImageResizer extends ImageWorker {
      */
     public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
             int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromResource(res, resId,
+                new ImageSize(reqWidth, reqHeight, null), cache);
+    }
+
+    /**
+     * Decode and sample down a bitmap from resources to the requested size.
+     *
+     * @param res The resources object containing the image data
+     * @param resId The resource id of the image data
+     * @param size The requested bounds and config, or null to decode at full size
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
+            ImageSize size, ImageCache cache) {
 
         // BEGIN_INCLUDE (read_bitmap_dimensions)
         // First decode with inJustDecodeBounds=true to check dimensions
@@ -122,7 +156,7 @@ public class ImageResizer extends ImageWorker {
         BitmapFactory.decodeResource(res, resId, options);
 
         // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        setSizeOptions(options, size);
         // END_INCLUDE (read_bitmap_dimensions)
 
         // If we're running on Honeycomb or newer, try to use inBitmap
@@ -147,6 +181,21 @@ public class ImageResizer extends ImageWorker {
      */
     public static Bitmap decodeSampledBitmapFromFile(String filename,
             int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromFile(filename,
+                new ImageSize(reqWidth, reqHeight, null), cache);
+    }
+
+    /**
+     * Decode and sample down a bitmap from a file to the requested size.
+     *
+     * @param filename The full path of the file to decode
+     * @param size The requested bounds and config, or null to decode at full size
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String filename,
+            ImageSize size, ImageCache cache) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -154,7 +203,7 @@ public class ImageResizer extends ImageWorker {
         BitmapFactory.decodeFile(filename, options);
 
         // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        setSizeOptions(options, size);
 
         // If we're running on Honeycomb or newer, try to use inBitmap
         if (Utils.hasHoneycomb()) {
@@ -178,6 +227,21 @@ public class ImageResizer extends ImageWorker {
      */
     public static Bitmap decodeSampledBitmapFromDescriptor(
             FileDescriptor fileDescriptor, int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor,
+                new ImageSize(reqWidth, reqHeight, null), cache);
+    }
+
+    /**
+     * Decode and sample down a bitmap from a file input stream to the requested size.
+     *
+     * @param fileDescriptor The file descriptor to read from
+     * @param size The requested bounds and config, or null to decode at full size
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(
+            FileDescriptor fileDescriptor, ImageSize size, ImageCache cache) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -185,7 +249,7 @@ public class ImageResizer extends ImageWorker {
         BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
 
         // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        setSizeOptions(options, size);
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
@@ -198,6 +262,20 @@ public class ImageResizer extends ImageWorker {
         return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
     }
 
+    /**
+     * Sets the sample size and config for decoding to {@code size}, once the bounds are known.
+     */
+    private static void setSizeOptions(BitmapFactory.Options options, ImageSize size) {
+        if (size == null) {
+            options.inSampleSize = 1;
+            return;
+        }
+        options.inSampleSize = calculateInSampleSize(options, size.width, size.height);
+        if (size.config != null) {
+            options.inPreferredConfig = size.config;
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private static void addInBitmapOptions(BitmapFactory.Options options, ImageCache cache) {
         //BEGIN_INCLUDE(add_bitmap_options)
@@ -0,0 +1,97 @@
+package com.cm.android.beercellar.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * The bounds and pixel format an image is decoded to. Loads carry one so that a thumbnail grid
+ * and a full screen pager showing the same image each decode, and cache, only the pixels they
+ * draw. Each size is a separate variant in the memory and disk caches, see
+ * {@link #getCacheKey(Object)}.
+ */
+public final class ImageSize {
+    // Separates the data from the size variant in cache keys. Variants never contain it, so
+    // data that does is still split correctly.
+    private static final char VARIANT_SEPARATOR = '#';
+
+    public final int width;
+    public final int height;
+    /** The config to decode to, or null for the decoder's default */
+    public final Bitmap.Config config;
+
+    /**
+     * @param width  The width the decoded bitmap should cover
+     * @param height The height the decoded bitmap should cover
+     * @param config The config to decode to, for example {@link Bitmap.Config#RGB_565} for
+     *               opaque thumbnails, or null for the decoder's default
+     */
+    public ImageSize(int width, int height, Bitmap.Config config) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width=" + width + ", height=" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.config = config;
+    }
+
+    /**
+     * @return The key that the image for {@code data} decoded at this size is cached under
+     */
+    public String getCacheKey(Object data) {
+        return cacheKey(String.valueOf(data), getVariant());
+    }
+
+    /**
+     * @return The key for {@code data} in the size variant {@code variant}
+     */
+    static String cacheKey(String data, String variant) {
+        return data + VARIANT_SEPARATOR + variant;
+    }
+
+    /**
+     * @return The part of a cache key that identifies the size, e.g. {@code 320x320:RGB_565}
+     */
+    public String getVariant() {
+        return width + "x" + height + ":" + (config != null ? config.name() : "default");
+    }
+
+    /**
+     * @return The data a cache key was made for, or the key itself if it has no size variant
+     */
+    public static String dataOf(String cacheKey) {
+        final int separator = cacheKey.lastIndexOf(VARIANT_SEPARATOR);
+        return separator >= 0 ? cacheKey.substring(0, separator) : cacheKey;
+    }
+
+    /**
+     * @return The size variant of a cache key, or null if it has none
+     */
+    public static String variantOf(String cacheKey) {
+        final int separator = cacheKey.lastIndexOf(VARIANT_SEPARATOR);
+        return separator >= 0 ? cacheKey.substring(separator + 1) : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ImageSize)) {
+            return false;
+        }
+        final ImageSize other = (ImageSize) o;
+        return width == other.width && height == other.height && config == other.config;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = width;
+        result = 31 * result + height;
+        result = 31 * result + (config != null ? config.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageSize[" + getVariant() + "]";
+    }
+}
@@ -24,6 +24,8 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.widget.ImageView;
@@ -33,7 +35,14 @@ import com.cm.android.common.logger.Log;
 import com.cm.beer.activity.lite.BuildConfig;
 
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap to an
@@ -54,6 +63,41 @@ public abstract class ImageWorker {
 
     protected Resources mResources;
 
+    // Loads in flight, by data key. Several ImageViews asking for the same data attach to one
+    // task instead of each decoding it. Only touched on the main thread.
+    private final HashMap<String, BitmapWorkerTask> mInFlightTasks =
+            new HashMap<String, BitmapWorkerTask>();
+    private volatile int mCoalescedLoadCount;
+
+    // Scroll-driven prefetching. Rows ahead of the visible window are warmed into the caches
+    // at prefetch priority, so they never hold up the loads for visible views.
+    private static final int PREFETCH_MIN_ROWS = 1;
+    private static final int PREFETCH_MAX_ROWS = 4;
+    // While scrolling, try to stay this far ahead of the visible window
+    private static final long PREFETCH_LOOKAHEAD_MS = 500;
+    private static final int MAX_TRACKED_PREFETCHES = 256;
+
+    private final ConcurrentHashMap<String, PrefetchTask> mPrefetchTasks =
+            new ConcurrentHashMap<String, PrefetchTask>();
+    // Keys warmed by a prefetch and not yet asked for by loadImage, oldest first
+    private final Map<String, Boolean> mPrefetchedKeys =
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_TRACKED_PREFETCHES;
+                }
+            };
+    private final AtomicInteger mPrefetchCount = new AtomicInteger();
+    private volatile int mPrefetchHitCount;
+    // Scroll state, only touched on the main thread
+    private int mLastScrollPosition = -1;
+    private long mLastScrollTime;
+    private int mScrollDirection;
+
+    // Cache setup and teardown, one at a time and never queued behind loads
+    private static final Executor MAINTENANCE_EXECUTOR = ImageLoadExecutor.getInstance()
+            .forPriority(ImageLoadExecutor.PRIORITY_MAINTENANCE);
+
     private static final int MESSAGE_CLEAR = 0;
     private static final int MESSAGE_INIT_DISK_CACHE = 1;
     private static final int MESSAGE_FLUSH = 2;
@@ -78,14 +122,34 @@ public abstract class ImageWorker {
      * @param listener  A listener that will be called back once the image has been loaded.
      */
     public void loadImage(Object data, ImageView imageView, OnImageLoadedListener listener) {
+        loadImage(data, getImageSize(), imageView, listener);
+    }
+
+    /**
+     * Load an image specified by the data parameter into an ImageView, decoded to the given
+     * size. Each size is cached separately, so the same image can be shown at thumbnail and
+     * full screen size without decoding more pixels than are drawn.
+     *
+     * @param data      The URL of the image to download.
+     * @param size      The bounds and config to decode to, or null for full size.
+     * @param imageView The ImageView to bind the downloaded image to.
+     * @param listener  A listener that will be called back once the image has been loaded.
+     */
+    public void loadImage(Object data, ImageSize size, ImageView imageView,
+                          OnImageLoadedListener listener) {
         if (data == null) {
             return;
         }
 
+        final String key = cacheKey(data, size);
         BitmapDrawable value = null;
 
         if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            value = mImageCache.getBitmapFromMemCache(key);
+        }
+
+        if (consumePrefetched(key) && value != null) {
+            mPrefetchHitCount++;
         }
 
         if (value != null) {
@@ -94,17 +158,38 @@ public abstract class ImageWorker {
             if (listener != null) {
                 listener.onImageLoaded(true);
             }
-        } else if (cancelPotentialWork(data, imageView)) {
+        } else if (cancelPotentialWorkForKey(key, imageView)) {
             //BEGIN_INCLUDE(execute_background_task)
-            final BitmapWorkerTask task = new BitmapWorkerTask(data, imageView, listener);
+            final PrefetchTask prefetch = mPrefetchTasks.get(key);
+            if (prefetch != null) {
+                // The view needs it now, load it at full priority instead
+                prefetch.cancel();
+            }
+            BitmapWorkerTask task = mInFlightTasks.get(key);
+            final boolean coalesced = task != null;
+            if (coalesced) {
+                // Already being loaded for another view, share the result
+                mCoalescedLoadCount++;
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "loadImage - joined in-flight load for " + key
+                            + ", " + mCoalescedLoadCount + " duplicate loads avoided");
+                }
+            } else {
+                task = new BitmapWorkerTask(data, size);
+                mInFlightTasks.put(key, task);
+            }
+            final ImageRequest request = task.attach(imageView, listener);
             final AsyncDrawable asyncDrawable =
-                    new AsyncDrawable(mResources, mLoadingBitmap, task);
+                    new AsyncDrawable(mResources, mLoadingBitmap, request);
             imageView.setImageDrawable(asyncDrawable);
 
-            // NOTE: This uses a custom version of AsyncTask that has been pulled from the
-            // framework and slightly modified. Refer to the docs at the top of the class
-            // for more info on what was changed.
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR);
+            if (!coalesced) {
+                // NOTE: This uses a custom version of AsyncTask that has been pulled from the
+                // framework and slightly modified. Refer to the docs at the top of the class
+                // for more info on what was changed.
+                task.executeOnExecutor(ImageLoadExecutor.getInstance()
+                        .forPriority(ImageLoadExecutor.PRIORITY_VISIBLE));
+            }
             //END_INCLUDE(execute_background_task)
         }
     }
@@ -133,17 +218,12 @@ public abstract class ImageWorker {
         if (data == null) {
             return;
         }
-        BitmapDrawable value = null;
         if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
-        }
-
-        if (value != null) {
-            // Bitmap found in memory cache
+            // Removes every size variant of the image
             mImageCache.clearCache(String.valueOf(data));
-            if (listener != null) {
-                listener.onImageDeleted(true);
-            }
+        }
+        if (listener != null) {
+            listener.onImageDeleted(true);
         }
 
     }
@@ -158,14 +238,9 @@ public abstract class ImageWorker {
             return;
         }
         for (Object d : data) {
-            BitmapDrawable value = null;
-            if (mImageCache != null) {
-                value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
-            }
-
-            if (value != null) {
-                // Bitmap found in memory cache
-                mImageCache.clearCache(String.valueOf(data));
+            if (mImageCache != null && d != null) {
+                // Removes every size variant of the image
+                mImageCache.clearCache(String.valueOf(d));
             }
         }
         if (listener != null) {
@@ -203,7 +278,7 @@ public abstract class ImageWorker {
                               ImageCache.ImageCacheParams cacheParams) {
         mImageCacheParams = cacheParams;
         mImageCache = ImageCache.getInstance(fragmentManager, mImageCacheParams);
-        new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
+        new CacheAsyncTask().executeOnExecutor(MAINTENANCE_EXECUTOR, MESSAGE_INIT_DISK_CACHE);
     }
 
     /**
@@ -217,7 +292,7 @@ public abstract class ImageWorker {
     public void addImageCache(FragmentActivity activity, String diskCacheDirectoryName) {
         mImageCacheParams = new ImageCache.ImageCacheParams(activity, diskCacheDirectoryName);
         mImageCache = ImageCache.getInstance(activity.getSupportFragmentManager(), mImageCacheParams);
-        new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
+        new CacheAsyncTask().executeOnExecutor(MAINTENANCE_EXECUTOR, MESSAGE_INIT_DISK_CACHE);
     }
 
     /**
@@ -230,6 +305,125 @@ public abstract class ImageWorker {
     public void setExitTasksEarly(boolean exitTasksEarly) {
         mExitTasksEarly = exitTasksEarly;
         setPauseWork(false);
+        if (exitTasksEarly) {
+            cancelPrefetches();
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "setExitTasksEarly - " + mPrefetchHitCount + " of "
+                        + mPrefetchCount.get() + " prefetched images were shown");
+            }
+        }
+    }
+
+    /**
+     * Tells the worker that a scrolling list of images has moved, so that the rows about to come
+     * into view can be loaded into the memory and disk caches ahead of time. How many rows are
+     * prefetched depends on how fast the list is moving. Prefetched images are not bound to any
+     * ImageView; pending prefetches are dropped when the scroll direction reverses or work is
+     * paused. Does nothing without an {@link ImageCache}. Must be called on the main thread,
+     * typically from {@link android.widget.AbsListView.OnScrollListener#onScroll}.
+     *
+     * @param data         The data of every item in the list, in order
+     * @param firstVisible The index in {@code data} of the first visible item
+     * @param visibleCount The number of visible items
+     * @param itemsPerRow  The number of items in each row, 1 for a plain list
+     */
+    public void onScroll(List<?> data, int firstVisible, int visibleCount, int itemsPerRow) {
+        if (data == null || itemsPerRow <= 0 || mImageCache == null
+                || firstVisible == mLastScrollPosition) {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        final int direction = firstVisible >= mLastScrollPosition ? 1 : -1;
+        float itemsPerMs = 0;
+        if (mLastScrollPosition >= 0) {
+            itemsPerMs = (float) Math.abs(firstVisible - mLastScrollPosition)
+                    / Math.max(1, now - mLastScrollTime);
+        }
+        if (direction != mScrollDirection) {
+            cancelPrefetches();
+        }
+        mScrollDirection = direction;
+        mLastScrollPosition = firstVisible;
+        mLastScrollTime = now;
+
+        if (mPauseWork || mExitTasksEarly) {
+            return;
+        }
+
+        final ImageSize size = getImageSize();
+        final int rows = Math.min(PREFETCH_MAX_ROWS, PREFETCH_MIN_ROWS
+                + Math.round(itemsPerMs * PREFETCH_LOOKAHEAD_MS / itemsPerRow));
+        final int count = rows * itemsPerRow;
+        if (direction > 0) {
+            final int start = firstVisible + visibleCount;
+            final int end = Math.min(data.size(), start + count);
+            for (int i = start; i < end; i++) {
+                prefetch(data.get(i), size);
+            }
+        } else {
+            final int start = Math.min(data.size(), firstVisible) - 1;
+            final int end = Math.max(0, firstVisible - count);
+            for (int i = start; i >= end; i--) {
+                prefetch(data.get(i), size);
+            }
+        }
+    }
+
+    /**
+     * Queues a low priority load of {@code data} into the caches, unless it is already cached
+     * or being loaded.
+     */
+    private void prefetch(Object data, ImageSize size) {
+        if (data == null) {
+            return;
+        }
+        final String key = cacheKey(data, size);
+        if (mPrefetchTasks.containsKey(key) || mInFlightTasks.containsKey(key)
+                || mImageCache.getBitmapFromMemCache(key) != null) {
+            return;
+        }
+        final PrefetchTask task = new PrefetchTask(data, size);
+        mPrefetchTasks.put(key, task);
+        ImageLoadExecutor.getInstance().execute(task, ImageLoadExecutor.PRIORITY_PREFETCH);
+    }
+
+    /**
+     * Drops every prefetch that has not finished yet.
+     */
+    public void cancelPrefetches() {
+        for (PrefetchTask task : mPrefetchTasks.values()) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * @return How many images were loaded into the caches by prefetching
+     */
+    public int getPrefetchCount() {
+        return mPrefetchCount.get();
+    }
+
+    /**
+     * @return How many prefetched images were found in the memory cache when a view asked for
+     *     them
+     */
+    public int getPrefetchHitCount() {
+        return mPrefetchHitCount;
+    }
+
+    /**
+     * @return The fraction of prefetched images that were later shown from the memory cache
+     */
+    public float getPrefetchHitRate() {
+        final int prefetched = mPrefetchCount.get();
+        return prefetched != 0 ? (float) mPrefetchHitCount / prefetched : 0f;
+    }
+
+    private boolean consumePrefetched(String key) {
+        synchronized (mPrefetchedKeys) {
+            return mPrefetchedKeys.remove(key) != null;
+        }
     }
 
     /**
@@ -239,9 +433,22 @@ public abstract class ImageWorker {
      *
      * @param data The data to identify which image to process, as provided by
      *             {@link ImageWorker#loadImage(Object, android.widget.ImageView)}
+     * @param size The bounds and config to decode to, or null for full size
      * @return The processed bitmap
      */
-    protected abstract Bitmap processBitmap(Object data);
+    protected abstract Bitmap processBitmap(Object data, ImageSize size);
+
+    /**
+     * @return The size images are decoded to when a load does not ask for one, or null to
+     *     decode them at full size
+     */
+    protected ImageSize getImageSize() {
+        return null;
+    }
+
+    private static String cacheKey(Object data, ImageSize size) {
+        return size != null ? size.getCacheKey(data) : String.valueOf(data);
+    }
 
     /**
      * @return The {@link ImageCache} object currently being used by this ImageWorker.
@@ -251,16 +458,25 @@ public abstract class ImageWorker {
     }
 
     /**
-     * Cancels any pending work attached to the provided ImageView.
+     * @return How many loads joined a load of the same data already in flight for another
+     *     view, rather than decoding it again
+     */
+    public int getCoalescedLoadCount() {
+        return mCoalescedLoadCount;
+    }
+
+    /**
+     * Cancels any pending work attached to the provided ImageView. The shared load is only
+     * cancelled once no other view is waiting for it. Must be called on the main thread.
      *
      * @param imageView
      */
     public static void cancelWork(ImageView imageView) {
-        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-        if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+        final ImageRequest request = getImageRequest(imageView);
+        if (request != null) {
+            request.cancel();
             if (BuildConfig.DEBUG) {
-                final Object bitmapData = bitmapWorkerTask.mData;
+                final Object bitmapData = request.mTask.mData;
                 Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
             }
         }
@@ -270,18 +486,30 @@ public abstract class ImageWorker {
      * Returns true if the current work has been canceled or if there was no work in
      * progress on this image view.
      * Returns false if the work in progress deals with the same data. The work is not
-     * stopped in that case.
+     * stopped in that case. Must be called on the main thread.
      */
     public static boolean cancelPotentialWork(Object data, ImageView imageView) {
-        //BEGIN_INCLUDE(cancel_potential_work)
-        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+        final ImageRequest request = getImageRequest(imageView);
+        return cancelPotentialWork(request, request != null && data.equals(request.mTask.mData));
+    }
+
+    /**
+     * Same as {@link #cancelPotentialWork(Object, ImageView)}, for work identified by its cache
+     * key, so that a load of the same data at another size counts as different work.
+     */
+    private static boolean cancelPotentialWorkForKey(String key, ImageView imageView) {
+        final ImageRequest request = getImageRequest(imageView);
+        return cancelPotentialWork(request, request != null && key.equals(request.mTask.mKey));
+    }
 
-        if (bitmapWorkerTask != null) {
-            final Object bitmapData = bitmapWorkerTask.mData;
-            if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+    private static boolean cancelPotentialWork(ImageRequest request, boolean sameWork) {
+        //BEGIN_INCLUDE(cancel_potential_work)
+        if (request != null) {
+            if (!sameWork) {
+                request.cancel();
                 if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
+                    Log.d(TAG, "cancelPotentialWork - cancelled work for "
+                            + request.mTask.mKey);
                 }
             } else {
                 // The same work is already in progress.
@@ -294,38 +522,100 @@ public abstract class ImageWorker {
 
     /**
      * @param imageView Any imageView
-     * @return Retrieve the currently active work task (if any) associated with this imageView.
-     * null if there is no such task.
+     * @return Retrieve the currently active request (if any) associated with this imageView.
+     * null if there is no such request.
      */
-    private static BitmapWorkerTask getBitmapWorkerTask(ImageView imageView) {
+    private static ImageRequest getImageRequest(ImageView imageView) {
         if (imageView != null) {
             final Drawable drawable = imageView.getDrawable();
             if (drawable instanceof AsyncDrawable) {
                 final AsyncDrawable asyncDrawable = (AsyncDrawable) drawable;
-                return asyncDrawable.getBitmapWorkerTask();
+                return asyncDrawable.getImageRequest();
             }
         }
         return null;
     }
 
     /**
-     * The actual AsyncTask that will asynchronously process the image.
+     * One ImageView waiting for a {@link BitmapWorkerTask}. Created, cancelled and completed on
+     * the main thread.
      */
-    private class BitmapWorkerTask extends AsyncTask<Void, Void, BitmapDrawable> {
-        private Object mData;
-        private final WeakReference<ImageView> imageViewReference;
+    private static class ImageRequest {
+        private final BitmapWorkerTask mTask;
+        private final WeakReference<ImageView> mImageViewReference;
         private final OnImageLoadedListener mOnImageLoadedListener;
 
-        public BitmapWorkerTask(Object data, ImageView imageView) {
-            mData = data;
-            imageViewReference = new WeakReference<ImageView>(imageView);
-            mOnImageLoadedListener = null;
+        ImageRequest(BitmapWorkerTask task, ImageView imageView, OnImageLoadedListener listener) {
+            mTask = task;
+            mImageViewReference = new WeakReference<ImageView>(imageView);
+            mOnImageLoadedListener = listener;
+        }
+
+        /**
+         * Detaches this request from its task, cancelling the task if this was the last
+         * request waiting for it.
+         */
+        void cancel() {
+            mTask.detach(this);
+        }
+
+        /**
+         * Returns the ImageView associated with this request as long as the ImageView's
+         * request still points to this request as well. Returns null otherwise.
+         */
+        ImageView getAttachedImageView() {
+            final ImageView imageView = mImageViewReference.get();
+            if (this == getImageRequest(imageView)) {
+                return imageView;
+            }
+            return null;
         }
+    }
+
+    /**
+     * The actual AsyncTask that will asynchronously process the image. One task serves every
+     * {@link ImageRequest} for the same data; it is cancelled when the last one is.
+     */
+    private class BitmapWorkerTask extends AsyncTask<Void, Void, BitmapDrawable> {
+        private final Object mData;
+        private final ImageSize mSize;
+        private final String mKey;
+        private final List<ImageRequest> mRequests = new CopyOnWriteArrayList<ImageRequest>();
 
-        public BitmapWorkerTask(Object data, ImageView imageView, OnImageLoadedListener listener) {
+        public BitmapWorkerTask(Object data, ImageSize size) {
             mData = data;
-            imageViewReference = new WeakReference<ImageView>(imageView);
-            mOnImageLoadedListener = listener;
+            mSize = size;
+            mKey = cacheKey(data, size);
+        }
+
+        ImageRequest attach(ImageView imageView, OnImageLoadedListener listener) {
+            final ImageRequest request = new ImageRequest(this, imageView, listener);
+            mRequests.add(request);
+            return request;
+        }
+
+        void detach(ImageRequest request) {
+            if (mRequests.remove(request) && mRequests.isEmpty()) {
+                forget();
+                // Not interrupted, as it may be the one running a download other tasks wait
+                // on, see ImageFetcher. A running task checks isCancelled() between steps, and
+                // one waiting for work to resume is woken to see it.
+                cancel(false);
+                synchronized (mPauseWorkLock) {
+                    mPauseWorkLock.notifyAll();
+                }
+                // Free its place in the queue for views that are still on screen
+                ImageLoadExecutor.getInstance().purge();
+            }
+        }
+
+        /**
+         * Stops new requests from joining this task.
+         */
+        private void forget() {
+            if (mInFlightTasks.get(mKey) == this) {
+                mInFlightTasks.remove(mKey);
+            }
         }
 
         /**
@@ -338,7 +628,6 @@ public abstract class ImageWorker {
                 Log.d(TAG, "doInBackground - starting work");
             }
 
-            final String dataString = String.valueOf(mData);
             Bitmap bitmap = null;
             BitmapDrawable drawable = null;
 
@@ -356,18 +645,18 @@ public abstract class ImageWorker {
             // thread and the ImageView that was originally bound to this task is still bound back
             // to this task and our "exit early" flag is not set then try and fetch the bitmap from
             // the cache
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
+            if (mImageCache != null && !isCancelled() && hasAttachedImageView()
                     && !mExitTasksEarly) {
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString);
+                bitmap = mImageCache.getBitmapFromDiskCache(mKey, mSize);
             }
 
             // If the bitmap was not found in the cache and this task has not been cancelled by
             // another thread and the ImageView that was originally bound to this task is still
             // bound back to this task and our "exit early" flag is not set, then call the main
             // process method (as implemented by a subclass)
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
+            if (bitmap == null && !isCancelled() && hasAttachedImageView()
                     && !mExitTasksEarly) {
-                bitmap = processBitmap(mData);
+                bitmap = processBitmap(mData, mSize);
             }
 
             // If the bitmap was processed and the image cache is available, then add the processed
@@ -375,17 +664,10 @@ public abstract class ImageWorker {
             // here, if it was, and the thread is still running, we may as well add the processed
             // bitmap to our cache as it might be used again in the future
             if (bitmap != null) {
-                if (Utils.hasHoneycomb()) {
-                    // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
-                    drawable = new BitmapDrawable(mResources, bitmap);
-                } else {
-                    // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
-                    // which will recycle automagically
-                    drawable = new RecyclingBitmapDrawable(mResources, bitmap);
-                }
+                drawable = newBitmapDrawable(bitmap);
 
                 if (mImageCache != null) {
-                    mImageCache.addBitmapToCache(dataString, drawable);
+                    mImageCache.addBitmapToCache(mKey, drawable);
                 }
             }
 
@@ -403,50 +685,121 @@ public abstract class ImageWorker {
         @Override
         protected void onPostExecute(BitmapDrawable value) {
             //BEGIN_INCLUDE(complete_background_work)
-            boolean success = false;
+            forget();
             // if cancel was called on this task or the "exit early" flag is set then we're done
             if (isCancelled() || mExitTasksEarly) {
                 value = null;
             }
 
-            final ImageView imageView = getAttachedImageView();
-            if (value != null && imageView != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "onPostExecute - setting bitmap");
+            boolean first = true;
+            for (ImageRequest request : mRequests) {
+                boolean success = false;
+                final ImageView imageView = request.getAttachedImageView();
+                if (value != null && imageView != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "onPostExecute - setting bitmap");
+                    }
+                    success = true;
+                    // A drawable keeps per-view state such as bounds, so other views get
+                    // their own drawable over the same bitmap
+                    setImageDrawable(imageView,
+                            first ? value : new BitmapDrawable(mResources, value.getBitmap()));
+                    first = false;
+                }
+                if (request.mOnImageLoadedListener != null) {
+                    request.mOnImageLoadedListener.onImageLoaded(success);
                 }
-                success = true;
-                setImageDrawable(imageView, value);
-            }
-            if (mOnImageLoadedListener != null) {
-                mOnImageLoadedListener.onImageLoaded(success);
             }
+            mRequests.clear();
             //END_INCLUDE(complete_background_work)
         }
 
         @Override
         protected void onCancelled(BitmapDrawable value) {
             super.onCancelled(value);
+            forget();
             synchronized (mPauseWorkLock) {
                 mPauseWorkLock.notifyAll();
             }
         }
 
         /**
-         * Returns the ImageView associated with this task as long as the ImageView's task still
-         * points to this task as well. Returns null otherwise.
+         * Returns true if at least one ImageView is still bound to a request on this task.
          */
-        private ImageView getAttachedImageView() {
-            final ImageView imageView = imageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+        private boolean hasAttachedImageView() {
+            for (ImageRequest request : mRequests) {
+                if (request.getAttachedImageView() != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 
-            if (this == bitmapWorkerTask) {
-                return imageView;
+    /**
+     * Loads one image into the caches ahead of it being shown, on the prefetch thread.
+     */
+    private class PrefetchTask implements Runnable {
+        private final Object mData;
+        private final ImageSize mSize;
+        private final String mKey;
+        private volatile boolean mCancelled;
+
+        PrefetchTask(Object data, ImageSize size) {
+            mData = data;
+            mSize = size;
+            mKey = cacheKey(data, size);
+        }
+
+        @Override
+        public void run() {
+            final String key = mKey;
+            // Shares threads with visible loads, so yield to them while running
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            try {
+                final ImageCache imageCache = mImageCache;
+                if (mCancelled || mPauseWork || mExitTasksEarly || imageCache == null
+                        || imageCache.getBitmapFromMemCache(key) != null) {
+                    return;
+                }
+
+                Bitmap bitmap = imageCache.getBitmapFromDiskCache(key, mSize);
+                if (bitmap == null && !mCancelled && !mExitTasksEarly) {
+                    bitmap = processBitmap(mData, mSize);
+                }
+                if (bitmap != null) {
+                    imageCache.addBitmapToCache(key, newBitmapDrawable(bitmap));
+                    synchronized (mPrefetchedKeys) {
+                        mPrefetchedKeys.put(key, Boolean.TRUE);
+                    }
+                    mPrefetchCount.incrementAndGet();
+                }
+            } finally {
+                mPrefetchTasks.remove(key, this);
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
             }
+        }
 
-            return null;
+        void cancel() {
+            mCancelled = true;
+            ImageLoadExecutor.getInstance().remove(this);
+            mPrefetchTasks.remove(mKey, this);
         }
     }
 
+    /**
+     * Wraps a loaded bitmap for the memory cache and for display.
+     */
+    private BitmapDrawable newBitmapDrawable(Bitmap bitmap) {
+        if (Utils.hasHoneycomb()) {
+            // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
+            return new BitmapDrawable(mResources, bitmap);
+        }
+        // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
+        // which will recycle automagically
+        return new RecyclingBitmapDrawable(mResources, bitmap);
+    }
+
     /**
      * Interface definition for callback on image loaded successfully.
      */
@@ -479,21 +832,20 @@ public abstract class ImageWorker {
 
     /**
      * A custom Drawable that will be attached to the imageView while the work is in progress.
-     * Contains a reference to the actual worker task, so that it can be stopped if a new binding is
-     * required, and makes sure that only the last started worker process can bind its result,
-     * independently of the finish order.
+     * Contains a reference to the view's request on the worker task, so that it can be stopped
+     * if a new binding is required, and makes sure that only the last started request can bind
+     * its result, independently of the finish order.
      */
     private static class AsyncDrawable extends BitmapDrawable {
-        private final WeakReference<BitmapWorkerTask> bitmapWorkerTaskReference;
+        private final WeakReference<ImageRequest> imageRequestReference;
 
-        public AsyncDrawable(Resources res, Bitmap bitmap, BitmapWorkerTask bitmapWorkerTask) {
+        public AsyncDrawable(Resources res, Bitmap bitmap, ImageRequest imageRequest) {
             super(res, bitmap);
-            bitmapWorkerTaskReference =
-                    new WeakReference<BitmapWorkerTask>(bitmapWorkerTask);
+            imageRequestReference = new WeakReference<ImageRequest>(imageRequest);
         }
 
-        public BitmapWorkerTask getBitmapWorkerTask() {
-            return bitmapWorkerTaskReference.get();
+        public ImageRequest getImageRequest() {
+            return imageRequestReference.get();
         }
     }
 
@@ -542,6 +894,9 @@ public abstract class ImageWorker {
                 mPauseWorkLock.notifyAll();
             }
         }
+        if (pauseWork) {
+            cancelPrefetches();
+        }
     }
 
     protected class CacheAsyncTask extends AsyncTask<Object, Void, Void> {
@@ -592,14 +947,14 @@ public abstract class ImageWorker {
     }
 
     public void clearCache() {
-        new CacheAsyncTask().execute(MESSAGE_CLEAR);
+        new CacheAsyncTask().executeOnExecutor(MAINTENANCE_EXECUTOR, MESSAGE_CLEAR);
     }
 
     public void flushCache() {
-        new CacheAsyncTask().execute(MESSAGE_FLUSH);
+        new CacheAsyncTask().executeOnExecutor(MAINTENANCE_EXECUTOR, MESSAGE_FLUSH);
     }
 
     public void closeCache() {
-        new CacheAsyncTask().execute(MESSAGE_CLOSE);
+        new CacheAsyncTask().executeOnExecutor(MAINTENANCE_EXECUTOR, MESSAGE_CLOSE);
     }
 }
@@ -0,0 +1,107 @@
+package com.cm.android.beercellar.util;
+
+import com.cm.android.common.logger.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one task on a thread of its own, at the earliest of the times it is scheduled for. A
+ * run scheduled while another is waiting to start is folded into it, one scheduled while the
+ * task is running starts once it is done. Also holds the rules the tasks share for what
+ * failures to retry and how long to wait before doing so.
+ */
+public final class RetryScheduler {
+    private static final String TAG = "RetryScheduler";
+
+    private final String mName;
+    private final Runnable mTask;
+    private final ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mScheduled;
+    private long mScheduledTime;
+
+    private final Runnable mRun = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RetryScheduler.this) {
+                mScheduled = null;
+            }
+            try {
+                mTask.run();
+            } catch (RuntimeException e) {
+                // Most likely the database could not be opened. Nothing is lost, the task
+                // picks up where it left off when it is next scheduled.
+                Log.e(TAG, "run - " + mName + ": " + e);
+            }
+        }
+    };
+
+    /**
+     * @param name Names the thread, and the task in the log
+     */
+    public RetryScheduler(final String name, Runnable task) {
+        mName = name;
+        mTask = task;
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name);
+                    }
+                });
+        // A retry can be an hour away, it must not keep the thread, or a closed database,
+        // alive past shutdown()
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor = executor;
+    }
+
+    /**
+     * Runs the task at {@code time}, or sooner if it is already scheduled sooner. Does nothing
+     * once {@link #shutdown()}.
+     *
+     * @param time In {@link System#currentTimeMillis()} terms
+     */
+    public synchronized void schedule(long time) {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+        if (mScheduled != null) {
+            if (mScheduledTime <= time) {
+                return;
+            }
+            mScheduled.cancel(false);
+        }
+        mScheduledTime = time;
+        mScheduled = mExecutor.schedule(mRun, Math.max(0, time - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the thread, letting a run already started finish. Runs scheduled for later are
+     * dropped.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * @return true for the statuses that say the server may take the request later: 5xx, 408
+     * Request Timeout and 429 Too Many Requests
+     */
+    public static boolean isRetryable(int statusCode) {
+        return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+
+    /**
+     * @param failures How many times in a row the work has failed, at least 1
+     * @return The wait before trying again, {@code backoffMs} after the first failure and
+     * doubling with each one after, up to {@code maxDelayMs}
+     */
+    public static long getRetryDelay(long backoffMs, int failures, long maxDelayMs) {
+        // Shifting further would overflow, the delay is capped long before
+        return Math.min(backoffMs << Math.min(Math.max(failures - 1, 0), 30), maxDelayMs);
+    }
+}
@@ -0,0 +1,106 @@
+package com.cm.android.beercellar.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent calls for the same key into one. The first caller runs the
+ * {@link Loader} on its own thread; callers that arrive while it is running wait for it and
+ * get the same result instead of repeating the work.
+ *
+ * @param <V> The type of result produced by the loaders
+ */
+public final class SingleFlight<V> {
+
+    /**
+     * The work to run for a key. Loaders are expected to handle their own errors; a runtime
+     * exception is rethrown to the caller and to every waiter.
+     */
+    public interface Loader<V> {
+        V load();
+    }
+
+    private final ConcurrentHashMap<String, FutureTask<V>> mInFlight =
+            new ConcurrentHashMap<String, FutureTask<V>>();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    /**
+     * Runs {@code loader} unless a call for {@code key} is already in flight, in which case
+     * this waits for that call and returns its result.
+     *
+     * @return The loader's result, or null if this thread was interrupted while waiting for
+     *     another caller's load (its interrupt status is preserved)
+     */
+    public V execute(String key, final Loader<V> loader) {
+        final FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() {
+                return loader.load();
+            }
+        });
+
+        final FutureTask<V> inFlight = mInFlight.putIfAbsent(key, task);
+        if (inFlight != null) {
+            mCoalescedCount.incrementAndGet();
+            try {
+                return inFlight.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                throw rethrow(e);
+            }
+        }
+
+        try {
+            task.run();
+        } finally {
+            mInFlight.remove(key, task);
+        }
+        return getDone(task);
+    }
+
+    /**
+     * @return How many calls were served by another caller's load instead of running their own
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * Returns the result of a task that has already run. Older FutureTask implementations
+     * check the interrupt flag even when the result is ready, so retry and restore it.
+     */
+    private static <V> V getDone(FutureTask<V> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw rethrow(e);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static RuntimeException rethrow(ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new RuntimeException(cause);
+    }
+}
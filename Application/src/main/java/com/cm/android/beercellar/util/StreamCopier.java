@@ -0,0 +1,119 @@
+package com.cm.android.beercellar.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Bulk copy helpers shared by the image download, local load and file write paths. Streams are
+ * copied in large chunks using a small pool of reusable buffers, and file-to-file copies use
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} so the bytes
+ * never have to pass through the Java heap.
+ */
+public final class StreamCopier {
+    public static final int BUFFER_SIZE = 32 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<byte[]>(MAX_POOLED_BUFFERS);
+
+    /**
+     * Implemented by output streams that write straight to a file, so that a copy from another
+     * file can be done as a channel transfer instead of a read/write loop.
+     */
+    interface FileBacked {
+        FileChannel getChannel() throws IOException;
+    }
+
+    private StreamCopier() {
+    }
+
+    /**
+     * Copies everything from {@code in} to {@code out} using a pooled buffer. Neither stream
+     * is closed.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = obtainBuffer();
+        try {
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                total += count;
+            }
+            out.flush();
+            return total;
+        } finally {
+            recycleBuffer(buffer);
+        }
+    }
+
+    /**
+     * Copies the contents of {@code source} to {@code out}. When {@code out} is backed by a file
+     * (a {@link FileOutputStream} or a disk cache {@code Editor} stream) the copy is done with
+     * a zero-copy channel transfer, otherwise it falls back to {@link #copy(InputStream,
+     * OutputStream)}. The output stream is not closed.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(File source, OutputStream out) throws IOException {
+        FileChannel target = null;
+        if (out instanceof FileOutputStream) {
+            target = ((FileOutputStream) out).getChannel();
+        } else if (out instanceof FileBacked) {
+            target = ((FileBacked) out).getChannel();
+        }
+
+        final FileInputStream in = new FileInputStream(source);
+        try {
+            if (target == null) {
+                return copy(in, out);
+            }
+            return transfer(in.getChannel(), target);
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Transfers the whole of {@code source} into {@code target}, looping because a single
+     * transferTo() call is allowed to move fewer bytes than requested.
+     */
+    private static long transfer(FileChannel source, FileChannel target) throws IOException {
+        final long size = source.size();
+        long position = 0;
+        while (position < size) {
+            final long transferred = source.transferTo(position, size - position, target);
+            if (transferred <= 0) {
+                // Nothing moved (e.g. the file shrank underneath us), stop rather than spin
+                break;
+            }
+            position += transferred;
+        }
+        return position;
+    }
+
+    private static byte[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            final byte[] buffer = sBufferPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void recycleBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.offer(buffer);
+            }
+        }
+    }
+}
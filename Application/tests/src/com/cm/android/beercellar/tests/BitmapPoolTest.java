@@ -0,0 +1,67 @@
+package com.cm.android.beercellar.tests;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.cm.android.beercellar.util.BitmapPool;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks bucketing, budget and trimming of {@link BitmapPool}. Needs real bitmaps, so it runs
+ * on a device.
+ */
+public class BitmapPoolTest extends TestCase {
+
+    private static final int THUMB = 320;
+
+    public void testSizedLookupFindsLargeEnoughBitmap() {
+        final BitmapPool pool = new BitmapPool(16 * 1024 * 1024, false);
+        final Bitmap large = Bitmap.createBitmap(THUMB, THUMB, Bitmap.Config.ARGB_8888);
+        assertTrue(pool.put(large));
+
+        // A slightly smaller decode fits into the pooled allocation
+        assertSame(large, pool.get(options(THUMB - 20, THUMB - 20, 1)));
+        assertEquals(0, pool.size());
+
+        // Nothing left, and a much larger decode never gets a small bitmap
+        pool.put(large);
+        assertNull(pool.get(options(THUMB * 4, THUMB * 4, 1)));
+        assertEquals(1, pool.hitCount());
+        assertEquals(1, pool.missCount());
+    }
+
+    public void testExactLookupNeedsSameDimensions() {
+        final BitmapPool pool = new BitmapPool(16 * 1024 * 1024, true);
+        final Bitmap bitmap = Bitmap.createBitmap(THUMB, THUMB, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertNull(pool.get(options(THUMB - 1, THUMB, 1)));
+        assertNull(pool.get(options(THUMB * 2, THUMB * 2, 2)));
+        assertSame(bitmap, pool.get(options(THUMB, THUMB, 1)));
+    }
+
+    public void testBudgetEvictsOldestAndTrimClears() {
+        final int bytes = THUMB * THUMB * 4;
+        final BitmapPool pool = new BitmapPool(bytes * 2, false);
+        final Bitmap first = Bitmap.createBitmap(THUMB, THUMB, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(Bitmap.createBitmap(THUMB, THUMB, Bitmap.Config.ARGB_8888));
+        pool.put(Bitmap.createBitmap(THUMB, THUMB, Bitmap.Config.ARGB_8888));
+
+        assertEquals(bytes * 2, pool.size());
+        assertEquals(1, pool.evictionCount());
+        assertFalse(first.isRecycled());
+
+        pool.onTrimMemory(android.content.ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, pool.size());
+    }
+
+    private static BitmapFactory.Options options(int width, int height, int sampleSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = width * sampleSize;
+        options.outHeight = height * sampleSize;
+        options.inSampleSize = sampleSize;
+        return options;
+    }
+}
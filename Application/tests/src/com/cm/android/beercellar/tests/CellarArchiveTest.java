@@ -0,0 +1,224 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+import com.cm.android.beercellar.provider.CellarArchive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Exports a cellar of notes and photos, restores it into an empty one and checks nothing was
+ * lost, including after a restore is interrupted and run again. Reports the throughput of both.
+ * Runs on a device, as it needs the platform's SQLite.
+ */
+public class CellarArchiveTest extends AndroidTestCase {
+
+    private static final String SOURCE_NAME = "archive-source.sqlite";
+    private static final String TARGET_NAME = "archive-target.sqlite";
+    private static final int NOTE_COUNT = 5000;
+    private static final int PHOTO_COUNT = 40;
+    private static final int PHOTO_SIZE = 256 * 1024;
+
+    private File mRoot;
+    private NotesDatabase mSource;
+    private NotesDatabase mTarget;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "archive-test");
+        delete(mRoot);
+        getContext().deleteDatabase(SOURCE_NAME);
+        getContext().deleteDatabase(TARGET_NAME);
+        mSource = NotesDatabase.getInstance(getContext(), SOURCE_NAME);
+        mTarget = NotesDatabase.getInstance(getContext(), TARGET_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSource.close();
+        mTarget.close();
+        getContext().deleteDatabase(SOURCE_NAME);
+        getContext().deleteDatabase(TARGET_NAME);
+        delete(mRoot);
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws IOException {
+        final CellarArchive source = fillSource();
+        final File archive = new File(mRoot, "cellar.bcar");
+        source.export(archive, progress("export"));
+        assertFalse(new File(archive.getPath() + ".part").exists());
+
+        target().restore(archive, progress("restore"));
+        assertRestored();
+    }
+
+    public void testResumesInterruptedRestore() throws IOException {
+        final File archive = new File(mRoot, "cellar.bcar");
+        fillSource().export(archive, null);
+
+        final int[] calls = new int[1];
+        try {
+            target().restore(archive, new CellarArchive.OnProgressListener() {
+                @Override
+                public void onProgress(long bytes, int notes, int files, long elapsedMs) {
+                    // Stands in for the process being killed part way through the photos
+                    if (files == PHOTO_COUNT / 2) {
+                        throw new IllegalStateException("interrupted");
+                    }
+                    calls[0]++;
+                }
+            });
+            fail("restore was not interrupted");
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(new File(archive.getPath() + ".checkpoint").exists());
+
+        target().restore(archive, null);
+        assertFalse(new File(archive.getPath() + ".checkpoint").exists());
+        assertRestored();
+    }
+
+    public void testRejectsTruncatedArchive() throws IOException {
+        final File archive = new File(mRoot, "cellar.bcar");
+        fillSource().export(archive, null);
+        final RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            file.setLength(file.length() - PHOTO_SIZE / 2);
+        } finally {
+            file.close();
+        }
+        try {
+            target().restore(archive, null);
+            fail("restored a truncated archive");
+        } catch (IOException expected) {
+        }
+    }
+
+    private CellarArchive fillSource() throws IOException {
+        final Random random = new Random(NOTE_COUNT);
+        final List<Note> notes = new ArrayList<Note>(NOTE_COUNT);
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            final Note note = new Note();
+            note.id = i;
+            note.beer = "Beer " + i + " éß";
+            note.rating = i % 7 == 0 ? null : String.valueOf(random.nextInt(11) / 2f);
+            note.textExtract = "Brewery " + i;
+            note.notes = i % 3 == 0 ? null : "Notes " + i;
+            note.share = "Y";
+            note.picture = i + ".jpg";
+            note.uri = i % 5 == 0 ? "http://example.com/" + i : null;
+            notes.add(note);
+        }
+        mSource.getNotesDbAdapter().createNotes(notes, SQLiteDatabase.CONFLICT_ABORT);
+        // Distinct timestamps, which a restore has to keep
+        mSource.getNotesDbAdapter().getDatabase().execSQL("update "
+                + NotesDbAdapter.DATABASE_TABLE + " set created = _id * 1000, updated = _id * 2000");
+
+        final byte[] bytes = new byte[PHOTO_SIZE];
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            random.nextBytes(bytes);
+            write(new File(dir("source", "images"), i + ".jpg"), bytes, 1000000L * (i + 1));
+            write(new File(dir("source", "thumbs"), i + ".jpg"),
+                    Arrays.copyOf(bytes, PHOTO_SIZE / 16), 1000000L * (i + 1));
+        }
+        return new CellarArchive(mSource, dir("source", "images"), dir("source", "thumbs"), null);
+    }
+
+    private CellarArchive target() {
+        return new CellarArchive(mTarget, dir("target", "images"), dir("target", "thumbs"), null);
+    }
+
+    private void assertRestored() throws IOException {
+        final NotesDbAdapter source = mSource.getNotesDbAdapter();
+        final NotesDbAdapter target = mTarget.getNotesDbAdapter();
+        for (long id = 0; id < NOTE_COUNT; id++) {
+            final Note expected = source.fetchNote(id);
+            final Note actual = target.fetchNote(id);
+            assertNotNull("note " + id, actual);
+            assertEquals(expected.beer, actual.beer);
+            assertEquals(expected.rating, actual.rating);
+            assertEquals(expected.textExtract, actual.textExtract);
+            assertEquals(expected.notes, actual.notes);
+            assertEquals(expected.uri, actual.uri);
+            assertEquals(expected.created, actual.created);
+            assertEquals(expected.updated, actual.updated);
+        }
+        assertTrue(target.verifyStats());
+        for (String dir : new String[]{"images", "thumbs"}) {
+            for (int i = 0; i < PHOTO_COUNT; i++) {
+                final File expected = new File(dir("source", dir), i + ".jpg");
+                final File actual = new File(dir("target", dir), i + ".jpg");
+                assertTrue(Arrays.equals(read(expected), read(actual)));
+                assertEquals(expected.lastModified(), actual.lastModified());
+            }
+        }
+    }
+
+    /**
+     * @return A listener checking that the progress only ever grows
+     */
+    private static CellarArchive.OnProgressListener progress(final String name) {
+        return new CellarArchive.OnProgressListener() {
+            private long mBytes;
+            private int mFiles;
+
+            @Override
+            public void onProgress(long bytes, int notes, int files, long elapsedMs) {
+                assertTrue(name, bytes >= mBytes && files >= mFiles);
+                assertTrue(name, files <= PHOTO_COUNT * 2);
+                mBytes = bytes;
+                mFiles = files;
+            }
+        };
+    }
+
+    private File dir(String cellar, String name) {
+        final File dir = new File(new File(mRoot, cellar), name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void write(File file, byte[] bytes, long lastModified) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        file.setLastModified(lastModified);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,208 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.util.ChunkedUploader;
+import com.cm.android.beercellar.util.HttpClient;
+import com.cm.android.beercellar.util.StatusCodeException;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Uploads a photo through {@link ChunkedUploader} to a local stub of the upload server that
+ * drops connections part way through chunks and expires sessions, checking the upload resumes
+ * instead of starting over, or gives up when the server takes nothing, and prints the bytes it
+ * took.
+ */
+public class ChunkedUploaderTest extends TestCase {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int LENGTH = 10 * CHUNK_SIZE + 1234;
+
+    private UploadServer mServer;
+    private HttpStub mStub;
+    private HttpClient mClient;
+    private File mFile;
+    private byte[] mBytes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new UploadServer();
+        mStub = new HttpStub(mServer);
+        mClient = new HttpClient(2);
+        mBytes = new byte[LENGTH];
+        new Random(42).nextBytes(mBytes);
+        mFile = File.createTempFile("label", ".jpg");
+        final FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(mBytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mStub.close();
+        super.tearDown();
+    }
+
+    public void testUploadsInChunks() throws IOException, StatusCodeException, JSONException {
+        final ChunkedUploader uploader = new ChunkedUploader(mClient, CHUNK_SIZE);
+        final ChunkedUploader.Progress progress = new ChunkedUploader.Progress();
+        final int[] calls = new int[1];
+        final String body = uploader.upload(mStub.url("/upload"), mFile, "image/jpeg", progress,
+                new ChunkedUploader.OnProgressListener() {
+                    @Override
+                    public void onProgress(ChunkedUploader.Progress progress) {
+                        calls[0]++;
+                    }
+                });
+
+        assertFile(body);
+        assertEquals(LENGTH, progress.offset);
+        assertEquals(11, uploader.getChunkCount());
+        // The session, then every chunk but the last
+        assertEquals(11, calls[0]);
+        assertEquals(LENGTH, uploader.getBytesSent());
+        assertEquals(1, mStub.getConnectionCount());
+    }
+
+    public void testResumesAfterDrops() throws IOException, StatusCodeException,
+            JSONException {
+        mServer.setDropEvery(3);
+        final ChunkedUploader uploader = new ChunkedUploader(mClient, CHUNK_SIZE);
+        final ChunkedUploader.Progress progress = new ChunkedUploader.Progress();
+        final String body = uploadWithRetries(uploader, progress);
+
+        assertFile(body);
+        assertEquals(1, uploader.getSessionCount());
+        assertEquals(mServer.getDropCount(), uploader.getResumeCount());
+        assertTrue(uploader.getResumeCount() > 0);
+        // Each drop loses at most the chunk it was sending, not the whole upload
+        assertTrue(uploader.getBytesSent() - LENGTH
+                <= (long) mServer.getDropCount() * CHUNK_SIZE);
+        assertEquals(LENGTH, uploader.getBytesStored());
+    }
+
+    public void testResumesInNewProcess() throws IOException, StatusCodeException,
+            JSONException {
+        mServer.setDropEvery(4);
+        final ChunkedUploader.Progress saved = new ChunkedUploader.Progress();
+        try {
+            new ChunkedUploader(mClient, CHUNK_SIZE).upload(mStub.url("/upload"), mFile,
+                    "image/jpeg", new ChunkedUploader.Progress(),
+                    new ChunkedUploader.OnProgressListener() {
+                        @Override
+                        public void onProgress(ChunkedUploader.Progress progress) {
+                            saved.session = progress.session;
+                            saved.offset = progress.offset;
+                        }
+                    });
+            fail("no IOException");
+        } catch (IOException e) {
+            // The process dies here, leaving what the listener saved
+        }
+        assertNotNull(saved.session);
+        assertEquals(3 * CHUNK_SIZE, saved.offset);
+
+        mServer.setDropEvery(0);
+        final ChunkedUploader uploader = new ChunkedUploader(new HttpClient(2), CHUNK_SIZE);
+        assertFile(uploader.upload(null, mFile, "image/jpeg", saved, null));
+        assertEquals(1, uploader.getResumeCount());
+        assertEquals(0, uploader.getSessionCount());
+        assertTrue(uploader.getBytesSent() < LENGTH - 3 * CHUNK_SIZE);
+    }
+
+    public void testRestartsExpiredSession() throws IOException, StatusCodeException,
+            JSONException {
+        final ChunkedUploader.Progress progress = new ChunkedUploader.Progress();
+        mServer.setDropEvery(2);
+        try {
+            new ChunkedUploader(mClient, CHUNK_SIZE).upload(mStub.url("/upload"), mFile,
+                    "image/jpeg", progress, null);
+            fail("no IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+        mServer.setDropEvery(0);
+        mServer.expireSessions();
+
+        final ChunkedUploader uploader = new ChunkedUploader(mClient, CHUNK_SIZE);
+        assertFile(uploader.upload(mStub.url("/upload"), mFile, "image/jpeg", progress, null));
+        assertEquals(1, uploader.getResumeCount());
+        assertEquals(1, uploader.getSessionCount());
+        assertEquals(LENGTH, uploader.getBytesSent());
+    }
+
+    public void testClearsExpiredSessionToResumeOnly() throws StatusCodeException {
+        final ChunkedUploader.Progress progress = new ChunkedUploader.Progress();
+        progress.session = mStub.url("/session/1");
+        progress.offset = CHUNK_SIZE;
+        try {
+            new ChunkedUploader(mClient, CHUNK_SIZE).upload(null, mFile, "image/jpeg", progress,
+                    null);
+            fail("no IOException");
+        } catch (IOException e) {
+            // The caller starts over with a new url
+        }
+        assertNull(progress.session);
+        assertEquals(0, progress.offset);
+    }
+
+    public void testGivesUpWhenChunksAreNotTaken() throws StatusCodeException {
+        mServer.setIgnoreChunks(true);
+        final ChunkedUploader uploader = new ChunkedUploader(mClient, CHUNK_SIZE);
+        final ChunkedUploader.Progress progress = new ChunkedUploader.Progress();
+        try {
+            uploader.upload(mStub.url("/upload"), mFile, "image/jpeg", progress, null);
+            fail("no IOException");
+        } catch (IOException e) {
+            // Retried later, from where the server got to
+        }
+        assertNotNull(progress.session);
+        assertEquals(0, progress.offset);
+        assertEquals(3, uploader.getChunkCount());
+        assertEquals(1, uploader.getFailureCount());
+    }
+
+    public void testRefusedUpload() throws IOException {
+        try {
+            new ChunkedUploader(mClient, CHUNK_SIZE).upload(mStub.url("/refused"), mFile,
+                    "image/jpeg", new ChunkedUploader.Progress(), null);
+            fail("no StatusCodeException");
+        } catch (StatusCodeException e) {
+            assertEquals(404, e.getStatusCode());
+        }
+    }
+
+    /**
+     * Retries as {@link com.cm.android.beercellar.provider.OutboxSync} does, from where the
+     * last attempt got to.
+     */
+    private String uploadWithRetries(ChunkedUploader uploader, ChunkedUploader.Progress progress)
+            throws StatusCodeException {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            try {
+                return uploader.upload(mStub.url("/upload"), mFile, "image/jpeg", progress,
+                        null);
+            } catch (IOException e) {
+                // Resume
+            }
+        }
+        throw new AssertionError("upload never completed");
+    }
+
+    private void assertFile(String body) throws JSONException {
+        assertTrue(Arrays.equals(mBytes, mServer.getFile(new JSONObject(body).getString("uri"))));
+    }
+}
@@ -0,0 +1,201 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.util.ConcurrentDiskLruCache;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hammers {@link ConcurrentDiskLruCache} from several threads with a mix of reads, writes and
+ * removes on overlapping keys, then checks that every value read was complete, that size
+ * accounting matches the files on disk and that the journal replays to the same state. Also
+ * checks that writing an entry counts as using it for eviction.
+ */
+public class ConcurrentDiskLruCacheStressTest extends TestCase {
+
+    private static final int THREADS = 8;
+    private static final int OPS_PER_THREAD = 3000;
+    private static final int KEYS = 64;
+    private static final long MAX_SIZE = 64 * 1024;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(System.getProperty("java.io.tmpdir"), "concurrent-disk-lru-stress");
+        deleteDirectory(mDir);
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory(mDir);
+        super.tearDown();
+    }
+
+    public void testConcurrentReadWriteRemove() throws Exception {
+        final ConcurrentDiskLruCache cache = ConcurrentDiskLruCache.open(mDir, 1, 1, MAX_SIZE);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger hits = new AtomicInteger();
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    final Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPS_PER_THREAD; i++) {
+                            final String key = "key" + random.nextInt(KEYS);
+                            final int op = random.nextInt(10);
+                            if (op < 6) {
+                                final ConcurrentDiskLruCache.Snapshot snapshot = cache.get(key);
+                                if (snapshot != null) {
+                                    assertValue(key, snapshot.getString(0));
+                                    snapshot.close();
+                                    hits.incrementAndGet();
+                                }
+                            } else if (op < 9) {
+                                final ConcurrentDiskLruCache.Editor editor = cache.edit(key);
+                                if (editor != null) {
+                                    editor.set(0, valueFor(key, random.nextInt(2000)));
+                                    editor.commit();
+                                }
+                            } else {
+                                cache.remove(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        // Otherwise the reads checked nothing
+        assertTrue(hits.get() > 0);
+
+        cache.flush();
+        assertTrue("size " + cache.size() + " exceeds " + MAX_SIZE, cache.size() <= MAX_SIZE);
+        assertEquals(cleanFileBytes(), cache.size());
+
+        // Everything readable now must still be readable, with the same contents, after a reopen
+        final List<String> readable = new ArrayList<String>();
+        for (int k = 0; k < KEYS; k++) {
+            final ConcurrentDiskLruCache.Snapshot snapshot = cache.get("key" + k);
+            if (snapshot != null) {
+                snapshot.close();
+                readable.add("key" + k);
+            }
+        }
+        final long sizeBeforeClose = cache.size();
+        cache.close();
+
+        final ConcurrentDiskLruCache reopened = ConcurrentDiskLruCache.open(mDir, 1, 1, MAX_SIZE);
+        assertEquals(sizeBeforeClose, reopened.size());
+        for (String key : readable) {
+            final ConcurrentDiskLruCache.Snapshot snapshot = reopened.get(key);
+            assertNotNull(key, snapshot);
+            assertValue(key, snapshot.getString(0));
+            snapshot.close();
+        }
+        reopened.close();
+    }
+
+    public void testEditorIsExclusivePerKey() throws Exception {
+        final ConcurrentDiskLruCache cache = ConcurrentDiskLruCache.open(mDir, 1, 1, MAX_SIZE);
+        final ConcurrentDiskLruCache.Editor first = cache.edit("a");
+        assertNotNull(first);
+        assertNull(cache.edit("a"));
+
+        // Another key can be edited and read while "a" is still being written
+        final ConcurrentDiskLruCache.Editor other = cache.edit("b");
+        assertNotNull(other);
+        other.set(0, valueFor("b", 10));
+        other.commit();
+        final ConcurrentDiskLruCache.Snapshot snapshot = cache.get("b");
+        assertValue("b", snapshot.getString(0));
+        snapshot.close();
+
+        first.set(0, valueFor("a", 10));
+        first.commit();
+        assertNotNull(cache.edit("a"));
+        cache.close();
+    }
+
+    public void testRewrittenEntryIsEvictedLast() throws Exception {
+        final int length = valueFor("a", 10).length();
+        final ConcurrentDiskLruCache cache = ConcurrentDiskLruCache.open(mDir, 1, 1, 3 * length);
+        for (String key : new String[]{"a", "b", "c", "a", "d"}) {
+            final ConcurrentDiskLruCache.Editor editor = cache.edit(key);
+            editor.set(0, valueFor(key, 10));
+            editor.commit();
+        }
+        cache.flush();
+        assertNull(cache.get("b"));
+        final ConcurrentDiskLruCache.Snapshot snapshot = cache.get("a");
+        assertNotNull(snapshot);
+        snapshot.close();
+        cache.close();
+    }
+
+    private long cleanFileBytes() {
+        long total = 0;
+        final File[] files = mDir.listFiles();
+        for (File file : files) {
+            if (file.getName().endsWith(".0")) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    private static String valueFor(String key, int repeat) {
+        final StringBuilder builder = new StringBuilder(key).append(':').append(repeat).append(':');
+        for (int i = 0; i < repeat; i++) {
+            builder.append(key);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A torn write or a read of another key's file would not parse back to the same value.
+     */
+    private static void assertValue(String key, String value) {
+        final String[] parts = value.split(":", 3);
+        assertEquals(3, parts.length);
+        assertEquals(key, parts[0]);
+        assertEquals(valueFor(key, Integer.parseInt(parts[1])), value);
+    }
+
+    private static void deleteDirectory(File dir) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,123 @@
+package com.cm.android.beercellar.tests;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.provider.DeltaSync;
+import com.cm.android.beercellar.provider.OutboxSync;
+import com.cm.android.beercellar.util.HttpClient;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Times a full pull of a 10,000 note cellar from a local stub of the server against a delta
+ * pull of the 100 notes changed since. Runs on a device, as it needs the platform's SQLite.
+ */
+public class DeltaSyncBenchmark extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "delta-sync-bench.sqlite";
+    private static final int NOTE_COUNT = 10000;
+    private static final int CHANGED_COUNT = 100;
+    private static final long BASE_TIME = 1460000000000L;
+
+    private NotesDatabase mDatabase;
+    private HttpStub mStub;
+    // The server's notes by rowId, which is also the order of their updated times here
+    private final Map<Long, Note> mServerNotes = new TreeMap<Long, Note>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mStub = new HttpStub(new HttpStub.Responder() {
+            @Override
+            public HttpStub.Response respond(HttpStub.Request request) throws IOException {
+                try {
+                    return new HttpStub.Response(200, changes(Uri.parse(request.path)));
+                } catch (JSONException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStub.close();
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testFullAgainstDeltaPull() {
+        for (int i = 1; i <= NOTE_COUNT; i++) {
+            putServerNote(i, BASE_TIME + i);
+        }
+        final DeltaSync sync = new DeltaSync(mDatabase, new HttpClient(2), mStub.url("/beer"),
+                "bench", new File(getContext().getCacheDir(), "delta-sync-bench"),
+                DeltaSync.PAGE_SIZE, null);
+        try {
+            long start = System.nanoTime();
+            assertEquals(NOTE_COUNT, sync.syncNow());
+            final long full = System.nanoTime() - start;
+
+            for (int i = 1; i <= CHANGED_COUNT; i++) {
+                putServerNote(i * 97, BASE_TIME + NOTE_COUNT + i).beer = "changed";
+            }
+            start = System.nanoTime();
+            assertEquals(CHANGED_COUNT, sync.syncNow());
+            final long delta = System.nanoTime() - start;
+            System.out.println(String.format("DeltaSyncBenchmark full pull of %d notes %.1f ms,"
+                    + " delta of %d notes %.1f ms, %s", NOTE_COUNT, full / 1e6, CHANGED_COUNT,
+                    delta / 1e6, sync));
+        } finally {
+            sync.close();
+        }
+    }
+
+    private Note putServerNote(long rowId, long updated) {
+        final Note note = new Note();
+        note.id = rowId;
+        note.beer = "beer " + rowId;
+        note.rating = String.valueOf(rowId % 5 + 1);
+        note.notes = "notes " + rowId;
+        note.created = BASE_TIME;
+        note.updated = updated;
+        synchronized (mServerNotes) {
+            mServerNotes.put(rowId, note);
+        }
+        return note;
+    }
+
+    /**
+     * @return The page of changes the server answers {@code request} with
+     */
+    private String changes(Uri request) throws JSONException {
+        final long since = Long.parseLong(request.getQueryParameter("since"));
+        final int limit = Integer.parseInt(request.getQueryParameter("limit"));
+        final List<Note> changed = new ArrayList<Note>();
+        synchronized (mServerNotes) {
+            for (Note note : mServerNotes.values()) {
+                if (note.updated > since) {
+                    changed.add(note);
+                }
+            }
+        }
+        final JSONArray notes = new JSONArray();
+        for (Note note : changed.subList(0, Math.min(limit, changed.size()))) {
+            notes.put(OutboxSync.toJson(note));
+        }
+        return "{\"notes\":" + notes + "}";
+    }
+}
@@ -0,0 +1,288 @@
+package com.cm.android.beercellar.tests;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+import com.cm.android.beercellar.db.SyncWatermark;
+import com.cm.android.beercellar.provider.DeltaSync;
+import com.cm.android.beercellar.provider.OutboxSync;
+import com.cm.android.beercellar.util.HttpClient;
+import com.cm.android.beercellar.util.Utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pulls notes from a local stub of the server holding a cellar of 10,000 notes: a full pull
+ * takes them all a page at a time, a later pull only what changed, newer notes here win, notes
+ * deleted here are not brought back, only missing photos are downloaded and an interrupted pull
+ * carries on from its watermark. Runs on a device, as it needs the platform's SQLite.
+ */
+public class DeltaSyncTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "delta-sync-test.sqlite";
+    private static final String ACCOUNT = "test";
+    private static final int NOTE_COUNT = 10000;
+    private static final int CHANGED_COUNT = 100;
+    private static final long BASE_TIME = 1460000000000L;
+
+    private NotesDatabase mDatabase;
+    private NotesDbAdapter mAdapter;
+    private HttpStub mStub;
+    private File mImageDir;
+    // The server's notes by rowId
+    private final Map<Long, Note> mServerNotes = new TreeMap<Long, Note>();
+    private final List<String> mDownloaded = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger mFailPage = new AtomicInteger(-1);
+    private final AtomicInteger mPages = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mAdapter = mDatabase.getNotesDbAdapter();
+        mImageDir = new File(getContext().getCacheDir(), "delta-sync-images");
+        deleteImages();
+        mImageDir.mkdirs();
+        mStub = new HttpStub(new HttpStub.Responder() {
+            @Override
+            public HttpStub.Response respond(HttpStub.Request request) throws IOException {
+                if (request.path.startsWith("/images/")) {
+                    return new HttpStub.Response(200, "photo " + request.path);
+                }
+                if (mPages.getAndIncrement() == mFailPage.get()) {
+                    return new HttpStub.Response(503, "busy");
+                }
+                try {
+                    return new HttpStub.Response(200, changes(Uri.parse(request.path)));
+                } catch (JSONException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStub.close();
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        deleteImages();
+        super.tearDown();
+    }
+
+    public void testFullThenDeltaSync() {
+        // Three notes per millisecond, so pages break within a millisecond
+        for (int i = 1; i <= NOTE_COUNT; i++) {
+            putServerNote(i, BASE_TIME + i / 3, false);
+        }
+        final DeltaSync sync = newSync(DeltaSync.PAGE_SIZE);
+
+        assertEquals(NOTE_COUNT, sync.syncNow());
+        assertEquals(NOTE_COUNT / DeltaSync.PAGE_SIZE + 1, mPages.get());
+        assertEquals(NOTE_COUNT, mAdapter.fetchStats().total.notes);
+        assertEquals("beer " + NOTE_COUNT, mAdapter.fetchNote(NOTE_COUNT).beer);
+
+        final long changedTime = BASE_TIME + NOTE_COUNT;
+        for (int i = 1; i <= CHANGED_COUNT; i++) {
+            final Note note = putServerNote(i * 97, changedTime + i, false);
+            note.beer = "changed " + note.id;
+        }
+        mPages.set(0);
+        assertEquals(CHANGED_COUNT, sync.syncNow());
+        assertEquals(1, mPages.get());
+        assertEquals("changed 97", mAdapter.fetchNote(97).beer);
+        assertEquals(changedTime + 1, mAdapter.fetchNote(97).updated);
+
+        mPages.set(0);
+        assertEquals(0, sync.syncNow());
+        assertEquals(1, mPages.get());
+        sync.close();
+    }
+
+    public void testLastWriterWins() {
+        final List<Note> local = new ArrayList<Note>();
+        for (int i = 1; i <= 3; i++) {
+            final Note note = newNote(i, BASE_TIME + 1000);
+            note.beer = "local " + i;
+            local.add(note);
+        }
+        mAdapter.restoreNotes(local);
+        putServerNote(1, BASE_TIME + 500, false);
+        putServerNote(2, BASE_TIME + 2000, false);
+        putServerNote(3, BASE_TIME + 1000, false);
+        putServerNote(4, BASE_TIME + 1000, false);
+
+        final DeltaSync sync = newSync(DeltaSync.PAGE_SIZE);
+        assertEquals(2, sync.syncNow());
+        assertEquals(4, sync.getNotesPulled());
+        sync.close();
+        assertEquals("local 1", mAdapter.fetchNote(1).beer);
+        assertEquals("beer 2", mAdapter.fetchNote(2).beer);
+        assertEquals(BASE_TIME + 2000, mAdapter.fetchNote(2).updated);
+        assertEquals("local 3", mAdapter.fetchNote(3).beer);
+        assertEquals("beer 4", mAdapter.fetchNote(4).beer);
+        assertEquals(4, mAdapter.fetchStats().total.notes);
+    }
+
+    public void testDownloadsOnlyMissingImages() throws IOException {
+        for (int i = 1; i <= 5; i++) {
+            putServerNote(i, BASE_TIME + i, true);
+        }
+        for (int i = 1; i <= 2; i++) {
+            final FileOutputStream out = new FileOutputStream(new File(mImageDir,
+                    i + Utils.PICTURES_EXTENSION));
+            out.write(1);
+            out.close();
+        }
+
+        final DeltaSync sync = newSync(DeltaSync.PAGE_SIZE);
+        assertEquals(5, sync.syncNow());
+        sync.close();
+        assertEquals(3, sync.getImageCount());
+        int downloads = 0;
+        for (HttpStub.Request request : mStub.getRequests()) {
+            if (request.path.startsWith("/images/")) {
+                downloads++;
+            }
+        }
+        assertEquals(3, downloads);
+        Collections.sort(mDownloaded);
+        assertEquals("[3.jpg, 4.jpg, 5.jpg]", mDownloaded.toString());
+        assertEquals(("photo /images/4.jpg").length(), new File(mImageDir, "4.jpg").length());
+        assertEquals(1, new File(mImageDir, "1.jpg").length());
+        assertEquals("4.jpg", mAdapter.fetchNote(4).picture);
+    }
+
+    public void testKeepsPendingDeletes() {
+        final List<Note> local = new ArrayList<Note>();
+        for (int i = 1; i <= 2; i++) {
+            local.add(newNote(i, BASE_TIME + 1000));
+        }
+        mAdapter.restoreNotes(local);
+        // Edited and sent before it was deleted here, the deletion is not sent yet
+        putServerNote(1, BASE_TIME + 2000, true);
+        putServerNote(2, BASE_TIME + 2000, true);
+        mAdapter.deleteNote(1, mDatabase.getOutbox());
+
+        final DeltaSync sync = newSync(DeltaSync.PAGE_SIZE);
+        assertEquals(1, sync.syncNow());
+        sync.close();
+        assertNull(mAdapter.fetchNote(1));
+        assertEquals(BASE_TIME + 2000, mAdapter.fetchNote(2).updated);
+        assertEquals("[2.jpg]", mDownloaded.toString());
+        assertFalse(new File(mImageDir, "1.jpg").exists());
+        assertEquals(1, mAdapter.fetchStats().total.notes);
+        // The pull still moves past it
+        assertEquals(2, mAdapter.fetchWatermark(ACCOUNT).rowId);
+    }
+
+    public void testResumesFromWatermark() {
+        final int pageSize = 100;
+        for (int i = 1; i <= pageSize * 5; i++) {
+            putServerNote(i, BASE_TIME + i / 2, false);
+        }
+        mFailPage.set(2);
+        final DeltaSync sync = newSync(pageSize);
+        assertEquals(pageSize * 2, sync.syncNow());
+        final SyncWatermark watermark = mAdapter.fetchWatermark(ACCOUNT);
+        assertEquals(pageSize * 2, watermark.rowId);
+        assertEquals(BASE_TIME + pageSize, watermark.updated);
+
+        mFailPage.set(-1);
+        final int requests = mStub.getRequests().size();
+        assertEquals(pageSize * 3, sync.syncNow());
+        sync.close();
+        final Uri resumed = Uri.parse(mStub.getRequests().get(requests).path);
+        assertEquals(String.valueOf(watermark.updated), resumed.getQueryParameter("since"));
+        assertEquals(String.valueOf(watermark.rowId), resumed.getQueryParameter("afterRowId"));
+        assertEquals(pageSize * 5, mAdapter.fetchStats().total.notes);
+    }
+
+    private DeltaSync newSync(int pageSize) {
+        return new DeltaSync(mDatabase, new HttpClient(2), mStub.url("/beer"), ACCOUNT,
+                mImageDir, pageSize, new DeltaSync.OnImageDownloadedListener() {
+                    @Override
+                    public void onImageDownloaded(String imageFileName) {
+                        mDownloaded.add(imageFileName);
+                    }
+                });
+    }
+
+    private Note putServerNote(long rowId, long updated, boolean photo) {
+        final Note note = newNote(rowId, updated);
+        if (photo) {
+            note.uri = mStub.url("/images/" + rowId + Utils.PICTURES_EXTENSION);
+        }
+        synchronized (mServerNotes) {
+            mServerNotes.put(rowId, note);
+        }
+        return note;
+    }
+
+    private static Note newNote(long rowId, long updated) {
+        final Note note = new Note();
+        note.id = rowId;
+        note.beer = "beer " + rowId;
+        note.rating = String.valueOf(rowId % 5 + 1);
+        note.notes = "notes " + rowId;
+        note.created = BASE_TIME;
+        note.updated = updated;
+        return note;
+    }
+
+    /**
+     * @return The page of changes the server answers {@code request} with
+     */
+    private String changes(Uri request) throws JSONException {
+        final long since = Long.parseLong(request.getQueryParameter("since"));
+        final long afterRowId = Long.parseLong(request.getQueryParameter("afterRowId"));
+        final int limit = Integer.parseInt(request.getQueryParameter("limit"));
+        final List<Note> changed = new ArrayList<Note>();
+        synchronized (mServerNotes) {
+            for (Note note : mServerNotes.values()) {
+                if (note.updated > since || (note.updated == since && note.id > afterRowId)) {
+                    changed.add(note);
+                }
+            }
+        }
+        Collections.sort(changed, new Comparator<Note>() {
+            @Override
+            public int compare(Note lhs, Note rhs) {
+                return lhs.updated != rhs.updated ? (lhs.updated < rhs.updated ? -1 : 1)
+                        : (lhs.id < rhs.id ? -1 : lhs.id == rhs.id ? 0 : 1);
+            }
+        });
+        final JSONArray notes = new JSONArray();
+        for (Note note : changed.subList(0, Math.min(limit, changed.size()))) {
+            notes.put(OutboxSync.toJson(note));
+        }
+        return "{\"notes\":" + notes + "}";
+    }
+
+    private void deleteImages() {
+        final File[] files = mImageDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mImageDir.delete();
+    }
+}
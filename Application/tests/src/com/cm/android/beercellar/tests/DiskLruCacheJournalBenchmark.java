@@ -0,0 +1,143 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.util.ConcurrentDiskLruCache;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Compares cold open time of {@link ConcurrentDiskLruCache} with the libcore text journal and
+ * with the binary journal at 10k, 50k and 200k entries. The text journal is generated directly
+ * (with a READ line for every fourth entry, as a used cache would have), then migrated by
+ * opening it in binary mode. Plain JUnit so it can run on the JVM as well as on a device.
+ */
+public class DiskLruCacheJournalBenchmark extends TestCase {
+
+    private static final int[] ENTRY_COUNTS = {10000, 50000, 200000};
+    private static final int RUNS = 3;
+    private static final long MAX_SIZE = Long.MAX_VALUE / 2;
+    private static final long VALUE_LENGTH = 24 * 1024;
+
+    private File mDir;
+    private long mTextJournalLength;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(System.getProperty("java.io.tmpdir"), "disk-lru-journal-bench");
+        deleteDirectory(mDir);
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory(mDir);
+        super.tearDown();
+    }
+
+    public void testOpenTime() throws IOException {
+        for (int count : ENTRY_COUNTS) {
+            deleteDirectory(mDir);
+            mDir.mkdirs();
+            writeTextJournal(count);
+
+            long textNanos = Long.MAX_VALUE;
+            long textSize = 0;
+            for (int run = 0; run < RUNS; run++) {
+                final long start = System.nanoTime();
+                final ConcurrentDiskLruCache cache = ConcurrentDiskLruCache.open(mDir, 1, 1, MAX_SIZE);
+                textNanos = Math.min(textNanos, System.nanoTime() - start);
+                textSize = cache.size();
+                cache.close();
+            }
+            assertEquals(count * VALUE_LENGTH, textSize);
+
+            long start = System.nanoTime();
+            ConcurrentDiskLruCache cache = ConcurrentDiskLruCache.open(mDir, 1, 1, MAX_SIZE, true);
+            final long migrateNanos = System.nanoTime() - start;
+            assertEquals(textSize, cache.size());
+            cache.close();
+            assertFalse(new File(mDir, "journal").exists());
+
+            long binaryNanos = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                start = System.nanoTime();
+                cache = ConcurrentDiskLruCache.open(mDir, 1, 1, MAX_SIZE, true);
+                binaryNanos = Math.min(binaryNanos, System.nanoTime() - start);
+                assertEquals(textSize, cache.size());
+                cache.close();
+            }
+
+            System.out.println(String.format(
+                    "DiskLruCacheJournalBenchmark %6d entries: text %7.1f ms, migrate %7.1f ms, "
+                            + "binary %7.1f ms (journal %d KB -> %d KB)",
+                    count, textNanos / 1e6, migrateNanos / 1e6, binaryNanos / 1e6,
+                    mTextJournalLength / 1024, new File(mDir, "journal.bin").length() / 1024));
+        }
+    }
+
+    public void testTornBinaryRecordIsDropped() throws IOException {
+        writeTextJournal(100);
+        ConcurrentDiskLruCache cache = ConcurrentDiskLruCache.open(mDir, 1, 1, MAX_SIZE, true);
+        final long size = cache.size();
+        cache.close();
+
+        // Simulate a crash in the middle of appending a CLEAN record
+        final File journal = new File(mDir, "journal.bin");
+        final long length = journal.length();
+        final FileOutputStream out = new FileOutputStream(journal, true);
+        try {
+            out.write(1);
+            out.write(keyFor(100).substring(0, 10).getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+
+        cache = ConcurrentDiskLruCache.open(mDir, 1, 1, MAX_SIZE, true);
+        assertEquals(size, cache.size());
+        assertEquals(length, journal.length());
+        cache.close();
+    }
+
+    private void writeTextJournal(int count) throws IOException {
+        final File journal = new File(mDir, "journal");
+        final Writer writer = new BufferedWriter(new FileWriter(journal), 64 * 1024);
+        try {
+            writer.write("libcore.io.DiskLruCache\n1\n1\n1\n\n");
+            for (int i = 0; i < count; i++) {
+                final String key = keyFor(i);
+                writer.write("DIRTY " + key + "\n");
+                writer.write("CLEAN " + key + " " + VALUE_LENGTH + "\n");
+            }
+            for (int i = 0; i < count; i += 4) {
+                writer.write("READ " + keyFor(i) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        mTextJournalLength = journal.length();
+    }
+
+    /**
+     * A 32 character hex key, the same shape as ImageCache.hashKeyForDisk() produces.
+     */
+    private static String keyFor(int i) {
+        return String.format("%032x", i * 2654435761L);
+    }
+
+    private static void deleteDirectory(File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,147 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.util.HttpClient;
+import com.cm.android.beercellar.util.StatusCodeException;
+import com.google.api.client.http.GenericUrl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks that the shared {@link HttpClient} keeps connections alive between requests, holds
+ * each host to its connection limit and reads gzip responses, against a local stub server.
+ */
+public class HttpClientTest extends TestCase {
+
+    private static final int REQUESTS = 50;
+    private static final int MAX_CONNECTIONS = 2;
+
+    private HttpStub mStub;
+    private HttpClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStub = new HttpStub(new HttpStub.Responder() {
+            @Override
+            public HttpStub.Response respond(HttpStub.Request request) {
+                return new HttpStub.Response(200, "{\"path\":\"" + request.path + "\"}");
+            }
+        });
+        mClient = new HttpClient(MAX_CONNECTIONS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStub.close();
+        super.tearDown();
+    }
+
+    public void testReusesConnections() throws IOException, StatusCodeException {
+        for (int i = 0; i < REQUESTS; i++) {
+            assertEquals("{\"path\":\"/" + i + "\"}", get("/" + i));
+        }
+        assertEquals(1, mStub.getConnectionCount());
+        assertEquals(REQUESTS, mClient.getRequestCount());
+    }
+
+    public void testReusesConnectionsAfterErrors() throws IOException {
+        mStub.setResponder(new HttpStub.Responder() {
+            @Override
+            public HttpStub.Response respond(HttpStub.Request request) {
+                return new HttpStub.Response(503, "busy");
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            try {
+                get("/busy");
+                fail("no StatusCodeException");
+            } catch (StatusCodeException e) {
+                assertEquals(503, e.getStatusCode());
+                assertEquals("busy", e.getEncodedResponse());
+            }
+        }
+        assertEquals(1, mStub.getConnectionCount());
+    }
+
+    public void testLimitsConnectionsPerHost() throws InterruptedException {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        mStub.setResponder(new HttpStub.Responder() {
+            @Override
+            public HttpStub.Response respond(HttpStub.Request request) {
+                final int now = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), now));
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                return new HttpStub.Response(200, "{}");
+            }
+        });
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 5; j++) {
+                        try {
+                            get("/slow");
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertTrue(maxInFlight.get() <= MAX_CONNECTIONS);
+        assertTrue(mClient.getWaitCount() > 0);
+        assertTrue(mStub.getConnectionCount() <= MAX_CONNECTIONS);
+    }
+
+    public void testReadsGzip() throws IOException, StatusCodeException {
+        final String body = "{\"notes\":\"" + new String(new char[4096]).replace('\0', 'a')
+                + "\"}";
+        mStub.setResponder(new HttpStub.Responder() {
+            @Override
+            public HttpStub.Response respond(HttpStub.Request request) throws IOException {
+                assertEquals("gzip", request.headers.get("accept-encoding"));
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+                gzip.write(body.getBytes("UTF-8"));
+                gzip.close();
+                final HttpStub.Response response = new HttpStub.Response();
+                response.headers.put("Content-Encoding", "gzip");
+                response.body = bytes.toByteArray();
+                assertTrue(response.body.length < body.length() / 10);
+                return response;
+            }
+        });
+        assertEquals(body, get("/gzip"));
+        assertEquals(body, get("/gzip"));
+        assertEquals(1, mStub.getConnectionCount());
+    }
+
+    private String get(String path) throws IOException, StatusCodeException {
+        return mClient.executeForString(mClient.getRequestFactory().buildGetRequest(
+                new GenericUrl(mStub.url(path))));
+    }
+}
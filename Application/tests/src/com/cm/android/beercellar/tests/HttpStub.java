@@ -0,0 +1,234 @@
+package com.cm.android.beercellar.tests;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A local HTTP/1.1 server for tests, answering each request with whatever its
+ * {@link Responder} returns and keeping every request it was sent. Connections are kept alive
+ * unless the client or the response asks to close them.
+ */
+public class HttpStub {
+
+    public static class Request {
+        public String method;
+        public String path;
+        public final Map<String, String> headers = new HashMap<String, String>();
+        public byte[] body;
+        /**
+         * Which connection to the stub the request came on, counting from 0
+         */
+        public int connection;
+
+        public String bodyAsString() {
+            try {
+                return new String(body, "UTF-8");
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    public static class Response {
+        public int status = 200;
+        public final Map<String, String> headers = new HashMap<String, String>();
+        public byte[] body = new byte[0];
+
+        public Response() {
+        }
+
+        public Response(int status, String body) {
+            this.status = status;
+            try {
+                this.body = body.getBytes("UTF-8");
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    public interface Responder {
+        Response respond(Request request) throws IOException;
+    }
+
+    private final ServerSocket mServer;
+    private final List<Request> mRequests = new CopyOnWriteArrayList<Request>();
+    private final List<Socket> mSockets = new CopyOnWriteArrayList<Socket>();
+    private volatile Responder mResponder;
+    private int mConnections;
+
+    public HttpStub(Responder responder) throws IOException {
+        mResponder = responder;
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final Thread accept = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServer.isClosed()) {
+                    try {
+                        final Socket socket = mServer.accept();
+                        mSockets.add(socket);
+                        final int connection;
+                        synchronized (HttpStub.this) {
+                            connection = mConnections++;
+                        }
+                        final Thread serve = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket, connection);
+                            }
+                        }, "HttpStub-" + connection);
+                        serve.setDaemon(true);
+                        serve.start();
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            }
+        }, "HttpStub");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    /**
+     * @return The url of {@code path} on the stub
+     */
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServer.getLocalPort() + path;
+    }
+
+    public void setResponder(Responder responder) {
+        mResponder = responder;
+    }
+
+    public List<Request> getRequests() {
+        return mRequests;
+    }
+
+    public synchronized int getConnectionCount() {
+        return mConnections;
+    }
+
+    public void close() throws IOException {
+        mServer.close();
+        for (Socket socket : mSockets) {
+            socket.close();
+        }
+    }
+
+    private void serve(Socket socket, int connection) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            socket.setTcpNoDelay(true);
+            final OutputStream out = socket.getOutputStream();
+            while (true) {
+                final Request request = readRequest(in);
+                if (request == null) {
+                    break;
+                }
+                request.connection = connection;
+                mRequests.add(request);
+                Response response;
+                try {
+                    response = mResponder.respond(request);
+                } catch (IOException e) {
+                    // Stands in for the connection dropping mid request
+                    break;
+                }
+                final boolean close = "close".equalsIgnoreCase(request.headers.get("connection"))
+                        || "close".equalsIgnoreCase(response.headers.get("Connection"));
+                final StringBuilder head = new StringBuilder();
+                head.append("HTTP/1.1 ").append(response.status).append(" Stub\r\n");
+                head.append("Content-Length: ").append(response.body.length).append("\r\n");
+                for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                    head.append(header.getKey()).append(": ").append(header.getValue())
+                            .append("\r\n");
+                }
+                head.append("\r\n");
+                // One write, so the client does not wait on a delayed acknowledgement
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                bytes.write(head.toString().getBytes("UTF-8"));
+                bytes.write(response.body);
+                bytes.writeTo(out);
+                out.flush();
+                if (close) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closed already
+            }
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        final String line = readLine(in);
+        if (line == null || line.length() == 0) {
+            return null;
+        }
+        final String[] parts = line.split(" ");
+        final Request request = new Request();
+        request.method = parts[0];
+        request.path = parts[1];
+        String header;
+        while ((header = readLine(in)) != null && header.length() > 0) {
+            final int colon = header.indexOf(':');
+            request.headers.put(header.substring(0, colon).trim().toLowerCase(Locale.US),
+                    header.substring(colon + 1).trim());
+        }
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(request.headers.get("transfer-encoding"))) {
+            int length;
+            while ((length = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                copy(in, body, length);
+                readLine(in);
+            }
+            readLine(in);
+        } else if (request.headers.containsKey("content-length")) {
+            copy(in, body, Long.parseLong(request.headers.get("content-length")));
+        }
+        request.body = body.toByteArray();
+        return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int end = line.length();
+                return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1)
+                        : line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        final byte[] buffer = new byte[8192];
+        while (length > 0) {
+            final int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read == -1) {
+                throw new IOException("copy - truncated body");
+            }
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.util.ImageLoadExecutor;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the ordering and cancellation rules of {@link ImageLoadExecutor}.
+ */
+public class ImageLoadExecutorTest extends TestCase {
+
+    public void testVisibleLoadsRunNewestFirstAheadOfPrefetches() throws Exception {
+        final ImageLoadExecutor executor = new ImageLoadExecutor(1);
+        final CountDownLatch release = blockOnlyThread(executor);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute(record(order, "prefetch1"), ImageLoadExecutor.PRIORITY_PREFETCH);
+        executor.execute(record(order, "visible1"), ImageLoadExecutor.PRIORITY_VISIBLE);
+        executor.execute(record(order, "prefetch2"), ImageLoadExecutor.PRIORITY_PREFETCH);
+        executor.execute(record(order, "visible2"), ImageLoadExecutor.PRIORITY_VISIBLE);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, ImageLoadExecutor.PRIORITY_PREFETCH);
+        assertEquals(5, executor.getQueueDepth());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(4, order.size());
+        assertEquals("visible2", order.get(0));
+        assertEquals("visible1", order.get(1));
+        assertEquals("prefetch1", order.get(2));
+        assertEquals("prefetch2", order.get(3));
+        assertEquals(5, executor.getPeakQueueDepth());
+    }
+
+    public void testCancelledAndRemovedTasksNeverRun() throws Exception {
+        final ImageLoadExecutor executor = new ImageLoadExecutor(1);
+        final CountDownLatch release = blockOnlyThread(executor);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        final FutureTask<Void> cancelled = new FutureTask<Void>(record(order, "cancelled"), null);
+        executor.execute(cancelled, ImageLoadExecutor.PRIORITY_VISIBLE);
+        final Runnable removed = record(order, "removed");
+        executor.execute(removed, ImageLoadExecutor.PRIORITY_PREFETCH);
+        final FutureTask<Void> kept = new FutureTask<Void>(record(order, "kept"), null);
+        executor.execute(kept, ImageLoadExecutor.PRIORITY_VISIBLE);
+
+        cancelled.cancel(true);
+        assertTrue(executor.remove(removed));
+        assertEquals(1, executor.purge());
+        assertEquals(1, executor.getQueueDepth());
+
+        release.countDown();
+        kept.get(5, TimeUnit.SECONDS);
+        assertEquals(Collections.singletonList("kept"), order);
+        assertEquals(1, executor.getDroppedCount());
+    }
+
+    /**
+     * Occupies the executor's only load thread until the returned latch is released.
+     */
+    private static CountDownLatch blockOnlyThread(ImageLoadExecutor executor)
+            throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, ImageLoadExecutor.PRIORITY_VISIBLE);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,85 @@
+package com.cm.android.beercellar.tests;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.util.ImagePyramid;
+import com.cm.android.beercellar.util.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates the pyramid of camera sized photos and checks the sizes of the grid and detail
+ * files written. Runs on a device, as it needs the platform's bitmaps.
+ */
+public class ImagePyramidLevelsTest extends AndroidTestCase {
+
+    private File mOriginal;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mOriginal != null) {
+            for (int level : new int[]{ImagePyramid.LEVEL_GRID, ImagePyramid.LEVEL_DETAIL,
+                    ImagePyramid.LEVEL_FULL}) {
+                ImagePyramid.getLevelFile(mOriginal.getPath(), level).delete();
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testLandscapePhoto() throws Exception {
+        assertLevels(4000, 3000, ImagePyramid.DETAIL_SIZE, 960);
+    }
+
+    public void testPortraitPhoto() throws Exception {
+        assertLevels(1944, 2592, 960, ImagePyramid.DETAIL_SIZE);
+    }
+
+    public void testSmallPhotoIsNotScaledUp() throws Exception {
+        assertLevels(800, 600, 800, 600);
+    }
+
+    private void assertLevels(int width, int height, int detailWidth, int detailHeight)
+            throws IOException, InterruptedException {
+        mOriginal = new File(Utils.getExternalImageStorageDir(getContext()),
+                "pyramid-test-" + width + "x" + height + Utils.PICTURES_EXTENSION);
+        final Bitmap photo = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        final FileOutputStream out = new FileOutputStream(mOriginal);
+        try {
+            photo.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+            photo.recycle();
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        ImagePyramid.getInstance(getContext()).generate(mOriginal.getName(),
+                new ImagePyramid.OnPyramidGeneratedListener() {
+                    @Override
+                    public void onPyramidGenerated(String imageFileName, Bitmap grid) {
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        assertSize(ImagePyramid.getLevelFile(mOriginal.getPath(), ImagePyramid.LEVEL_DETAIL),
+                detailWidth, detailHeight);
+        final int grid = Math.min(ImagePyramid.GRID_SIZE, Math.min(detailWidth, detailHeight));
+        assertSize(ImagePyramid.getLevelFile(mOriginal.getPath(), ImagePyramid.LEVEL_GRID),
+                grid, grid);
+    }
+
+    private static void assertSize(File file, int width, int height) {
+        assertTrue(file + " missing", file.isFile());
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        assertEquals(width, options.outWidth);
+        assertEquals(height, options.outHeight);
+    }
+}
@@ -0,0 +1,103 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.util.ImagePyramid;
+import com.cm.android.beercellar.util.ImageSize;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Checks which level of a photo's pyramid {@link ImagePyramid#selectSource} picks for a request,
+ * and how far photos are sampled down on decoding.
+ */
+public class ImagePyramidTest extends TestCase {
+
+    private static final String NAME = "1234.jpg";
+
+    private File mBaseDir;
+    private File mGrid;
+    private File mDetail;
+    private File mFull;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBaseDir = new File(System.getProperty("java.io.tmpdir"),
+                "pyramid-" + System.nanoTime());
+        mGrid = touch(new File(new File(mBaseDir, "thumbs"), NAME));
+        mFull = touch(new File(new File(mBaseDir, "images"), NAME));
+        mDetail = new File(new File(mBaseDir, "detail"), NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : new File[] {mGrid, mDetail, mFull}) {
+            file.delete();
+            file.getParentFile().delete();
+        }
+        mBaseDir.delete();
+        super.tearDown();
+    }
+
+    public void testGridRequestsUseTheThumbnail() {
+        assertEquals(mGrid.getPath(), ImagePyramid.selectSource(mGrid.getPath(), square(360)));
+    }
+
+    public void testMissingThumbnailsFallBackToLargerLevels() throws IOException {
+        mGrid.delete();
+        assertEquals(mFull.getAbsolutePath(),
+                ImagePyramid.selectSource(mGrid.getPath(), square(360)));
+
+        touch(mDetail);
+        assertEquals(mDetail.getAbsolutePath(),
+                ImagePyramid.selectSource(mGrid.getPath(), square(360)));
+    }
+
+    public void testLargerRequestsUseTheDetailLevelOnceItExists() throws IOException {
+        // Not generated yet, fall back to the original
+        assertEquals(mFull.getAbsolutePath(),
+                ImagePyramid.selectSource(mGrid.getPath(), square(900)));
+        assertEquals(mFull.getPath(), ImagePyramid.selectSource(mFull.getPath(), square(900)));
+
+        touch(mDetail);
+        assertEquals(mDetail.getAbsolutePath(),
+                ImagePyramid.selectSource(mGrid.getPath(), square(900)));
+        assertEquals(mDetail.getAbsolutePath(),
+                ImagePyramid.selectSource(mFull.getPath(), square(900)));
+    }
+
+    public void testFullSizeRequestsUseTheOriginal() throws IOException {
+        touch(mDetail);
+        assertEquals(mFull.getPath(), ImagePyramid.selectSource(mFull.getPath(), null));
+        assertEquals(mFull.getPath(), ImagePyramid.selectSource(mFull.getPath(),
+                square(ImagePyramid.DETAIL_SIZE + 1)));
+    }
+
+    public void testPathsOutsideAPyramidAreKept() {
+        final String other = new File(mBaseDir, NAME).getPath();
+        assertEquals(other, ImagePyramid.selectSource(other, square(100)));
+        assertEquals("http://example.com/a.jpg",
+                ImagePyramid.selectSource("http://example.com/a.jpg", square(100)));
+    }
+
+    public void testSamplesNoFurtherThanTheLevelNeeds() {
+        // Halving again would go below the detail size
+        assertEquals(2, ImagePyramid.calculateSampleSize(4000, 3000, ImagePyramid.DETAIL_SIZE));
+        assertEquals(2, ImagePyramid.calculateSampleSize(1944, 2592, ImagePyramid.DETAIL_SIZE));
+        assertEquals(4, ImagePyramid.calculateSampleSize(5120, 3840, ImagePyramid.DETAIL_SIZE));
+        assertEquals(1, ImagePyramid.calculateSampleSize(1280, 960, ImagePyramid.DETAIL_SIZE));
+        assertEquals(1, ImagePyramid.calculateSampleSize(640, 480, ImagePyramid.DETAIL_SIZE));
+    }
+
+    private static ImageSize square(int size) {
+        return new ImageSize(size, size, null);
+    }
+
+    private static File touch(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+        return file;
+    }
+}
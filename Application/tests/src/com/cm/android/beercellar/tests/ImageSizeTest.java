@@ -0,0 +1,45 @@
+package com.cm.android.beercellar.tests;
+
+import android.graphics.Bitmap;
+
+import com.cm.android.beercellar.util.ImageSize;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link ImageSize} cache keys keep size variants apart and split back into their
+ * data and variant.
+ */
+public class ImageSizeTest extends TestCase {
+
+    private static final String DATA = "/sdcard/Pictures/beer#1.jpg";
+
+    public void testSizesGetDistinctKeys() {
+        final ImageSize thumbnail = new ImageSize(240, 240, Bitmap.Config.RGB_565);
+        final ImageSize full = new ImageSize(1080, 1920, null);
+
+        assertFalse(thumbnail.getCacheKey(DATA).equals(full.getCacheKey(DATA)));
+        assertEquals(thumbnail.getCacheKey(DATA),
+                new ImageSize(240, 240, Bitmap.Config.RGB_565).getCacheKey(DATA));
+        assertFalse(thumbnail.getCacheKey(DATA).equals(
+                new ImageSize(240, 240, Bitmap.Config.ARGB_8888).getCacheKey(DATA)));
+    }
+
+    public void testKeysSplitBackIntoDataAndVariant() {
+        final ImageSize thumbnail = new ImageSize(240, 240, Bitmap.Config.RGB_565);
+        final String key = thumbnail.getCacheKey(DATA);
+
+        assertEquals(DATA, ImageSize.dataOf(key));
+        assertEquals("240x240:RGB_565", ImageSize.variantOf(key));
+        assertEquals("plain", ImageSize.dataOf("plain"));
+        assertNull(ImageSize.variantOf("plain"));
+    }
+
+    public void testRejectsEmptyBounds() {
+        try {
+            new ImageSize(0, 240, null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.cm.android.beercellar.tests;
+
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NoteCache;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+
+/**
+ * Checks that {@link NotesDbAdapter#fetchNote} answers repeat reads from the {@link NoteCache}
+ * and never returns a note older than the last write through any adapter on the database.
+ * Runs on a device, as it needs the platform's SQLite.
+ */
+public class NoteCacheTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "note-cache-test.sqlite";
+    private static final int READS = 1000;
+
+    private NotesDatabase mDatabase;
+    private NotesDbAdapter mAdapter;
+    private NoteCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mAdapter = mDatabase.getNotesDbAdapter();
+        mCache = mDatabase.getNoteCache();
+        mCache.evictAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testRepeatReadsHit() {
+        mAdapter.createNote(note(1, "Orval", "4.5"));
+        mCache.evictAll();
+
+        final int hits = mCache.getHitCount();
+        final int misses = mCache.getMissCount();
+        for (int i = 0; i < READS; i++) {
+            assertEquals("Orval", mAdapter.fetchNote(1).beer);
+        }
+        assertEquals(1, mCache.getMissCount() - misses);
+        assertEquals(READS - 1, mCache.getHitCount() - hits);
+    }
+
+    public void testCopiesAreIndependent() {
+        mAdapter.createNote(note(1, "Orval", "4.5"));
+        mAdapter.fetchNote(1).beer = "Changed by the caller";
+        assertEquals("Orval", mAdapter.fetchNote(1).beer);
+    }
+
+    public void testWritesThroughAnyAdapter() {
+        final NotesDbAdapter other = new NotesDbAdapter(getContext(), DATABASE_NAME).open();
+        try {
+            mAdapter.createNote(note(1, "Orval", "4.5"));
+            final Note created = other.fetchNote(1);
+            assertEquals("Orval", created.beer);
+            assertEquals("4.5", created.rating);
+
+            final Note update = new Note();
+            update.id = 1;
+            update.notes = "Dry hopped";
+            update.rating = "3";
+            other.updateNote(update);
+            final Note updated = mAdapter.fetchNote(1);
+            assertEquals("Orval", updated.beer);
+            assertEquals("Dry hopped", updated.notes);
+            assertEquals("3.0", updated.rating);
+            assertTrue(updated.updated >= created.updated);
+
+            // The cached note must match what the database now holds
+            mCache.evictAll();
+            final Note read = mAdapter.fetchNote(1);
+            assertEquals(updated.beer, read.beer);
+            assertEquals(updated.notes, read.notes);
+            assertEquals(updated.rating, read.rating);
+            assertEquals(updated.updated, read.updated);
+
+            other.deleteNote(1);
+            assertNull(mAdapter.fetchNote(1));
+        } finally {
+            other.close();
+        }
+    }
+
+    private static Note note(long id, String beer, String rating) {
+        final Note note = new Note();
+        note.id = id;
+        note.beer = beer;
+        note.rating = rating;
+        return note;
+    }
+}
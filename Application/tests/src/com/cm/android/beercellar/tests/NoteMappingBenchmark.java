@@ -0,0 +1,168 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reports rows/sec for reading notes the way NotesDbAdapter used to, with the WHERE clause
+ * concatenated into the SQL and every column looked up by name on every row, against
+ * {@link NotesDbAdapter#fetchNote} and {@link NotesDbAdapter#forEachNote} with and without
+ * reusing the Note. Runs on a device, as it needs the platform's SQLite.
+ */
+public class NoteMappingBenchmark extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "note-mapping-bench.sqlite";
+    private static final int NOTE_COUNT = 10000;
+    private static final int LOOKUPS = 5000;
+    private static final int RUNS = 3;
+
+    private static final String[] COLUMNS = {NotesDbAdapter.KEY_ROWID, NotesDbAdapter.KEY_BEER,
+            NotesDbAdapter.KEY_RATING, NotesDbAdapter.KEY_TEXT_EXTRACT, NotesDbAdapter.KEY_NOTES,
+            NotesDbAdapter.KEY_PICTURE, NotesDbAdapter.KEY_SHARE, NotesDbAdapter.KEY_URI,
+            NotesDbAdapter.KEY_CREATED, NotesDbAdapter.KEY_UPDATED};
+
+    private NotesDatabase mDatabase;
+    private NotesDbAdapter mAdapter;
+    private long[] mLookups;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mAdapter = mDatabase.getNotesDbAdapter();
+
+        final List<Note> notes = new ArrayList<Note>(NOTE_COUNT);
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            final Note note = new Note();
+            note.id = i;
+            note.beer = "Beer " + i;
+            note.rating = String.valueOf((i % 11) / 2f);
+            note.textExtract = "Brewery " + i + ", Belgian Strong Pale Ale";
+            note.notes = "Golden, dry, peppery finish with a touch of clove " + i;
+            note.picture = i + ".jpg";
+            note.share = "Y";
+            notes.add(note);
+        }
+        mAdapter.createNotes(notes, SQLiteDatabase.CONFLICT_ABORT);
+
+        final Random random = new Random(LOOKUPS);
+        mLookups = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            mLookups[i] = random.nextInt(NOTE_COUNT);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testLookups() {
+        final SQLiteDatabase db = mAdapter.getDatabase();
+        long before = Long.MAX_VALUE;
+        long after = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (long rowId : mLookups) {
+                final Cursor cursor = db.query(false, NotesDbAdapter.DATABASE_TABLE, COLUMNS,
+                        NotesDbAdapter.KEY_ROWID + "=" + rowId, null, null, null, null, null);
+                try {
+                    cursor.moveToFirst();
+                    assertEquals(rowId, mapByName(cursor).id);
+                } finally {
+                    cursor.close();
+                }
+            }
+            before = Math.min(before, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (long rowId : mLookups) {
+                assertEquals(rowId, mAdapter.fetchNote(rowId).id);
+            }
+            after = Math.min(after, System.nanoTime() - start);
+        }
+        report("fetchNote", LOOKUPS, before, after, -1);
+    }
+
+    public void testScan() {
+        final SQLiteDatabase db = mAdapter.getDatabase();
+        long before = Long.MAX_VALUE;
+        long after = Long.MAX_VALUE;
+        long reused = Long.MAX_VALUE;
+        final int[] count = new int[1];
+        final NotesDbAdapter.OnNoteListener listener = new NotesDbAdapter.OnNoteListener() {
+            @Override
+            public boolean onNote(Note note) {
+                count[0] += note.beer.length() > 0 ? 1 : 0;
+                return true;
+            }
+        };
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            final Cursor cursor = db.query(false, NotesDbAdapter.DATABASE_TABLE, COLUMNS, null,
+                    null, null, null, NotesDbAdapter.KEY_ROWID, null);
+            try {
+                count[0] = 0;
+                while (cursor.moveToNext()) {
+                    listener.onNote(mapByName(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+            before = Math.min(before, System.nanoTime() - start);
+            assertEquals(NOTE_COUNT, count[0]);
+
+            count[0] = 0;
+            start = System.nanoTime();
+            assertEquals(NOTE_COUNT, mAdapter.forEachNote(false, listener));
+            after = Math.min(after, System.nanoTime() - start);
+            assertEquals(NOTE_COUNT, count[0]);
+
+            count[0] = 0;
+            start = System.nanoTime();
+            assertEquals(NOTE_COUNT, mAdapter.forEachNote(true, listener));
+            reused = Math.min(reused, System.nanoTime() - start);
+            assertEquals(NOTE_COUNT, count[0]);
+        }
+        report("scan", NOTE_COUNT, before, after, reused);
+    }
+
+    /**
+     * How cursorToNote read a row before column indexes were cached
+     */
+    private static Note mapByName(Cursor cursor) {
+        final Note note = new Note();
+        note.id = cursor.getLong(cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_ROWID));
+        note.beer = cursor.getString(cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_BEER));
+        final int rating = cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_RATING);
+        note.rating = cursor.isNull(rating) ? null : String.valueOf(cursor.getFloat(rating));
+        note.textExtract = cursor.getString(
+                cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_TEXT_EXTRACT));
+        note.notes = cursor.getString(cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_NOTES));
+        note.share = cursor.getString(cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_SHARE));
+        note.picture = cursor.getString(cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_PICTURE));
+        note.uri = cursor.getString(cursor.getColumnIndex(NotesDbAdapter.KEY_URI));
+        note.created = cursor.getLong(cursor.getColumnIndex(NotesDbAdapter.KEY_CREATED));
+        note.updated = cursor.getLong(cursor.getColumnIndex(NotesDbAdapter.KEY_UPDATED));
+        return note;
+    }
+
+    private static void report(String name, int rows, long before, long after, long reused) {
+        System.out.println(String.format("NoteMappingBenchmark %-9s before %8.0f rows/s,"
+                        + " after %8.0f rows/s%s", name, rows / (before / 1e9),
+                rows / (after / 1e9), reused < 0 ? ""
+                        : String.format(", reusing the Note %8.0f rows/s", rows / (reused / 1e9))));
+    }
+}
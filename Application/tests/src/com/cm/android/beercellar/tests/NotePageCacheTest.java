@@ -0,0 +1,151 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotePageCache;
+import com.cm.android.beercellar.db.NoteSummary;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks every sort order of {@link NotesDbAdapter#fetchNoteSummaries} page by page through a
+ * {@link NotePageCache}, including ties and unrated notes, looks notes up by rowId, and checks
+ * that writes invalidate it without leaving gaps or repeats between pages.
+ */
+public class NotePageCacheTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "note-pages-test.sqlite";
+    private static final int NOTE_COUNT = NotePageCache.PAGE_SIZE * 2 + 50;
+
+    private NotesDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        final List<Note> notes = new ArrayList<Note>();
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            final Note note = new Note();
+            note.id = i;
+            note.beer = "Beer " + i;
+            // Every seventh note is unrated, the rest share a handful of ratings
+            note.rating = i % 7 == 0 ? null : String.valueOf((i % 5) + 0.5f);
+            notes.add(note);
+        }
+        // All created in the same millisecond, so the rowid breaks the ties
+        mDatabase.getNotesDbAdapter().createNotes(notes, SQLiteDatabase.CONFLICT_ABORT);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testPagesCoverEveryNoteOnce() {
+        final NotePageCache cache = new NotePageCache(mDatabase, 2);
+        for (int sortOrder : new int[]{NotesDbAdapter.SORT_CREATED, NotesDbAdapter.SORT_UPDATED,
+                NotesDbAdapter.SORT_RATING}) {
+            final Set<Long> seen = new HashSet<Long>();
+            NoteSummary previous = null;
+            for (int page = 0; ; page++) {
+                final List<NoteSummary> notes = cache.getPage(sortOrder, page);
+                if (notes.isEmpty()) {
+                    break;
+                }
+                for (NoteSummary note : notes) {
+                    assertTrue(seen.add(note.id));
+                    if (previous != null && sortOrder == NotesDbAdapter.SORT_RATING) {
+                        assertTrue(note.rating == null || previous.rating != null
+                                && Float.valueOf(previous.rating) >= Float.valueOf(note.rating));
+                    }
+                    previous = note;
+                }
+            }
+            assertEquals(NOTE_COUNT, seen.size());
+        }
+    }
+
+    public void testEvictedPagesReloadFromTheirNeighbour() {
+        final NotePageCache cache = new NotePageCache(mDatabase, 1);
+        final List<NoteSummary> last = cache.getPage(NotesDbAdapter.SORT_CREATED, 2);
+        assertEquals(50, last.size());
+        assertNull(cache.peekPage(NotesDbAdapter.SORT_CREATED, 0));
+
+        final List<NoteSummary> first = cache.getPage(NotesDbAdapter.SORT_CREATED, 0);
+        assertEquals(0, first.get(0).id);
+        assertEquals(NotePageCache.PAGE_SIZE * 2,
+                cache.getPage(NotesDbAdapter.SORT_CREATED, 2).get(0).id);
+        assertTrue(cache.getPage(NotesDbAdapter.SORT_CREATED, 5).isEmpty());
+    }
+
+    public void testNotesByRowId() {
+        final NotePageCache cache = new NotePageCache(mDatabase);
+        assertFalse(cache.isNoteCached(200));
+        // In no sort order, and one without a note
+        cache.loadNotes(Arrays.asList(200L, 3L, 150L, NOTE_COUNT + 10L));
+        assertEquals(1, cache.getMissCount());
+        assertEquals("Beer 200", cache.peekNote(200).beer);
+        assertEquals("Beer 3", cache.peekNote(3).beer);
+        assertTrue(cache.isNoteCached(NOTE_COUNT + 10L));
+        assertNull(cache.peekNote(NOTE_COUNT + 10L));
+
+        cache.loadNotes(Arrays.asList(3L, 150L));
+        assertEquals(1, cache.getMissCount());
+
+        mDatabase.getNotesDbAdapter().deleteNote(3);
+        assertFalse(cache.isNoteCached(3));
+        cache.loadNotes(Arrays.asList(3L));
+        assertNull(cache.peekNote(3));
+    }
+
+    public void testPagesStayWholeAfterWrites() {
+        final NotePageCache cache = new NotePageCache(mDatabase);
+        for (int page = 0; page < 3; page++) {
+            cache.getPage(NotesDbAdapter.SORT_RATING, page);
+        }
+        // New top rated notes move where every page ends
+        final List<Note> notes = new ArrayList<Note>();
+        for (int i = 0; i < 10; i++) {
+            final Note note = new Note();
+            note.id = NOTE_COUNT + i;
+            note.beer = "Beer " + note.id;
+            note.rating = "9.5";
+            notes.add(note);
+        }
+        mDatabase.getNotesDbAdapter().createNotes(notes, SQLiteDatabase.CONFLICT_ABORT);
+
+        // The last page reloads from the end it had, the first then finds its end moved
+        cache.getPage(NotesDbAdapter.SORT_RATING, 2);
+        final Set<Long> seen = new HashSet<Long>();
+        for (int page = 0; ; page++) {
+            final List<NoteSummary> pageNotes = cache.getPage(NotesDbAdapter.SORT_RATING, page);
+            if (pageNotes.isEmpty()) {
+                break;
+            }
+            for (NoteSummary note : pageNotes) {
+                assertTrue(seen.add(note.id));
+            }
+        }
+        assertEquals(NOTE_COUNT + notes.size(), seen.size());
+    }
+
+    public void testWritesInvalidate() {
+        final NotePageCache cache = new NotePageCache(mDatabase);
+        cache.getPage(NotesDbAdapter.SORT_RATING, 0);
+        assertNotNull(cache.peekPage(NotesDbAdapter.SORT_RATING, 0));
+
+        mDatabase.getNotesDbAdapter().deleteNote(1);
+        assertNull(cache.peekPage(NotesDbAdapter.SORT_RATING, 0));
+    }
+}
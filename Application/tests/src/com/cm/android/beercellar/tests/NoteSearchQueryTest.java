@@ -0,0 +1,34 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.db.NotesDbAdapter;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how {@link NotesDbAdapter#toMatchQuery} turns typed text into an FTS query.
+ */
+public class NoteSearchQueryTest extends TestCase {
+
+    public void testEveryWordMatchesAsAPrefix() {
+        assertEquals("chim* bel*", NotesDbAdapter.toMatchQuery("Chim bel"));
+        assertEquals("trappist*", NotesDbAdapter.toMatchQuery("  trappist  "));
+        assertEquals("brasserie* dupont* 2015*",
+                NotesDbAdapter.toMatchQuery("Brasserie-Dupont, 2015"));
+    }
+
+    public void testSyntaxIsStripped() {
+        assertEquals("notes* chimay*", NotesDbAdapter.toMatchQuery("notes:\"chimay\""));
+        assertEquals("stout* porter*", NotesDbAdapter.toMatchQuery("stout OR porter"));
+        assertEquals("ale*", NotesDbAdapter.toMatchQuery("-ale* NEAR"));
+    }
+
+    public void testNoWords() {
+        assertNull(NotesDbAdapter.toMatchQuery(null));
+        assertNull(NotesDbAdapter.toMatchQuery(""));
+        assertNull(NotesDbAdapter.toMatchQuery(" *\"- "));
+    }
+
+    public void testLettersOutsideAscii() {
+        assertEquals("bière* brûlée*", NotesDbAdapter.toMatchQuery("Bière brûlée"));
+    }
+}
@@ -0,0 +1,135 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares importing 1k and 10k notes one {@link NotesDbAdapter#createNote} at a time with
+ * {@link NotesDbAdapter#createNotes} and {@link NotesDbAdapter#upsertNotes}, and checks the
+ * conflict policies of the bulk path. Runs on a device, as it needs the platform's SQLite.
+ */
+public class NotesDbBulkWriteBenchmark extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "notes-bulk-bench.sqlite";
+    private static final int[] NOTE_COUNTS = {1000, 10000};
+
+    private NotesDbAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mAdapter = new NotesDbAdapter(getContext(), DATABASE_NAME).open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAdapter.close();
+        NotesDatabase.getInstance(getContext(), DATABASE_NAME).close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testImportThroughput() {
+        for (int count : NOTE_COUNTS) {
+            final List<Note> notes = notes(0, count);
+
+            clear();
+            long start = System.nanoTime();
+            for (Note note : notes) {
+                assertEquals(note.id, mAdapter.createNote(note));
+            }
+            final long perRowNanos = System.nanoTime() - start;
+
+            clear();
+            start = System.nanoTime();
+            assertEquals(count, mAdapter.createNotes(notes, SQLiteDatabase.CONFLICT_ABORT));
+            final long bulkNanos = System.nanoTime() - start;
+
+            // Half of the notes exist already
+            clear();
+            mAdapter.createNotes(notes.subList(0, count / 2), SQLiteDatabase.CONFLICT_ABORT);
+            start = System.nanoTime();
+            assertEquals(count, mAdapter.upsertNotes(notes));
+            final long upsertNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("NotesDbBulkWriteBenchmark %5d notes: per row %8.1f ms"
+                            + " (%7.0f rows/s), bulk %7.1f ms (%7.0f rows/s),"
+                            + " upsert %7.1f ms (%7.0f rows/s)",
+                    count, perRowNanos / 1e6, rowsPerSecond(count, perRowNanos),
+                    bulkNanos / 1e6, rowsPerSecond(count, bulkNanos),
+                    upsertNanos / 1e6, rowsPerSecond(count, upsertNanos)));
+        }
+    }
+
+    public void testConflictPolicies() {
+        mAdapter.createNotes(notes(0, 2), SQLiteDatabase.CONFLICT_ABORT);
+        final List<Note> overlapping = notes(1, 3);
+        overlapping.get(0).beer = "Replaced";
+
+        try {
+            mAdapter.createNotes(overlapping, SQLiteDatabase.CONFLICT_ABORT);
+            fail();
+        } catch (SQLException expected) {
+        }
+        // The whole batch was rolled back
+        assertNull(mAdapter.fetchNote(3));
+
+        assertEquals(2, mAdapter.createNotes(overlapping, SQLiteDatabase.CONFLICT_IGNORE));
+        assertEquals("Beer 1", mAdapter.fetchNote(1).beer);
+        assertNotNull(mAdapter.fetchNote(3));
+
+        assertEquals(3, mAdapter.createNotes(overlapping, SQLiteDatabase.CONFLICT_REPLACE));
+        assertEquals("Replaced", mAdapter.fetchNote(1).beer);
+    }
+
+    public void testUpsertKeepsFieldsLeftEmpty() {
+        mAdapter.createNotes(notes(0, 1), SQLiteDatabase.CONFLICT_ABORT);
+        final long created = mAdapter.fetchNote(0).created;
+
+        final Note note = new Note();
+        note.id = 0;
+        note.notes = "Updated";
+        final Note added = notes(1, 1).get(0);
+        assertEquals(2, mAdapter.upsertNotes(Arrays.asList(note, added)));
+
+        final Note updated = mAdapter.fetchNote(0);
+        assertEquals("Updated", updated.notes);
+        assertEquals("Beer 0", updated.beer);
+        assertEquals(created, updated.created);
+        assertEquals("Beer 1", mAdapter.fetchNote(1).beer);
+    }
+
+    private void clear() {
+        mAdapter.getDatabase().delete(NotesDbAdapter.DATABASE_TABLE, null, null);
+    }
+
+    private static List<Note> notes(int first, int count) {
+        final List<Note> notes = new ArrayList<Note>(count);
+        for (int i = first; i < first + count; i++) {
+            final Note note = new Note();
+            note.id = i;
+            note.beer = "Beer " + i;
+            note.rating = String.valueOf((i % 11) / 2f);
+            note.textExtract = "Label text " + i;
+            note.notes = "Tasting notes " + i;
+            note.picture = i + ".jpg";
+            note.share = "Y";
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    private static double rowsPerSecond(int count, long nanos) {
+        return count / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,198 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+
+import java.util.Random;
+
+/**
+ * Times the grid's sort orders and a beer lookup against the version 1 text schema and the typed,
+ * indexed version 2 schema at 10k and 100k notes, along with the upgrade between them. The version
+ * 1 database is written directly, then upgraded by opening it with {@link NotesDbAdapter}. Runs on
+ * a device, as it needs the platform's SQLite.
+ */
+public class NotesDbSchemaBenchmark extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "notes-schema-bench.sqlite";
+    private static final int[] NOTE_COUNTS = {10000, 100000};
+    private static final int RUNS = 5;
+    private static final int PAGE = 50;
+    private static final String BEER = "Beer 42";
+
+    private static final String[] V1_QUERIES = {
+            "select _id, created from wine_list_1 order by cast(created as integer) desc limit "
+                    + PAGE,
+            "select _id, updated from wine_list_1 order by cast(updated as integer) desc limit "
+                    + PAGE,
+            "select _id, rating from wine_list_1 where cast(rating as real) >= 4"
+                    + " order by cast(rating as real) desc, cast(created as integer) desc limit "
+                    + PAGE,
+            "select _id from wine_list_1 where beer = '" + BEER + "'"};
+
+    private static final String[] V2_QUERIES = {
+            "select _id, created from wine_list_2 order by created desc limit " + PAGE,
+            "select _id, updated from wine_list_2 order by updated desc limit " + PAGE,
+            "select _id, rating from wine_list_2 where rating >= 4"
+                    + " order by rating desc, created desc limit " + PAGE,
+            "select _id from wine_list_2 where beer = '" + BEER + "'"};
+
+    private static final String[] NAMES = {"by created", "by updated", "by rating", "by beer"};
+
+    @Override
+    protected void tearDown() throws Exception {
+        NotesDatabase.getInstance(getContext(), DATABASE_NAME).close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testQueryTimes() {
+        for (int count : NOTE_COUNTS) {
+            getContext().deleteDatabase(DATABASE_NAME);
+            SQLiteDatabase db = getContext().openOrCreateDatabase(DATABASE_NAME, 0, null);
+            try {
+                writeVersion1(db, count);
+                for (int i = 0; i < V1_QUERIES.length; i++) {
+                    report(count, "v1 " + NAMES[i], time(db, V1_QUERIES[i]));
+                }
+            } finally {
+                db.close();
+            }
+
+            final NotesDbAdapter adapter = new NotesDbAdapter(getContext(), DATABASE_NAME);
+            final long start = System.nanoTime();
+            db = adapter.getDatabase();
+            report(count, "upgrade", System.nanoTime() - start);
+            try {
+                assertEquals(NotesDbAdapter.DATABASE_VERSION, db.getVersion());
+                assertEquals(count, longForQuery(db, "select count(*) from wine_list_2"));
+                assertEquals(0, longForQuery(db,
+                        "select count(*) from wine_list_2 where typeof(created) != 'integer'"));
+                assertTrue(adapter.open().verifyStats());
+                for (int i = 0; i < V2_QUERIES.length; i++) {
+                    assertTrue(V2_QUERIES[i], usesIndex(db, V2_QUERIES[i]));
+                    report(count, "v2 " + NAMES[i], time(db, V2_QUERIES[i]));
+                }
+            } finally {
+                NotesDatabase.getInstance(getContext(), DATABASE_NAME).close();
+            }
+        }
+    }
+
+    public void testUpgradeConvertsValues() {
+        getContext().deleteDatabase(DATABASE_NAME);
+        SQLiteDatabase db = getContext().openOrCreateDatabase(DATABASE_NAME, 0, null);
+        try {
+            createVersion1(db);
+            db.execSQL("insert into wine_list_1 (_id, beer, rating, created, updated)"
+                    + " values (1, 'Chimay', '4.5', '1445000000000', '1445000000001')");
+            db.execSQL("insert into wine_list_1 (_id, beer, rating, created, updated)"
+                    + " values (2, 'Orval', ' ', '1445000000002', '1445000000003')");
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+
+        final NotesDbAdapter adapter = new NotesDbAdapter(getContext(), DATABASE_NAME);
+        try {
+            adapter.open();
+            assertEquals("4.5", adapter.fetchNote(1).rating);
+            assertEquals(1445000000000L, adapter.fetchNote(1).created);
+            assertNull(adapter.fetchNote(2).rating);
+            assertEquals(1445000000003L, adapter.fetchNote(2).updated);
+        } finally {
+            NotesDatabase.getInstance(getContext(), DATABASE_NAME).close();
+        }
+    }
+
+    private static void createVersion1(SQLiteDatabase db) {
+        db.execSQL("create table wine_list_1 (_id integer primary key,"
+                + " beer text default null, rating text default null,"
+                + " textextract text default null, notes text default null,"
+                + " picture text default null, share text default null, uri text default null,"
+                + " created text default null, updated text default null);");
+    }
+
+    private static void writeVersion1(SQLiteDatabase db, int count) {
+        createVersion1(db);
+        final Random random = new Random(count);
+        final long base = 1400000000000L;
+        final SQLiteStatement insert = db.compileStatement(
+                "insert into wine_list_1 values (?, ?, ?, '', '', ?, 'Y', '', ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                final long created = base + random.nextInt(Integer.MAX_VALUE);
+                insert.bindLong(1, i + 1);
+                insert.bindString(2, "Beer " + random.nextInt(count / 10));
+                insert.bindString(3, String.valueOf(random.nextInt(11) / 2f));
+                insert.bindString(4, (i + 1) + ".jpg");
+                insert.bindString(5, String.valueOf(created));
+                insert.bindString(6, String.valueOf(created + random.nextInt(1000000)));
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        db.setVersion(1);
+    }
+
+    /**
+     * @return The fastest of {@link #RUNS} runs of the query, reading every row
+     */
+    private static long time(SQLiteDatabase db, String sql) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            final long start = System.nanoTime();
+            final Cursor cursor = db.rawQuery(sql, null);
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static boolean usesIndex(SQLiteDatabase db, String sql) {
+        final Cursor cursor = db.rawQuery("explain query plan " + sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                final String detail = cursor.getString(cursor.getColumnCount() - 1);
+                if (detail.contains("SCAN TABLE") && !detail.contains("INDEX")) {
+                    return false;
+                }
+                if (detail.contains("TEMP B-TREE")) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long longForQuery(SQLiteDatabase db, String sql) {
+        final Cursor cursor = db.rawQuery(sql, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void report(int count, String name, long nanos) {
+        System.out.println(String.format("NotesDbSchemaBenchmark %6d notes: %-13s %8.2f ms",
+                count, name, nanos / 1e6));
+    }
+}
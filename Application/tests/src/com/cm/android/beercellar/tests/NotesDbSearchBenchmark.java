@@ -0,0 +1,162 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NoteSearchResult;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times {@link NotesDbAdapter#searchNotes} against a LIKE scan over 50k notes, as a query is
+ * typed letter by letter, and checks that the search table follows inserts, updates, replaces
+ * and deletes. Runs on a device, as it needs the platform's SQLite.
+ */
+public class NotesDbSearchBenchmark extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "notes-search-bench.sqlite";
+    private static final int NOTE_COUNT = 50000;
+    private static final int RUNS = 3;
+    private static final int LIMIT = 100;
+
+    private static final String[] WORDS = {"malty", "hoppy", "citrus", "caramel", "roasted",
+            "coffee", "chocolate", "banana", "clove", "pine", "resin", "biscuit", "toffee",
+            "smoky", "sour", "funky", "crisp", "dry", "sweet", "bitter", "trappist", "abbey",
+            "saison", "stout", "porter", "lager", "pilsner", "dubbel", "tripel", "quad"};
+    private static final String[] BREWERIES = {"Chimay", "Orval", "Westmalle", "Rochefort",
+            "Dupont", "Cantillon", "Duvel", "Achel", "Westvleteren", "Brooklyn"};
+
+    private NotesDatabase mDatabase;
+    private NotesDbAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mAdapter = mDatabase.getNotesDbAdapter();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testSearchTime() {
+        final Random random = new Random(NOTE_COUNT);
+        final List<Note> notes = new ArrayList<Note>(NOTE_COUNT);
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            final Note note = new Note();
+            note.id = i;
+            note.beer = BREWERIES[random.nextInt(BREWERIES.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)];
+            note.textExtract = BREWERIES[random.nextInt(BREWERIES.length)] + " Brewery, "
+                    + words(random, 6);
+            note.notes = words(random, 20);
+            notes.add(note);
+        }
+        long start = System.nanoTime();
+        mAdapter.createNotes(notes, SQLiteDatabase.CONFLICT_ABORT);
+        System.out.println(String.format("NotesDbSearchBenchmark %d notes inserted with the"
+                + " search table in %.1f ms", NOTE_COUNT, (System.nanoTime() - start) / 1e6));
+
+        // As typed, one letter at a time
+        for (String query : new String[]{"c", "ch", "chi", "chim", "chimay", "chimay t",
+                "chimay tr", "chimay trap", "chimay trappist c", "chimay trappist clove"}) {
+            long best = Long.MAX_VALUE;
+            int found = 0;
+            for (int run = 0; run < RUNS; run++) {
+                start = System.nanoTime();
+                found = mAdapter.searchNotes(query, LIMIT).size();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println(String.format("NotesDbSearchBenchmark %-22s fts %7.1f ms"
+                    + " (%d results), like %7.1f ms", "\"" + query + "\"", best / 1e6, found,
+                    timeLike(query.split(" ")) / 1e6));
+        }
+    }
+
+    public void testSearchFollowsWrites() {
+        final Note note = new Note();
+        note.id = 1;
+        note.beer = "Orval";
+        note.textExtract = "Brasserie d'Orval";
+        note.notes = "Dry hopped, brettanomyces";
+        mAdapter.createNote(note);
+        assertEquals(1, mAdapter.searchNotes("brett", LIMIT).size());
+
+        note.notes = "Bitter and funky";
+        mAdapter.updateNote(note);
+        assertTrue(mAdapter.searchNotes("brett", LIMIT).isEmpty());
+        final List<NoteSearchResult> results = mAdapter.searchNotes("funk", LIMIT);
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).snippet, results.get(0).snippet.contains("<b>funky</b>"));
+
+        note.notes = "Replaced";
+        mAdapter.createNotes(Arrays.asList(note), SQLiteDatabase.CONFLICT_REPLACE);
+        assertTrue(mAdapter.searchNotes("funk", LIMIT).isEmpty());
+        assertEquals(1, mAdapter.searchNotes("replaced", LIMIT).size());
+
+        mAdapter.deleteNote(1);
+        assertTrue(mAdapter.searchNotes("orval", LIMIT).isEmpty());
+    }
+
+    public void testBeerNameRanksFirst() {
+        final Note named = new Note();
+        named.id = 1;
+        named.beer = "Saison Dupont";
+        final Note mentioned = new Note();
+        mentioned.id = 2;
+        mentioned.beer = "Tripel";
+        mentioned.notes = "Less spicy than a saison";
+        mAdapter.createNotes(Arrays.asList(mentioned, named), SQLiteDatabase.CONFLICT_ABORT);
+
+        final List<NoteSearchResult> results = mAdapter.searchNotes("sais", LIMIT);
+        assertEquals(2, results.size());
+        assertEquals(1, results.get(0).id);
+        assertTrue(results.get(0).rank > results.get(1).rank);
+    }
+
+    private long timeLike(String[] words) {
+        final StringBuilder selection = new StringBuilder();
+        final String[] args = new String[words.length * 3];
+        for (int i = 0; i < words.length; i++) {
+            selection.append(i == 0 ? "" : " and ").append("(beer like ? or textextract like ?"
+                    + " or notes like ?)");
+            args[i * 3] = args[i * 3 + 1] = args[i * 3 + 2] = "%" + words[i] + "%";
+        }
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            final long start = System.nanoTime();
+            final Cursor cursor = mAdapter.getDatabase().query(NotesDbAdapter.DATABASE_TABLE,
+                    new String[]{NotesDbAdapter.KEY_ROWID}, selection.toString(), args, null,
+                    null, null, String.valueOf(LIMIT));
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static String words(Random random, int count) {
+        final StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            words.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times reading the statistics kept by {@link NotesDbAdapter} against counting them with a
+ * scan over 10k notes. Runs on a device, as it needs the platform's SQLite.
+ */
+public class NotesDbStatsBenchmark extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "notes-stats-bench.sqlite";
+    private static final int NOTE_COUNT = 10000;
+    private static final int RUNS = 3;
+
+    private NotesDatabase mDatabase;
+    private NotesDbAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mAdapter = mDatabase.getNotesDbAdapter();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testStatsTime() {
+        final Random random = new Random(NOTE_COUNT);
+        final List<Note> notes = new ArrayList<Note>(NOTE_COUNT);
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            final Note note = new Note();
+            note.id = i;
+            note.beer = "Beer " + random.nextInt(120);
+            note.rating = String.valueOf(random.nextInt(11) / 2f);
+            notes.add(note);
+        }
+        mAdapter.createNotes(notes, SQLiteDatabase.CONFLICT_ABORT);
+
+        long kept = Long.MAX_VALUE;
+        long scanned = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            assertEquals(NOTE_COUNT, mAdapter.fetchStats().total.notes);
+            kept = Math.min(kept, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            final Cursor cursor = mAdapter.getDatabase().rawQuery("select "
+                    + NotesDbAdapter.KEY_BEER + ", count(*), avg(" + NotesDbAdapter.KEY_RATING
+                    + ") from " + NotesDbAdapter.DATABASE_TABLE + " group by "
+                    + NotesDbAdapter.KEY_BEER + " order by 2 desc", null);
+            try {
+                // The query only runs once the cursor is read
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+            scanned = Math.min(scanned, System.nanoTime() - start);
+        }
+        System.out.println(String.format("NotesDbStatsBenchmark %d notes: kept stats %.1f ms,"
+                + " scan by beer %.1f ms", NOTE_COUNT, kept / 1e6, scanned / 1e6));
+        assertTrue(mAdapter.verifyStats());
+    }
+}
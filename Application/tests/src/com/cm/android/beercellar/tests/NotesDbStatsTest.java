@@ -0,0 +1,149 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.CellarStats;
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the statistics kept by {@link NotesDbAdapter} match a full scan after every kind
+ * of write, see {@link NotesDbStatsBenchmark} for their timing. Runs on a device, as it needs
+ * the platform's SQLite.
+ */
+public class NotesDbStatsTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "notes-stats-test.sqlite";
+    private static final int NOTE_COUNT = 10000;
+    private static final String[] BEERS = {"Belgian Style Pale Ale", "belgian style pale ale",
+            "Imperial Stout", " Saison ", "", null};
+    private static final String[] RATINGS = {null, "0.0", "0.5", "3.5", "4.0", "5.0"};
+
+    private NotesDatabase mDatabase;
+    private NotesDbAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mAdapter = mDatabase.getNotesDbAdapter();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testCounts() {
+        mAdapter.createNote(note(1, "Orval", "4.5"));
+        mAdapter.createNote(note(2, "orval", "3.5"));
+        mAdapter.createNote(note(3, "Chimay Blanche", null));
+        CellarStats stats = mAdapter.fetchStats();
+        assertEquals(3, stats.total.notes);
+        assertEquals(2, stats.total.rated);
+        assertEquals(4.0f, stats.total.getAverageRating());
+        assertEquals(2, stats.beers.size());
+        assertEquals("Orval", stats.beers.get(0).key);
+        assertEquals(2, stats.beers.get(0).notes);
+        assertEquals(1, stats.ratingHistogram[9]);
+        assertEquals(1, stats.ratingHistogram[7]);
+        assertEquals(1, stats.months.size());
+        assertEquals(3, stats.months.get(0).notes);
+
+        final Note rerated = new Note();
+        rerated.id = 3;
+        rerated.beer = "Orval";
+        rerated.rating = "5";
+        mAdapter.updateNote(rerated);
+        mAdapter.deleteNote(1);
+        stats = mAdapter.fetchStats();
+        assertEquals(2, stats.total.notes);
+        assertEquals(1, stats.beers.size());
+        assertEquals(2, stats.beers.get(0).notes);
+        assertEquals(4.25f, stats.beers.get(0).getAverageRating());
+        assertEquals(0, stats.ratingHistogram[9]);
+        assertEquals(1, stats.ratingHistogram[10]);
+        assertTrue(mAdapter.verifyStats());
+    }
+
+    public void testUnratedIsNotRated() {
+        // The app saves a note without a rating as "0.0"
+        mAdapter.createNote(note(1, "Orval", "0.0"));
+        mAdapter.createNotes(Arrays.asList(note(2, "Orval", "0"), note(3, "Orval", "4.0")),
+                SQLiteDatabase.CONFLICT_ABORT);
+        mAdapter.upsertNotes(Arrays.asList(note(4, "Orval", "0.0")));
+        final CellarStats stats = mAdapter.fetchStats();
+        assertEquals(4, stats.total.notes);
+        assertEquals(1, stats.total.rated);
+        assertEquals(4.0f, stats.total.getAverageRating());
+        assertEquals(0, stats.ratingHistogram[0]);
+        assertNull(mAdapter.fetchNote(1).rating);
+        assertNull(mAdapter.fetchNote(4).rating);
+        assertTrue(mAdapter.verifyStats());
+    }
+
+    public void testEveryWriteKeepsStatsConsistent() {
+        final Random random = new Random(NOTE_COUNT);
+        for (int round = 0; round < 20; round++) {
+            final List<Note> notes = new ArrayList<Note>();
+            for (int i = 0; i < 50; i++) {
+                notes.add(note(random.nextInt(200), BEERS[random.nextInt(BEERS.length)],
+                        RATINGS[random.nextInt(RATINGS.length)]));
+            }
+            switch (round % 5) {
+                case 0:
+                    mAdapter.createNotes(notes, SQLiteDatabase.CONFLICT_IGNORE);
+                    break;
+                case 1:
+                    // Replaced notes must leave the counts of what they replaced
+                    mAdapter.createNotes(notes, SQLiteDatabase.CONFLICT_REPLACE);
+                    break;
+                case 2:
+                    mAdapter.updateNotes(notes);
+                    break;
+                case 3:
+                    mAdapter.upsertNotes(notes);
+                    break;
+                case 4:
+                    for (Note note : notes) {
+                        mAdapter.deleteNote(note.id);
+                    }
+                    break;
+            }
+            assertTrue("round " + round, mAdapter.verifyStats());
+        }
+        assertEquals(DatabaseUtils.longForQuery(mAdapter.getDatabase(),
+                "select count(*) from " + NotesDbAdapter.DATABASE_TABLE, null),
+                mAdapter.fetchStats().total.notes);
+    }
+
+    public void testRebuildRepairs() {
+        mAdapter.createNotes(Arrays.asList(note(1, "Orval", "4.5"), note(2, "Saison", "3")),
+                SQLiteDatabase.CONFLICT_ABORT);
+        mAdapter.getDatabase().execSQL("update " + NotesDbAdapter.DATABASE_STATS_TABLE
+                + " set note_count = note_count + 1");
+        assertFalse(mAdapter.verifyStats());
+        mAdapter.rebuildStats();
+        assertTrue(mAdapter.verifyStats());
+        assertEquals(2, mAdapter.fetchStats().total.notes);
+    }
+
+    private static Note note(long id, String beer, String rating) {
+        final Note note = new Note();
+        note.id = id;
+        note.beer = beer;
+        note.rating = rating;
+        return note;
+    }
+}
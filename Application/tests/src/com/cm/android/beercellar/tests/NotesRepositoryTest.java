@@ -0,0 +1,142 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+import com.cm.android.beercellar.db.NotesRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link NotesRepository} runs its tasks off the main thread, in order, delivers
+ * results on the main thread, and reports which notes every write changed, whichever adapter
+ * wrote them. Runs on a device, as it needs the platform's SQLite and main looper.
+ */
+public class NotesRepositoryTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "notes-repository-test.sqlite";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private NotesDatabase mDatabase;
+    private NotesRepository mRepository;
+    private final BlockingQueue<Object> mResults = new LinkedBlockingQueue<Object>();
+    private final BlockingQueue<long[]> mChanges = new LinkedBlockingQueue<long[]>();
+    // Set by a callback on the wrong thread, where failing an assertion would not fail the test
+    private volatile boolean mCalledOffMainThread;
+
+    private final NotesRepository.OnResultListener<Object> mResultListener =
+            new NotesRepository.OnResultListener<Object>() {
+                @Override
+                public void onResult(Object result) {
+                    mCalledOffMainThread |= Looper.myLooper() != Looper.getMainLooper();
+                    mResults.add(result == null ? "null" : result);
+                }
+            };
+
+    private final NotesDatabase.OnNotesChangedListener mChangeListener =
+            new NotesDatabase.OnNotesChangedListener() {
+                @Override
+                public void onNotesChanged(long[] rowIds) {
+                    mCalledOffMainThread |= Looper.myLooper() != Looper.getMainLooper();
+                    mChanges.add(rowIds);
+                }
+            };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mRepository = new NotesRepository(mDatabase);
+        mRepository.addOnNotesChangedListener(mChangeListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRepository.removeOnNotesChangedListener(mChangeListener);
+        mRepository.close();
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testTasksRunOffTheMainThreadInOrder() throws Exception {
+        final List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < 3; i++) {
+            final int task = i;
+            mRepository.execute(new NotesRepository.Task<Integer>() {
+                @Override
+                public Integer run(NotesDbAdapter adapter) {
+                    assertNotSame(Looper.getMainLooper(), Looper.myLooper());
+                    order.add(task);
+                    return task;
+                }
+            }, mResultListener);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, nextResult());
+        }
+        assertEquals(Arrays.asList(0, 1, 2), order);
+    }
+
+    public void testWritesThenReads() throws Exception {
+        final Note note = new Note();
+        note.id = 7;
+        note.beer = "Westmalle Tripel";
+        mRepository.createNote(note, mResultListener);
+        mRepository.fetchNote(7, mResultListener);
+        assertEquals(7L, nextResult());
+        assertEquals("Westmalle Tripel", ((Note) nextResult()).beer);
+        assertTrue(Arrays.equals(new long[]{7}, nextChange()));
+
+        mRepository.deleteNote(7, mResultListener);
+        assertEquals(Boolean.TRUE, nextResult());
+        assertTrue(Arrays.equals(new long[]{7}, nextChange()));
+        mRepository.fetchNote(7, mResultListener);
+        assertEquals("null", nextResult());
+    }
+
+    public void testReportsWritesByOtherAdapters() throws Exception {
+        final List<Note> notes = new ArrayList<Note>();
+        for (long id = 1; id <= 3; id++) {
+            final Note note = new Note();
+            note.id = id;
+            note.beer = "Beer " + id;
+            notes.add(note);
+        }
+        new NotesDbAdapter(getContext(), DATABASE_NAME).open()
+                .createNotes(notes, SQLiteDatabase.CONFLICT_ABORT);
+        assertTrue(Arrays.equals(new long[]{1, 2, 3}, nextChange()));
+
+        // A note that does not exist changes nothing
+        final Note missing = new Note();
+        missing.id = 42;
+        missing.beer = "Missing";
+        mRepository.updateNote(missing, mResultListener);
+        assertEquals(Boolean.FALSE, nextResult());
+        assertNull(mChanges.poll(1, TimeUnit.SECONDS));
+    }
+
+    private Object nextResult() throws InterruptedException {
+        final Object result = mResults.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("no result delivered", result);
+        assertFalse(mCalledOffMainThread);
+        return result;
+    }
+
+    private long[] nextChange() throws InterruptedException {
+        final long[] rowIds = mChanges.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("no change delivered", rowIds);
+        assertFalse(mCalledOffMainThread);
+        return rowIds;
+    }
+}
@@ -0,0 +1,261 @@
+package com.cm.android.beercellar.tests;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.provider.OcrQueue;
+import com.cm.android.beercellar.util.HttpClient;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads labels through {@link OcrQueue} against a fake Vision transport: captures go in batches
+ * of at most {@link OcrQueue#BATCH_SIZE}, each photo downscaled to the size Vision needs for
+ * text, the text lands in the right notes and they are queued to be sent. Each photo is a flat
+ * gray whose level is its rowId, which is how the fake tells them apart. Runs on a device, as it
+ * needs the platform's SQLite and bitmaps.
+ */
+public class OcrQueueTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "ocr-queue-test.sqlite";
+    private static final String PREFERENCES_NAME = "ocr-queue-test";
+    private static final int PHOTO_COUNT = 40;
+    private static final int PHOTO_WIDTH = 2048;
+    private static final int PHOTO_HEIGHT = 1536;
+
+    private NotesDatabase mDatabase;
+    private SharedPreferences mPreferences;
+    private File mImageDir;
+    private OcrQueue mQueue;
+    private long mPhotoBytes;
+    // Photos in each request the fake was sent
+    private final List<Integer> mBatches = new CopyOnWriteArrayList<Integer>();
+    private final List<Long> mExtracted = new CopyOnWriteArrayList<Long>();
+    // Statuses to answer the next requests with, before answering 200
+    private final List<Integer> mFailures = new CopyOnWriteArrayList<Integer>();
+    // The rowId Vision cannot read, or 0
+    private volatile long mUnreadable;
+    private volatile CountDownLatch mDone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mPreferences = getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+        mImageDir = new File(new File(getContext().getCacheDir(), "ocr-queue-test"), "images");
+        mImageDir.mkdirs();
+
+        final Bitmap photo = Bitmap.createBitmap(PHOTO_WIDTH, PHOTO_HEIGHT,
+                Bitmap.Config.ARGB_8888);
+        for (int id = 1; id <= PHOTO_COUNT; id++) {
+            final Note note = new Note();
+            note.id = id;
+            note.beer = "beer " + id;
+            mDatabase.getNotesDbAdapter().createNote(note);
+            photo.eraseColor(0xff000000 | level(id) * 0x010101);
+            final File file = new File(mImageDir, id + ".jpg");
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                photo.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            } finally {
+                out.close();
+            }
+            mPhotoBytes += file.length();
+        }
+        photo.recycle();
+
+        final MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        try {
+                            return annotate(getContentAsString());
+                        } catch (JSONException e) {
+                            throw new IOException(e.toString());
+                        }
+                    }
+                };
+            }
+        };
+        mQueue = new OcrQueue(mDatabase, new HttpClient(2),
+                OcrQueue.newVision(transport, null, "key", "test"), mPreferences,
+                OcrQueue.BATCH_SIZE, 50, 50, new OcrQueue.OnTextExtractedListener() {
+                    @Override
+                    public void onTextExtracted(List<Long> rowIds) {
+                        mExtracted.addAll(rowIds);
+                        for (int i = 0; i < rowIds.size(); i++) {
+                            mDone.countDown();
+                        }
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mQueue.close();
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mPreferences.edit().clear().commit();
+        final File[] files = mImageDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testBatchesDownscaledPhotos() throws InterruptedException {
+        addAll(PHOTO_COUNT);
+        assertTrue(mDone.await(30, TimeUnit.SECONDS));
+
+        int photos = 0;
+        for (int batch : mBatches) {
+            assertTrue(batch <= OcrQueue.BATCH_SIZE);
+            photos += batch;
+        }
+        assertEquals(PHOTO_COUNT, photos);
+        assertTrue(mBatches.size() <= PHOTO_COUNT / OcrQueue.BATCH_SIZE + 2);
+        assertEquals(PHOTO_COUNT, mExtracted.size());
+        for (long id = 1; id <= PHOTO_COUNT; id++) {
+            assertEquals("label " + id, mDatabase.getNotesDbAdapter().fetchNote(id).textExtract);
+        }
+        assertEquals(PHOTO_COUNT, mDatabase.getOutbox().size());
+        assertTrue(mQueue.getImageBytes() < mPhotoBytes);
+    }
+
+    public void testRetriesFailedBatch() throws InterruptedException {
+        mFailures.add(503);
+        mFailures.add(429);
+        addAll(3);
+        assertTrue(mDone.await(30, TimeUnit.SECONDS));
+        assertEquals(2, mQueue.getFailureCount());
+        assertEquals(3, mQueue.getRequestCount());
+        assertEquals("label 2", mDatabase.getNotesDbAdapter().fetchNote(2).textExtract);
+    }
+
+    public void testSkipsUnreadablePhoto() throws InterruptedException {
+        mUnreadable = 2;
+        mDone = new CountDownLatch(2);
+        for (int id = 1; id <= 3; id++) {
+            mQueue.add(new File(mImageDir, id + ".jpg").getPath());
+        }
+        assertTrue(mDone.await(30, TimeUnit.SECONDS));
+        assertEquals("label 1", mDatabase.getNotesDbAdapter().fetchNote(1).textExtract);
+        assertEquals("", mDatabase.getNotesDbAdapter().fetchNote(2).textExtract);
+        assertEquals("label 3", mDatabase.getNotesDbAdapter().fetchNote(3).textExtract);
+        // Nothing is left to read
+        assertEquals(0, mQueue.processNow());
+    }
+
+    public void testDownscalesToTextSize() throws IOException {
+        assertSize(OcrQueue.downscale(new File(mImageDir, "1.jpg").getPath()),
+                OcrQueue.TEXT_LONG_EDGE, OcrQueue.TEXT_SHORT_EDGE);
+        assertSize(OcrQueue.downscale(writePhoto("portrait.jpg", 1536, 2048)),
+                OcrQueue.TEXT_SHORT_EDGE, OcrQueue.TEXT_LONG_EDGE);
+        // A camera-sized photo, which sampling alone would take below the text size
+        assertSize(OcrQueue.downscale(writePhoto("camera.jpg", 4000, 3000)),
+                OcrQueue.TEXT_LONG_EDGE, OcrQueue.TEXT_SHORT_EDGE);
+        // Never scaled up
+        assertSize(OcrQueue.downscale(writePhoto("small.jpg", 640, 480)), 640, 480);
+        assertNull(OcrQueue.downscale(new File(mImageDir, "missing.jpg").getPath()));
+    }
+
+    private void addAll(int count) {
+        mDone = new CountDownLatch(count);
+        for (int id = 1; id <= count; id++) {
+            mQueue.add(new File(mImageDir, id + ".jpg").getPath());
+        }
+    }
+
+    /**
+     * Answers a batch as Vision would, reading each photo's rowId from its gray level.
+     */
+    private LowLevelHttpResponse annotate(String body) throws JSONException {
+        if (!mFailures.isEmpty()) {
+            return new MockLowLevelHttpResponse().setStatusCode(mFailures.remove(0))
+                    .setContent("{}");
+        }
+        final JSONArray requests = new JSONObject(body).getJSONArray("requests");
+        mBatches.add(requests.length());
+        final JSONArray responses = new JSONArray();
+        for (int i = 0; i < requests.length(); i++) {
+            final JSONObject request = requests.getJSONObject(i);
+            assertEquals("TEXT_DETECTION",
+                    request.getJSONArray("features").getJSONObject(0).getString("type"));
+            final byte[] jpeg = Base64.decodeBase64(
+                    request.getJSONObject("image").getString("content"));
+            final Bitmap photo = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+            assertTrue(photo.getWidth() <= OcrQueue.TEXT_LONG_EDGE);
+            assertTrue(photo.getHeight() <= OcrQueue.TEXT_SHORT_EDGE);
+            final long id = rowIdOf(photo.getPixel(photo.getWidth() / 2, photo.getHeight() / 2));
+            photo.recycle();
+            final JSONObject response = new JSONObject();
+            if (id == mUnreadable) {
+                response.put("error", new JSONObject().put("code", 3).put("message", "bad"));
+            } else {
+                response.put("textAnnotations", new JSONArray()
+                        .put(new JSONObject().put("description", "label " + id))
+                        .put(new JSONObject().put("description", "label")));
+            }
+            responses.put(response);
+        }
+        return new MockLowLevelHttpResponse().setContentType("application/json")
+                .setContent(new JSONObject().put("responses", responses).toString());
+    }
+
+    private static int level(long rowId) {
+        return (int) (rowId * 6);
+    }
+
+    private static long rowIdOf(int pixel) {
+        return Math.round((pixel & 0xff) / 6.0);
+    }
+
+    private String writePhoto(String name, int width, int height) throws IOException {
+        final Bitmap photo = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final File file = new File(mImageDir, name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            photo.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+            photo.recycle();
+        }
+        return file.getPath();
+    }
+
+    private static void assertSize(byte[] jpeg, int width, int height) {
+        assertNotNull(jpeg);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        assertEquals(width, options.outWidth);
+        assertEquals(height, options.outHeight);
+    }
+}
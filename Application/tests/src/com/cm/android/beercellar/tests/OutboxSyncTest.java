@@ -0,0 +1,345 @@
+package com.cm.android.beercellar.tests;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.cm.android.beercellar.db.Note;
+import com.cm.android.beercellar.db.NotesDatabase;
+import com.cm.android.beercellar.db.NotesDbAdapter;
+import com.cm.android.beercellar.db.Outbox;
+import com.cm.android.beercellar.provider.OutboxSync;
+import com.cm.android.beercellar.util.ChunkedUploader;
+import com.cm.android.beercellar.util.HttpClient;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Sends the outbox to a local stub of the server: repeated changes coalesce, notes go in
+ * batches, failures are retried with growing waits and then put off, and nothing queued is lost
+ * when the database is closed. Runs on a device, as it needs the platform's SQLite.
+ */
+public class OutboxSyncTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "outbox-sync-test.sqlite";
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BACKOFF_MS = 50;
+
+    private NotesDatabase mDatabase;
+    private Outbox mOutbox;
+    private HttpStub mStub;
+    private final UploadServer mUploads = new UploadServer();
+    private OutboxSync mSync;
+    private final List<Long> mRequestTimes = new ArrayList<Long>();
+    // Statuses to answer the next batch requests with, before answering 200
+    private final List<Integer> mFailures = new ArrayList<Integer>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDatabase = NotesDatabase.getInstance(getContext(), DATABASE_NAME);
+        mOutbox = mDatabase.getOutbox();
+        mStub = new HttpStub(new HttpStub.Responder() {
+            @Override
+            public HttpStub.Response respond(HttpStub.Request request) throws IOException {
+                synchronized (mRequestTimes) {
+                    mRequestTimes.add(System.nanoTime());
+                    if (request.path.equals("/beer/batch") && !mFailures.isEmpty()) {
+                        return new HttpStub.Response(mFailures.remove(0), "");
+                    }
+                }
+                if (request.path.equals("/dropbox/url")) {
+                    return new HttpStub.Response(200, "{\"url\":\"" + mStub.url("/upload")
+                            + "\"}");
+                } else if (request.path.startsWith("/upload")
+                        || request.path.startsWith("/session/")) {
+                    return mUploads.respond(request);
+                }
+                return new HttpStub.Response(200, "{}");
+            }
+        });
+        mSync = new OutboxSync(mDatabase, new HttpClient(2), mStub.url("/beer"),
+                mStub.url("/dropbox/url"), MAX_ATTEMPTS, BACKOFF_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSync.close();
+        mStub.close();
+        mDatabase.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testCoalescesAndBatches() throws JSONException {
+        final int count = OutboxSync.BATCH_SIZE * 2 + 20;
+        createNotes(count);
+        for (long id = 1; id <= count; id++) {
+            mOutbox.putNote(id);
+        }
+        for (long id = 1; id <= 10; id++) {
+            mOutbox.putNote(id);
+        }
+        assertEquals(count, mOutbox.size());
+
+        assertEquals(count, mSync.syncNow());
+        assertEquals(0, mOutbox.size());
+
+        final List<HttpStub.Request> requests = mStub.getRequests();
+        assertEquals(3, requests.size());
+        final Set<Long> sent = new HashSet<Long>();
+        for (HttpStub.Request request : requests) {
+            assertEquals("PUT", request.method);
+            assertEquals("/beer/batch", request.path);
+            final JSONArray notes = new JSONArray(request.bodyAsString());
+            assertTrue(notes.length() <= OutboxSync.BATCH_SIZE);
+            for (int i = 0; i < notes.length(); i++) {
+                assertTrue(sent.add(notes.getJSONObject(i).getLong("rowId")));
+            }
+        }
+        assertEquals(count, sent.size());
+    }
+
+    public void testRetriesWithGrowingWaits() {
+        createNotes(1);
+        mOutbox.putNote(1);
+        synchronized (mRequestTimes) {
+            mFailures.add(503);
+            mFailures.add(503);
+        }
+
+        assertEquals(1, mSync.syncNow());
+        assertEquals(0, mOutbox.size());
+        assertEquals(3, mStub.getRequests().size());
+        final long first = mRequestTimes.get(1) - mRequestTimes.get(0);
+        final long second = mRequestTimes.get(2) - mRequestTimes.get(1);
+        assertTrue(first >= BACKOFF_MS * 1000000);
+        assertTrue(second > first);
+    }
+
+    public void testPutsOffAfterMaxAttempts() {
+        createNotes(1);
+        mOutbox.putNote(1);
+        synchronized (mRequestTimes) {
+            for (int i = 0; i < MAX_ATTEMPTS; i++) {
+                mFailures.add(500);
+            }
+        }
+
+        final long start = System.currentTimeMillis();
+        assertEquals(0, mSync.syncNow());
+        assertEquals(MAX_ATTEMPTS, mStub.getRequests().size());
+        assertEquals(1, mOutbox.size());
+        assertTrue(mOutbox.fetchDue(start, 10).isEmpty());
+        assertTrue(mOutbox.getNextAttemptTime() >= start + BACKOFF_MS);
+        assertEquals(1, mOutbox.fetchDue(Long.MAX_VALUE, 10).get(0).attempts);
+    }
+
+    public void testDropsRejectedChanges() {
+        createNotes(1);
+        mOutbox.putNote(1);
+        synchronized (mRequestTimes) {
+            mFailures.add(400);
+        }
+
+        assertEquals(0, mSync.syncNow());
+        assertEquals(1, mStub.getRequests().size());
+        assertEquals(0, mOutbox.size());
+    }
+
+    public void testResendsChangesMadeWhileSending() {
+        createNotes(1);
+        mOutbox.putNote(1);
+        mStub.setResponder(new HttpStub.Responder() {
+            @Override
+            public HttpStub.Response respond(HttpStub.Request request) {
+                if (mStub.getRequests().size() == 1) {
+                    mOutbox.putNote(1);
+                }
+                return new HttpStub.Response(200, "{}");
+            }
+        });
+
+        assertEquals(2, mSync.syncNow());
+        assertEquals(2, mStub.getRequests().size());
+        assertEquals(0, mOutbox.size());
+    }
+
+    public void testDeleteReplacesPendingChanges() {
+        createNotes(1);
+        mOutbox.putNote(1);
+        mOutbox.uploadImage(1, "/nowhere/1.jpg");
+        mDatabase.getNotesDbAdapter().deleteNote(1);
+        mOutbox.deleteNote(1);
+        assertEquals(1, mOutbox.size());
+
+        assertEquals(1, mSync.syncNow());
+        final List<HttpStub.Request> requests = mStub.getRequests();
+        assertEquals(1, requests.size());
+        assertEquals("DELETE", requests.get(0).method);
+        assertTrue(requests.get(0).path.startsWith("/beer/1/"));
+    }
+
+    public void testQueuesWithTheWrite() {
+        final NotesDbAdapter adapter = mDatabase.getNotesDbAdapter();
+        final Note note = new Note();
+        note.id = 1;
+        note.beer = "Orval";
+        assertEquals(1, adapter.createNote(note, mOutbox, "/nowhere/1.jpg"));
+        // The image upload and the note
+        assertEquals(2, mOutbox.size());
+        // A failed write queues nothing
+        assertEquals(-1, adapter.createNote(note, mOutbox, null));
+        note.id = 2;
+        assertFalse(adapter.updateNote(note, mOutbox));
+        assertEquals(2, mOutbox.size());
+
+        assertTrue(adapter.deleteNote(1, mOutbox));
+        final List<Outbox.Entry> due = mOutbox.fetchDue(Long.MAX_VALUE, 10);
+        assertEquals(1, due.size());
+        assertEquals(Outbox.OP_DELETE, due.get(0).op);
+    }
+
+    public void testUploadsImageBeforeNote() throws IOException, JSONException {
+        createNotes(1);
+        final File image = new File(getContext().getCacheDir(), "1.jpg");
+        final byte[] bytes = new byte[64 * 1024];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        final FileOutputStream out = new FileOutputStream(image);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        try {
+            mOutbox.uploadImage(1, image.getPath());
+            mOutbox.putNote(1);
+
+            assertEquals(2, mSync.syncNow());
+            final List<HttpStub.Request> requests = mStub.getRequests();
+            assertEquals(4, requests.size());
+            assertEquals("/dropbox/url", requests.get(0).path);
+            assertEquals("POST", requests.get(1).method);
+            assertEquals("/upload?rowId=1", requests.get(1).path);
+            assertEquals("/session/1", requests.get(2).path);
+            assertEquals("/beer/batch", requests.get(3).path);
+            assertEquals("gs://cellar/1", new JSONArray(requests.get(3).bodyAsString())
+                    .getJSONObject(0).getString("uri"));
+            assertTrue(Arrays.equals(bytes, mUploads.getFile("gs://cellar/1")));
+            assertEquals("gs://cellar/1", mDatabase.getNotesDbAdapter().fetchNote(1).uri);
+            assertEquals(0, mOutbox.size());
+        } finally {
+            image.delete();
+        }
+    }
+
+    public void testResumesImageUpload() throws IOException {
+        createNotes(1);
+        final File image = new File(getContext().getCacheDir(), "1.jpg");
+        final byte[] bytes = new byte[ChunkedUploader.CHUNK_SIZE * 5 / 2];
+        new Random(1).nextBytes(bytes);
+        final FileOutputStream out = new FileOutputStream(image);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        try {
+            mUploads.setDropEvery(2);
+            mOutbox.uploadImage(1, image.getPath());
+
+            // The upload, then the note with its uri
+            assertEquals(2, mSync.syncNow());
+            assertTrue(mUploads.getDropCount() > 0);
+            // The retries carried on with the first session
+            assertEquals(1, mUploads.getSessionCount());
+            assertEquals(1, mSync.getUploader().getSessionCount());
+            assertEquals(mUploads.getDropCount(), mSync.getUploader().getResumeCount());
+            assertTrue(Arrays.equals(bytes, mUploads.getFile("gs://cellar/1")));
+            assertEquals(0, mOutbox.size());
+        } finally {
+            image.delete();
+        }
+    }
+
+    public void testWaitsForThumbnail() throws IOException, InterruptedException {
+        createNotes(1);
+        // A capture, whose thumbnail ImagePyramid has yet to write
+        final File baseDir = new File(getContext().getCacheDir(), "outbox-sync-test");
+        final File original = new File(baseDir, "images/1.jpg");
+        final File thumbnail = new File(baseDir, "thumbs/1.jpg");
+        original.getParentFile().mkdirs();
+        thumbnail.getParentFile().mkdirs();
+        final byte[] bytes = new byte[16 * 1024];
+        new Random(1).nextBytes(bytes);
+        write(original, bytes);
+        try {
+            mOutbox.uploadImage(1, thumbnail.getPath());
+
+            assertEquals(0, mSync.syncNow());
+            assertTrue(mStub.getRequests().isEmpty());
+            assertEquals(1, mOutbox.size());
+
+            write(thumbnail, bytes);
+            Thread.sleep(BACKOFF_MS * 2);
+            // The upload, then the note with its uri
+            assertEquals(2, mSync.syncNow());
+            assertTrue(Arrays.equals(bytes, mUploads.getFile("gs://cellar/1")));
+            assertEquals(0, mOutbox.size());
+
+            // Dropped once the photo itself is gone
+            thumbnail.delete();
+            original.delete();
+            mOutbox.uploadImage(1, thumbnail.getPath());
+            assertEquals(0, mSync.syncNow());
+            assertEquals(0, mOutbox.size());
+        } finally {
+            thumbnail.delete();
+            original.delete();
+        }
+    }
+
+    public void testOutboxSurvivesClose() {
+        createNotes(2);
+        mOutbox.putNote(1);
+        mOutbox.deleteNote(2);
+        mDatabase.close();
+
+        assertEquals(2, mOutbox.size());
+        assertEquals(2, mSync.syncNow());
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void createNotes(int count) {
+        final List<Note> notes = new ArrayList<Note>(count);
+        for (int i = 1; i <= count; i++) {
+            final Note note = new Note();
+            note.id = i;
+            note.beer = "Beer " + i;
+            note.rating = "3.5";
+            notes.add(note);
+        }
+        mDatabase.getNotesDbAdapter().createNotes(notes, SQLiteDatabase.CONFLICT_ABORT);
+    }
+}
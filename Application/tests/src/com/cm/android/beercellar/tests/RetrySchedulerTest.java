@@ -0,0 +1,97 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.util.RetryScheduler;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that {@link RetryScheduler} folds runs scheduled while one is waiting into the
+ * earliest, keeps running after its task throws, drops what is scheduled once shut down, and
+ * retries the failures it should.
+ */
+public class RetrySchedulerTest extends TestCase {
+
+    public void testFoldsIntoEarliestRun() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(1);
+        final RetryScheduler scheduler = new RetryScheduler("test", new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                ran.countDown();
+            }
+        });
+        try {
+            final long now = System.currentTimeMillis();
+            scheduler.schedule(now + 10000);
+            scheduler.schedule(now + 50);
+            scheduler.schedule(now + 5000);
+            assertTrue(ran.await(2, TimeUnit.SECONDS));
+            Thread.sleep(200);
+            assertEquals(1, runs.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testRunsAgainAfterFailure() throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(2);
+        final RetryScheduler scheduler = new RetryScheduler("test", new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+                throw new IllegalStateException("database not open");
+            }
+        });
+        try {
+            scheduler.schedule(System.currentTimeMillis());
+            Thread.sleep(100);
+            scheduler.schedule(System.currentTimeMillis());
+            assertTrue(ran.await(2, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testShutdownDropsScheduledRuns() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final Thread[] thread = new Thread[1];
+        final CountDownLatch ran = new CountDownLatch(1);
+        final RetryScheduler scheduler = new RetryScheduler("test", new Runnable() {
+            @Override
+            public void run() {
+                thread[0] = Thread.currentThread();
+                runs.incrementAndGet();
+                ran.countDown();
+            }
+        });
+        scheduler.schedule(System.currentTimeMillis());
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        scheduler.schedule(System.currentTimeMillis() + 300);
+        scheduler.shutdown();
+        // The thread ends without waiting for the run it had scheduled
+        thread[0].join(2000);
+        assertFalse(thread[0].isAlive());
+        Thread.sleep(500);
+        assertEquals(1, runs.get());
+    }
+
+    public void testRetryRules() {
+        assertTrue(RetryScheduler.isRetryable(500));
+        assertTrue(RetryScheduler.isRetryable(503));
+        assertTrue(RetryScheduler.isRetryable(408));
+        assertTrue(RetryScheduler.isRetryable(429));
+        assertFalse(RetryScheduler.isRetryable(400));
+        assertFalse(RetryScheduler.isRetryable(404));
+
+        assertEquals(100, RetryScheduler.getRetryDelay(100, 1, 1000));
+        assertEquals(200, RetryScheduler.getRetryDelay(100, 2, 1000));
+        assertEquals(800, RetryScheduler.getRetryDelay(100, 4, 1000));
+        assertEquals(1000, RetryScheduler.getRetryDelay(100, 5, 1000));
+        assertEquals(1000, RetryScheduler.getRetryDelay(100, 200, 1000));
+    }
+}
@@ -0,0 +1,93 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.util.SingleFlight;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that {@link SingleFlight} runs one load per key for concurrent callers and hands every
+ * caller the same result.
+ */
+public class SingleFlightTest extends TestCase {
+
+    private static final int CALLERS = 8;
+
+    public void testConcurrentCallsShareOneLoad() throws Exception {
+        final SingleFlight<String> flight = new SingleFlight<String>();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final String[] results = new String[CALLERS];
+
+        final SingleFlight.Loader<String> loader = new SingleFlight.Loader<String>() {
+            @Override
+            public String load() {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "bitmap";
+            }
+        };
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < CALLERS; i++) {
+            final int index = i;
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = flight.execute("key", loader);
+                }
+            };
+            threads.add(thread);
+            thread.start();
+            if (i == 0) {
+                // Make sure the first caller owns the load before the others arrive
+                loading.await();
+            }
+        }
+
+        // Give the other callers time to join the in-flight load
+        while (flight.getCoalescedCount() < CALLERS - 1) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals(CALLERS - 1, flight.getCoalescedCount());
+        for (String result : results) {
+            assertEquals("bitmap", result);
+        }
+
+        // Once finished, the next call for the key loads again
+        release.countDown();
+        assertEquals("bitmap", flight.execute("key", loader));
+        assertEquals(2, loads.get());
+    }
+
+    public void testLoaderFailureIsRethrown() {
+        final SingleFlight<String> flight = new SingleFlight<String>();
+        try {
+            flight.execute("key", new SingleFlight.Loader<String>() {
+                @Override
+                public String load() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("boom", expected.getMessage());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.cm.android.beercellar.tests;
+
+import com.cm.android.beercellar.util.StreamCopier;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Compares the old byte-at-a-time copy loop with {@link StreamCopier} on camera sized files
+ * (5-12 MB). Plain JUnit so it can run on the JVM as well as on a device; throughput is printed
+ * in MB/s.
+ */
+public class StreamCopierBenchmark extends TestCase {
+
+    private static final int[] SIZES_MB = {5, 8, 12};
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(System.getProperty("java.io.tmpdir"), "stream-copier-bench");
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testCopyThroughput() throws IOException {
+        for (int sizeMb : SIZES_MB) {
+            File source = createJpegSizedFile(sizeMb);
+            File target = new File(mDir, "target.jpg");
+
+            long start = System.nanoTime();
+            legacyCopy(source, target);
+            report("byte loop", sizeMb, System.nanoTime() - start);
+            assertEquals(source.length(), target.length());
+
+            start = System.nanoTime();
+            InputStream in = new FileInputStream(source);
+            OutputStream out = new FileOutputStream(target);
+            try {
+                // Stream path, as used for network downloads
+                StreamCopier.copy(in, new UnbufferedOutputStream(out));
+            } finally {
+                in.close();
+                out.close();
+            }
+            report("pooled buffer", sizeMb, System.nanoTime() - start);
+            assertEquals(source.length(), target.length());
+
+            start = System.nanoTime();
+            out = new FileOutputStream(target);
+            try {
+                StreamCopier.copy(source, out);
+            } finally {
+                out.close();
+            }
+            report("transferTo", sizeMb, System.nanoTime() - start);
+            assertEquals(source.length(), target.length());
+        }
+    }
+
+    private File createJpegSizedFile(int sizeMb) throws IOException {
+        File file = new File(mDir, "source-" + sizeMb + ".jpg");
+        byte[] chunk = new byte[64 * 1024];
+        Random random = new Random(sizeMb);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < sizeMb * 1024 * 1024; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * The copy loop ImageFetcher and Utils used before StreamCopier.
+     */
+    private static void legacyCopy(File source, File target) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(source), IO_BUFFER_SIZE);
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(target), IO_BUFFER_SIZE);
+        try {
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private static void report(String label, int sizeMb, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.println(String.format("StreamCopierBenchmark %-14s %2d MB: %8.1f MB/s",
+                label, sizeMb, sizeMb / seconds));
+    }
+
+    /**
+     * Hides the FileOutputStream type so the copier takes the buffered stream path.
+     */
+    private static class UnbufferedOutputStream extends OutputStream {
+        private final OutputStream mOut;
+
+        UnbufferedOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.cm.android.beercellar.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The server side of {@link com.cm.android.beercellar.util.ChunkedUploader}'s resumable upload
+ * protocol, for an {@link HttpStub}. A POST to /upload starts a session at /session/n, and the
+ * stored file's uri is "gs://cellar/n". It can drop connections part way through a chunk,
+ * expire sessions and ignore chunks, to check that uploads resume or give up.
+ */
+public class UploadServer implements HttpStub.Responder {
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private static class Session {
+        long length;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean done;
+    }
+
+    private final Map<String, Session> mSessions = new HashMap<String, Session>();
+    private int mChunks;
+    private int mDropEvery;
+    private int mDrops;
+    private boolean mIgnoreChunks;
+
+    /**
+     * Drops the connection on every nth chunk after storing half of it, or never for 0
+     */
+    public synchronized void setDropEvery(int chunks) {
+        mDropEvery = chunks;
+    }
+
+    /**
+     * Answers chunks with the Range stored so far without storing any of them
+     */
+    public synchronized void setIgnoreChunks(boolean ignore) {
+        mIgnoreChunks = ignore;
+    }
+
+    public synchronized int getDropCount() {
+        return mDrops;
+    }
+
+    /**
+     * Forgets every session, as the server does after a while
+     */
+    public synchronized void expireSessions() {
+        mSessions.clear();
+    }
+
+    public synchronized int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * @return The file stored at {@code uri}, or null if it is not complete
+     */
+    public synchronized byte[] getFile(String uri) {
+        final Session session = mSessions.get("/session/" + uri.substring(uri.lastIndexOf('/')
+                + 1));
+        return session != null && session.done ? session.bytes.toByteArray() : null;
+    }
+
+    @Override
+    public synchronized HttpStub.Response respond(HttpStub.Request request) throws IOException {
+        if (request.method.equals("POST") && request.path.startsWith("/upload")) {
+            final Session session = new Session();
+            session.length = Long.parseLong(request.headers.get("x-upload-content-length"));
+            final String path = "/session/" + (mSessions.size() + 1);
+            mSessions.put(path, session);
+            final HttpStub.Response response = new HttpStub.Response(200, "");
+            response.headers.put("Location", "http://" + request.headers.get("host") + path);
+            return response;
+        }
+        final Session session = mSessions.get(request.path);
+        if (!request.method.equals("PUT") || session == null) {
+            return new HttpStub.Response(404, "no such session");
+        }
+        final Matcher range = CONTENT_RANGE.matcher(request.headers.get("content-range"));
+        if (range.matches() && !mIgnoreChunks) {
+            final int start = Integer.parseInt(range.group(1));
+            final int stored = session.bytes.size();
+            if (start > stored) {
+                return new HttpStub.Response(400, "gap at " + stored);
+            }
+            int length = request.body.length - (stored - start);
+            if (mDropEvery > 0 && ++mChunks % mDropEvery == 0) {
+                session.bytes.write(request.body, stored - start, length / 2);
+                mDrops++;
+                throw new IOException("dropped");
+            }
+            session.bytes.write(request.body, stored - start, length);
+        }
+        if (session.bytes.size() == session.length) {
+            session.done = true;
+            return new HttpStub.Response(200, "{\"uri\":\"gs://cellar/"
+                    + request.path.substring(request.path.lastIndexOf('/') + 1) + "\"}");
+        }
+        final HttpStub.Response response = new HttpStub.Response(308, "");
+        if (session.bytes.size() > 0) {
+            response.headers.put("Range", "bytes=0-" + (session.bytes.size() - 1));
+        }
+        return response;
+    }
+}